@@ -0,0 +1,123 @@
+package ch.cern.benchmarks
+
+import java.util.{Map => JMap}
+
+import scala.jdk.CollectionConverters._
+
+import com.codahale.metrics.MetricRegistry
+import org.apache.spark.SparkConf
+import org.apache.spark.api.plugin.PluginContext
+import org.apache.spark.resource.ResourceInformation
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FSDataInputStream, FileSystem, Path}
+import org.apache.hadoop.hdfs.HDFSTimeInstrumentation
+
+// Helpers shared by the JMH benchmarks and the end-to-end harness
+object BenchmarkSupport {
+
+  val localFs = "local"
+  val standInFs = "standin"
+
+  // Plugin context of an executor outside of Spark, for registering the plugin gauges
+  class StandalonePluginContext(sparkConf: SparkConf) extends PluginContext {
+    private val registry = new MetricRegistry
+
+    override def metricRegistry(): MetricRegistry = registry
+    override def conf(): SparkConf = sparkConf
+    override def executorID(): String = "0"
+    override def hostname(): String = "localhost"
+    override def resources(): JMap[String, ResourceInformation] = Map.empty[String, ResourceInformation].asJava
+    override def send(message: AnyRef): Unit = {}
+    override def ask(message: AnyRef): AnyRef = null
+  }
+
+  /**
+   * Register the gauges of the metrics plugins, as they are registered on an executor:
+   * HDFSMetrics, CloudFSMetrics for the local and stand-in filesystems, and the experimental
+   * S3A and HDFS time instrumentation plugins.
+   */
+  def pluginGauges(): MetricRegistry = {
+    val sparkConf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.cloudFsName", s"file,${ObjectStoreStandIn.scheme}")
+    val context = new StandalonePluginContext(sparkConf)
+    val registry = context.metricRegistry
+    new ch.cern.HDFSMetrics().hdfsMetrics(context, registry)
+    new ch.cern.CloudFSMetrics().cloudFilesystemMetrics(context, registry)
+    new ch.cern.experimental.S3ATimeInstrumentation().s3aMetrics(registry, None)
+    new ch.cern.experimental.HDFSTimeInstrumentation().hdfsMetrics(registry, None)
+    registry
+  }
+
+  // Read all the gauges, as a metrics sink poll does
+  def pollGauges(registry: MetricRegistry): Long = {
+    var checksum = 0L
+    registry.getGauges.values.asScala.foreach { gauge =>
+      gauge.getValue match {
+        case number: Number => checksum += number.longValue
+        case _ =>
+      }
+    }
+    checksum
+  }
+
+  def hadoopConf(instrumented: Boolean, requestLatencyMicros: Long): Configuration =
+    ObjectStoreStandIn.configure(new Configuration(false), instrumented, requestLatencyMicros)
+
+  // Path of the test file on the local filesystem or on the stand-in object store
+  def testFile(fsType: String, name: String): Path = fsType match {
+    case `localFs` =>
+      new Path(new java.io.File(System.getProperty("java.io.tmpdir"), name).toURI)
+    case `standInFs` =>
+      new Path(s"${ObjectStoreStandIn.scheme}://bench-bucket/$name")
+    case _ =>
+      throw new IllegalArgumentException(s"Unknown filesystem type $fsType, use $localFs or $standInFs")
+  }
+
+  // Write a test file of the given size, if not already present with that size
+  def writeTestFile(fs: FileSystem, path: Path, sizeBytes: Long): Unit = {
+    if (!fs.exists(path) || fs.getFileStatus(path).getLen != sizeBytes) {
+      val out = fs.create(path, true)
+      val chunk = new Array[Byte](1024 * 1024)
+      new java.util.Random(42L).nextBytes(chunk)
+      var written = 0L
+      while (written < sizeBytes) {
+        val n = math.min(chunk.length.toLong, sizeBytes - written).toInt
+        out.write(chunk, 0, n)
+        written += n
+      }
+      out.close()
+    }
+  }
+
+  /**
+   * Sequential read of one buffer, rewinding to the start of the file at the end.
+   * The stand-in instruments itself, reads on the local filesystem are wrapped with the
+   * HDFSTimeInstrumentation hooks, as done by the instrumented HDFS client.
+   */
+  def readNext(in: FSDataInputStream, fsType: String, instrumented: Boolean, buffer: Array[Byte]): Int = {
+    var n = readBuffer(in, fsType, instrumented, buffer)
+    if (n == -1) {
+      in.seek(0L)
+      n = readBuffer(in, fsType, instrumented, buffer)
+    }
+    n
+  }
+
+  private def readBuffer(in: FSDataInputStream, fsType: String, instrumented: Boolean,
+                         buffer: Array[Byte]): Int = {
+    if (instrumented && fsType == localFs) {
+      val start = HDFSTimeInstrumentation.getReadTimer.startOp()
+      val n = in.read(buffer, 0, buffer.length)
+      HDFSTimeInstrumentation.getReadTimer.endOp(start)
+      if (n > 0) {
+        HDFSTimeInstrumentation.incrementBytesRead(n.toLong)
+      }
+      HDFSTimeInstrumentation.incrementReadCalls(1)
+      n
+    } else {
+      in.read(buffer, 0, buffer.length)
+    }
+  }
+
+}
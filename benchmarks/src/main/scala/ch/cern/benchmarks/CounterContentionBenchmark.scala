@@ -0,0 +1,50 @@
+package ch.cern.benchmarks
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+import org.openjdk.jmh.annotations._
+
+import ch.cern.instrumentation.{LatencyHistogram, OpTimer, StripedCounter}
+
+/**
+ * Contention on the shared instrumentation counters: StripedCounter (LongAdder cells) versus a single
+ * AtomicLong, as used before, plus the cost of the latency histogram (striped per thread as the counters)
+ * and of a complete OpTimer call.
+ * All the threads update the same counter, sweep the number of threads with -t, for example:
+ *   for t in 1 2 4 8 16 32 64; do sbt "benchmarks/Jmh/run -t $t .*CounterContentionBenchmark.*"; done
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class CounterContentionBenchmark {
+
+  val atomicCounter = new AtomicLong()
+  val stripedCounter = new StripedCounter()
+  val histogram = new LatencyHistogram()
+  val timer = new OpTimer(new StripedCounter(), new StripedCounter(), new LatencyHistogram())
+
+  @Benchmark
+  def atomicLong(): Long = {
+    atomicCounter.addAndGet(100L)
+  }
+
+  @Benchmark
+  def striped(): Unit = {
+    stripedCounter.add(100L)
+  }
+
+  @Benchmark
+  def latencyHistogram(): Unit = {
+    histogram.recordValue(100L)
+  }
+
+  @Benchmark
+  def opTimer(): Unit = {
+    timer.endOp(timer.startOp())
+  }
+
+}
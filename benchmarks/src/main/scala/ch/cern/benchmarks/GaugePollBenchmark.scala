@@ -0,0 +1,34 @@
+package ch.cern.benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import com.codahale.metrics.MetricRegistry
+
+/**
+ * Cost of a metrics sink poll of the gauges registered by HDFSMetrics, CloudFSMetrics and the
+ * experimental S3A and HDFS time instrumentation plugins, run with -prof gc for the allocations per poll:
+ *   sbt "benchmarks/Jmh/run -prof gc .*GaugePollBenchmark.*"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class GaugePollBenchmark {
+
+  var registry: MetricRegistry = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    registry = BenchmarkSupport.pluginGauges()
+  }
+
+  @Benchmark
+  def poll(): Long = {
+    BenchmarkSupport.pollGauges(registry)
+  }
+
+}
@@ -0,0 +1,225 @@
+package ch.cern.benchmarks
+
+import java.io.{ByteArrayOutputStream, EOFException, FileNotFoundException, IOException}
+import java.net.URI
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.LockSupport
+
+import scala.jdk.CollectionConverters._
+
+import org.apache.hadoop.conf.Configuration
+import org.apache.hadoop.fs.{FSDataInputStream, FSDataOutputStream, FSInputStream, FileStatus, FileSystem, Path}
+import org.apache.hadoop.fs.permission.FsPermission
+import org.apache.hadoop.util.Progressable
+
+import org.apache.hadoop.fs.s3a.S3ATimeInstrumentation
+
+/**
+ * In-process object store stand-in, a Hadoop FileSystem with scheme s3bench:// that keeps the objects
+ * in memory and reproduces the request pattern of the S3A input stream: getObjectMetadata on open,
+ * a ranged GET when reading after a seek, then streaming reads, the GET is closed by the next seek or on close.
+ * When instrumented, the stream calls the org.apache.hadoop.fs.s3a.S3ATimeInstrumentation hooks
+ * at the same places as the instrumented S3A client.
+ *
+ * Configuration:
+ *   fs.s3bench.impl=ch.cern.benchmarks.ObjectStoreStandIn
+ *   fs.s3bench.instrumented (default true), call the S3ATimeInstrumentation hooks
+ *   fs.s3bench.requestLatencyMicros (default 0), simulated latency of each metadata and GET request
+ */
+class ObjectStoreStandIn extends FileSystem {
+
+  private var uri: URI = _
+  private var workingDir: Path = _
+  private var instrumented = true
+  private var requestLatencyNanos = 0L
+
+  override def initialize(name: URI, conf: Configuration): Unit = {
+    super.initialize(name, conf)
+    uri = URI.create(name.getScheme + "://" + name.getAuthority)
+    workingDir = new Path(uri.toString + "/")
+    instrumented = conf.getBoolean("fs.s3bench.instrumented", true)
+    requestLatencyNanos = conf.getLong("fs.s3bench.requestLatencyMicros", 0L) * 1000L
+  }
+
+  override def getScheme: String = ObjectStoreStandIn.scheme
+
+  override def getUri: URI = uri
+
+  private def key(path: Path): String = makeQualified(path).toString
+
+  private def request(): Unit = {
+    if (requestLatencyNanos > 0) {
+      LockSupport.parkNanos(requestLatencyNanos)
+    }
+  }
+
+  private def getObjectMetadata(path: Path): Array[Byte] = {
+    val start = if (instrumented) S3ATimeInstrumentation.getGetObjectMetadataTimer.startOp() else 0L
+    request()
+    val data = ObjectStoreStandIn.objects.get(key(path))
+    if (instrumented) {
+      S3ATimeInstrumentation.getGetObjectMetadataTimer.endOp(start)
+    }
+    if (data == null) {
+      throw new FileNotFoundException(s"No such object: $path")
+    }
+    data
+  }
+
+  override def open(path: Path, bufferSize: Int): FSDataInputStream = {
+    new FSDataInputStream(new StandInInputStream(getObjectMetadata(path)))
+  }
+
+  override def create(path: Path, permission: FsPermission, overwrite: Boolean, bufferSize: Int,
+                      replication: Short, blockSize: Long, progress: Progressable): FSDataOutputStream = {
+    val objectKey = key(path)
+    if (!overwrite && ObjectStoreStandIn.objects.containsKey(objectKey)) {
+      throw new IOException(s"Object exists: $path")
+    }
+    // like an object store, the object is visible only after close
+    val buffer = new ByteArrayOutputStream() {
+      override def close(): Unit = {
+        request()
+        ObjectStoreStandIn.objects.put(objectKey, toByteArray)
+      }
+    }
+    new FSDataOutputStream(buffer, statistics)
+  }
+
+  override def append(path: Path, bufferSize: Int, progress: Progressable): FSDataOutputStream =
+    throw new UnsupportedOperationException("Append is not supported by the object store stand-in")
+
+  override def rename(src: Path, dst: Path): Boolean = {
+    val data = ObjectStoreStandIn.objects.remove(key(src))
+    if (data != null) {
+      ObjectStoreStandIn.objects.put(key(dst), data)
+    }
+    data != null
+  }
+
+  override def delete(path: Path, recursive: Boolean): Boolean = {
+    val prefix = key(path)
+    val keys = ObjectStoreStandIn.objects.keySet.asScala.filter(k => k == prefix || k.startsWith(prefix + "/"))
+    keys.foreach(ObjectStoreStandIn.objects.remove)
+    keys.nonEmpty
+  }
+
+  override def listStatus(path: Path): Array[FileStatus] = {
+    val prefix = key(path) + "/"
+    ObjectStoreStandIn.objects.asScala.collect {
+      case (k, data) if k.startsWith(prefix) && !k.substring(prefix.length).contains("/") =>
+        new FileStatus(data.length, false, 1, ObjectStoreStandIn.blockSize, 0L, new Path(k))
+    }.toArray
+  }
+
+  override def setWorkingDirectory(path: Path): Unit = {
+    workingDir = makeQualified(path)
+  }
+
+  override def getWorkingDirectory: Path = workingDir
+
+  // object stores have no directories
+  override def mkdirs(path: Path, permission: FsPermission): Boolean = true
+
+  override def getFileStatus(path: Path): FileStatus = {
+    val data = getObjectMetadata(path)
+    new FileStatus(data.length, false, 1, ObjectStoreStandIn.blockSize, 0L, makeQualified(path))
+  }
+
+  // Reads an object with the pattern of the S3A input stream: a read after a seek opens a new ranged GET
+  private class StandInInputStream(data: Array[Byte]) extends FSInputStream {
+    private var pos = 0L
+    private var streamOpen = false
+    private var readsOnStream = 0L
+
+    private def closeStream(): Unit = {
+      if (streamOpen && instrumented) {
+        S3ATimeInstrumentation.recordStreamClosed(readsOnStream)
+      }
+      streamOpen = false
+    }
+
+    override def seek(target: Long): Unit = {
+      if (target < 0 || target > data.length) {
+        throw new EOFException(s"Cannot seek to $target, object length ${data.length}")
+      }
+      if (target != pos) {
+        val start = if (instrumented) S3ATimeInstrumentation.getSeekTimer.startOp() else 0L
+        // a seek closes the current GET, the next read opens a new one
+        closeStream()
+        if (instrumented) {
+          S3ATimeInstrumentation.recordSeek(pos, target)
+        }
+        pos = target
+        if (instrumented) {
+          S3ATimeInstrumentation.getSeekTimer.endOp(start)
+        }
+      }
+    }
+
+    override def getPos: Long = pos
+
+    override def seekToNewSource(targetPos: Long): Boolean = false
+
+    override def read(): Int = {
+      val b = new Array[Byte](1)
+      if (read(b, 0, 1) == -1) -1 else b(0) & 0xff
+    }
+
+    override def read(buf: Array[Byte], off: Int, len: Int): Int = {
+      if (pos >= data.length) {
+        -1
+      } else {
+        val start = if (instrumented) S3ATimeInstrumentation.getReadTimer.startOp() else 0L
+        if (!streamOpen) {
+          request()
+          streamOpen = true
+          readsOnStream = 0L
+          if (instrumented) {
+            S3ATimeInstrumentation.recordStreamOpened()
+          }
+        }
+        readsOnStream += 1
+        val n = math.min(len.toLong, data.length - pos).toInt
+        System.arraycopy(data, pos.toInt, buf, off, n)
+        pos += n
+        if (instrumented) {
+          S3ATimeInstrumentation.getReadTimer.endOp(start)
+          S3ATimeInstrumentation.recordReadSize(n.toLong)
+        }
+        if (statistics != null) {
+          statistics.incrementBytesRead(n.toLong)
+          statistics.incrementReadOps(1)
+        }
+        n
+      }
+    }
+
+    override def available(): Int = math.min(Int.MaxValue.toLong, data.length - pos).toInt
+
+    override def close(): Unit = {
+      closeStream()
+      super.close()
+    }
+  }
+
+}
+
+object ObjectStoreStandIn {
+
+  val scheme = "s3bench"
+  val blockSize: Long = 32L * 1024 * 1024
+
+  // the in-memory bucket, shared by all the filesystem instances of the JVM
+  private val objects = new ConcurrentHashMap[String, Array[Byte]]()
+
+  // Hadoop configuration using the stand-in for the s3bench:// scheme
+  def configure(conf: Configuration, instrumented: Boolean, requestLatencyMicros: Long): Configuration = {
+    conf.set(s"fs.$scheme.impl", classOf[ObjectStoreStandIn].getName)
+    conf.setBoolean(s"fs.$scheme.impl.disable.cache", true)
+    conf.setBoolean(s"fs.$scheme.instrumented", instrumented)
+    conf.setLong(s"fs.$scheme.requestLatencyMicros", requestLatencyMicros)
+    conf
+  }
+
+}
@@ -0,0 +1,96 @@
+package ch.cern.benchmarks
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import com.codahale.metrics.MetricRegistry
+import org.apache.hadoop.fs.{FSDataInputStream, FileSystem}
+
+/**
+ * Cost of one read call through the Hadoop FileSystem API, on the local filesystem and on the
+ * in-process object store stand-in, with the I/O time instrumentation hooks enabled and disabled.
+ * The difference between instrumented=true and instrumented=false is the per-read overhead.
+ * With instrumented=true the plugin gauges are also registered and the polled benchmark method reads them
+ * concurrently, as a metrics sink does. Run with -prof gc for the allocation rate, and -t for more threads:
+ *   sbt "benchmarks/Jmh/run -prof gc .*ReadPathBenchmark.*"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+class ReadPathBenchmark {
+
+  @Param(Array("local", "standin"))
+  var fsType: String = _
+
+  @Param(Array("true", "false"))
+  var instrumented: Boolean = _
+
+  @Param(Array("4096", "65536"))
+  var readSize: Int = _
+
+  var fs: FileSystem = _
+  var registry: MetricRegistry = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    val path = BenchmarkSupport.testFile(fsType, ReadPathBenchmark.fileName)
+    fs = path.getFileSystem(BenchmarkSupport.hadoopConf(instrumented, 0L))
+    BenchmarkSupport.writeTestFile(fs, path, ReadPathBenchmark.fileSizeBytes)
+    registry = if (instrumented) BenchmarkSupport.pluginGauges() else new MetricRegistry
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    fs.close()
+  }
+
+  @Benchmark
+  def read(reader: ReadPathBenchmark.Reader): Int = {
+    BenchmarkSupport.readNext(reader.in, fsType, instrumented, reader.buffer)
+  }
+
+  // read with a concurrent sink poll of the gauges, 1 thread polls for every 3 reading threads
+  @Benchmark
+  @Group("polled")
+  @GroupThreads(3)
+  def polledRead(reader: ReadPathBenchmark.Reader): Int = {
+    BenchmarkSupport.readNext(reader.in, fsType, instrumented, reader.buffer)
+  }
+
+  @Benchmark
+  @Group("polled")
+  @GroupThreads(1)
+  def poll(): Long = {
+    BenchmarkSupport.pollGauges(registry)
+  }
+
+}
+
+object ReadPathBenchmark {
+
+  val fileName = "spark-plugins-read-benchmark.bin"
+  val fileSizeBytes: Long = 64L * 1024 * 1024
+
+  // one open stream and read buffer per benchmark thread
+  @State(Scope.Thread)
+  class Reader {
+    var in: FSDataInputStream = _
+    var buffer: Array[Byte] = _
+
+    @Setup(Level.Trial)
+    def open(benchmark: ReadPathBenchmark): Unit = {
+      in = benchmark.fs.open(BenchmarkSupport.testFile(benchmark.fsType, fileName))
+      buffer = new Array[Byte](benchmark.readSize)
+    }
+
+    @TearDown(Level.Trial)
+    def close(): Unit = {
+      in.close()
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+package ch.cern.benchmarks
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
+import java.util.concurrent.atomic.LongAdder
+
+import com.codahale.metrics.MetricRegistry
+
+/**
+ * End-to-end read-path harness: concurrent threads read a test file through the Hadoop FileSystem API,
+ * on the local filesystem and on the in-process object store stand-in, first with the instrumentation
+ * hooks disabled and then enabled, with the plugin gauges polled at a fixed interval as a metrics sink does.
+ * Reports throughput, time per read, the instrumentation overhead per read and the allocation rate.
+ *
+ * Usage, arguments as key=value (defaults shown):
+ *   sbt "benchmarks/runMain ch.cern.benchmarks.ReadPathHarness fs=local,standin threads=4 fileMB=256
+ *        readSize=65536 durationSec=10 warmupSec=3 latencyMicros=0 pollMs=100"
+ * Each configuration first runs for warmupSec, not measured, to let the JIT compile the read path.
+ */
+object ReadPathHarness {
+
+  case class Result(fsType: String, instrumented: Boolean, reads: Long, bytes: Long, elapsedNanos: Long,
+                    allocatedBytes: Long, polls: Long) {
+    def throughputMBs: Double = bytes / 1e6 / (elapsedNanos / 1e9)
+    def nanosPerRead(threads: Int): Double = elapsedNanos.toDouble * threads / reads
+    def allocationMBs: Double = allocatedBytes / 1e6 / (elapsedNanos / 1e9)
+    def allocatedBytesPerRead: Double = allocatedBytes.toDouble / reads
+  }
+
+  private val threadMXBean = ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+
+  def main(args: Array[String]): Unit = {
+    val options = args.map { arg =>
+      val Array(key, value) = arg.split("=", 2)
+      key -> value
+    }.toMap
+    val fsTypes = options.getOrElse("fs", s"${BenchmarkSupport.localFs},${BenchmarkSupport.standInFs}").split(",")
+    val threads = options.getOrElse("threads", "4").toInt
+    val fileBytes = options.getOrElse("fileMB", "256").toLong * 1024 * 1024
+    val readSize = options.getOrElse("readSize", "65536").toInt
+    val durationNanos = TimeUnit.SECONDS.toNanos(options.getOrElse("durationSec", "10").toLong)
+    val warmupNanos = TimeUnit.SECONDS.toNanos(options.getOrElse("warmupSec", "3").toLong)
+    val latencyMicros = options.getOrElse("latencyMicros", "0").toLong
+    val pollMs = options.getOrElse("pollMs", "100").toLong
+
+    println(s"threads=$threads fileBytes=$fileBytes readSize=$readSize latencyMicros=$latencyMicros pollMs=$pollMs")
+    fsTypes.foreach { fsType =>
+      val results = Seq(false, true).map { instrumented =>
+        run(fsType, instrumented, threads, fileBytes, readSize, warmupNanos, latencyMicros, pollMs)
+        val result = run(fsType, instrumented, threads, fileBytes, readSize, durationNanos, latencyMicros, pollMs)
+        println(f"fs=$fsType%-8s instrumented=$instrumented%-5s reads=${result.reads}%d " +
+          f"throughput=${result.throughputMBs}%.1f MB/s timePerRead=${result.nanosPerRead(threads)}%.0f ns " +
+          f"allocation=${result.allocationMBs}%.2f MB/s (${result.allocatedBytesPerRead}%.1f bytes/read) " +
+          f"gaugePolls=${result.polls}%d")
+        result
+      }
+      val overhead = results(1).nanosPerRead(threads) - results(0).nanosPerRead(threads)
+      println(f"fs=$fsType%-8s instrumentation overhead per read: $overhead%.0f ns")
+    }
+  }
+
+  def run(fsType: String, instrumented: Boolean, threads: Int, fileBytes: Long, readSize: Int,
+          durationNanos: Long, latencyMicros: Long, pollMs: Long): Result = {
+    val path = BenchmarkSupport.testFile(fsType, ReadPathBenchmark.fileName)
+    val fs = path.getFileSystem(BenchmarkSupport.hadoopConf(instrumented, latencyMicros))
+    BenchmarkSupport.writeTestFile(fs, path, fileBytes)
+
+    // gauges registered and polled only in the instrumented run
+    val registry = if (instrumented) BenchmarkSupport.pluginGauges() else new MetricRegistry
+    val polls = new LongAdder
+    val poller = Executors.newSingleThreadScheduledExecutor()
+    if (instrumented) {
+      poller.scheduleAtFixedRate(new Runnable {
+        override def run(): Unit = {
+          BenchmarkSupport.pollGauges(registry)
+          polls.increment()
+        }
+      }, pollMs, pollMs, TimeUnit.MILLISECONDS)
+    }
+
+    val reads = new LongAdder
+    val bytes = new LongAdder
+    val allocated = new LongAdder
+    val start = new CountDownLatch(1)
+    val done = new CountDownLatch(threads)
+    val workers = Executors.newFixedThreadPool(threads)
+    (1 to threads).foreach { _ =>
+      workers.submit(new Runnable {
+        override def run(): Unit = {
+          val in = fs.open(path)
+          val buffer = new Array[Byte](readSize)
+          try {
+            start.await()
+            val threadId = Thread.currentThread.getId
+            val startAllocated = threadMXBean.getThreadAllocatedBytes(threadId)
+            val end = System.nanoTime() + durationNanos
+            var numReads = 0L
+            var numBytes = 0L
+            while (System.nanoTime() < end) {
+              numBytes += BenchmarkSupport.readNext(in, fsType, instrumented, buffer)
+              numReads += 1
+            }
+            allocated.add(threadMXBean.getThreadAllocatedBytes(threadId) - startAllocated)
+            reads.add(numReads)
+            bytes.add(numBytes)
+          } finally {
+            in.close()
+            done.countDown()
+          }
+        }
+      })
+    }
+    val startNanos = System.nanoTime()
+    start.countDown()
+    done.await()
+    val elapsedNanos = System.nanoTime() - startNanos
+    workers.shutdown()
+    poller.shutdownNow()
+    fs.close()
+    Result(fsType, instrumented, reads.sum, bytes.sum, elapsedNanos, allocated.sum, polls.sum)
+  }
+
+}
@@ -15,17 +15,24 @@
  */
 package ch.cern.eos;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import ch.cern.instrumentation.LatencyHistogram;
+import ch.cern.instrumentation.StripedCounter;
+import ch.cern.instrumentation.TaskAttribution;
 
 public class XRootDInstrumentation {
 
-    private static AtomicLong timeElapsedReadMusec = new AtomicLong();
-    private static AtomicLong timeElapsedWriteMusec = new AtomicLong();
-    private static AtomicInteger readOps = new AtomicInteger();
-    private static AtomicInteger writeOps = new AtomicInteger();
-    private static AtomicLong bytesRead = new AtomicLong();
-    private static AtomicLong bytesWritten = new AtomicLong();
+    private static final StripedCounter timeElapsedReadMusec =
+        new StripedCounter(TaskAttribution.ROOT_READ_TIME_MUSEC);
+    private static final StripedCounter timeElapsedWriteMusec =
+        new StripedCounter(TaskAttribution.ROOT_WRITE_TIME_MUSEC);
+    private static final StripedCounter readOps = new StripedCounter();
+    private static final StripedCounter writeOps = new StripedCounter();
+    private static final StripedCounter bytesRead =
+        new StripedCounter(TaskAttribution.ROOT_BYTES_READ);
+    private static final StripedCounter bytesWritten =
+        new StripedCounter(TaskAttribution.ROOT_BYTES_WRITTEN);
+    private static final LatencyHistogram readTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram writeTimeHistogram = new LatencyHistogram();
 
     /**
      * Get the cumulative value of the elapsed time spent  by
@@ -47,8 +54,15 @@ public class XRootDInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds
      */
+    public void incrementTimeElapsedReadOps(long incrementTime) {
+        timeElapsedReadMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeElapsedReadOps(long)}, kept for compatibility with existing clients.
+     */
     public void incrementTimeElapsedReadOps(Long incrementTime) {
-        timeElapsedReadMusec.getAndAdd(incrementTime);
+        incrementTimeElapsedReadOps(incrementTime.longValue());
     }
 
     /**
@@ -69,8 +83,15 @@ public class XRootDInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds
      */
+    public void incrementTimeElapsedWriteOps(long incrementTime) {
+        timeElapsedWriteMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeElapsedWriteOps(long)}, kept for compatibility with existing clients.
+     */
     public void incrementTimeElapsedWriteOps(Long incrementTime) {
-        timeElapsedWriteMusec.getAndAdd(incrementTime);
+        incrementTimeElapsedWriteOps(incrementTime.longValue());
     }
 
     /**
@@ -89,8 +110,15 @@ public class XRootDInstrumentation {
      *
      * @param incrementBytesRead number of bytes to add to the counter of bytes read.
      */
+    public void incrementBytesRead(long incrementBytesRead) {
+        bytesRead.add(incrementBytesRead);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementBytesRead(long)}, kept for compatibility with existing clients.
+     */
     public void incrementBytesRead(Long incrementBytesRead) {
-        bytesRead.getAndAdd(incrementBytesRead);
+        incrementBytesRead(incrementBytesRead.longValue());
     }
 
     /**
@@ -109,8 +137,15 @@ public class XRootDInstrumentation {
      *
      * @param incrementBytesWritten number of bytes to add to the counter of bytes read.
      */
+    public void incrementBytesWritten(long incrementBytesWritten) {
+        bytesWritten.add(incrementBytesWritten);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementBytesWritten(long)}, kept for compatibility with existing clients.
+     */
     public void incrementBytesWritten(Long incrementBytesWritten) {
-        bytesWritten.getAndAdd(incrementBytesWritten);
+        incrementBytesWritten(incrementBytesWritten.longValue());
     }
 
     /**
@@ -120,7 +155,7 @@ public class XRootDInstrumentation {
      * @return cumulative number of read operations.
      */
     public static int getReadOps() {
-        return readOps.get();
+        return readOps.getInt();
     }
 
     /**
@@ -130,7 +165,7 @@ public class XRootDInstrumentation {
      * @param numOps increment the counter of read operations.
      */
     public void incrementReadOps(int numOps) {
-        readOps.getAndAdd(numOps);
+        readOps.add(numOps);
     }
 
     /**
@@ -139,7 +174,7 @@ public class XRootDInstrumentation {
      *
      * @return cumulative number of write operations.
      */
-    public static int getWriteOps() { return writeOps.get(); }
+    public static int getWriteOps() { return writeOps.getInt(); }
 
     /**
      * Increment the counter of the cumulative number of write operations performed by
@@ -148,6 +183,47 @@ public class XRootDInstrumentation {
      * @param numOps increment the counter of write operations.
      */
     public void incrementWriteOps(int numOps) {
-        writeOps.getAndAdd(numOps);
+        writeOps.add(numOps);
     }
+
+    /**
+     * Record the elapsed time of one read call: adds it to the cumulative read time
+     * and to the read latency histogram. Use this in place of incrementTimeElapsedReadOps.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     */
+    public void recordReadTime(long elapsedMusec) {
+        timeElapsedReadMusec.add(elapsedMusec);
+        readTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Get the histogram of the elapsed time of read calls recorded with recordReadTime.
+     *
+     * @return the read latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getReadTimeHistogram() {
+        return readTimeHistogram;
+    }
+
+    /**
+     * Record the elapsed time of one write call: adds it to the cumulative write time
+     * and to the write latency histogram. Use this in place of incrementTimeElapsedWriteOps.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     */
+    public void recordWriteTime(long elapsedMusec) {
+        timeElapsedWriteMusec.add(elapsedMusec);
+        writeTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Get the histogram of the elapsed time of write calls recorded with recordWriteTime.
+     *
+     * @return the write latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getWriteTimeHistogram() {
+        return writeTimeHistogram;
+    }
+
 }
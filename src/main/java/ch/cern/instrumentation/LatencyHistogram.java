@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014-2022 CERN IT
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.cern.instrumentation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Fixed-memory, log-bucketed histogram of latency values, used by the *TimeInstrumentation classes.
+ * The bucket layout follows the HdrHistogram idea: values below 2^SUB_BUCKET_BITS have one bucket each,
+ * larger values are split in 2^(SUB_BUCKET_BITS-1) linear sub-buckets per power of two,
+ * which gives a relative error below 1/2^(SUB_BUCKET_BITS-1) (about 3%) over the full range of long.
+ * Recording is lock-free and O(1): one bucket index computation and one atomic increment,
+ * with no allocation, so it can run on every read call. The cumulative distribution since JVM start
+ * is reported; percentiles are computed on read, when the metrics sink polls the gauges.
+ * As for StripedCounter, the counts are striped to avoid contention between task threads recording similar
+ * latencies, which would otherwise increment the same slot: each thread records into one of NUM_STRIPES
+ * arrays, chosen from its thread id, and the reads sum the stripes. A stripe is allocated on its first use,
+ * so a histogram only used by a few threads, or not at all, keeps a small footprint.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    private static final int NUM_BUCKETS = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private static final int NUM_STRIPES =
+        Integer.highestOneBit(Math.min(Math.max(Runtime.getRuntime().availableProcessors(), 1), 16) * 2 - 1);
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(NUM_STRIPES);
+    private final AtomicLong maxValue = new AtomicLong();
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS + 1;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT
+            + (int) ((value >>> shift) - SUB_BUCKET_HALF_COUNT);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int offset = index - SUB_BUCKET_COUNT;
+        int shift = offset / SUB_BUCKET_HALF_COUNT + 1;
+        long lowerBound = ((long) (offset % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT)) << shift;
+        return lowerBound + ((1L << shift) - 1);
+    }
+
+    private AtomicLongArray stripe() {
+        long id = Thread.currentThread().getId();
+        int index = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (NUM_STRIPES - 1);
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(NUM_BUCKETS));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    private long bucketCount(int index) {
+        long count = 0L;
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            AtomicLongArray stripe = stripes.get(i);
+            if (stripe != null) {
+                count += stripe.get(index);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Record one value. Negative values, for example from a non-monotonic clock, are recorded as 0.
+     *
+     * @param value the value to record, typically a latency in microseconds.
+     */
+    public void recordValue(long value) {
+        long v = Math.max(value, 0L);
+        stripe().incrementAndGet(bucketIndex(v));
+        long currentMax = maxValue.get();
+        while (v > currentMax && !maxValue.compareAndSet(currentMax, v)) {
+            currentMax = maxValue.get();
+        }
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return number of values recorded since the histogram was created.
+     */
+    public long getCount() {
+        long total = 0L;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            total += bucketCount(i);
+        }
+        return total;
+    }
+
+    /**
+     * Get the largest recorded value.
+     *
+     * @return the maximum value recorded, 0 if the histogram is empty.
+     */
+    public long getMax() {
+        return maxValue.get();
+    }
+
+    /**
+     * Get the cumulative counts at the powers of two, to export the histogram with exponential buckets:
+     * cumulativeCounts[k] is the number of recorded values less than or equal to 2^k - 1.
+     * The powers of two are bucket boundaries, so the counts are exact. Nothing is allocated.
+     *
+     * @param cumulativeCounts the array to fill, for k from 0 to cumulativeCounts.length - 1 (at most 64).
+     * @return the number of recorded values.
+     */
+    public long getCumulativeCountsAtPowersOfTwo(long[] cumulativeCounts) {
+        long cumulative = 0L;
+        int i = 0;
+        for (int k = 0; k < cumulativeCounts.length; k++) {
+            long bound = k >= 63 ? Long.MAX_VALUE : (1L << k) - 1;
+            while (i < NUM_BUCKETS && bucketUpperBound(i) <= bound) {
+                cumulative += bucketCount(i);
+                i++;
+            }
+            cumulativeCounts[k] = cumulative;
+        }
+        while (i < NUM_BUCKETS) {
+            cumulative += bucketCount(i);
+            i++;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Get the value at the given percentile of the recorded distribution.
+     * The result is the upper bound of the bucket holding the percentile, capped to the recorded maximum.
+     *
+     * @param percentile the percentile to compute, in the range 0 to 100.
+     * @return the value at the given percentile, 0 if the histogram is empty.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0L) {
+            return 0L;
+        }
+        double p = Math.min(Math.max(percentile, 0.0), 100.0);
+        long target = Math.max(1L, (long) Math.ceil(p / 100.0 * total));
+        long cumulative = 0L;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            cumulative += bucketCount(i);
+            if (cumulative >= target) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014-2022 CERN IT
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.cern.instrumentation;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ThreadLocalRandom;
+
+/* Timing facade for the instrumented filesystem clients.
+ * Usage from the client, around a read call:
+ *   long start = S3ATimeInstrumentation.getReadTimer().startOp();
+ *   ... read ...
+ *   S3ATimeInstrumentation.getReadTimer().endOp(start);
+ * The elapsed time is measured with System.nanoTime on every call and added to the cumulative
+ * elapsed time counter and to the latency histogram.
+ * startOp returns a primitive timestamp and does not allocate: the lowest bit of the timestamp flags
+ * the calls with a CPU time measurement, whose CPU start is kept in a slot of the calling thread,
+ * reused by the following calls of the thread on the same timer.
+ * Reading the thread CPU time is much more expensive than reading the monotonic clock, so it can be
+ * sampled: with a sampling rate N, the thread CPU time is measured on 1 call out of N, chosen at random,
+ * and the measured value is multiplied by N. The CPU time counters are then an unbiased estimate of the
+ * CPU time spent in the calls, and the derived *MinusCPU metrics remain statistically correct.
+ * With the ELAPSED_ONLY mode the thread CPU clock is not read and the CPU time counters are not updated.
+ */
+public final class OpTimer {
+
+    public enum CpuClockMode {
+        THREAD_CPU_TIME,
+        ELAPSED_ONLY
+    }
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported();
+
+    private static volatile CpuClockMode cpuClockMode =
+        cpuTimeSupported ? CpuClockMode.THREAD_CPU_TIME : CpuClockMode.ELAPSED_ONLY;
+    private static volatile int cpuSamplingRate = 1;
+
+    private final StripedCounter elapsedMusec;
+    private final StripedCounter cpuMusec;
+    private final LatencyHistogram histogram;
+    // {start thread CPU time in ns, weight} of the sampled call in progress on the calling thread
+    private final ThreadLocal<long[]> cpuStart = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * Create a timer that feeds the given counters.
+     *
+     * @param elapsedMusec cumulative elapsed time counter, in microseconds.
+     * @param cpuMusec cumulative CPU time counter, in microseconds, or null to not measure CPU time.
+     * @param histogram latency histogram, in microseconds, or null to not record latencies.
+     */
+    public OpTimer(StripedCounter elapsedMusec, StripedCounter cpuMusec, LatencyHistogram histogram) {
+        this.elapsedMusec = elapsedMusec;
+        this.cpuMusec = cpuMusec;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Set the CPU clock mode and sampling rate used by all the timers.
+     *
+     * @param mode the CPU clock mode, THREAD_CPU_TIME is ignored if the JVM does not support thread CPU time.
+     * @param samplingRate measure the thread CPU time on 1 out of samplingRate calls, must be at least 1.
+     */
+    public static void configure(CpuClockMode mode, int samplingRate) {
+        if (samplingRate < 1) {
+            throw new IllegalArgumentException("CPU time sampling rate must be at least 1, got " + samplingRate);
+        }
+        cpuClockMode = cpuTimeSupported ? mode : CpuClockMode.ELAPSED_ONLY;
+        cpuSamplingRate = samplingRate;
+    }
+
+    public static CpuClockMode getCpuClockMode() {
+        return cpuClockMode;
+    }
+
+    public static int getCpuSamplingRate() {
+        return cpuSamplingRate;
+    }
+
+    /**
+     * Start timing one call.
+     *
+     * @return the start timestamp to pass to endOp when the call completes.
+     */
+    public long startOp() {
+        if (cpuMusec != null && cpuClockMode == CpuClockMode.THREAD_CPU_TIME) {
+            int rate = cpuSamplingRate;
+            if (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0) {
+                long[] slot = cpuStart.get();
+                slot[1] = rate;
+                slot[0] = threadMXBean.getCurrentThreadCpuTime();
+                return System.nanoTime() | 1L;
+            }
+        }
+        return System.nanoTime() & ~1L;
+    }
+
+    /**
+     * Complete timing one call, must be called by the thread that called startOp,
+     * before it starts another call on the same timer.
+     *
+     * @param start the timestamp returned by startOp.
+     */
+    public void endOp(long start) {
+        long elapsed = (System.nanoTime() - (start & ~1L)) / 1000L;
+        elapsedMusec.add(elapsed);
+        if (histogram != null) {
+            histogram.recordValue(elapsed);
+        }
+        if ((start & 1L) != 0L) {
+            long[] slot = cpuStart.get();
+            long cpuNanos = threadMXBean.getCurrentThreadCpuTime() - slot[0];
+            cpuMusec.add(cpuNanos * slot[1] / 1000L);
+        }
+    }
+
+}
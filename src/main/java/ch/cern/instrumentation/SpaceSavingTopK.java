@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014-2022 CERN IT
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.cern.instrumentation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/* Fixed-memory top-K of the keys with the largest cumulative weight, for example the DataNodes where
+ * the HDFS client spent most of its read time, with the space-saving algorithm (Metwally et al. 2005).
+ * At most `capacity` keys are tracked. A new key arriving when the table is full replaces the key with
+ * the smallest weight and inherits its weight, which is kept as the error bound of the new key:
+ * the reported weight of a key overestimates its true weight by at most its error, and any key with
+ * a true weight larger than the smallest tracked weight is guaranteed to be in the table.
+ * The calls and bytes of a key are counted from the time it entered the table.
+ * As for LatencyHistogram, the updates are striped by thread id: add() appends the update to the buffer of
+ * its stripe, under the lock of the stripe only, and the buffers are merged into the table by the reads,
+ * top() and topByMeanWeight(), on the thread of the metrics sink or sampler. A buffer that fills up between
+ * two reads is merged by the thread that adds to it, once every STRIPE_BUFFER_SIZE updates of the stripe.
+ * Merging is O(1) per update for tracked keys, O(capacity) for an eviction; use a capacity
+ * a few times larger than the number of keys reported to keep the error of the top keys low.
+ */
+public final class SpaceSavingTopK {
+
+    /* One tracked key, the values returned by top() are copies */
+    public static final class Entry {
+        private String key;
+        private long weight;
+        private long error;
+        private long calls;
+        private long bytes;
+
+        private Entry() {
+        }
+
+        private Entry(Entry other) {
+            this.key = other.key;
+            this.weight = other.weight;
+            this.error = other.error;
+            this.calls = other.calls;
+            this.bytes = other.bytes;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /* Cumulative weight, an upper bound of the true weight of the key */
+        public long getWeight() {
+            return weight;
+        }
+
+        /* Maximum overestimation of the weight, inherited from the evicted key */
+        public long getError() {
+            return error;
+        }
+
+        /* Number of updates since the key entered the table */
+        public long getCalls() {
+            return calls;
+        }
+
+        /* Bytes added since the key entered the table */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /* Mean weight per call since the key entered the table, for example the mean read latency */
+        public long getMeanWeight() {
+            return calls == 0 ? 0L : (weight - error) / calls;
+        }
+    }
+
+    /* Updates of the threads of one stripe, not yet merged into the table */
+    private static final class Stripe {
+        private final String[] keys = new String[STRIPE_BUFFER_SIZE];
+        private final long[] weights = new long[STRIPE_BUFFER_SIZE];
+        private final long[] bytes = new long[STRIPE_BUFFER_SIZE];
+        private int count = 0;
+    }
+
+    private static final int STRIPE_BUFFER_SIZE = 64;
+
+    private static final int NUM_STRIPES =
+        Integer.highestOneBit(Math.min(Math.max(Runtime.getRuntime().availableProcessors(), 1), 16) * 2 - 1);
+
+    private static final Comparator<Entry> BY_MEAN_WEIGHT_DESC = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(b.getMeanWeight(), a.getMeanWeight());
+        }
+    };
+
+    private static final Comparator<Entry> BY_WEIGHT_DESC = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(b.weight, a.weight);
+        }
+    };
+
+    private final Entry[] entries;
+    private final HashMap<String, Entry> index;
+    private int size = 0;
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+    public SpaceSavingTopK(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.entries = new Entry[capacity];
+        this.index = new HashMap<>(capacity * 2);
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+        }
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Add weight and bytes to a key. Null keys are ignored.
+     * The update is buffered, it is visible to the reads that start after add returns.
+     *
+     * @param key the key, for example the DataNode id.
+     * @param weight the weight to add, for example the elapsed time of a read call in microseconds.
+     * @param bytes the bytes transferred by the call.
+     */
+    public void add(String key, long weight, long bytes) {
+        if (key == null) {
+            return;
+        }
+        long id = Thread.currentThread().getId();
+        Stripe stripe = stripes[(int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (NUM_STRIPES - 1)];
+        synchronized (stripe) {
+            if (stripe.count == STRIPE_BUFFER_SIZE) {
+                drain(stripe);
+            }
+            int i = stripe.count++;
+            stripe.keys[i] = key;
+            stripe.weights[i] = weight;
+            stripe.bytes[i] = bytes;
+        }
+    }
+
+    /* Apply the buffered updates of a stripe to the table, called with the lock of the stripe */
+    private void drain(Stripe stripe) {
+        synchronized (this) {
+            for (int i = 0; i < stripe.count; i++) {
+                update(stripe.keys[i], stripe.weights[i], stripe.bytes[i]);
+                stripe.keys[i] = null;
+            }
+            stripe.count = 0;
+        }
+    }
+
+    /* Apply the buffered updates of all the stripes, called by the reads */
+    private void merge() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                drain(stripe);
+            }
+        }
+    }
+
+    private void update(String key, long weight, long bytes) {
+        Entry entry = index.get(key);
+        if (entry == null) {
+            if (size < entries.length) {
+                entry = entries[size++];
+                entry.error = 0L;
+                entry.weight = 0L;
+            } else {
+                entry = entries[0];
+                for (int i = 1; i < size; i++) {
+                    if (entries[i].weight < entry.weight) {
+                        entry = entries[i];
+                    }
+                }
+                index.remove(entry.key);
+                entry.error = entry.weight;
+            }
+            entry.key = key;
+            entry.calls = 0L;
+            entry.bytes = 0L;
+            index.put(key, entry);
+        }
+        entry.weight += Math.max(weight, 0L);
+        entry.calls++;
+        entry.bytes += bytes;
+    }
+
+    /* Copies of the tracked entries, after merging the buffered updates */
+    private Entry[] copies() {
+        merge();
+        synchronized (this) {
+            Entry[] copy = new Entry[size];
+            for (int i = 0; i < size; i++) {
+                copy[i] = new Entry(entries[i]);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Get the tracked keys with the largest weight, for example the DataNodes where most read time was spent.
+     *
+     * @param n the maximum number of keys to return.
+     * @return copies of the entries, by descending weight.
+     */
+    public Entry[] top(int n) {
+        Entry[] copy = copies();
+        Arrays.sort(copy, BY_WEIGHT_DESC);
+        return copy.length <= n ? copy : Arrays.copyOf(copy, n);
+    }
+
+    /**
+     * Get the tracked keys with the largest mean weight per call, for example the slowest DataNodes,
+     * among the keys with at least minCalls calls since they entered the table, so that a key seen
+     * for a few slow calls only does not rank first.
+     *
+     * @param n the maximum number of keys to return.
+     * @param minCalls the minimum number of calls of a key to be ranked.
+     * @return copies of the entries, by descending mean weight.
+     */
+    public Entry[] topByMeanWeight(int n, long minCalls) {
+        Entry[] all = copies();
+        int ranked = 0;
+        for (Entry entry : all) {
+            if (entry.calls >= minCalls) {
+                all[ranked++] = entry;
+            }
+        }
+        Entry[] copy = Arrays.copyOf(all, ranked);
+        Arrays.sort(copy, BY_MEAN_WEIGHT_DESC);
+        return copy.length <= n ? copy : Arrays.copyOf(copy, n);
+    }
+
+    /**
+     * Get the number of tracked keys.
+     *
+     * @return number of keys in the table, at most the capacity.
+     */
+    public int size() {
+        merge();
+        synchronized (this) {
+            return size;
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014-2022 CERN IT
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.cern.instrumentation;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/* Low-contention cumulative counter used by the *TimeInstrumentation classes.
+ * The instrumentation counters are updated on every read/seek call of the filesystem clients,
+ * from many task threads concurrently, and are only read when a metrics sink polls the gauges.
+ * A single AtomicLong per counter makes all cores compete for the same cache line, so this
+ * class is backed by java.util.concurrent.atomic.LongAdder, which spreads updates over a
+ * dynamically sized set of padded (@Contended) cells and sums them on read.
+ * Counters created with an attribution slot also feed the per-thread buckets of TaskAttribution.
+ */
+public final class StripedCounter {
+
+    private static final int NO_ATTRIBUTION = -1;
+
+    private final LongAdder cells = new LongAdder();
+    private final int attributionSlot;
+
+    public StripedCounter() {
+        this(NO_ATTRIBUTION);
+    }
+
+    /**
+     * Create a counter whose increments are also attributed to the running task, see TaskAttribution.
+     *
+     * @param attributionSlot the TaskAttribution slot of this counter.
+     */
+    public StripedCounter(int attributionSlot) {
+        this.attributionSlot = attributionSlot;
+    }
+
+    /**
+     * Add a value to the counter.
+     *
+     * @param value the value to add.
+     */
+    public void add(long value) {
+        cells.add(value);
+        if (attributionSlot != NO_ATTRIBUTION) {
+            TaskAttribution.add(attributionSlot, value);
+        }
+    }
+
+    /**
+     * Increment the counter by one.
+     */
+    public void increment() {
+        add(1L);
+    }
+
+    /**
+     * Get the current value of the counter.
+     * The result is not an atomic snapshot if updates happen concurrently with the read,
+     * which is fine for cumulative metrics polled by the Spark metrics system.
+     *
+     * @return the sum of all the increments.
+     */
+    public long get() {
+        return cells.sum();
+    }
+
+    /**
+     * Get the current value of the counter, narrowed to int, for the legacy int-valued getters.
+     *
+     * @return the sum of all the increments, cast to int.
+     */
+    public int getInt() {
+        return (int) cells.sum();
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014-2022 CERN IT
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.cern.instrumentation;
+
+import java.util.Arrays;
+
+/* Per-thread attribution of the I/O time instrumentation counters.
+ * When enabled, the counters of the *TimeInstrumentation classes created with an attribution slot
+ * also accumulate their increments into a bucket local to the calling thread.
+ * Spark runs each task on a single executor thread, so resetting the bucket when a task starts and
+ * reading it when the task ends gives the I/O time and bytes of that task
+ * (see ch.cern.experimental.TaskIOAttribution and ch.cern.experimental.TaskTimeBreakdown).
+ * The bucket is only reset when the next task starts, so more than one plugin can read it at the end of a task.
+ * Increments from threads other than the task thread, for example asynchronous prefetching,
+ * are not attributed to the task.
+ * Attribution is enabled while at least one plugin uses it, the plugins call acquire() at init
+ * and release() at shutdown.
+ * When disabled the cost on the I/O path is one volatile read per increment.
+ */
+public final class TaskAttribution {
+
+    public static final int S3A_READ_TIME_MUSEC = 0;
+    public static final int S3A_SEEK_TIME_MUSEC = 1;
+    public static final int S3A_GET_OBJECT_METADATA_MUSEC = 2;
+    public static final int S3A_BYTES_READ = 3;
+    public static final int HDFS_READ_TIME_MUSEC = 4;
+    public static final int HDFS_WRITE_TIME_MUSEC = 5;
+    public static final int HDFS_BYTES_READ = 6;
+    public static final int HDFS_BYTES_WRITTEN = 7;
+    public static final int OCI_READ_TIME_MUSEC = 8;
+    public static final int OCI_SEEK_TIME_MUSEC = 9;
+    public static final int OCI_BYTES_READ = 10;
+    public static final int ROOT_READ_TIME_MUSEC = 11;
+    public static final int ROOT_WRITE_TIME_MUSEC = 12;
+    public static final int ROOT_BYTES_READ = 13;
+    public static final int ROOT_BYTES_WRITTEN = 14;
+    public static final int S3A_BYTES_WRITTEN = 15;
+    public static final int S3A_CLOSE_TIME_MUSEC = 16;
+    public static final int OCI_BYTES_WRITTEN = 17;
+    public static final int OCI_CLOSE_TIME_MUSEC = 18;
+
+    /* Metric names, indexed by slot, matching the gauge names of the ch.cern.experimental plugins */
+    private static final String[] NAMES = {
+        "S3AReadTimeMuSec", "S3ASeekTimeMuSec", "S3AGetObjectMetadataMuSec", "S3ABytesRead",
+        "HDFSReadTimeMuSec", "HDFSWriteTimeMuSec", "HDFSBytesRead", "HDFSBytesWritten",
+        "OCIReadTimeMuSec", "OCISeekTimeMuSec", "OCIBytesRead",
+        "ROOTReadTimeMuSec", "ROOTWriteTimeMuSec", "ROOTBytesRead", "ROOTBytesWritten",
+        "S3ABytesWritten", "S3ACloseTimeMuSec", "OCIBytesWritten", "OCICloseTimeMuSec"
+    };
+
+    public static final int NUM_SLOTS = NAMES.length;
+
+    private static volatile boolean enabled = false;
+    private static int users = 0;
+
+    private static final ThreadLocal<long[]> buckets = ThreadLocal.withInitial(() -> new long[NUM_SLOTS]);
+
+    private TaskAttribution() {
+    }
+
+    /**
+     * Enable attribution, for one more user.
+     */
+    public static synchronized void acquire() {
+        users++;
+        enabled = true;
+    }
+
+    /**
+     * Release the attribution acquired by a user, it is disabled when there are no users left.
+     */
+    public static synchronized void release() {
+        if (users > 0) {
+            users--;
+        }
+        enabled = users > 0;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Get the name of an attribution slot.
+     *
+     * @param slot the slot index, from 0 to NUM_SLOTS - 1.
+     * @return the metric name of the slot.
+     */
+    public static String getName(int slot) {
+        return NAMES[slot];
+    }
+
+    /**
+     * Check if a slot is a time, in microseconds, rather than a number of bytes.
+     *
+     * @param slot the slot index, from 0 to NUM_SLOTS - 1.
+     * @return true for the slots of the I/O time counters.
+     */
+    public static boolean isTime(int slot) {
+        return NAMES[slot].endsWith("MuSec");
+    }
+
+    /**
+     * Add a value to the bucket of the calling thread, if attribution is enabled.
+     *
+     * @param slot the slot index.
+     * @param value the value to add.
+     */
+    public static void add(int slot, long value) {
+        if (enabled) {
+            buckets.get()[slot] += value;
+        }
+    }
+
+    /**
+     * Get one value of the bucket of the calling thread, without copying the bucket.
+     *
+     * @param slot the slot index.
+     * @return the value accumulated since the last reset.
+     */
+    public static long get(int slot) {
+        return buckets.get()[slot];
+    }
+
+    /**
+     * Reset the bucket of the calling thread, called when a task starts.
+     */
+    public static void reset() {
+        Arrays.fill(buckets.get(), 0L);
+    }
+
+    /**
+     * Get a copy of the bucket of the calling thread, called when a task ends.
+     *
+     * @return a copy of the values accumulated since the last reset, or null if they are all 0.
+     */
+    public static long[] snapshot() {
+        long[] bucket = buckets.get();
+        for (long value : bucket) {
+            if (value != 0L) {
+                return bucket.clone();
+            }
+        }
+        return null;
+    }
+
+}
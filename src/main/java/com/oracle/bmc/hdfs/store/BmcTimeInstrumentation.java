@@ -16,7 +16,10 @@
 
 package com.oracle.bmc.hdfs.store;
 
-import java.util.concurrent.atomic.AtomicLong;
+import ch.cern.instrumentation.LatencyHistogram;
+import ch.cern.instrumentation.OpTimer;
+import ch.cern.instrumentation.StripedCounter;
+import ch.cern.instrumentation.TaskAttribution;
 
 /* This class implements instrumentation for BMCFSInputStream
  * In particular it implements time measurement, introduced for performance troubleshooting
@@ -28,11 +31,37 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 
 public class BmcTimeInstrumentation {
-    private static AtomicLong timeElapsedReadMusec = new AtomicLong();
-    private static AtomicLong timeElapsedSeekTime = new AtomicLong();
-    private static AtomicLong timeCPUDuringReadMusec = new AtomicLong();
-    private static AtomicLong timeCPUDuringSeekMusec = new AtomicLong();
-    private static AtomicLong bytesRead = new AtomicLong();
+    private static final StripedCounter timeElapsedReadMusec =
+        new StripedCounter(TaskAttribution.OCI_READ_TIME_MUSEC);
+    private static final StripedCounter timeElapsedSeekTime =
+        new StripedCounter(TaskAttribution.OCI_SEEK_TIME_MUSEC);
+    private static final StripedCounter timeCPUDuringReadMusec = new StripedCounter();
+    private static final StripedCounter timeCPUDuringSeekMusec = new StripedCounter();
+    private static final StripedCounter bytesRead =
+        new StripedCounter(TaskAttribution.OCI_BYTES_READ);
+    private static final LatencyHistogram readTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram seekTimeHistogram = new LatencyHistogram();
+    private static final OpTimer readTimer =
+        new OpTimer(timeElapsedReadMusec, timeCPUDuringReadMusec, readTimeHistogram);
+    private static final OpTimer seekTimer =
+        new OpTimer(timeElapsedSeekTime, timeCPUDuringSeekMusec, seekTimeHistogram);
+
+    // write path of BmcMultipartOutputStream: small files are uploaded with a single PUT,
+    // larger files as the parts of a multipart upload, committed when the stream is closed
+    private static final StripedCounter bytesWritten =
+        new StripedCounter(TaskAttribution.OCI_BYTES_WRITTEN);
+    private static final StripedCounter timeBlockUploadMusec = new StripedCounter();
+    private static final StripedCounter blocksUploaded = new StripedCounter();
+    private static final StripedCounter timePartUploadMusec = new StripedCounter();
+    private static final StripedCounter partsUploaded = new StripedCounter();
+    private static final StripedCounter timeUploadQueueWaitMusec = new StripedCounter();
+    private static final StripedCounter timeCloseMusec =
+        new StripedCounter(TaskAttribution.OCI_CLOSE_TIME_MUSEC);
+    private static final LatencyHistogram blockUploadTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram partUploadTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram partSizeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram uploadQueueWaitHistogram = new LatencyHistogram();
+    private static final LatencyHistogram closeTimeHistogram = new LatencyHistogram();
 
     /* Time spent for read calls in BMCInputStream */
     public static long getTimeElapsedReadMusec() {
@@ -45,8 +74,13 @@ public class BmcTimeInstrumentation {
     }
 
     /* Increment time spent during read calls in BMCInputStream */
+    public static void incrementCPUTimeDuringRead(long incrementTime) {
+        timeCPUDuringReadMusec.add(incrementTime);
+    }
+
+    /* Boxed variant of incrementCPUTimeDuringRead(long), kept for compatibility with existing clients */
     public static void incrementCPUTimeDuringRead(Long incrementTime) {
-        timeCPUDuringReadMusec.getAndAdd(incrementTime);
+        incrementCPUTimeDuringRead(incrementTime.longValue());
     }
 
     /* CPU time spent during seek calls in BMCInputStream */
@@ -55,12 +89,22 @@ public class BmcTimeInstrumentation {
     }
 
     /* Increment time spent during seek calls in BMCInputStream */
+    public static void incrementCPUTimeDuringSeek(long incrementTime) {
+        timeCPUDuringSeekMusec.add(incrementTime);
+    }
+
+    /* Boxed variant of incrementCPUTimeDuringSeek(long), kept for compatibility with existing clients */
     public static void incrementCPUTimeDuringSeek(Long incrementTime) {
-        timeCPUDuringSeekMusec.getAndAdd(incrementTime);
+        incrementCPUTimeDuringSeek(incrementTime.longValue());
+    }
+
+    public static void incrementTimeElapsedReadOps(long incrementTime) {
+        timeElapsedReadMusec.add(incrementTime);
     }
 
+    /* Boxed variant of incrementTimeElapsedReadOps(long), kept for compatibility with existing clients */
     public static void incrementTimeElapsedReadOps(Long incrementTime) {
-        timeElapsedReadMusec.getAndAdd(incrementTime);
+        incrementTimeElapsedReadOps(incrementTime.longValue());
     }
 
     /* Time spent for seek calls in BMCInputStream */
@@ -68,8 +112,13 @@ public class BmcTimeInstrumentation {
         return timeElapsedSeekTime.get();
     }
 
+    public static void incrementTimeElapsedSeekOps(long incrementTime) {
+        timeElapsedSeekTime.add(incrementTime);
+    }
+
+    /* Boxed variant of incrementTimeElapsedSeekOps(long), kept for compatibility with existing clients */
     public static void incrementTimeElapsedSeekOps(Long incrementTime) {
-        timeElapsedSeekTime.getAndAdd(incrementTime);
+        incrementTimeElapsedSeekOps(incrementTime.longValue());
     }
 
     /* bytes read in BMCInputStream */
@@ -77,8 +126,137 @@ public class BmcTimeInstrumentation {
         return bytesRead.get();
     }
 
+    public static void incrementBytesRead(long incrementBytesRead) {
+        bytesRead.add(incrementBytesRead);
+    }
+
+    /* Boxed variant of incrementBytesRead(long), kept for compatibility with existing clients */
     public static void incrementBytesRead(Long incrementBytesRead) {
-        bytesRead.getAndAdd(incrementBytesRead);
+        incrementBytesRead(incrementBytesRead.longValue());
+    }
+
+    /* Record the elapsed time of one read call in BMCInputStream, cumulative time and histogram, in microseconds */
+    public static void recordReadTime(long elapsedMusec) {
+        timeElapsedReadMusec.add(elapsedMusec);
+        readTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /* Histogram of the elapsed time of read calls in BMCInputStream, in microseconds */
+    public static LatencyHistogram getReadTimeHistogram() {
+        return readTimeHistogram;
+    }
+
+    /* Record the elapsed time of one seek call in BMCInputStream, cumulative time and histogram, in microseconds */
+    public static void recordSeekTime(long elapsedMusec) {
+        timeElapsedSeekTime.add(elapsedMusec);
+        seekTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /* Histogram of the elapsed time of seek calls in BMCInputStream, in microseconds */
+    public static LatencyHistogram getSeekTimeHistogram() {
+        return seekTimeHistogram;
+    }
+
+    /* Timer for read calls in BMCInputStream, elapsed time, sampled CPU time and histogram */
+    public static OpTimer getReadTimer() {
+        return readTimer;
+    }
+
+    /* Timer for seek calls in BMCInputStream, elapsed time, sampled CPU time and histogram */
+    public static OpTimer getSeekTimer() {
+        return seekTimer;
+    }
+
+    /* Bytes written to BmcMultipartOutputStream */
+    public static long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /* Increment the bytes written to BmcMultipartOutputStream */
+    public static void incrementBytesWritten(long incrementBytesWritten) {
+        bytesWritten.add(incrementBytesWritten);
+    }
+
+    /* Record the upload of a whole object with a single PUT, elapsed time in microseconds */
+    public static void recordBlockUploadTime(long elapsedMusec) {
+        timeBlockUploadMusec.add(elapsedMusec);
+        blocksUploaded.add(1L);
+        blockUploadTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /* Record the upload of one part of a multipart upload, elapsed time in microseconds and size in bytes */
+    public static void recordPartUpload(long elapsedMusec, long bytes) {
+        timePartUploadMusec.add(elapsedMusec);
+        partsUploaded.add(1L);
+        partUploadTimeHistogram.recordValue(elapsedMusec);
+        partSizeHistogram.recordValue(bytes);
+    }
+
+    /* Record the time a part waited for a thread of the upload executor before its upload started, in microseconds */
+    public static void recordUploadQueueWait(long elapsedMusec) {
+        timeUploadQueueWaitMusec.add(elapsedMusec);
+        uploadQueueWaitHistogram.recordValue(elapsedMusec);
+    }
+
+    /* Record the elapsed time of the close call, which waits for the pending parts and commits the upload */
+    public static void recordCloseTime(long elapsedMusec) {
+        timeCloseMusec.add(elapsedMusec);
+        closeTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /* Cumulative time of the single PUT uploads, in microseconds */
+    public static long getTimeBlockUploadMusec() {
+        return timeBlockUploadMusec.get();
+    }
+
+    /* Number of objects uploaded with a single PUT */
+    public static long getBlocksUploaded() {
+        return blocksUploaded.get();
+    }
+
+    /* Cumulative time of the multipart part uploads, in microseconds */
+    public static long getTimePartUploadMusec() {
+        return timePartUploadMusec.get();
+    }
+
+    /* Number of multipart parts uploaded */
+    public static long getPartsUploaded() {
+        return partsUploaded.get();
+    }
+
+    /* Cumulative time the parts waited for an upload thread, in microseconds */
+    public static long getTimeUploadQueueWaitMusec() {
+        return timeUploadQueueWaitMusec.get();
+    }
+
+    /* Cumulative time spent in the close call of the output streams, in microseconds */
+    public static long getTimeCloseMusec() {
+        return timeCloseMusec.get();
+    }
+
+    /* Histogram of the elapsed time of the single PUT uploads, in microseconds */
+    public static LatencyHistogram getBlockUploadTimeHistogram() {
+        return blockUploadTimeHistogram;
+    }
+
+    /* Histogram of the elapsed time of the part uploads, in microseconds */
+    public static LatencyHistogram getPartUploadTimeHistogram() {
+        return partUploadTimeHistogram;
+    }
+
+    /* Histogram of the sizes of the parts, in bytes */
+    public static LatencyHistogram getPartSizeHistogram() {
+        return partSizeHistogram;
+    }
+
+    /* Histogram of the upload queue wait times, in microseconds */
+    public static LatencyHistogram getUploadQueueWaitHistogram() {
+        return uploadQueueWaitHistogram;
+    }
+
+    /* Histogram of the close times, in microseconds */
+    public static LatencyHistogram getCloseTimeHistogram() {
+        return closeTimeHistogram;
     }
 
 }
@@ -15,25 +15,82 @@
  */
 package org.apache.hadoop.fs.s3a;
 
-import java.util.concurrent.atomic.AtomicLong;
+import ch.cern.instrumentation.LatencyHistogram;
+import ch.cern.instrumentation.OpTimer;
+import ch.cern.instrumentation.StripedCounter;
+import ch.cern.instrumentation.TaskAttribution;
 
 public class S3ATimeInstrumentation {
 
-    private static AtomicLong timeElapsedReadMusec = new AtomicLong();
-    private static AtomicLong timeElapsedSeekMusec = new AtomicLong();
-    private static AtomicLong timeCPUDuringReadMusec = new AtomicLong();
-    private static AtomicLong timeCPUDuringSeekMusec = new AtomicLong();
-    private static AtomicLong timeGetObjectMetadata = new AtomicLong();
-    private static AtomicLong timeCPUGetObjectMetadata = new AtomicLong();
-    private static AtomicLong bytesRead = new AtomicLong();
+    private static final StripedCounter timeElapsedReadMusec =
+        new StripedCounter(TaskAttribution.S3A_READ_TIME_MUSEC);
+    private static final StripedCounter timeElapsedSeekMusec =
+        new StripedCounter(TaskAttribution.S3A_SEEK_TIME_MUSEC);
+    private static final StripedCounter timeCPUDuringReadMusec = new StripedCounter();
+    private static final StripedCounter timeCPUDuringSeekMusec = new StripedCounter();
+    private static final StripedCounter timeGetObjectMetadata =
+        new StripedCounter(TaskAttribution.S3A_GET_OBJECT_METADATA_MUSEC);
+    private static final StripedCounter timeCPUGetObjectMetadata = new StripedCounter();
+    private static final StripedCounter bytesRead =
+        new StripedCounter(TaskAttribution.S3A_BYTES_READ);
+    private static final LatencyHistogram readTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram seekTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram getObjectMetadataTimeHistogram = new LatencyHistogram();
+    private static final OpTimer readTimer =
+        new OpTimer(timeElapsedReadMusec, timeCPUDuringReadMusec, readTimeHistogram);
+    private static final OpTimer seekTimer =
+        new OpTimer(timeElapsedSeekMusec, timeCPUDuringSeekMusec, seekTimeHistogram);
+    private static final OpTimer getObjectMetadataTimer =
+        new OpTimer(timeGetObjectMetadata, timeCPUGetObjectMetadata, getObjectMetadataTimeHistogram);
+
+    // read pattern of the input streams, values in bytes, reads per stream as a number of calls
+    private static final StripedCounter readCalls = new StripedCounter();
+    private static final StripedCounter streamsOpened = new StripedCounter();
+    private static final StripedCounter streamsAborted = new StripedCounter();
+    private static final StripedCounter forwardSeeks = new StripedCounter();
+    private static final StripedCounter backwardSeeks = new StripedCounter();
+    private static final StripedCounter forwardSeekBytes = new StripedCounter();
+    private static final StripedCounter backwardSeekBytes = new StripedCounter();
+    private static final StripedCounter bytesDiscardedOnSeek = new StripedCounter();
+    private static final StripedCounter bytesDiscardedInAbort = new StripedCounter();
+    private static final StripedCounter bytesDrainedOnClose = new StripedCounter();
+    private static final LatencyHistogram readSizeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram forwardSeekDistanceHistogram = new LatencyHistogram();
+    private static final LatencyHistogram backwardSeekDistanceHistogram = new LatencyHistogram();
+    private static final LatencyHistogram readsPerStreamHistogram = new LatencyHistogram();
+
+    // write path of the block output stream: blocks of small files are uploaded with a single PUT,
+    // larger files as the parts of a multipart upload, completed when the stream is closed
+    private static final StripedCounter bytesWritten =
+        new StripedCounter(TaskAttribution.S3A_BYTES_WRITTEN);
+    private static final StripedCounter writeCalls = new StripedCounter();
+    private static final StripedCounter timeBlockUploadMusec = new StripedCounter();
+    private static final StripedCounter blocksUploaded = new StripedCounter();
+    private static final StripedCounter timePartUploadMusec = new StripedCounter();
+    private static final StripedCounter partsUploaded = new StripedCounter();
+    private static final StripedCounter timeUploadQueueWaitMusec = new StripedCounter();
+    private static final StripedCounter timeCloseMusec =
+        new StripedCounter(TaskAttribution.S3A_CLOSE_TIME_MUSEC);
+    private static final LatencyHistogram blockUploadTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram partUploadTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram partSizeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram uploadQueueWaitHistogram = new LatencyHistogram();
+    private static final LatencyHistogram closeTimeHistogram = new LatencyHistogram();
 
     /**
      * Increment the value of the cumulative elapsed time spent in read operations.
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds.
      */
+    public static void incrementTimeElapsedReadOps(long incrementTime) {
+        timeElapsedReadMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeElapsedReadOps(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementTimeElapsedReadOps(Long incrementTime) {
-        timeElapsedReadMusec.getAndAdd(incrementTime);
+        incrementTimeElapsedReadOps(incrementTime.longValue());
     }
 
     /**
@@ -41,8 +98,15 @@ public class S3ATimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds.
      */
+    public static void incrementCPUTimeDuringRead(long incrementTime) {
+        timeCPUDuringReadMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementCPUTimeDuringRead(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementCPUTimeDuringRead(Long incrementTime) {
-        timeCPUDuringReadMusec.getAndAdd(incrementTime);
+        incrementCPUTimeDuringRead(incrementTime.longValue());
     }
 
     /**
@@ -50,8 +114,15 @@ public class S3ATimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds.
      */
+    public static void incrementCPUTimeDuringSeek(long incrementTime) {
+        timeCPUDuringSeekMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementCPUTimeDuringSeek(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementCPUTimeDuringSeek(Long incrementTime) {
-        timeCPUDuringSeekMusec.getAndAdd(incrementTime);
+        incrementCPUTimeDuringSeek(incrementTime.longValue());
     }
 
     /**
@@ -59,8 +130,15 @@ public class S3ATimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds.
      */
+    public static void incrementTimeElapsedSeekOps(long incrementTime) {
+        timeElapsedSeekMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeElapsedSeekOps(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementTimeElapsedSeekOps(Long incrementTime) {
-        timeElapsedSeekMusec.getAndAdd(incrementTime);
+        incrementTimeElapsedSeekOps(incrementTime.longValue());
     }
 
     /**
@@ -68,8 +146,15 @@ public class S3ATimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds.
      */
+    public static void incrementTimeGetObjectMetadata(long incrementTime) {
+        timeGetObjectMetadata.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeGetObjectMetadata(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementTimeGetObjectMetadata(Long incrementTime) {
-        timeGetObjectMetadata.getAndAdd(incrementTime);
+        incrementTimeGetObjectMetadata(incrementTime.longValue());
     }
 
     /**
@@ -77,8 +162,15 @@ public class S3ATimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds.
      */
+    public static void incrementTimeCPUGetObjectMetadata(long incrementTime) {
+        timeCPUGetObjectMetadata.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeCPUGetObjectMetadata(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementTimeCPUGetObjectMetadata(Long incrementTime) {
-        timeCPUGetObjectMetadata.getAndAdd(incrementTime);
+        incrementTimeCPUGetObjectMetadata(incrementTime.longValue());
     }
 
     /**
@@ -87,8 +179,15 @@ public class S3ATimeInstrumentation {
      * @param incrementBytesRead bytes to add to the cumulative value.
      */
 
+    public static void incrementBytesRead(long incrementBytesRead) {
+        bytesRead.add(incrementBytesRead);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementBytesRead(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementBytesRead(Long incrementBytesRead) {
-        bytesRead.getAndAdd(incrementBytesRead);
+        incrementBytesRead(incrementBytesRead.longValue());
     }
 
     /**
@@ -155,4 +254,477 @@ public class S3ATimeInstrumentation {
         return bytesRead.get();
     }
 
+    /**
+     * Record the elapsed time of one read call: adds it to the cumulative read time
+     * and to the read latency histogram. Use this in place of incrementTimeElapsedReadOps.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     */
+    public static void recordReadTime(long elapsedMusec) {
+        timeElapsedReadMusec.add(elapsedMusec);
+        readTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Get the histogram of the elapsed time of read calls recorded with recordReadTime.
+     *
+     * @return the read latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getReadTimeHistogram() {
+        return readTimeHistogram;
+    }
+
+    /**
+     * Record the elapsed time of one seek call: adds it to the cumulative seek time
+     * and to the seek latency histogram. Use this in place of incrementTimeElapsedSeekOps.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     */
+    public static void recordSeekTime(long elapsedMusec) {
+        timeElapsedSeekMusec.add(elapsedMusec);
+        seekTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Get the histogram of the elapsed time of seek calls recorded with recordSeekTime.
+     *
+     * @return the seek latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getSeekTimeHistogram() {
+        return seekTimeHistogram;
+    }
+
+    /**
+     * Record the elapsed time of one getObjectMetadata call: adds it to the cumulative getObjectMetadata time
+     * and to the getObjectMetadata latency histogram. Use this in place of incrementTimeGetObjectMetadata.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     */
+    public static void recordGetObjectMetadataTime(long elapsedMusec) {
+        timeGetObjectMetadata.add(elapsedMusec);
+        getObjectMetadataTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Get the histogram of the elapsed time of getObjectMetadata calls recorded with recordGetObjectMetadataTime.
+     *
+     * @return the getObjectMetadata latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getGetObjectMetadataTimeHistogram() {
+        return getObjectMetadataTimeHistogram;
+    }
+
+    /**
+     * Get the timer for read calls: feeds the cumulative elapsed time and CPU time of read operations
+     * and the read latency histogram, see {@link OpTimer} for the CPU time sampling.
+     *
+     * @return the read timer.
+     */
+    public static OpTimer getReadTimer() {
+        return readTimer;
+    }
+
+    /**
+     * Get the timer for seek calls: feeds the cumulative elapsed time and CPU time of seek operations
+     * and the seek latency histogram, see {@link OpTimer} for the CPU time sampling.
+     *
+     * @return the seek timer.
+     */
+    public static OpTimer getSeekTimer() {
+        return seekTimer;
+    }
+
+    /**
+     * Get the timer for getObjectMetadata calls: feeds the cumulative elapsed time and CPU time of getObjectMetadata operations
+     * and the getObjectMetadata latency histogram, see {@link OpTimer} for the CPU time sampling.
+     *
+     * @return the getObjectMetadata timer.
+     */
+    public static OpTimer getGetObjectMetadataTimer() {
+        return getObjectMetadataTimer;
+    }
+
+    /**
+     * Record the size of one read call: adds it to the cumulative bytes read, counts the call
+     * and adds the size to the read size histogram. Use this in place of incrementBytesRead.
+     * End of stream (a negative result of the read call) is not recorded.
+     *
+     * @param bytes the number of bytes returned by the read call.
+     */
+    public static void recordReadSize(long bytes) {
+        if (bytes >= 0) {
+            bytesRead.add(bytes);
+            readCalls.add(1L);
+            readSizeHistogram.recordValue(bytes);
+        }
+    }
+
+    /**
+     * Record the distance of one seek call, forward or backward from the current position.
+     * Seeks to the current position are not recorded.
+     *
+     * @param fromPos the position of the stream before the seek.
+     * @param toPos the target position of the seek.
+     */
+    public static void recordSeek(long fromPos, long toPos) {
+        long distance = toPos - fromPos;
+        if (distance > 0) {
+            forwardSeeks.add(1L);
+            forwardSeekBytes.add(distance);
+            forwardSeekDistanceHistogram.recordValue(distance);
+        } else if (distance < 0) {
+            backwardSeeks.add(1L);
+            backwardSeekBytes.add(-distance);
+            backwardSeekDistanceHistogram.recordValue(-distance);
+        }
+    }
+
+    /**
+     * Record the opening of the HTTP stream of an object, that is a GET request.
+     */
+    public static void recordStreamOpened() {
+        streamsOpened.add(1L);
+    }
+
+    /**
+     * Record the closing of the HTTP stream of an object, with the number of read calls served by the stream.
+     * The client counts the reads in a field of the input stream and resets it when the stream is reopened.
+     *
+     * @param readsOnStream the number of read calls since the stream was opened.
+     */
+    public static void recordStreamClosed(long readsOnStream) {
+        readsPerStreamHistogram.recordValue(readsOnStream);
+    }
+
+    /**
+     * Record the abort of the HTTP stream of an object, instead of draining it, with the bytes left unread.
+     *
+     * @param bytesDiscarded the bytes remaining in the requested range when the stream was aborted.
+     */
+    public static void recordStreamAborted(long bytesDiscarded) {
+        streamsAborted.add(1L);
+        bytesDiscardedInAbort.add(bytesDiscarded);
+    }
+
+    /**
+     * Increment the bytes read and discarded to serve a forward seek within the open stream.
+     *
+     * @param bytes the number of bytes read and discarded.
+     */
+    public static void incrementBytesDiscardedOnSeek(long bytes) {
+        bytesDiscardedOnSeek.add(bytes);
+    }
+
+    /**
+     * Increment the bytes read and discarded to drain the stream when it is closed, instead of aborting it,
+     * so that the HTTP connection can be reused.
+     *
+     * @param bytes the number of bytes drained.
+     */
+    public static void incrementBytesDrainedOnClose(long bytes) {
+        bytesDrainedOnClose.add(bytes);
+    }
+
+    /**
+     * Get the number of read calls recorded with recordReadSize.
+     *
+     * @return cumulative number of read calls.
+     */
+    public static long getReadCalls() {
+        return readCalls.get();
+    }
+
+    /**
+     * Get the number of streams opened, that is the number of GET requests.
+     *
+     * @return cumulative number of streams opened.
+     */
+    public static long getStreamsOpened() {
+        return streamsOpened.get();
+    }
+
+    /**
+     * Get the number of streams aborted.
+     *
+     * @return cumulative number of streams aborted.
+     */
+    public static long getStreamsAborted() {
+        return streamsAborted.get();
+    }
+
+    /**
+     * Get the number of forward seeks.
+     *
+     * @return cumulative number of forward seeks.
+     */
+    public static long getForwardSeeks() {
+        return forwardSeeks.get();
+    }
+
+    /**
+     * Get the number of backward seeks.
+     *
+     * @return cumulative number of backward seeks.
+     */
+    public static long getBackwardSeeks() {
+        return backwardSeeks.get();
+    }
+
+    /**
+     * Get the total distance of the forward seeks.
+     *
+     * @return cumulative distance of the forward seeks, in bytes.
+     */
+    public static long getForwardSeekBytes() {
+        return forwardSeekBytes.get();
+    }
+
+    /**
+     * Get the total distance of the backward seeks.
+     *
+     * @return cumulative distance of the backward seeks, in bytes.
+     */
+    public static long getBackwardSeekBytes() {
+        return backwardSeekBytes.get();
+    }
+
+    /**
+     * Get the bytes read and discarded to serve forward seeks.
+     *
+     * @return cumulative bytes discarded on seek, in bytes.
+     */
+    public static long getBytesDiscardedOnSeek() {
+        return bytesDiscardedOnSeek.get();
+    }
+
+    /**
+     * Get the bytes drained when closing the streams.
+     *
+     * @return cumulative bytes drained on close, in bytes.
+     */
+    public static long getBytesDrainedOnClose() {
+        return bytesDrainedOnClose.get();
+    }
+
+    /**
+     * Get the bytes left unread in aborted streams.
+     *
+     * @return cumulative bytes discarded in abort, in bytes.
+     */
+    public static long getBytesDiscardedInAbort() {
+        return bytesDiscardedInAbort.get();
+    }
+
+    /**
+     * Get the histogram of the sizes of the read calls recorded with recordReadSize.
+     *
+     * @return the read size histogram, values in bytes.
+     */
+    public static LatencyHistogram getReadSizeHistogram() {
+        return readSizeHistogram;
+    }
+
+    /**
+     * Get the histogram of the distances of the forward seeks recorded with recordSeek.
+     *
+     * @return the forward seek distance histogram, values in bytes.
+     */
+    public static LatencyHistogram getForwardSeekDistanceHistogram() {
+        return forwardSeekDistanceHistogram;
+    }
+
+    /**
+     * Get the histogram of the distances of the backward seeks recorded with recordSeek.
+     *
+     * @return the backward seek distance histogram, values in bytes.
+     */
+    public static LatencyHistogram getBackwardSeekDistanceHistogram() {
+        return backwardSeekDistanceHistogram;
+    }
+
+    /**
+     * Get the histogram of the number of read calls per stream recorded with recordStreamClosed.
+     *
+     * @return the reads per stream histogram.
+     */
+    public static LatencyHistogram getReadsPerStreamHistogram() {
+        return readsPerStreamHistogram;
+    }
+
+    /**
+     * Record one write call on the output stream: adds the size to the cumulative bytes written
+     * and counts the call.
+     *
+     * @param bytes the number of bytes written by the call.
+     */
+    public static void recordWriteSize(long bytes) {
+        if (bytes >= 0) {
+            bytesWritten.add(bytes);
+            writeCalls.add(1L);
+        }
+    }
+
+    /**
+     * Record the upload of a whole object with a single PUT request, when the file fits in one block.
+     *
+     * @param elapsedMusec the elapsed time of the upload, in microseconds.
+     */
+    public static void recordBlockUploadTime(long elapsedMusec) {
+        timeBlockUploadMusec.add(elapsedMusec);
+        blocksUploaded.add(1L);
+        blockUploadTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Record the upload of one part of a multipart upload.
+     *
+     * @param elapsedMusec the elapsed time of the part upload, in microseconds.
+     * @param bytes the size of the part.
+     */
+    public static void recordPartUpload(long elapsedMusec, long bytes) {
+        timePartUploadMusec.add(elapsedMusec);
+        partsUploaded.add(1L);
+        partUploadTimeHistogram.recordValue(elapsedMusec);
+        partSizeHistogram.recordValue(bytes);
+    }
+
+    /**
+     * Record the time a block waited for a thread of the upload pool, from its submission to the start of the upload.
+     * High values mean that the upload threads, or the queue of active blocks, are the bottleneck of the writes.
+     *
+     * @param elapsedMusec the time spent in the queue, in microseconds.
+     */
+    public static void recordUploadQueueWait(long elapsedMusec) {
+        timeUploadQueueWaitMusec.add(elapsedMusec);
+        uploadQueueWaitHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Record the elapsed time of the close call of the output stream, which uploads the last block, waits for the
+     * pending uploads and completes the multipart upload: the commit time seen by the writing task.
+     *
+     * @param elapsedMusec the elapsed time of the close call, in microseconds.
+     */
+    public static void recordCloseTime(long elapsedMusec) {
+        timeCloseMusec.add(elapsedMusec);
+        closeTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Get the cumulative value of bytes written, recorded with recordWriteSize.
+     *
+     * @return cumulative bytes written to the output streams.
+     */
+    public static long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Get the number of write calls recorded with recordWriteSize.
+     *
+     * @return cumulative number of write calls.
+     */
+    public static long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    /**
+     * Get the cumulative time of the single PUT uploads.
+     *
+     * @return cumulative elapsed time of the block uploads, in microseconds.
+     */
+    public static long getTimeBlockUploadMusec() {
+        return timeBlockUploadMusec.get();
+    }
+
+    /**
+     * Get the number of objects uploaded with a single PUT.
+     *
+     * @return cumulative number of block uploads.
+     */
+    public static long getBlocksUploaded() {
+        return blocksUploaded.get();
+    }
+
+    /**
+     * Get the cumulative time of the multipart part uploads.
+     *
+     * @return cumulative elapsed time of the part uploads, in microseconds.
+     */
+    public static long getTimePartUploadMusec() {
+        return timePartUploadMusec.get();
+    }
+
+    /**
+     * Get the number of multipart parts uploaded.
+     *
+     * @return cumulative number of part uploads.
+     */
+    public static long getPartsUploaded() {
+        return partsUploaded.get();
+    }
+
+    /**
+     * Get the cumulative time the blocks waited for an upload thread.
+     *
+     * @return cumulative upload queue wait time, in microseconds.
+     */
+    public static long getTimeUploadQueueWaitMusec() {
+        return timeUploadQueueWaitMusec.get();
+    }
+
+    /**
+     * Get the cumulative time spent in the close call of the output streams.
+     *
+     * @return cumulative close time, in microseconds.
+     */
+    public static long getTimeCloseMusec() {
+        return timeCloseMusec.get();
+    }
+
+    /**
+     * Get the histogram of the elapsed time of the single PUT uploads recorded with recordBlockUploadTime.
+     *
+     * @return the block upload latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getBlockUploadTimeHistogram() {
+        return blockUploadTimeHistogram;
+    }
+
+    /**
+     * Get the histogram of the elapsed time of the part uploads recorded with recordPartUpload.
+     *
+     * @return the part upload latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getPartUploadTimeHistogram() {
+        return partUploadTimeHistogram;
+    }
+
+    /**
+     * Get the histogram of the sizes of the parts recorded with recordPartUpload.
+     *
+     * @return the part size histogram, values in bytes.
+     */
+    public static LatencyHistogram getPartSizeHistogram() {
+        return partSizeHistogram;
+    }
+
+    /**
+     * Get the histogram of the upload queue wait times recorded with recordUploadQueueWait.
+     *
+     * @return the upload queue wait histogram, values in microseconds.
+     */
+    public static LatencyHistogram getUploadQueueWaitHistogram() {
+        return uploadQueueWaitHistogram;
+    }
+
+    /**
+     * Get the histogram of the close times recorded with recordCloseTime.
+     *
+     * @return the close latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getCloseTimeHistogram() {
+        return closeTimeHistogram;
+    }
+
 }
@@ -15,18 +15,56 @@
  */
 package org.apache.hadoop.hdfs;
 
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import ch.cern.instrumentation.LatencyHistogram;
+import ch.cern.instrumentation.OpTimer;
+import ch.cern.instrumentation.SpaceSavingTopK;
+import ch.cern.instrumentation.StripedCounter;
+import ch.cern.instrumentation.TaskAttribution;
 
 public class HDFSTimeInstrumentation {
 
-    private static AtomicLong timeElapsedReadMusec = new AtomicLong();
-    private static AtomicLong timeElapsedWriteMusec = new AtomicLong();
-    private static AtomicLong timeCPUDuringReadMusec = new AtomicLong();
-    private static AtomicInteger readCalls = new AtomicInteger();
-    private static AtomicInteger writeCalls = new AtomicInteger();
-    private static AtomicLong bytesRead = new AtomicLong();
-    private static AtomicLong bytesWritten = new AtomicLong();
+    private static final StripedCounter timeElapsedReadMusec =
+        new StripedCounter(TaskAttribution.HDFS_READ_TIME_MUSEC);
+    private static final StripedCounter timeElapsedWriteMusec =
+        new StripedCounter(TaskAttribution.HDFS_WRITE_TIME_MUSEC);
+    private static final StripedCounter timeCPUDuringReadMusec = new StripedCounter();
+    private static final StripedCounter readCalls = new StripedCounter();
+    private static final StripedCounter writeCalls = new StripedCounter();
+    private static final StripedCounter bytesRead =
+        new StripedCounter(TaskAttribution.HDFS_BYTES_READ);
+    private static final StripedCounter bytesWritten =
+        new StripedCounter(TaskAttribution.HDFS_BYTES_WRITTEN);
+    private static final LatencyHistogram readTimeHistogram = new LatencyHistogram();
+    private static final LatencyHistogram writeTimeHistogram = new LatencyHistogram();
+    private static final OpTimer readTimer =
+        new OpTimer(timeElapsedReadMusec, timeCPUDuringReadMusec, readTimeHistogram);
+    private static final OpTimer writeTimer =
+        new OpTimer(timeElapsedWriteMusec, null, writeTimeHistogram);
+
+    /* Network distance classes of the DataNode serving a read, as in the Hadoop read statistics
+     * (bytesReadLocalHost, bytesReadDistanceOfOneOrTwo, ...): 0 is the local host, 2 the same rack,
+     * 4 another rack, larger values other data centers. */
+    public static final int DISTANCE_LOCAL_HOST = 0;
+    public static final int DISTANCE_ONE_OR_TWO = 1;
+    public static final int DISTANCE_THREE_OR_FOUR = 2;
+    public static final int DISTANCE_FIVE_OR_LARGER = 3;
+    public static final int NUM_DISTANCE_CLASSES = 4;
+    public static final int DATANODE_TOPK_CAPACITY = 64;
+
+    private static final StripedCounter[] distanceReadTimeMusec = new StripedCounter[NUM_DISTANCE_CLASSES];
+    private static final StripedCounter[] distanceBytesRead = new StripedCounter[NUM_DISTANCE_CLASSES];
+    private static final StripedCounter[] distanceReadCalls = new StripedCounter[NUM_DISTANCE_CLASSES];
+    private static final LatencyHistogram[] distanceReadTimeHistogram = new LatencyHistogram[NUM_DISTANCE_CLASSES];
+    private static final SpaceSavingTopK dataNodeReadTime = new SpaceSavingTopK(DATANODE_TOPK_CAPACITY);
+
+    static {
+        for (int i = 0; i < NUM_DISTANCE_CLASSES; i++) {
+            distanceReadTimeMusec[i] = new StripedCounter();
+            distanceBytesRead[i] = new StripedCounter();
+            distanceReadCalls[i] = new StripedCounter();
+            distanceReadTimeHistogram[i] = new LatencyHistogram();
+        }
+    }
 
     /**
      * Get the cumulative value of the elapsed time spent  by
@@ -48,8 +86,15 @@ public class HDFSTimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds
      */
+    public static void incrementTimeElapsedReadOps(long incrementTime) {
+        timeElapsedReadMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeElapsedReadOps(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementTimeElapsedReadOps(Long incrementTime) {
-        timeElapsedReadMusec.getAndAdd(incrementTime);
+        incrementTimeElapsedReadOps(incrementTime.longValue());
     }
 
     /**
@@ -70,8 +115,15 @@ public class HDFSTimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds
      */
+    public static void incrementCPUTimeDuringRead(long incrementTime) {
+        timeCPUDuringReadMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementCPUTimeDuringRead(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementCPUTimeDuringRead(Long incrementTime) {
-        timeCPUDuringReadMusec.getAndAdd(incrementTime);
+        incrementCPUTimeDuringRead(incrementTime.longValue());
     }
 
     /**
@@ -93,8 +145,15 @@ public class HDFSTimeInstrumentation {
      *
      * @param incrementTime the time to add to the cumulative value, in microseconds
      */
+    public static void incrementTimeElapsedWriteOps(long incrementTime) {
+        timeElapsedWriteMusec.add(incrementTime);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementTimeElapsedWriteOps(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementTimeElapsedWriteOps(Long incrementTime) {
-        timeElapsedWriteMusec.getAndAdd(incrementTime);
+        incrementTimeElapsedWriteOps(incrementTime.longValue());
     }
 
     /**
@@ -113,8 +172,15 @@ public class HDFSTimeInstrumentation {
      *
      * @param incrementBytesRead number of bytes to add to the counter of bytes read.
      */
+    public static void incrementBytesRead(long incrementBytesRead) {
+        bytesRead.add(incrementBytesRead);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementBytesRead(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementBytesRead(Long incrementBytesRead) {
-        bytesRead.getAndAdd(incrementBytesRead);
+        incrementBytesRead(incrementBytesRead.longValue());
     }
 
     /**
@@ -133,8 +199,15 @@ public class HDFSTimeInstrumentation {
      *
      * @param incrementBytesWritten number of bytes to add to the counter of bytes read.
      */
+    public static void incrementBytesWritten(long incrementBytesWritten) {
+        bytesWritten.add(incrementBytesWritten);
+    }
+
+    /**
+     * Boxed variant of {@link #incrementBytesWritten(long)}, kept for compatibility with existing clients.
+     */
     public static void incrementBytesWritten(Long incrementBytesWritten) {
-        bytesWritten.getAndAdd(incrementBytesWritten);
+        incrementBytesWritten(incrementBytesWritten.longValue());
     }
 
     /**
@@ -144,7 +217,7 @@ public class HDFSTimeInstrumentation {
      * @return cumulative number of read operations.
      */
     public static int getReadCalls() {
-        return readCalls.get();
+        return readCalls.getInt();
     }
 
     /**
@@ -154,7 +227,7 @@ public class HDFSTimeInstrumentation {
      * @param numOps increment the counter of read operations.
      */
     public static void incrementReadCalls(int numOps) {
-        readCalls.getAndAdd(numOps);
+        readCalls.add(numOps);
     }
 
     /**
@@ -163,7 +236,7 @@ public class HDFSTimeInstrumentation {
      *
      * @return cumulative number of write operations.
      */
-    public static int getWriteCalls() { return writeCalls.get(); }
+    public static int getWriteCalls() { return writeCalls.getInt(); }
 
     /**
      * Increment the counter of the cumulative number of write operations performed by
@@ -172,6 +245,156 @@ public class HDFSTimeInstrumentation {
      * @param numOps increment the counter of write operations.
      */
     public static void incrementWriteCalls(int numOps) {
-        writeCalls.getAndAdd(numOps);
+        writeCalls.add(numOps);
+    }
+
+    /**
+     * Record the elapsed time of one read call: adds it to the cumulative read time
+     * and to the read latency histogram. Use this in place of incrementTimeElapsedReadOps.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     */
+    public static void recordReadTime(long elapsedMusec) {
+        timeElapsedReadMusec.add(elapsedMusec);
+        readTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Record one read call served by a DataNode: adds its elapsed time to the cumulative read time and
+     * to the read latency histogram, as recordReadTime, and to the time by network distance and by DataNode.
+     * Use this in place of recordReadTime when the DataNode is known, for example in the block reader.
+     * The bytes are only used for the breakdown, the client still counts them with incrementBytesRead.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     * @param bytes the number of bytes returned by the call.
+     * @param distance the network distance between the client and the DataNode, as NetworkTopology.getDistance.
+     * @param dataNodeId the DataNode id, for example its transfer address host:port.
+     */
+    public static void recordReadTime(long elapsedMusec, long bytes, int distance, String dataNodeId) {
+        recordReadTime(elapsedMusec);
+        int distanceClass = distanceClass(distance);
+        distanceReadTimeMusec[distanceClass].add(elapsedMusec);
+        distanceBytesRead[distanceClass].add(bytes);
+        distanceReadCalls[distanceClass].add(1L);
+        distanceReadTimeHistogram[distanceClass].recordValue(elapsedMusec);
+        dataNodeReadTime.add(dataNodeId, elapsedMusec, bytes);
+    }
+
+    /**
+     * Map a network distance to its distance class, see DISTANCE_LOCAL_HOST.
+     *
+     * @param distance the network distance, negative values are treated as local.
+     * @return the distance class.
+     */
+    public static int distanceClass(int distance) {
+        if (distance <= 0) {
+            return DISTANCE_LOCAL_HOST;
+        } else if (distance <= 2) {
+            return DISTANCE_ONE_OR_TWO;
+        } else if (distance <= 4) {
+            return DISTANCE_THREE_OR_FOUR;
+        } else {
+            return DISTANCE_FIVE_OR_LARGER;
+        }
+    }
+
+    /**
+     * Get the cumulative read time of the calls recorded for a distance class.
+     *
+     * @param distanceClass the distance class, see DISTANCE_LOCAL_HOST.
+     * @return cumulative elapsed time of the read calls, in microseconds.
+     */
+    public static long getReadTimeMusec(int distanceClass) {
+        return distanceReadTimeMusec[distanceClass].get();
+    }
+
+    /**
+     * Get the cumulative bytes of the read calls recorded for a distance class.
+     *
+     * @param distanceClass the distance class, see DISTANCE_LOCAL_HOST.
+     * @return cumulative bytes read.
+     */
+    public static long getBytesRead(int distanceClass) {
+        return distanceBytesRead[distanceClass].get();
+    }
+
+    /**
+     * Get the number of read calls recorded for a distance class.
+     *
+     * @param distanceClass the distance class, see DISTANCE_LOCAL_HOST.
+     * @return cumulative number of read calls.
+     */
+    public static long getReadCalls(int distanceClass) {
+        return distanceReadCalls[distanceClass].get();
     }
+
+    /**
+     * Get the histogram of the elapsed time of the read calls recorded for a distance class.
+     *
+     * @param distanceClass the distance class, see DISTANCE_LOCAL_HOST.
+     * @return the read latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getReadTimeHistogram(int distanceClass) {
+        return distanceReadTimeHistogram[distanceClass];
+    }
+
+    /**
+     * Get the DataNodes with the largest cumulative read time, tracked with a space-saving sketch
+     * of DATANODE_TOPK_CAPACITY entries, see {@link SpaceSavingTopK}.
+     *
+     * @return the DataNode read time sketch, weights in microseconds.
+     */
+    public static SpaceSavingTopK getDataNodeReadTime() {
+        return dataNodeReadTime;
+    }
+
+    /**
+     * Get the histogram of the elapsed time of read calls recorded with recordReadTime.
+     *
+     * @return the read latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getReadTimeHistogram() {
+        return readTimeHistogram;
+    }
+
+    /**
+     * Record the elapsed time of one write call: adds it to the cumulative write time
+     * and to the write latency histogram. Use this in place of incrementTimeElapsedWriteOps.
+     *
+     * @param elapsedMusec the elapsed time of the call, in microseconds.
+     */
+    public static void recordWriteTime(long elapsedMusec) {
+        timeElapsedWriteMusec.add(elapsedMusec);
+        writeTimeHistogram.recordValue(elapsedMusec);
+    }
+
+    /**
+     * Get the histogram of the elapsed time of write calls recorded with recordWriteTime.
+     *
+     * @return the write latency histogram, values in microseconds.
+     */
+    public static LatencyHistogram getWriteTimeHistogram() {
+        return writeTimeHistogram;
+    }
+
+    /**
+     * Get the timer for read calls: feeds the cumulative elapsed time and CPU time of read operations
+     * and the read latency histogram, see {@link OpTimer} for the CPU time sampling.
+     *
+     * @return the read timer.
+     */
+    public static OpTimer getReadTimer() {
+        return readTimer;
+    }
+
+    /**
+     * Get the timer for write calls: feeds the cumulative elapsed time of write operations
+     * and the write latency histogram.
+     *
+     * @return the write timer.
+     */
+    public static OpTimer getWriteTimer() {
+        return writeTimer;
+    }
+
 }
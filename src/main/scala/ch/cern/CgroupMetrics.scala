@@ -1,125 +1,264 @@
 package ch.cern
 
 import scala.jdk.CollectionConverters._
+import java.io.File
 import java.util.{Map => JMap}
 
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import org.apache.spark.SparkContext
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 
-import scala.io.Source
+import org.slf4j.LoggerFactory
+
+import ch.cern.util.{CgroupHierarchy, ClusterMetrics, KeyValueFileReader, NetDevFileReader, NetstatFileReader,
+  MetricSnapshot, PressureFileReader, RateSampler, SingleValueFileReader}
+import ch.cern.util.ProcFileGauges
+import ch.cern.util.ProcFileGauges.{registerGauge, registerRate}
 
 // Collects OS metrics from group instrumentation
 // Use when running Spark on docker containers, notably with Kubernetes to get the container CPU usage
-// When used outside containers or other cgroup caging, it will report the full system CPU usage
+// Supports cgroup v1 and v2 (unified hierarchy), the version and the cgroup of the executor are detected
+// from the cgroup mount point and /proc/self/cgroup, outside containers this is the cgroup of the executor process,
+// for example its systemd or YARN container slice, which may include other processes
+// With --conf spark.cernSparkPlugin.rateMetrics=true also publishes CPUCoresUsed and the network
+// throughput NetworkBytesInPerSec, NetworkBytesOutPerSec, computed by ch.cern.util.RateSampler
+// Network metrics also include TCP retransmissions, timeouts, listen overflows and pruning, from /proc/net/snmp
+// and /proc/net/netstat, and per-interface bytes, packets, drops and errors from /proc/net/dev
+// With --conf spark.cernSparkPlugin.snapshotMetrics=true the gauges are read from a snapshot taken periodically
+// by a single thread, instead of on each metrics sink poll, see ch.cern.util.MetricSnapshot
+// With --conf spark.cernSparkPlugin.clusterMetrics=true the executors also send their metrics to the driver,
+// which exposes cluster-wide aggregates, see ch.cern.util.ClusterMetrics
 
 class CgroupMetrics extends SparkPlugin {
 
-  def cgroupCPUMetrics(metricRegistry: MetricRegistry): Unit = {
-    val procFileName = "/sys/fs/cgroup/cpuacct/cpuacct.usage"
-    metricRegistry.register(MetricRegistry.name("CPUTimeNanosec"), new Gauge[Long] {
-      override def getValue: Long = {
-        val procFile = Source.fromFile(procFileName)
-        val firstLine = procFile.getLines().next()
-        val cpuTimeNs = firstLine.toLong
-        procFile.close()
-        cpuTimeNs
-      }
-    })
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
 
+  // Each file is read at most once per cacheTTLMs, all the gauges registered on it share the same read
+  // configure with --conf spark.cernSparkPlugin.procCacheTTLMs (default 1000)
+  def cacheTTLMs(myContext: PluginContext): Long =
+    myContext.conf.getLong("spark.cernSparkPlugin.procCacheTTLMs", 1000L)
+
+  // cgroup mount point and proc filesystem, configure with --conf spark.cernSparkPlugin.cgroupRoot
+  // (default /sys/fs/cgroup) and --conf spark.cernSparkPlugin.procRoot (default /proc)
+  def detectCgroup(myContext: PluginContext): CgroupHierarchy = {
+    val cgroup = CgroupHierarchy.fromConf(myContext.conf)
+    logger.info(s"Using cgroup v${cgroup.version}, cpu: ${cgroup.cpuDir}, memory: ${cgroup.memoryDir}")
+    cgroup
   }
 
-  def cgroupMemoryMetrics(metricRegistry: MetricRegistry): Unit = {
-    val procFileName = "/sys/fs/cgroup/memory/memory.stat"
-
-    metricRegistry.register(MetricRegistry.name("MemoryRss"), new Gauge[Long] {
-      override def getValue: Long = {
-        val procFile = Source.fromFile(procFileName)
-        val data = procFile.getLines().filter(_.contains("total_rss"))
-          .map(_.split(" ")).map { case Array(k, v) => k -> v.toLong }.toMap
-        val rssMemory = data("total_rss")
-        procFile.close()
-        rssMemory
-      }
+  def cgroupCPUMetrics(metricRegistry: MetricRegistry, cgroup: CgroupHierarchy, cacheTTLMs: Long,
+                       rates: Option[RateSampler]): Unit = {
+    metricRegistry.register(MetricRegistry.name("CgroupVersion"), new Gauge[Int] {
+      override def getValue: Int = cgroup.version
     })
 
-    metricRegistry.register(MetricRegistry.name("MemorySwap"), new Gauge[Long] {
-      override def getValue: Long = {
-        val procFile = Source.fromFile(procFileName)
-        val data = procFile.getLines().filter(_.contains("total_swap"))
-          .map(_.split(" ")).map { case Array(k, v) => k -> v.toLong }.toMap
-        val swapMemory = data("total_swap")
-        procFile.close()
-        swapMemory
+    if (cgroup.version == 2) {
+      val cpuStat = new KeyValueFileReader(cgroup.cpuFile("cpu.stat"),
+        Seq("usage_usec", "nr_periods", "nr_throttled", "throttled_usec"), cacheTTLMs)
+      registerGauge(metricRegistry, "CPUTimeNanosec", cpuStat, "usage_usec", 1000L)
+      registerRate(rates, metricRegistry, "CPUCoresUsed", cpuStat, "usage_usec", 1e-6)
+      registerGauge(metricRegistry, "CPUPeriods", cpuStat, "nr_periods")
+      registerGauge(metricRegistry, "CPUThrottledPeriods", cpuStat, "nr_throttled")
+      registerGauge(metricRegistry, "CPUThrottledTimeNanosec", cpuStat, "throttled_usec", 1000L)
+    } else {
+      val cpuUsage = new SingleValueFileReader(cgroup.cpuacctFile("cpuacct.usage"), cacheTTLMs)
+      registerGauge(metricRegistry, "CPUTimeNanosec", cpuUsage, "value")
+      registerRate(rates, metricRegistry, "CPUCoresUsed", cpuUsage, "value", 1e-9)
+      // throttling counters are only available when the CPU controller is mounted
+      if (new File(cgroup.cpuFile("cpu.stat")).exists()) {
+        val cpuStat = new KeyValueFileReader(cgroup.cpuFile("cpu.stat"),
+          Seq("nr_periods", "nr_throttled", "throttled_time"), cacheTTLMs)
+        registerGauge(metricRegistry, "CPUPeriods", cpuStat, "nr_periods")
+        registerGauge(metricRegistry, "CPUThrottledPeriods", cpuStat, "nr_throttled")
+        registerGauge(metricRegistry, "CPUThrottledTimeNanosec", cpuStat, "throttled_time")
       }
-    })
+    }
+  }
 
-    metricRegistry.register(MetricRegistry.name("MemoryCache"), new Gauge[Long] {
-      override def getValue: Long = {
-        val procFile = Source.fromFile(procFileName)
-        val data = procFile.getLines().filter(_.contains("total_cache"))
-          .map(_.split(" ")).map { case Array(k, v) => k -> v.toLong }.toMap
-        val cacheMemory = data("total_cache")
-        procFile.close()
-        cacheMemory
+  def cgroupMemoryMetrics(metricRegistry: MetricRegistry, cgroup: CgroupHierarchy, cacheTTLMs: Long): Unit = {
+    if (cgroup.version == 2) {
+      val memoryStat = new KeyValueFileReader(cgroup.memoryFile("memory.stat"),
+        Seq("anon", "file"), cacheTTLMs)
+      registerGauge(metricRegistry, "MemoryRss", memoryStat, "anon")
+      registerGauge(metricRegistry, "MemoryCache", memoryStat, "file")
+      // memory.swap.current is missing when swap accounting is disabled
+      if (new File(cgroup.memoryFile("memory.swap.current")).exists()) {
+        val swap = new SingleValueFileReader(cgroup.memoryFile("memory.swap.current"), cacheTTLMs)
+        registerGauge(metricRegistry, "MemorySwap", swap, "value")
       }
-    })
-
+      val memoryCurrent = new SingleValueFileReader(cgroup.memoryFile("memory.current"), cacheTTLMs)
+      registerGauge(metricRegistry, "MemoryCurrent", memoryCurrent, "value")
+    } else {
+      val memoryStat = new KeyValueFileReader(cgroup.memoryFile("memory.stat"),
+        Seq("total_rss", "total_swap", "total_cache"), cacheTTLMs)
+      registerGauge(metricRegistry, "MemoryRss", memoryStat, "total_rss")
+      registerGauge(metricRegistry, "MemorySwap", memoryStat, "total_swap")
+      registerGauge(metricRegistry, "MemoryCache", memoryStat, "total_cache")
+      val memoryUsage = new SingleValueFileReader(cgroup.memoryFile("memory.usage_in_bytes"), cacheTTLMs)
+      registerGauge(metricRegistry, "MemoryCurrent", memoryUsage, "value")
+    }
   }
 
-  def cgroupNetworkMetrics(metricRegistry: MetricRegistry): Unit = {
-    val procFileName = "/proc/net/netstat"
-
-    metricRegistry.register(MetricRegistry.name("NetworkBytesIn"), new Gauge[Long] {
-      override def getValue: Long = {
-        val procFile = Source.fromFile(procFileName)
-        val data = procFile.getLines().toList.map(_.split(" "))
-        val headersIpExt = data(2)
-        val dataIpExt = data(3)
-        val inOctets = dataIpExt(headersIpExt.indexOf("InOctets")).toLong
-        procFile.close()
-        inOctets
+  // Pressure stall information (PSI), cumulative time tasks in the cgroup were stalled waiting
+  // for CPU, memory or I/O. Available with cgroup v2 on kernels with PSI enabled
+  def cgroupPressureMetrics(metricRegistry: MetricRegistry, cgroup: CgroupHierarchy, cacheTTLMs: Long): Unit = {
+    if (cgroup.version == 2) {
+      Seq("CPU" -> "cpu.pressure", "Memory" -> "memory.pressure", "IO" -> "io.pressure").foreach {
+        case (resource, fileName) =>
+          val fullPath = cgroup.unifiedFile(fileName)
+          if (new File(fullPath).exists()) {
+            val pressure = new PressureFileReader(fullPath, cacheTTLMs)
+            registerGauge(metricRegistry, s"${resource}PressureSomeMuSec", pressure, "some")
+            registerGauge(metricRegistry, s"${resource}PressureFullMuSec", pressure, "full")
+          }
       }
-    })
+    }
+  }
 
-    metricRegistry.register(MetricRegistry.name("NetworkBytesOut"), new Gauge[Long] {
-      override def getValue: Long = {
-        val procFile = Source.fromFile(procFileName)
-        val data = procFile.getLines().toList.map(_.split(" "))
-        val headersIpExt = data(2)
-        val dataIpExt = data(3)
-        val outOctets = dataIpExt(headersIpExt.indexOf("OutOctets")).toLong
-        procFile.close()
-        outOctets
-      }
-    })
+  // Network counters of the network namespace of the executor (the pod, with Kubernetes)
+  def cgroupNetworkMetrics(metricRegistry: MetricRegistry, procRoot: String, cacheTTLMs: Long,
+                           rates: Option[RateSampler]): Unit = {
+    val netstat = new NetstatFileReader(new File(procRoot, "net/netstat").getPath,
+      Seq("IpExt:InOctets", "IpExt:OutOctets") ++ tcpExtMetrics.map(_._2), cacheTTLMs)
+    registerGauge(metricRegistry, "NetworkBytesIn", netstat, "IpExt:InOctets")
+    registerGauge(metricRegistry, "NetworkBytesOut", netstat, "IpExt:OutOctets")
+    registerRate(rates, metricRegistry, "NetworkBytesInPerSec", netstat, "IpExt:InOctets")
+    registerRate(rates, metricRegistry, "NetworkBytesOutPerSec", netstat, "IpExt:OutOctets")
+
+    // TCP health: retransmissions, RTO timeouts, listen queue overflows, socket buffer pruning
+    val snmp = new NetstatFileReader(new File(procRoot, "net/snmp").getPath, tcpMetrics.map(_._2), cacheTTLMs)
+    tcpMetrics.foreach { case (name, key) => registerGauge(metricRegistry, name, snmp, key) }
+    tcpExtMetrics.foreach { case (name, key) => registerGauge(metricRegistry, name, netstat, key) }
+    registerRate(rates, metricRegistry, "TCPRetransSegsPerSec", snmp, "Tcp:RetransSegs")
+    registerRate(rates, metricRegistry, "TCPOutSegsPerSec", snmp, "Tcp:OutSegs")
+    registerRate(rates, metricRegistry, "TCPTimeoutsPerSec", netstat, "TcpExt:TCPTimeouts")
+  }
+
+  val tcpMetrics: Seq[(String, String)] = Seq(
+    "TCPInSegs" -> "Tcp:InSegs",
+    "TCPOutSegs" -> "Tcp:OutSegs",
+    "TCPRetransSegs" -> "Tcp:RetransSegs",
+    "TCPInErrors" -> "Tcp:InErrs",
+    "TCPEstabResets" -> "Tcp:EstabResets",
+    "TCPCurrEstab" -> "Tcp:CurrEstab")
+
+  val tcpExtMetrics: Seq[(String, String)] = Seq(
+    "TCPTimeouts" -> "TcpExt:TCPTimeouts",
+    "TCPSynRetrans" -> "TcpExt:TCPSynRetrans",
+    "TCPFastRetrans" -> "TcpExt:TCPFastRetrans",
+    "TCPListenOverflows" -> "TcpExt:ListenOverflows",
+    "TCPListenDrops" -> "TcpExt:ListenDrops",
+    "TCPBacklogDrop" -> "TcpExt:TCPBacklogDrop",
+    "TCPPruneCalled" -> "TcpExt:PruneCalled",
+    "TCPRcvPruned" -> "TcpExt:RcvPruned",
+    "TCPOfoPruned" -> "TcpExt:OfoPruned")
+
+  val interfaceMetrics: Seq[(String, String)] = Seq(
+    "BytesIn" -> "rx_bytes",
+    "BytesOut" -> "tx_bytes",
+    "PacketsIn" -> "rx_packets",
+    "PacketsOut" -> "tx_packets",
+    "DropsIn" -> "rx_drop",
+    "DropsOut" -> "tx_drop",
+    "ErrorsIn" -> "rx_errs",
+    "ErrorsOut" -> "tx_errs")
+
+  val interfaceRateMetrics: Set[String] = Set("BytesIn", "BytesOut", "DropsIn", "DropsOut")
 
+  // Per-interface counters from /proc/net/dev, as NetworkInterface.<interface>.<metric>
+  // The interfaces are listed when the plugin starts, filtered with regular expressions, configure with
+  // --conf spark.cernSparkPlugin.networkInterfacesInclude (default .*)
+  // --conf spark.cernSparkPlugin.networkInterfacesExclude (default lo)
+  def networkInterfaceMetrics(myContext: PluginContext, metricRegistry: MetricRegistry, cacheTTLMs: Long,
+                              rates: Option[RateSampler]): Unit = {
+    val path = new File(CgroupHierarchy.procRoot(myContext.conf), "net/dev").getPath
+    if (new File(path).exists()) {
+      val include = myContext.conf.get("spark.cernSparkPlugin.networkInterfacesInclude", ".*").r
+      val exclude = myContext.conf.get("spark.cernSparkPlugin.networkInterfacesExclude", "lo").r
+      val interfaces = NetDevFileReader.interfaces(path).filter { name =>
+        include.pattern.matcher(name).matches() && !exclude.pattern.matcher(name).matches()
+      }
+      logger.info(s"Network interface metrics for: ${interfaces.mkString(", ")}")
+      val netDev = new NetDevFileReader(path,
+        for (interface <- interfaces; (_, counter) <- interfaceMetrics) yield s"$interface:$counter", cacheTTLMs)
+      interfaces.foreach { interface =>
+        // dots are the separator of the metric name hierarchy, as in VLAN interfaces eth0.100
+        val prefix = MetricRegistry.name("NetworkInterface", interface.replace('.', '_'))
+        interfaceMetrics.foreach { case (name, counter) =>
+          registerGauge(metricRegistry, MetricRegistry.name(prefix, name), netDev, s"$interface:$counter")
+          if (interfaceRateMetrics.contains(name)) {
+            registerRate(rates, metricRegistry, MetricRegistry.name(prefix, name + "PerSec"), netDev,
+              s"$interface:$counter")
+          }
+        }
+      }
+    }
   }
 
   // Return the plugin's driver-side component.
   // register metrics conditional to --conf spark.cernSparkPlugin.registerOnDriver=true
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var metricRegistry: MetricRegistry = _
+      var aggregator: Option[ClusterMetrics.Aggregator] = None
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        metricRegistry = myContext.metricRegistry
+        aggregator = ClusterMetrics.aggregator(myContext)
         val registerOnDriver =
           myContext.conf.getBoolean("spark.cernSparkPlugin.registerOnDriver", false)
         if (registerOnDriver) {
-          cgroupCPUMetrics(myContext.metricRegistry)
-          cgroupMemoryMetrics(myContext.metricRegistry)
-          cgroupNetworkMetrics(myContext.metricRegistry)
+          MetricSnapshot.get(myContext, metricRegistry)
+          val ttl = cacheTTLMs(myContext)
+          val cgroup = detectCgroup(myContext)
+          val rates = RateSampler.get(myContext)
+          cgroupCPUMetrics(myContext.metricRegistry, cgroup, ttl, rates)
+          cgroupMemoryMetrics(myContext.metricRegistry, cgroup, ttl)
+          cgroupPressureMetrics(myContext.metricRegistry, cgroup, ttl)
+          cgroupNetworkMetrics(myContext.metricRegistry, CgroupHierarchy.procRoot(myContext.conf), ttl, rates)
+          networkInterfaceMetrics(myContext, myContext.metricRegistry, ttl, rates)
         }
         Map.empty[String, String].asJava
       }
+
+      override def receive(message: AnyRef): AnyRef = {
+        aggregator.foreach(_.receive(message))
+        null
+      }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+        ProcFileGauges.close(metricRegistry)
+      }
     }
   }
 
   // Return the plugin's executor-side component.
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin() {
+      var metricRegistry: MetricRegistry = _
+      var publisher: Option[ClusterMetrics.Publisher] = None
+
       override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
-        cgroupCPUMetrics(myContext.metricRegistry)
-        cgroupMemoryMetrics(myContext.metricRegistry)
-        cgroupNetworkMetrics(myContext.metricRegistry)
+        metricRegistry = ClusterMetrics.executorRegistry(myContext)
+        MetricSnapshot.get(myContext, metricRegistry)
+        val ttl = cacheTTLMs(myContext)
+        val cgroup = detectCgroup(myContext)
+        val rates = RateSampler.get(myContext)
+        cgroupCPUMetrics(metricRegistry, cgroup, ttl, rates)
+        cgroupMemoryMetrics(metricRegistry, cgroup, ttl)
+        cgroupPressureMetrics(metricRegistry, cgroup, ttl)
+        cgroupNetworkMetrics(metricRegistry, CgroupHierarchy.procRoot(myContext.conf), ttl, rates)
+        networkInterfaceMetrics(myContext, metricRegistry, ttl, rates)
+        publisher = ClusterMetrics.startPublisher(myContext, metricRegistry)
+      }
+
+      override def shutdown(): Unit = {
+        publisher.foreach(_.stop())
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+        ProcFileGauges.close(metricRegistry)
       }
     }
   }
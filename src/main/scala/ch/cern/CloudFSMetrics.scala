@@ -2,16 +2,20 @@ package ch.cern
 
 import scala.jdk.CollectionConverters._
 import java.util.{Map => JMap}
+import java.util.concurrent.{Executors, ThreadFactory, TimeUnit}
 
-import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry
 
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 import org.apache.spark.SparkContext
 
 import org.apache.hadoop.fs.FileSystem.getGlobalStorageStatistics
+import org.apache.hadoop.fs.StorageStatistics
 
 import org.slf4j.LoggerFactory
 
+import ch.cern.util.{ClusterMetrics, MetricSnapshot, RateSampler}
+
 
 /**
  * Monitor S3A I/0 metrics using Hadoop's API FileSystem.getGlobalStorageStatistics
@@ -19,13 +23,26 @@ import org.slf4j.LoggerFactory
  *
  * Note: use with Spark 3.x built with Hadoop 3.2 profile (or higher, when available)
  * or use it with Spark built without Hadoop and use your own Hadoop client version 2.8 or higher.
- * Limitation: this currently supports only one filesystem at a time
  *
  * Parameters:
- * filesystem name:
- *   --conf spark.cernSparkPlugin.cloudFsName=<name of the Hadoop compatible filesystem> (example: s3a)
+ * filesystem name, or comma-separated list of filesystem names:
+ *   --conf spark.cernSparkPlugin.cloudFsName=<names of the Hadoop compatible filesystems> (example: s3a,gs)
+ *   with one filesystem the metrics are named as in previous versions (example: bytesRead),
+ *   with more filesystems they are prefixed with the filesystem name (example: s3a.bytesRead)
+ * export all the long statistics of every storage statistics in use, as they appear (default false):
+ *   --conf spark.cernSparkPlugin.cloudFsAutoDiscover=true
+ *   --conf spark.cernSparkPlugin.cloudFsDiscoveryIntervalMs=<interval between scans> (default 10000)
+ *   metrics are prefixed with the storage statistics name (example: S3AStorageStatistics.object_list_request)
  * register metrics on the driver conditional to
  *   --conf spark.cernSparkPlugin.registerOnDriver=true
+ * publish the per-second rates of the configured filesystem metrics (example: bytesReadPerSec),
+ * see ch.cern.util.RateSampler:
+ *   --conf spark.cernSparkPlugin.rateMetrics=true
+ * read the gauges from a snapshot taken periodically by a single thread, instead of on each metrics sink poll,
+ * see ch.cern.util.MetricSnapshot:
+ *   --conf spark.cernSparkPlugin.snapshotMetrics=true
+ * send the executor metrics to the driver, which exposes cluster-wide aggregates, see ch.cern.util.ClusterMetrics:
+ *   --conf spark.cernSparkPlugin.clusterMetrics=true
  *
  */
 class CloudFSMetrics extends SparkPlugin {
@@ -35,49 +52,160 @@ class CloudFSMetrics extends SparkPlugin {
 
   // This registers the metrics and their getValue method
   // Note: getGlobalStorageStatistics.get("fsName") will return null till the first use of "fsName"
-  def cloudFilesystemMetrics(myContext: PluginContext): Unit= {
-    val fsName = myContext.conf.getOption("spark.cernSparkPlugin.cloudFsName")
-    if (fsName.isEmpty) {
+  // the storage statistics are looked up on each poll till found
+  // Returns the discovery service when spark.cernSparkPlugin.cloudFsAutoDiscover=true
+  def cloudFilesystemMetrics(myContext: PluginContext,
+                             metricRegistry: MetricRegistry): Option[CloudFSMetrics.Discovery] = {
+    val fsNames = myContext.conf.get("spark.cernSparkPlugin.cloudFsName", "")
+      .split(",").map(_.trim).filter(_.nonEmpty).toSeq
+    val autoDiscover = myContext.conf.getBoolean("spark.cernSparkPlugin.cloudFsAutoDiscover", false)
+    if (fsNames.isEmpty && !autoDiscover) {
       logger.error("spark.cernSparkPlugin.cloudFsName needs to be set when using the ch.cern.CloudFSMetrics Plugin.")
       throw new IllegalArgumentException
     }
-    val metricRegistry = myContext.metricRegistry
-    fsMetrics.foreach ( name =>
-      metricRegistry.register(MetricRegistry.name(name), new Gauge[Long] {
-        override def getValue: Long = {
-          val fsStats = getGlobalStorageStatistics.get(fsName.get)
-          fsStats match {
-            case null => 0L
-            case _ => fsStats.getLong(name)
-          }
-        }
-      })
-    )
+    val usePrefix = fsNames.length > 1 || autoDiscover
+    MetricSnapshot.get(myContext, metricRegistry)
+    val rates = RateSampler.get(myContext)
+    fsNames.foreach { fsName =>
+      val fsStats = new CloudFSMetrics.StorageStatisticsRef(fsName)
+      fsMetrics.foreach { name =>
+        val metricName = if (usePrefix) MetricRegistry.name(fsName, name) else MetricRegistry.name(name)
+        MetricSnapshot.registerGauge(metricRegistry, metricName, () => fsStats.getLong(name))
+        rates.foreach(_.register(metricRegistry, metricName + "PerSec", () => fsStats.getLong(name)))
+      }
+    }
+    if (autoDiscover) {
+      val intervalMs = myContext.conf.getLong("spark.cernSparkPlugin.cloudFsDiscoveryIntervalMs", 10000L)
+      val discovery = new CloudFSMetrics.Discovery(metricRegistry, intervalMs)
+      discovery.start()
+      Some(discovery)
+    } else {
+      None
+    }
   }
 
   // Return the plugin's driver-side component.
   // register metrics conditional to --conf spark.cernSparkPlugin.registerOnDriver=true
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var discovery: Option[CloudFSMetrics.Discovery] = None
+      var metricRegistry: MetricRegistry = _
+      var aggregator: Option[ClusterMetrics.Aggregator] = None
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        metricRegistry = myContext.metricRegistry
+        aggregator = ClusterMetrics.aggregator(myContext)
         val registerOnDriver =
           myContext.conf.getBoolean("spark.cernSparkPlugin.registerOnDriver", true)
         if (registerOnDriver) {
-          cloudFilesystemMetrics(myContext)
+          discovery = cloudFilesystemMetrics(myContext, metricRegistry)
         }
         Map.empty[String, String].asJava
       }
+
+      override def receive(message: AnyRef): AnyRef = {
+        aggregator.foreach(_.receive(message))
+        null
+      }
+
+      override def shutdown(): Unit = {
+        discovery.foreach(_.stop())
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
    // Return the plugin's executor-side component.
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin() {
+      var discovery: Option[CloudFSMetrics.Discovery] = None
+      var metricRegistry: MetricRegistry = _
+      var publisher: Option[ClusterMetrics.Publisher] = None
+
       override def init(myContext:PluginContext, extraConf:JMap[String, String])  = {
-        cloudFilesystemMetrics(myContext)
+        metricRegistry = ClusterMetrics.executorRegistry(myContext)
+        discovery = cloudFilesystemMetrics(myContext, metricRegistry)
+        publisher = ClusterMetrics.startPublisher(myContext, metricRegistry)
+      }
+
+      override def shutdown(): Unit = {
+        publisher.foreach(_.stop())
+        discovery.foreach(_.stop())
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
       }
     }
   }
 
 }
 
+object CloudFSMetrics {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  // Resolves the storage statistics of a filesystem lazily, as the filesystem may be used
+  // for the first time after the metrics have been registered
+  class StorageStatisticsRef(fsName: String) {
+    @volatile private var fsStats: StorageStatistics = _
+
+    def getLong(name: String): Long = {
+      if (fsStats == null) {
+        fsStats = getGlobalStorageStatistics.get(fsName)
+      }
+      if (fsStats == null) {
+        0L
+      } else {
+        val value = fsStats.getLong(name)
+        if (value == null) 0L else value.longValue
+      }
+    }
+  }
+
+  // Periodically scans getGlobalStorageStatistics and registers a gauge for each long statistic
+  // of the storage statistics that appeared since the last scan
+  class Discovery(metricRegistry: MetricRegistry, intervalMs: Long) {
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, "cern-spark-plugin-cloudfs-discovery")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+
+    def start(): Unit = {
+      scheduler.scheduleWithFixedDelay(new Runnable {
+        override def run(): Unit = {
+          try {
+            scan()
+          } catch {
+            case e: Exception => logger.warn("Failed to scan the Hadoop global storage statistics", e)
+          }
+        }
+      }, 0L, intervalMs, TimeUnit.MILLISECONDS)
+    }
+
+    def stop(): Unit = {
+      scheduler.shutdownNow()
+    }
+
+    // synchronized, scan can also be called outside the scheduler thread
+    def scan(): Unit = synchronized {
+      val registered = metricRegistry.getNames
+      getGlobalStorageStatistics.iterator().asScala.foreach { fsStats =>
+        fsStats.getLongStatistics.asScala.foreach { statistic =>
+          val statName = statistic.getName
+          val metricName = MetricRegistry.name(fsStats.getName, statName)
+          if (!registered.contains(metricName)) {
+            MetricSnapshot.registerGauge(metricRegistry, metricName, () => {
+              val value = fsStats.getLong(statName)
+              if (value == null) 0L else value.longValue
+            })
+          }
+        }
+      }
+    }
+  }
+
+}
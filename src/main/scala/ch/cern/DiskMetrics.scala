@@ -0,0 +1,255 @@
+package ch.cern
+
+import scala.jdk.CollectionConverters._
+import java.io.File
+import java.util.{Map => JMap}
+
+import com.codahale.metrics.MetricRegistry
+import org.apache.spark.SparkContext
+import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
+
+import org.slf4j.LoggerFactory
+
+import ch.cern.util.{CgroupHierarchy, ClusterMetrics, DiskStatsFileReader, IoStatFileReader, MetricSnapshot,
+  RateSampler}
+import ch.cern.util.ProcFileGauges
+import ch.cern.util.ProcFileGauges.{registerGauge, registerRate}
+
+// Collects block device and filesystem metrics for the Spark local directories (shuffle files, spills, cached blocks)
+// Each local directory is mapped to its mount point and block device using /proc/self/mountinfo,
+// the device I/O counters are read from /proc/diskstats, and from the cgroup v2 io.stat file when available,
+// for the I/O of the executor's cgroup only. File read and caching work as in CgroupMetrics,
+// with --conf spark.cernSparkPlugin.procCacheTTLMs (default 1000)
+// With --conf spark.cernSparkPlugin.rateMetrics=true also publishes throughput, IOPS, utilization and queue length
+// With --conf spark.cernSparkPlugin.snapshotMetrics=true the gauges are read from a snapshot, as in CgroupMetrics
+// With --conf spark.cernSparkPlugin.clusterMetrics=true the executors also send their metrics to the driver,
+// which exposes cluster-wide aggregates, see ch.cern.util.ClusterMetrics
+
+class DiskMetrics extends SparkPlugin {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  // /proc and /sys locations, configure with --conf spark.cernSparkPlugin.procRoot (default /proc)
+  // and --conf spark.cernSparkPlugin.sysRoot (default /sys)
+  def diskStatsPath(myContext: PluginContext): String =
+    new File(CgroupHierarchy.procRoot(myContext.conf), "diskstats").getPath
+
+  def mountInfoPath(myContext: PluginContext): String =
+    new File(CgroupHierarchy.procRoot(myContext.conf), "self/mountinfo").getPath
+
+  def sysBlockPath(myContext: PluginContext): String =
+    new File(myContext.conf.get("spark.cernSparkPlugin.sysRoot", "/sys"), "dev/block").getPath
+
+  def cacheTTLMs(myContext: PluginContext): Long =
+    myContext.conf.getLong("spark.cernSparkPlugin.procCacheTTLMs", 1000L)
+
+  // Local directories used by the block manager, with the precedence of Spark's Utils.getConfiguredLocalDirs:
+  // LOCAL_DIRS in a YARN container (CONTAINER_ID set), SPARK_EXECUTOR_DIRS, SPARK_LOCAL_DIRS,
+  // MESOS_SANDBOX when the external shuffle service is disabled, spark.local.dir, java.io.tmpdir.
+  // Spark shuffles the YARN directories, they are kept here in the YARN order, so that the LocalDir indexes are stable
+  def localDirs(myContext: PluginContext, env: String => Option[String] = sys.env.get): Seq[String] = {
+    val conf = myContext.conf
+    val dirs = if (env("CONTAINER_ID").isDefined) {
+      env("LOCAL_DIRS").getOrElse("").split(",")
+    } else {
+      env("SPARK_EXECUTOR_DIRS").map(_.split(File.pathSeparator))
+        .orElse(env("SPARK_LOCAL_DIRS").map(_.split(",")))
+        .orElse(env("MESOS_SANDBOX").filter(_ => !conf.getBoolean("spark.shuffle.service.enabled", false))
+          .map(Array(_)))
+        .getOrElse(conf.get("spark.local.dir", System.getProperty("java.io.tmpdir")).split(","))
+    }
+    dirs.map(_.trim).filter(_.nonEmpty).toSeq
+  }
+
+  // The directories may not be created yet, use the closest existing parent
+  def existingPath(dir: String): File = {
+    var file = new File(dir).getAbsoluteFile
+    while (!file.exists() && file.getParentFile != null) {
+      file = file.getParentFile
+    }
+    file.getCanonicalFile
+  }
+
+  // Device "major:minor" of the mount holding path, the longest mount point that is a prefix of the path
+  def mountDevice(mountInfoPath: String, path: File): Option[(String, String)] = {
+    val source = scala.io.Source.fromFile(mountInfoPath, "US-ASCII")
+    val mounts = try {
+      // fields: mount id, parent id, major:minor, root, mount point, ..., mount points escape spaces as \040
+      source.getLines().map(_.split(" ")).filter(_.length > 4)
+        .map(fields => (fields(4).replace("\\040", " "), fields(2))).toList
+    } finally {
+      source.close()
+    }
+    val target = path.getPath
+    // the last mount wins when a mount point is mounted over
+    mounts.zipWithIndex.filter { case ((mountPoint, _), _) =>
+      mountPoint == "/" || target == mountPoint || target.startsWith(mountPoint + "/")
+    }.sortBy { case ((mountPoint, _), index) => (-mountPoint.length, -index) }.headOption.map(_._1)
+  }
+
+  val deviceMetrics: Seq[(String, String, Long)] = Seq(
+    ("ReadBytes", "sectors_read", 512L),
+    ("WriteBytes", "sectors_written", 512L),
+    ("ReadOps", "reads", 1L),
+    ("WriteOps", "writes", 1L),
+    ("ReadTimeMs", "read_ms", 1L),
+    ("WriteTimeMs", "write_ms", 1L),
+    ("IOsInProgress", "in_progress", 1L),
+    ("IOTimeMs", "io_ms", 1L),
+    ("WeightedIOTimeMs", "weighted_io_ms", 1L))
+
+  // Rates: name, diskstats counter, scale. IOTimeMs per second is the utilization (fraction of time busy),
+  // WeightedIOTimeMs per second the average number of requests in the queue and in service
+  val deviceRateMetrics: Seq[(String, String, Double)] = Seq(
+    ("ReadBytesPerSec", "sectors_read", 512.0),
+    ("WriteBytesPerSec", "sectors_written", 512.0),
+    ("ReadOpsPerSec", "reads", 1.0),
+    ("WriteOpsPerSec", "writes", 1.0),
+    ("Utilization", "io_ms", 1e-3),
+    ("QueueLength", "weighted_io_ms", 1e-3))
+
+  val cgroupIoMetrics: Seq[(String, String)] = Seq(
+    "CgroupReadBytes" -> "rbytes",
+    "CgroupWriteBytes" -> "wbytes",
+    "CgroupReadOps" -> "rios",
+    "CgroupWriteOps" -> "wios")
+
+  def diskMetrics(myContext: PluginContext, metricRegistry: MetricRegistry, cacheTTLMs: Long,
+                  rates: Option[RateSampler]): Unit = {
+    val dirs = localDirs(myContext).map(dir => dir -> existingPath(dir))
+
+    // free space of each local directory, as LocalDir.<index>.UsableBytes
+    dirs.zipWithIndex.foreach { case ((dir, path), index) =>
+      val prefix = MetricRegistry.name("LocalDir", index.toString)
+      MetricSnapshot.registerGauge(metricRegistry, MetricRegistry.name(prefix, "UsableBytes"),
+        () => path.getUsableSpace)
+      MetricSnapshot.registerGauge(metricRegistry, MetricRegistry.name(prefix, "TotalBytes"),
+        () => path.getTotalSpace)
+    }
+
+    // block devices of the local directories, each device once, as Disk.<device>.<metric>
+    val diskStats = diskStatsPath(myContext)
+    val deviceNames =
+      if (new File(diskStats).exists()) DiskStatsFileReader.devices(diskStats) else Map.empty[String, String]
+    val mountInfo = mountInfoPath(myContext)
+    val devices = dirs.flatMap { case (dir, path) =>
+      val device = mountDevice(mountInfo, path).flatMap { case (mountPoint, majorMinor) =>
+        deviceNames.get(majorMinor).map(name => (majorMinor, name, mountPoint))
+      }
+      device match {
+        case Some((majorMinor, name, mountPoint)) =>
+          logger.info(s"Local directory $dir is on mount point $mountPoint, block device $name ($majorMinor)")
+        case None =>
+          logger.info(s"Local directory $dir is not on a block device listed in $diskStats " +
+            "(for example tmpfs or overlay), only the free space is reported")
+      }
+      device
+    }.map { case (majorMinor, name, _) => (majorMinor, name) }.distinct
+
+    if (devices.nonEmpty) {
+      val diskStatsReader = new DiskStatsFileReader(diskStats,
+        for ((_, name) <- devices; (_, counter, _) <- deviceMetrics) yield s"$name:$counter", cacheTTLMs)
+      devices.foreach { case (_, name) =>
+        // dots are the separator of the metric name hierarchy
+        val prefix = MetricRegistry.name("Disk", name.replace('.', '_'))
+        deviceMetrics.foreach { case (metric, counter, scale) =>
+          registerGauge(metricRegistry, MetricRegistry.name(prefix, metric), diskStatsReader, s"$name:$counter",
+            scale)
+        }
+        deviceRateMetrics.foreach { case (metric, counter, scale) =>
+          registerRate(rates, metricRegistry, MetricRegistry.name(prefix, metric), diskStatsReader, s"$name:$counter",
+            scale)
+        }
+      }
+
+      // I/O of the executor's cgroup on the same devices, cgroup v2 only
+      // io.stat reports whole disks, the I/O on a partition is reported on its disk
+      val cgroup = CgroupHierarchy.fromConf(myContext.conf)
+      val ioStatPath = cgroup.unifiedFile("io.stat")
+      if (cgroup.version == 2 && new File(ioStatPath).exists()) {
+        val sysBlock = sysBlockPath(myContext)
+        val disks = devices.map { case (majorMinor, name) => (wholeDisk(sysBlock, majorMinor), name) }
+        val ioStat = new IoStatFileReader(ioStatPath,
+          for ((majorMinor, _) <- disks; (_, counter) <- cgroupIoMetrics) yield s"$majorMinor:$counter", cacheTTLMs)
+        disks.foreach { case (majorMinor, name) =>
+          val prefix = MetricRegistry.name("Disk", name.replace('.', '_'))
+          cgroupIoMetrics.foreach { case (metric, counter) =>
+            registerGauge(metricRegistry, MetricRegistry.name(prefix, metric), ioStat, s"$majorMinor:$counter")
+          }
+          registerRate(rates, metricRegistry, MetricRegistry.name(prefix, "CgroupReadBytesPerSec"), ioStat,
+            s"$majorMinor:rbytes")
+          registerRate(rates, metricRegistry, MetricRegistry.name(prefix, "CgroupWriteBytesPerSec"), ioStat,
+            s"$majorMinor:wbytes")
+        }
+      }
+    }
+  }
+
+  // "major:minor" of the disk holding a partition, from /sys/dev/block, or the device itself if not a partition
+  // /sys/dev/block/<major:minor> links to the device directory, the directory of a partition is in the one of its disk
+  def wholeDisk(sysBlockPath: String, majorMinor: String): String = {
+    val device = new File(sysBlockPath, majorMinor)
+    val parentDev = new File(device.getCanonicalFile.getParentFile, "dev")
+    if (new File(device, "partition").exists() && parentDev.exists()) {
+      val source = scala.io.Source.fromFile(parentDev, "US-ASCII")
+      try source.mkString.trim finally source.close()
+    } else {
+      majorMinor
+    }
+  }
+
+  // Return the plugin's driver-side component.
+  // register metrics conditional to --conf spark.cernSparkPlugin.registerOnDriver=true
+  override def driverPlugin(): DriverPlugin = {
+    new DriverPlugin() {
+      var metricRegistry: MetricRegistry = _
+      var aggregator: Option[ClusterMetrics.Aggregator] = None
+
+      override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        metricRegistry = myContext.metricRegistry
+        aggregator = ClusterMetrics.aggregator(myContext)
+        val registerOnDriver =
+          myContext.conf.getBoolean("spark.cernSparkPlugin.registerOnDriver", false)
+        if (registerOnDriver) {
+          MetricSnapshot.get(myContext, metricRegistry)
+          diskMetrics(myContext, myContext.metricRegistry, cacheTTLMs(myContext), RateSampler.get(myContext))
+        }
+        Map.empty[String, String].asJava
+      }
+
+      override def receive(message: AnyRef): AnyRef = {
+        aggregator.foreach(_.receive(message))
+        null
+      }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+        ProcFileGauges.close(metricRegistry)
+      }
+    }
+  }
+
+  // Return the plugin's executor-side component.
+  override def executorPlugin(): ExecutorPlugin = {
+    new ExecutorPlugin() {
+      var metricRegistry: MetricRegistry = _
+      var publisher: Option[ClusterMetrics.Publisher] = None
+
+      override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
+        metricRegistry = ClusterMetrics.executorRegistry(myContext)
+        MetricSnapshot.get(myContext, metricRegistry)
+        diskMetrics(myContext, metricRegistry, cacheTTLMs(myContext), RateSampler.get(myContext))
+        publisher = ClusterMetrics.startPublisher(myContext, metricRegistry)
+      }
+
+      override def shutdown(): Unit = {
+        publisher.foreach(_.stop())
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+        ProcFileGauges.close(metricRegistry)
+      }
+    }
+  }
+
+}
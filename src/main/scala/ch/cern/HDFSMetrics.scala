@@ -3,19 +3,28 @@ package ch.cern
 import scala.jdk.CollectionConverters._
 import java.util.{Map => JMap}
 
-import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry
 
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 import org.apache.spark.SparkContext
 
 import org.apache.hadoop.fs.FileSystem.getGlobalStorageStatistics
 
+import ch.cern.util.{ClusterMetrics, MetricSnapshot, RateSampler}
+
 /**
  * Monitor HDFS I/0 metrics using Hadoop's API FileSystem.getGlobalStorageStatistics
  * FileSystem.getGlobalStorageStatistics has been introduced in Hadoop (client) version 2.8
  *
  * Note: use with Spark 3.x built with Hadoop 3.2 profile (or higher, when available)
  * or use it with Spark built without Hadoop and use your own Hadoop client version 2.8 or higher.
+ *
+ * With --conf spark.cernSparkPlugin.rateMetrics=true the per-second rates of the throughput metrics
+ * are also published, see ch.cern.util.RateSampler
+ * With --conf spark.cernSparkPlugin.snapshotMetrics=true the gauges are read from a snapshot taken periodically
+ * by a single thread, instead of on each metrics sink poll, see ch.cern.util.MetricSnapshot
+ * With --conf spark.cernSparkPlugin.clusterMetrics=true the executors also send their metrics to the driver,
+ * which exposes cluster-wide aggregates, see ch.cern.util.ClusterMetrics
  */
 class HDFSMetrics extends SparkPlugin {
 
@@ -23,44 +32,74 @@ class HDFSMetrics extends SparkPlugin {
   val fsMetrics = Seq("bytesRead", "bytesWritten", "readOps", "writeOps", "largeReadOps",
     "bytesReadLocalHost", "bytesReadDistanceOfOneOrTwo", "bytesReadDistanceOfThreeOrFour",
     "bytesReadDistanceOfFiveOrLarger", "bytesReadErasureCoded")
+  val rateMetrics = Seq("bytesRead", "bytesWritten", "readOps", "writeOps")
 
   // Note: getGlobalStorageStatistics.get("fsName") will return null till the first use of "fsName"
   // hdfsMetrics registers the metrics and their getValue method
-  def hdfsMetrics(myContext: PluginContext): Unit= {
-    val metricRegistry = myContext.metricRegistry
+  def hdfsMetrics(myContext: PluginContext, metricRegistry: MetricRegistry): Unit= {
+    MetricSnapshot.get(myContext, metricRegistry)
     fsMetrics.foreach ( name =>
-      metricRegistry.register(MetricRegistry.name(name), new Gauge[Long] {
-        override def getValue: Long = {
-          val fsStats = getGlobalStorageStatistics.get(fsName)
-          fsStats match {
-            case null => 0L
-            case _ => fsStats.getLong(name)
-          }
-        }
-      })
+      MetricSnapshot.registerGauge(metricRegistry, name, () => hdfsStatistic(name))
     )
+    RateSampler.get(myContext).foreach { rates =>
+      rateMetrics.foreach(name => rates.register(metricRegistry, name + "PerSec", () => hdfsStatistic(name)))
+    }
+  }
+
+  def hdfsStatistic(name: String): Long = {
+    val fsStats = getGlobalStorageStatistics.get(fsName)
+    fsStats match {
+      case null => 0L
+      case _ => fsStats.getLong(name)
+    }
   }
 
   // Return the plugin's driver-side component.
   // register metrics conditional to --conf spark.cernSparkPlugin.registerOnDriver=true
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var metricRegistry: MetricRegistry = _
+      var aggregator: Option[ClusterMetrics.Aggregator] = None
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        metricRegistry = myContext.metricRegistry
+        aggregator = ClusterMetrics.aggregator(myContext)
         val registerOnDriver =
           myContext.conf.getBoolean("spark.cernSparkPlugin.registerOnDriver", true)
         if (registerOnDriver) {
-          hdfsMetrics(myContext)
+          hdfsMetrics(myContext, metricRegistry)
         }
         Map.empty[String, String].asJava
       }
+
+      override def receive(message: AnyRef): AnyRef = {
+        aggregator.foreach(_.receive(message))
+        null
+      }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
    // Return the plugin's executor-side component.
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin() {
+      var metricRegistry: MetricRegistry = _
+      var publisher: Option[ClusterMetrics.Publisher] = None
+
       override def init(myContext:PluginContext, extraConf:JMap[String, String])  = {
-        hdfsMetrics(myContext)
+        metricRegistry = ClusterMetrics.executorRegistry(myContext)
+        hdfsMetrics(myContext, metricRegistry)
+        publisher = ClusterMetrics.startPublisher(myContext, metricRegistry)
+      }
+
+      override def shutdown(): Unit = {
+        publisher.foreach(_.stop())
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
       }
     }
   }
@@ -0,0 +1,402 @@
+package ch.cern
+
+import scala.jdk.CollectionConverters._
+import scala.util.Try
+import scala.util.control.NonFatal
+import java.lang.invoke.{MethodHandle, MethodHandles, MethodType}
+import java.lang.management.{BufferPoolMXBean, GarbageCollectorMXBean, ManagementFactory}
+import java.util.{Map => JMap}
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+import javax.management.{Notification, NotificationEmitter, NotificationListener}
+import javax.management.openmbean.CompositeData
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.sun.management.GarbageCollectionNotificationInfo
+import io.netty.buffer.PooledByteBufAllocator
+import org.apache.spark.SparkContext
+import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
+
+import org.slf4j.LoggerFactory
+
+import ch.cern.instrumentation.LatencyHistogram
+import ch.cern.util.{ClusterMetrics, HistogramGauges, SamplerScheduler}
+
+// Collects JVM internals metrics: GC pause time histograms per collector, allocation rate of the task threads,
+// direct and mapped buffer pools, Netty pooled allocator memory of the Spark network layer and safepoints
+// GC pauses are recorded from the GC notifications, the other values are sampled on the thread shared by the samplers
+// of the plugins (see ch.cern.util.SamplerScheduler) into a preallocated snapshot, read by the gauges,
+// configure the interval with
+// --conf spark.cernSparkPlugin.jvmMetricsIntervalMs (default 1000)
+// Register the metrics also on the driver with --conf spark.cernSparkPlugin.registerOnDriver=true
+// With --conf spark.cernSparkPlugin.clusterMetrics=true the executors also send their metrics to the driver,
+// which exposes cluster-wide aggregates, see ch.cern.util.ClusterMetrics
+
+class JVMMetrics extends SparkPlugin {
+
+  def intervalMs(myContext: PluginContext): Long =
+    myContext.conf.getLong("spark.cernSparkPlugin.jvmMetricsIntervalMs", 1000L)
+
+  // Return the plugin's driver-side component.
+  // register metrics conditional to --conf spark.cernSparkPlugin.registerOnDriver=true
+  override def driverPlugin(): DriverPlugin = {
+    new DriverPlugin() {
+      var sampler: Option[JVMMetrics.Sampler] = None
+      var aggregator: Option[ClusterMetrics.Aggregator] = None
+
+      override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        aggregator = ClusterMetrics.aggregator(myContext)
+        if (myContext.conf.getBoolean("spark.cernSparkPlugin.registerOnDriver", false)) {
+          sampler = Some(new JVMMetrics.Sampler(myContext.metricRegistry, intervalMs(myContext)))
+        }
+        Map.empty[String, String].asJava
+      }
+
+      override def receive(message: AnyRef): AnyRef = {
+        aggregator.foreach(_.receive(message))
+        null
+      }
+
+      override def shutdown(): Unit = {
+        sampler.foreach(_.stop())
+      }
+    }
+  }
+
+  // Return the plugin's executor-side component.
+  override def executorPlugin(): ExecutorPlugin = {
+    new ExecutorPlugin() {
+      var sampler: JVMMetrics.Sampler = _
+      var publisher: Option[ClusterMetrics.Publisher] = None
+
+      override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
+        val metricRegistry = ClusterMetrics.executorRegistry(myContext)
+        sampler = new JVMMetrics.Sampler(metricRegistry, intervalMs(myContext))
+        publisher = ClusterMetrics.startPublisher(myContext, metricRegistry)
+      }
+
+      override def onTaskStart(): Unit = {
+        sampler.taskAllocation.taskStarted()
+      }
+
+      override def onTaskSucceeded(): Unit = {
+        sampler.taskAllocation.taskEnded()
+      }
+
+      override def onTaskFailed(failureReason: org.apache.spark.TaskFailedReason): Unit = {
+        sampler.taskAllocation.taskEnded()
+      }
+
+      override def shutdown(): Unit = {
+        publisher.foreach(_.stop())
+        if (sampler != null) {
+          sampler.stop()
+        }
+      }
+    }
+  }
+
+}
+
+object JVMMetrics {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  private val threadMXBean = ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+
+  // metric names are hierarchical, the names of collectors and pools are used without spaces
+  def metricName(name: String): String = name.replaceAll("[^A-Za-z0-9_-]", "")
+
+  // Collectors whose notifications are not stop-the-world pauses: "G1 Concurrent GC", "ConcurrentMarkSweep",
+  // "ZGC Cycles", "ZGC Major Cycles", "Shenandoah Cycles", the pauses of ZGC and Shenandoah have their own collectors
+  def isConcurrentCollector(name: String): Boolean = name.contains("Concurrent") || name.endsWith("Cycles")
+
+  // GC actions of concurrent work, for example "end of GC cycle", the pauses are "end of minor GC",
+  // "end of major GC" and "end of GC pause"
+  def isConcurrentAction(action: String): Boolean = {
+    val lower = Option(action).getOrElse("").toLowerCase
+    lower.contains("concurrent") || lower.contains("cycle")
+  }
+
+  /**
+   * Registers the gauges and schedules the sampling on the SamplerScheduler thread.
+   * Sampled values are written into a preallocated AtomicLongArray, the gauges only read their slot,
+   * so neither the sampling nor the metrics sink polls allocate.
+   */
+  class Sampler(metricRegistry: MetricRegistry, intervalMs: Long) {
+
+    val taskAllocation = new TaskThreadAllocation
+    private val gcListeners = registerGCMetrics()
+    private val bufferPools = ManagementFactory.getPlatformMXBeans(classOf[BufferPoolMXBean]).asScala.toIndexedSeq
+    private val nettyAllocators = sparkNettyAllocators()
+    private val safepoints = SafepointStats.create()
+
+    // snapshot slots
+    private val bufferPoolSlot = 0
+    private val nettySlot = bufferPoolSlot + 3 * bufferPools.length
+    private val allocationSlot = nettySlot + 2
+    private val safepointSlot = allocationSlot + 2
+    private val snapshot = new AtomicLongArray(safepointSlot + 3)
+
+    private var lastAllocatedBytes = 0L
+    private var lastSampleNanos = System.nanoTime()
+
+    registerSnapshotGauges()
+    sample()
+    private val task: ScheduledFuture[_] = SamplerScheduler.schedule(intervalMs, new Runnable {
+      override def run(): Unit = {
+        try {
+          sample()
+        } catch {
+          case NonFatal(e) => logger.warn("Failed to sample the JVM metrics", e)
+        }
+      }
+    })
+
+    private def registerGauge(name: String, slot: Int): Unit = {
+      metricRegistry.register(name, new Gauge[Long] {
+        override def getValue: Long = snapshot.get(slot)
+      })
+    }
+
+    private def registerSnapshotGauges(): Unit = {
+      bufferPools.zipWithIndex.foreach { case (pool, i) =>
+        val prefix = MetricRegistry.name("BufferPool", metricName(pool.getName))
+        registerGauge(MetricRegistry.name(prefix, "Count"), bufferPoolSlot + 3 * i)
+        registerGauge(MetricRegistry.name(prefix, "MemoryUsed"), bufferPoolSlot + 3 * i + 1)
+        registerGauge(MetricRegistry.name(prefix, "TotalCapacity"), bufferPoolSlot + 3 * i + 2)
+      }
+      if (nettyAllocators.isDefined) {
+        registerGauge("NettyUsedDirectMemory", nettySlot)
+        registerGauge("NettyUsedHeapMemory", nettySlot + 1)
+      }
+      if (taskAllocation.supported) {
+        registerGauge("TaskAllocatedBytes", allocationSlot)
+        registerGauge("TaskAllocatedBytesPerSec", allocationSlot + 1)
+      }
+      if (safepoints.isDefined) {
+        registerGauge("SafepointCount", safepointSlot)
+        registerGauge("SafepointTimeMs", safepointSlot + 1)
+        registerGauge("SafepointSyncTimeMs", safepointSlot + 2)
+      }
+    }
+
+    // GC pause time histograms and counters per collector, fed by the GC notifications
+    // The notifications of the concurrent collectors (G1 Concurrent GC, ZGC Cycles, Shenandoah Cycles, CMS)
+    // report the duration of the concurrent cycle, or for G1 Concurrent GC of the remark and cleanup pauses
+    // of the cycle, they go to GC.<collector>.Cycle* and not to the Pause histograms of the stop-the-world collections
+    // GcInfo.getDuration has a resolution of 1 ms: the values are recorded in microseconds, as the other latency
+    // histograms, but they are multiples of 1000 and pauses shorter than 1 ms are recorded as 0
+    private def registerGCMetrics(): Seq[(NotificationEmitter, NotificationListener)] = {
+      ManagementFactory.getGarbageCollectorMXBeans.asScala.toSeq.collect {
+        case bean: NotificationEmitter =>
+          val collector = bean.asInstanceOf[GarbageCollectorMXBean].getName
+          val prefix = MetricRegistry.name("GC", metricName(collector))
+          val concurrent = JVMMetrics.isConcurrentCollector(collector)
+          val histogram = new LatencyHistogram
+          val count = new AtomicLong
+          val totalTime = new AtomicLong
+          metricRegistry.register(MetricRegistry.name(prefix, "Count"), new Gauge[Long] {
+            override def getValue: Long = count.get
+          })
+          metricRegistry.register(MetricRegistry.name(prefix, "TimeMs"), new Gauge[Long] {
+            override def getValue: Long = totalTime.get
+          })
+          HistogramGauges.register(metricRegistry, MetricRegistry.name(prefix, if (concurrent) "Cycle" else "Pause"),
+            histogram)
+          val listener = new NotificationListener {
+            override def handleNotification(notification: Notification, handback: AnyRef): Unit = {
+              if (notification.getType == GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION) {
+                val info = GarbageCollectionNotificationInfo.from(notification.getUserData.asInstanceOf[CompositeData])
+                val durationMs = info.getGcInfo.getDuration
+                count.incrementAndGet()
+                totalTime.addAndGet(durationMs)
+                // a pause collector can also report concurrent work, not recorded as a pause
+                if (concurrent || !JVMMetrics.isConcurrentAction(info.getGcAction)) {
+                  histogram.recordValue(durationMs * 1000L)
+                }
+              }
+            }
+          }
+          bean.addNotificationListener(listener, null, null)
+          bean -> listener
+      }
+    }
+
+    // Spark shared Netty allocators, read without creating them when the network layer did not.
+    // They are created lazily, the array is kept and its slots are checked at each sample
+    private def sparkNettyAllocators(): Option[Array[PooledByteBufAllocator]] = {
+      Try {
+        val field = Class.forName("org.apache.spark.network.util.NettyUtils")
+          .getDeclaredField("_sharedPooledByteBufAllocator")
+        field.setAccessible(true)
+        field.get(null).asInstanceOf[Array[PooledByteBufAllocator]]
+      }.toOption.orElse {
+        logger.info("Spark shared Netty allocators not found, Netty metrics are not reported")
+        None
+      }
+    }
+
+    // called by the sampler thread only, written with plain loops to not allocate
+    def sample(): Unit = {
+      var i = 0
+      while (i < bufferPools.length) {
+        val pool = bufferPools(i)
+        snapshot.set(bufferPoolSlot + 3 * i, pool.getCount)
+        snapshot.set(bufferPoolSlot + 3 * i + 1, pool.getMemoryUsed)
+        snapshot.set(bufferPoolSlot + 3 * i + 2, pool.getTotalCapacity)
+        i += 1
+      }
+
+      if (nettyAllocators.isDefined) {
+        val allocators = nettyAllocators.get
+        var direct = 0L
+        var heap = 0L
+        i = 0
+        while (i < allocators.length) {
+          val allocator = allocators(i)
+          if (allocator != null) {
+            direct += allocator.metric.usedDirectMemory
+            heap += allocator.metric.usedHeapMemory
+          }
+          i += 1
+        }
+        snapshot.set(nettySlot, direct)
+        snapshot.set(nettySlot + 1, heap)
+      }
+
+      if (taskAllocation.supported) {
+        val now = System.nanoTime()
+        val allocated = taskAllocation.sample()
+        snapshot.set(allocationSlot, allocated)
+        if (now > lastSampleNanos) {
+          snapshot.set(allocationSlot + 1, ((allocated - lastAllocatedBytes) * 1e9 / (now - lastSampleNanos)).toLong)
+        }
+        lastAllocatedBytes = allocated
+        lastSampleNanos = now
+      }
+
+      if (safepoints.isDefined) {
+        val stats = safepoints.get
+        snapshot.set(safepointSlot, stats.count)
+        snapshot.set(safepointSlot + 1, stats.timeMs)
+        snapshot.set(safepointSlot + 2, stats.syncTimeMs)
+      }
+    }
+
+    def stop(): Unit = {
+      SamplerScheduler.cancel(task)
+      gcListeners.foreach { case (bean, listener) =>
+        Try(bean.removeNotificationListener(listener))
+      }
+    }
+
+    private[cern] def isStopped: Boolean = task.isCancelled
+  }
+
+  /**
+   * Bytes allocated by the task threads, from the per-thread allocation counters of the JVM.
+   * Task threads are tracked in preallocated slots between onTaskStart and the end of the task,
+   * the sampler adds the allocations of the running tasks, the task thread the remainder at the end of the task.
+   */
+  class TaskThreadAllocation {
+
+    val supported: Boolean = threadMXBean.isThreadAllocatedMemorySupported && threadMXBean.isThreadAllocatedMemoryEnabled
+
+    private var threadIds = new Array[Long](16)
+    private var lastAllocated = new Array[Long](16)
+    private var used = 0
+    private var total = 0L
+
+    def taskStarted(): Unit = {
+      if (supported) {
+        val threadId = Thread.currentThread.getId
+        val allocated = threadMXBean.getThreadAllocatedBytes(threadId)
+        synchronized {
+          if (used == threadIds.length) {
+            threadIds = java.util.Arrays.copyOf(threadIds, used * 2)
+            lastAllocated = java.util.Arrays.copyOf(lastAllocated, used * 2)
+          }
+          threadIds(used) = threadId
+          lastAllocated(used) = allocated
+          used += 1
+        }
+      }
+    }
+
+    def taskEnded(): Unit = {
+      if (supported) {
+        val threadId = Thread.currentThread.getId
+        val allocated = threadMXBean.getThreadAllocatedBytes(threadId)
+        synchronized {
+          var i = 0
+          while (i < used && threadIds(i) != threadId) {
+            i += 1
+          }
+          if (i < used) {
+            total += allocated - lastAllocated(i)
+            // move the last slot in place of the ended task
+            used -= 1
+            threadIds(i) = threadIds(used)
+            lastAllocated(i) = lastAllocated(used)
+          }
+        }
+      }
+    }
+
+    // Adds the allocations of the running tasks since the last sample, returns the cumulative bytes
+    def sample(): Long = synchronized {
+      var i = 0
+      while (i < used) {
+        val allocated = threadMXBean.getThreadAllocatedBytes(threadIds(i))
+        if (allocated >= 0) {
+          total += allocated - lastAllocated(i)
+          lastAllocated(i) = allocated
+        }
+        i += 1
+      }
+      total
+    }
+  }
+
+  /**
+   * Safepoint statistics of the HotSpot runtime, from the internal HotspotRuntimeMBean.
+   * On Java 9 and later the JVM must be started with
+   * --add-exports java.management/sun.management=ALL-UNNAMED, otherwise they are not reported.
+   * The getters are resolved once into method handles bound to the bean, of type ()long, invoked exactly:
+   * no argument array and no boxing of the result at each sample.
+   */
+  class SafepointStats(countHandle: MethodHandle, timeHandle: MethodHandle, syncTimeHandle: MethodHandle) {
+    def count: Long = countHandle.invokeExact(): Long
+    def timeMs: Long = timeHandle.invokeExact(): Long
+    def syncTimeMs: Long = syncTimeHandle.invokeExact(): Long
+  }
+
+  object SafepointStats {
+
+    private val getterType = MethodType.methodType(classOf[Long])
+
+    // Resolves the getters of the HotspotRuntimeMBean interface, implemented by bean
+    private[cern] def fromBean(bean: AnyRef, beanClass: Class[_]): SafepointStats = {
+      val lookup = MethodHandles.lookup()
+      def getter(name: String): MethodHandle =
+        lookup.findVirtual(beanClass, name, getterType).bindTo(bean)
+      new SafepointStats(getter("getSafepointCount"), getter("getTotalSafepointTime"), getter("getSafepointSyncTime"))
+    }
+
+    def create(): Option[SafepointStats] = {
+      Try {
+        val bean = Class.forName("sun.management.ManagementFactoryHelper")
+          .getMethod("getHotspotRuntimeMBean").invoke(null)
+        val stats = fromBean(bean, Class.forName("sun.management.HotspotRuntimeMBean"))
+        stats.count
+        stats
+      }.toOption.orElse {
+        logger.info("Safepoint statistics not available, on Java 9 and later add the JVM option " +
+          "--add-exports java.management/sun.management=ALL-UNNAMED")
+        None
+      }
+    }
+  }
+
+}
@@ -0,0 +1,205 @@
+package ch.cern
+
+import java.net.{BindException, InetSocketAddress}
+import java.util.{Map => JMap}
+import java.util.concurrent.{ExecutorService, Executors, ThreadFactory, TimeUnit}
+
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+import org.apache.spark.SparkContext
+import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
+
+import org.slf4j.LoggerFactory
+
+import ch.cern.util.PrometheusExposition
+
+/**
+ * Serves the metrics of the plugins of this JVM in the Prometheus text format, on a lightweight HTTP endpoint
+ * run by the driver and by each executor: http://<host>:<port>/metrics
+ *
+ * Use it to scrape the executors directly, without the Spark Prometheus servlet sink, which serves the executor
+ * metrics through the driver UI and formats the full metrics registry on each scrape.
+ * All the numeric gauges of the plugins listed in spark.plugins are served, with the histograms of the
+ * instrumentation classes as Prometheus histograms, see ch.cern.util.PrometheusExposition.
+ * The OpenMetrics format is served when the scraper asks for it with the Accept header.
+ *
+ * Parameters:
+ *   --conf spark.plugins=ch.cern.PrometheusExporter,<the plugins to export>
+ *   --conf spark.cernSparkPlugin.prometheusHost (default 127.0.0.1), address to bind, use 0.0.0.0
+ *     to be scraped from other hosts
+ *   --conf spark.cernSparkPlugin.prometheusPort (default 9095), port to bind, 0 for an ephemeral port;
+ *     when the port is in use, for example by another executor on the same host, the next ports are tried
+ *   --conf spark.cernSparkPlugin.prometheusPortMaxRetries (default 16)
+ *   --conf spark.cernSparkPlugin.prometheusCacheTTLMs (default 1000), scrapes within the TTL get the same
+ *     rendered text, the gauges are computed at most once per TTL
+ * The bound port is logged, and exported as the gauge PrometheusPort of this plugin.
+ *
+ * Required JVM option: -Dsun.net.httpserver.nodelay=true, for example in spark.driver.extraJavaOptions and
+ * spark.executor.extraJavaOptions. The JDK HTTP server writes the headers and the body of a response separately,
+ * without TCP_NODELAY the body waits for the delayed ACK of the headers (about 40 ms).
+ * The property is read by the JDK when the first server of the JVM is created, so it is not set by the plugin.
+ */
+class PrometheusExporter extends SparkPlugin {
+
+  // Return the plugin's driver-side component.
+  override def driverPlugin(): DriverPlugin = {
+    new DriverPlugin() {
+      override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        PrometheusExporter.start(myContext)
+        Map.empty[String, String].asJava
+      }
+
+      override def shutdown(): Unit = {
+        PrometheusExporter.stop()
+      }
+    }
+  }
+
+  // Return the plugin's executor-side component.
+  override def executorPlugin(): ExecutorPlugin = {
+    new ExecutorPlugin() {
+      override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
+        PrometheusExporter.start(myContext)
+      }
+
+      override def shutdown(): Unit = {
+        PrometheusExporter.stop()
+      }
+    }
+  }
+
+}
+
+object PrometheusExporter {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  // One endpoint per JVM, shared by the driver and executor components in local mode
+  private var endpoint: Option[Endpoint] = None
+  private var users = 0
+
+  // The port of the endpoint of this JVM, if running
+  def port: Option[Int] = synchronized(endpoint.map(_.port))
+
+  def start(myContext: PluginContext): Unit = synchronized {
+    if (endpoint.isEmpty) {
+      val conf = myContext.conf
+      val exporterClass = classOf[PrometheusExporter].getName
+      val pluginClasses = (conf.get("spark.plugins", "").split(",") ++
+        conf.get("spark.plugins.defaultList", "").split(",")).map(_.trim).filter(name => name.nonEmpty && name != exporterClass).distinct.toSeq
+      val exposition = new PrometheusExposition(() => org.apache.spark.cern.PluginSources.registries(pluginClasses),
+        () => Seq("app_id" -> conf.get("spark.app.id", ""), "executor_id" -> myContext.executorID),
+        conf.getLong("spark.cernSparkPlugin.prometheusCacheTTLMs", 1000L))
+      try {
+        endpoint = Some(new Endpoint(exposition,
+          conf.get("spark.cernSparkPlugin.prometheusHost", "127.0.0.1"),
+          conf.getInt("spark.cernSparkPlugin.prometheusPort", 9095),
+          conf.getInt("spark.cernSparkPlugin.prometheusPortMaxRetries", 16)))
+      } catch {
+        case NonFatal(e) =>
+          logger.warn("Failed to start the Prometheus endpoint", e)
+      }
+    }
+    endpoint.foreach { e =>
+      myContext.metricRegistry.register("PrometheusPort", new com.codahale.metrics.Gauge[Int] {
+        override def getValue: Int = e.port
+      })
+    }
+    users += 1
+  }
+
+  def stop(): Unit = synchronized {
+    users -= 1
+    if (users <= 0) {
+      endpoint.foreach(_.stop())
+      endpoint = None
+      users = 0
+    }
+  }
+
+  // HTTP server, the requests are served one at a time by a single thread, which owns the rendering buffer
+  private[cern] class Endpoint(exposition: PrometheusExposition, host: String, basePort: Int, maxRetries: Int) {
+
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, "cern-spark-plugin-prometheus")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+
+    private val server = bind()
+    val port: Int = server.getAddress.getPort
+
+    server.createContext("/metrics", new HttpHandler {
+      override def handle(exchange: HttpExchange): Unit = serve(exchange)
+    })
+    server.setExecutor(executor)
+    // the dispatcher thread of the server inherits the daemon flag of the thread that starts it,
+    // start it from the exporter thread so that it does not keep the JVM alive
+    executor.submit(new Runnable {
+      override def run(): Unit = server.start()
+    }).get()
+    logger.info(s"Serving the plugin metrics in Prometheus format at http://$host:$port/metrics")
+    if (!java.lang.Boolean.getBoolean("sun.net.httpserver.nodelay")) {
+      logger.warn("The JVM option -Dsun.net.httpserver.nodelay=true is not set, " +
+        "each scrape waits for the delayed ACK of the response headers")
+    }
+
+    private def bind(): HttpServer = {
+      var attempt = 0
+      var bound: HttpServer = null
+      while (bound == null) {
+        val port = if (basePort == 0) 0 else basePort + attempt
+        try {
+          bound = HttpServer.create(new InetSocketAddress(host, port), 0)
+        } catch {
+          case _: BindException if basePort != 0 && attempt < maxRetries =>
+            attempt += 1
+        }
+      }
+      bound
+    }
+
+    private def serve(exchange: HttpExchange): Unit = {
+      try {
+        val method = exchange.getRequestMethod
+        if (method != "GET" && method != "HEAD") {
+          exchange.sendResponseHeaders(405, -1)
+        } else {
+          val accept = exchange.getRequestHeaders.getFirst("Accept")
+          val openMetrics = accept != null && accept.contains("application/openmetrics-text")
+          exposition.render(System.currentTimeMillis())
+          val length = exposition.size + (if (openMetrics) PrometheusExposition.openMetricsEof.length else 0)
+          exchange.getResponseHeaders.set("Content-Type",
+            if (openMetrics) PrometheusExposition.openMetricsContentType else PrometheusExposition.textContentType)
+          if (method == "HEAD") {
+            exchange.sendResponseHeaders(200, -1)
+          } else {
+            exchange.sendResponseHeaders(200, length)
+            val out = exchange.getResponseBody
+            out.write(exposition.bytes, 0, exposition.size)
+            if (openMetrics) {
+              out.write(PrometheusExposition.openMetricsEof)
+            }
+          }
+        }
+      } catch {
+        case NonFatal(e) =>
+          logger.warn("Failed to serve the metrics", e)
+      } finally {
+        exchange.close()
+      }
+    }
+
+    def stop(): Unit = {
+      server.stop(0)
+      executor.shutdown()
+      executor.awaitTermination(5, TimeUnit.SECONDS)
+      exposition.close()
+    }
+  }
+
+}
@@ -4,14 +4,26 @@ import io.pyroscope.javaagent.PyroscopeAgent
 import io.pyroscope.javaagent.EventType
 import io.pyroscope.javaagent.config.Config
 import io.pyroscope.http.Format
+import io.pyroscope.labels.v2.{LabelsSet, ScopedContext}
 
 import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+import java.io.File
 import java.net.InetAddress
+import java.nio.charset.StandardCharsets
+import java.time.{Duration, Instant}
 import java.util.{Map => JMap}
+import java.util.concurrent.{Executors, ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.AtomicReference
 
+import org.apache.spark.{SparkConf, TaskContext}
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 import org.apache.spark.SparkContext
 
+import org.slf4j.LoggerFactory
+
+import ch.cern.util.LocalProfiler
+
 /**
  * Use this Plugin to configure Pyroscope java agent data collection on Spark executors
  * See https://grafana.com/docs/pyroscope/latest/configure-client/language-sdks/java/
@@ -20,15 +32,72 @@ import org.apache.spark.SparkContext
  *   --conf spark.pyroscope.server - > default "http://localhost:4040", update to match the server name and port used by Pyroscope
  *   --conf spark.pyroscope.applicationName -> default spark.conf.get("spark.app.id")
  *   --conf spark.pyroscope.eventType -> default ITIMER, possible values ITIMER, CPU, WALL, ALLOC, LOCK
+ *   --conf spark.pyroscope.samplingIntervalMs -> default: the Pyroscope agent default (10 ms)
+ *   --conf spark.pyroscope.taskLabels -> default true, label the samples of the task threads with
+ *     stageId, jobGroup and sqlExecutionId, in addition to executorId and hostname
+ *   --conf spark.pyroscope.runtimeSettings -> default false, set to true to change the profiling settings
+ *     of the executors at runtime, see below, the executors then poll the driver
+ *   --conf spark.pyroscope.pollIntervalMs -> interval of the executor polls of the driver for runtime settings
+ *     and flush requests, each poll is an RPC from every executor to the driver, default 5000 in local mode
+ *     or with runtimeSettings=true, else 0, which disables them
+ *   --conf spark.pyroscope.mode -> default push, send the profiles to the Pyroscope server,
+ *     use local to profile in-process with Java Flight Recorder, see ch.cern.util.LocalProfiler
+ *
+ * Runtime settings, with runtimeSettings=true: call ch.cern.PyroscopePlugin.setProfiling(eventType, samplingIntervalMs)
+ * on the driver to switch the event type and sampling interval of all the executors, at their next poll,
+ * and ch.cern.PyroscopePlugin.resetProfiling() to go back to the configured ones.
+ *
+ * Local mode, the profiles stay on the executors and are only written on demand, in collapsed flame-graph form:
+ *   - when requested from the driver, with ch.cern.PyroscopePlugin.requestFlush(windowSec),
+ *     every executor writes the stacks of the last windowSec seconds
+ *   - when a task runs longer than taskLatencyThresholdMs, the executor writes the stacks of the task thread
+ *     for the duration of the task
+ *   --conf spark.pyroscope.local.dir -> default <java.io.tmpdir>/spark-profiles, output directory
+ *   --conf spark.pyroscope.local.maxSizeMB -> default 64, size of the on-disk JFR ring buffer
+ *   --conf spark.pyroscope.local.maxAgeSec -> default 900, maximum age of the events in the ring buffer
+ *   --conf spark.pyroscope.local.samplingIntervalMs -> default 20, sampling period of the execution samples
+ *   --conf spark.pyroscope.local.taskLatencyThresholdMs -> default 0 (disabled), flush the profile of slower tasks
+ *   --conf spark.pyroscope.local.minFlushIntervalMs -> default 60000, minimum interval between task-triggered flushes
+ *   --conf spark.pyroscope.local.maxStacks -> default 5000, number of distinct stacks kept, the heaviest
+ *   --conf spark.pyroscope.local.sendToDriver -> default true, also send the collapsed stacks to the driver,
+ *     written in the driver output directory
+ *   --conf spark.pyroscope.local.maxFiles -> default 100, maximum number of collapsed files kept in the output directory,
+ *     the oldest are deleted first
+ *   --conf spark.pyroscope.local.maxTotalMB -> default 256, maximum size of the collapsed files in the output directory
+ *   --conf spark.pyroscope.local.deleteOnStop -> default false, delete the collapsed files written by the executor
+ *     when it stops, for example when they are sent to the driver
 */
 class PyroscopePlugin extends SparkPlugin {
 
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
   // Return the plugin's driver-side component.
+  // It replies to the executor polls with the latest settings and flush request and collects the local profiles
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var dir: File = _
+      var conf: SparkConf = _
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        conf = myContext.conf
+        dir = PyroscopePlugin.localDir(conf)
         Map.empty[String, String].asJava
       }
+
+      override def receive(message: AnyRef): AnyRef = {
+        message match {
+          case _: PyroscopePlugin.Poll =>
+            PyroscopePlugin.Directives(PyroscopePlugin.settings.get, PyroscopePlugin.flushRequest.get)
+          case flushed: PyroscopePlugin.Flushed =>
+            val output = new File(dir, flushed.name + ".collapsed")
+            LocalProfiler.write(flushed.collapsed, output)
+            LocalProfiler.retain(dir, PyroscopePlugin.localMaxFiles(conf), PyroscopePlugin.localMaxBytes(conf), output)
+            null
+          case _ =>
+            logger.warn(s"Unexpected message: $message")
+            null
+        }
+      }
     }
   }
 
@@ -36,40 +105,321 @@ class PyroscopePlugin extends SparkPlugin {
   // This implements an executor plugin to set up the configuration for Pyroscope
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin() {
+      var profiler: PyroscopePlugin.ExecutorProfiler = _
+
       override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
+        profiler = new PyroscopePlugin.ExecutorProfiler(myContext)
+        profiler.start()
+      }
+
+      override def onTaskStart(): Unit = {
+        profiler.taskStarted()
+      }
+
+      override def onTaskSucceeded(): Unit = {
+        profiler.taskEnded()
+      }
+
+      override def onTaskFailed(failureReason: org.apache.spark.TaskFailedReason): Unit = {
+        profiler.taskEnded()
+      }
+
+      override def shutdown(): Unit = {
+        if (profiler != null) {
+          profiler.stop()
+        }
+      }
+    }
+  }
+
+}
+
+object PyroscopePlugin {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  // Message from the executors to the driver, asking for the latest settings and flush request
+  case class Poll(executorId: String)
+  // Event type and sampling interval set at runtime, eventType null for the configured ones
+  case class ProfilingSettings(settingsId: Long, eventType: String, samplingIntervalMs: Long)
+  // Flush the profile of the last windowMs, local mode only
+  case class FlushRequest(requestId: Long, windowMs: Long)
+  // Reply of the driver to the polls
+  case class Directives(settings: ProfilingSettings, flushRequest: FlushRequest)
+  // Message from the executors to the driver with the collapsed stacks of a flush, local mode only
+  case class Flushed(executorId: String, name: String, collapsed: Array[Byte])
+
+  // Latest settings and flush request, on the driver, returned to the executor polls
+  private val settings = new AtomicReference(ProfilingSettings(0L, null, 0L))
+  private val flushRequest = new AtomicReference(FlushRequest(0L, 0L))
+
+  /**
+   * Switch the event type, and optionally the sampling interval, of all the executors.
+   * Call this on the driver, for example from spark-shell to profile the allocations of the next stage:
+   *   ch.cern.PyroscopePlugin.setProfiling("ALLOC")
+   * The executors apply the settings at their next poll, enable the polls with spark.pyroscope.runtimeSettings=true.
+   *
+   * @param eventType ITIMER, CPU, WALL, ALLOC or LOCK
+   * @param samplingIntervalMs sampling interval, 0 to keep the configured one
+   * @return the settings id
+   */
+  def setProfiling(eventType: String, samplingIntervalMs: Long = 0L): Long = {
+    pyroscopeEventType(eventType)
+    settings.updateAndGet(previous =>
+      ProfilingSettings(previous.settingsId + 1, eventType.toUpperCase, samplingIntervalMs)).settingsId
+  }
+
+  /**
+   * Go back to the event type and sampling interval configured at startup on all the executors.
+   *
+   * @return the settings id
+   */
+  def resetProfiling(): Long = {
+    settings.updateAndGet(previous => ProfilingSettings(previous.settingsId + 1, null, 0L)).settingsId
+  }
+
+  /**
+   * Request all the executors to write the profile of the last windowSec seconds, local mode only.
+   * Call this on the driver, for example from spark-shell: ch.cern.PyroscopePlugin.requestFlush(120)
+   * The executors pick up the request at their next poll.
+   *
+   * @return the request id, part of the output file names
+   */
+  def requestFlush(windowSec: Long = 60L): Long = {
+    flushRequest.updateAndGet(previous => FlushRequest(previous.requestId + 1, windowSec * 1000L)).requestId
+  }
+
+  def pyroscopeEventType(eventType: String): EventType = eventType.toUpperCase match {
+    case "ITIMER" => EventType.ITIMER
+    case "CPU" => EventType.CPU
+    case "WALL" => EventType.WALL
+    case "ALLOC" => EventType.ALLOC
+    case "LOCK" => EventType.LOCK
+    case _ => throw new IllegalArgumentException(s"Invalid event type: $eventType")
+  }
+
+  def isLocalMode(conf: SparkConf): Boolean = {
+    conf.get("spark.pyroscope.mode", "push").toLowerCase match {
+      case "push" => false
+      case "local" => true
+      case mode => throw new IllegalArgumentException(s"Invalid mode: $mode, possible values push, local")
+    }
+  }
+
+  def localDir(conf: SparkConf): File = new File(conf.get("spark.pyroscope.local.dir",
+    new File(System.getProperty("java.io.tmpdir"), "spark-profiles").getPath))
+
+  def localMaxFiles(conf: SparkConf): Int = conf.getInt("spark.pyroscope.local.maxFiles", LocalProfiler.defaultMaxFiles)
 
-        // Pyroscope server URL, match the URL with your Pyroscope runtime
-        val pyroscopeServerUrl = myContext.conf.get("spark.pyroscope.server", "http://localhost:4040")
+  def localMaxBytes(conf: SparkConf): Long =
+    conf.getLong("spark.pyroscope.local.maxTotalMB", LocalProfiler.defaultMaxBytes / 1024 / 1024) * 1024 * 1024
 
-        // this will be used for the application name
-        // note, in local mode spark.app.id in null, we use "local" to handle the case
-        val pyroscopeApplicationName = myContext.conf.get("spark.pyroscope.applicationName",
-          myContext.conf.get("spark.app.id", "local"))
+  // Pyroscope labels of the samples of a task thread, in addition to executorId and hostname
+  def taskLabelValues(taskContext: TaskContext): Map[String, String] = {
+    Map("stageId" -> taskContext.stageId().toString) ++
+      Option(taskContext.getLocalProperty("spark.jobGroup.id")).map("jobGroup" -> _) ++
+      Option(taskContext.getLocalProperty("spark.sql.execution.id")).map("sqlExecutionId" -> _)
+  }
+
+  // Start time, ids and Pyroscope labels of the task running on a thread
+  private case class TaskState(startMs: Long, stageId: Int, stageAttemptId: Int, taskAttemptId: Long,
+                               labels: ScopedContext)
+
+  // Executor side: profiler in push or local mode, task labels, polls of the driver
+  class ExecutorProfiler(myContext: PluginContext) {
 
-        val executorId = myContext.executorID
-        val localHostname = InetAddress.getLocalHost.getHostName
+    private val conf = myContext.conf
+    private val executorId = myContext.executorID
+    private val appId = conf.get("spark.app.id", "local")
+    private val localMode = isLocalMode(conf)
+    private val taskLabels = !localMode && conf.getBoolean("spark.pyroscope.taskLabels", true)
+    // the polls are only needed to pick up the flush requests (local mode) and the runtime settings
+    private val pollIntervalMs = conf.getLong("spark.pyroscope.pollIntervalMs",
+      if (localMode || conf.getBoolean("spark.pyroscope.runtimeSettings", false)) 5000L else 0L)
+    private val taskLatencyThresholdMs =
+      if (localMode) conf.getLong("spark.pyroscope.local.taskLatencyThresholdMs", 0L) else 0L
+    private val minFlushIntervalMs = conf.getLong("spark.pyroscope.local.minFlushIntervalMs", 60000L)
+    private val sendToDriver = conf.getBoolean("spark.pyroscope.local.sendToDriver", true)
+
+    // configured event type and sampling interval, 0 for the agent default
+    private val eventType = conf.get("spark.pyroscope.eventType", "ITIMER")
+    private val samplingIntervalMs =
+      if (localMode) conf.getLong("spark.pyroscope.local.samplingIntervalMs", 20L)
+      else conf.getLong("spark.pyroscope.samplingIntervalMs", 0L)
+
+    private val localProfiler = if (localMode) {
+      Some(new LocalProfiler(localDir(conf), eventType, samplingIntervalMs,
+        conf.getLong("spark.pyroscope.local.maxSizeMB", 64L) * 1024 * 1024,
+        Duration.ofSeconds(conf.getLong("spark.pyroscope.local.maxAgeSec", 900L)),
+        conf.getInt("spark.pyroscope.local.maxStacks", 5000),
+        localMaxFiles(conf), localMaxBytes(conf), conf.getBoolean("spark.pyroscope.local.deleteOnStop", false)))
+    } else {
+      None
+    }
 
-        // this sets the event type to profile, default ITIMER, possible values ITIMER, CPU, WALL, ALLOC, LOCK
-        val pyroscopeEventType = myContext.conf.get("spark.pyroscope.eventType", "ITIMER")
+    // polls, reconfigurations and flushes run on this thread, not on the task threads
+    private val scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+      override def newThread(r: Runnable): Thread = {
+        val thread = new Thread(r, "cern-spark-plugin-profiler")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+
+    private val taskState = new ThreadLocal[TaskState]
+    // event type and sampling interval in use, changed by the runtime settings
+    @volatile private var active = (eventType.toUpperCase, samplingIntervalMs)
+    private var lastSettingsId = -1L
+    private var lastRequestId = -1L
+    @volatile private var lastTriggeredFlushMs = 0L
+
+    def start(): Unit = {
+      localProfiler match {
+        case Some(profiler) => profiler.start()
+        case None => startPyroscopeAgent(eventType, samplingIntervalMs)
+      }
+      if (pollIntervalMs > 0) {
+        scheduler.scheduleWithFixedDelay(new Runnable {
+          override def run(): Unit = {
+            try {
+              poll()
+            } catch {
+              case NonFatal(e) => logger.warn("Failed to poll the driver for profiling directives", e)
+            }
+          }
+        }, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS)
+      }
+    }
+
+    def stop(): Unit = {
+      scheduler.shutdownNow()
+      localProfiler.foreach(_.stop())
+    }
+
+    private def startPyroscopeAgent(eventType: String, samplingIntervalMs: Long): Unit = {
+
+      // Pyroscope server URL, match the URL with your Pyroscope runtime
+      val pyroscopeServerUrl = conf.get("spark.pyroscope.server", "http://localhost:4040")
+
+      // this will be used for the application name
+      // note, in local mode spark.app.id in null, we use "local" to handle the case
+      val pyroscopeApplicationName = conf.get("spark.pyroscope.applicationName", appId)
+
+      val localHostname = InetAddress.getLocalHost.getHostName
+
+      val builder = new Config.Builder()
+        .setApplicationName(pyroscopeApplicationName)
+        .setProfilingEvent(pyroscopeEventType(eventType))
+        .setFormat(Format.JFR)
+        .setServerAddress(pyroscopeServerUrl)
+        .setLabels(Map("executorId" -> executorId.toString, "hostname" -> localHostname).asJava)
+      if (samplingIntervalMs > 0) {
+        builder.setProfilingInterval(Duration.ofMillis(samplingIntervalMs))
+      }
+      PyroscopeAgent.start(builder.build())
+    }
 
-        val eventType = pyroscopeEventType.toUpperCase match {
-          case "ITIMER" => EventType.ITIMER
-          case "CPU" => EventType.CPU
-          case "WALL" => EventType.WALL
-          case "ALLOC" => EventType.ALLOC
-          case "LOCK" => EventType.LOCK
-          case _ => throw new IllegalArgumentException(s"Invalid event type: $pyroscopeEventType")
+    // the first poll only records the current ids: flush requests made before the executor started are skipped,
+    // settings made before are applied
+    private[cern] def poll(): Unit = {
+      myContext.ask(Poll(executorId)) match {
+        case Directives(settings, request) =>
+          if (settings.settingsId != lastSettingsId) {
+            if (settings.settingsId != 0L) {
+              reconfigure(settings)
+            }
+            lastSettingsId = settings.settingsId
+          }
+          if (request.requestId != lastRequestId) {
+            if (lastRequestId != -1L) {
+              val now = Instant.now()
+              flush(now.minusMillis(request.windowMs), now, -1L, s"profile-$appId-$executorId-request${request.requestId}")
+            }
+            lastRequestId = request.requestId
+          }
+        case _ =>
+      }
+    }
+
+    private def reconfigure(settings: ProfilingSettings): Unit = {
+      val newEventType = Option(settings.eventType).getOrElse(eventType)
+      val newSamplingIntervalMs = if (settings.samplingIntervalMs > 0) settings.samplingIntervalMs else samplingIntervalMs
+      localProfiler match {
+        case Some(profiler) =>
+          profiler.reconfigure(newEventType, newSamplingIntervalMs)
+        case None =>
+          // the agent cannot switch event type while running, restart it, the profile being collected is dropped
+          PyroscopeAgent.stop()
+          startPyroscopeAgent(newEventType, newSamplingIntervalMs)
+          logger.info(s"Pyroscope agent restarted, event type $newEventType")
+      }
+      active = (newEventType.toUpperCase, newSamplingIntervalMs)
+    }
+
+    private[cern] def activeSettings: (String, Long) = active
+
+    // called on the task thread, with the TaskContext set
+    def taskStarted(): Unit = taskStarted(TaskContext.get())
+
+    private[cern] def taskStarted(taskContext: TaskContext): Unit = {
+      if ((taskLabels || taskLatencyThresholdMs > 0) && taskContext != null) {
+        // a task that ended without taskEnded, for example killed, must not leave its labels on the thread
+        closeLabels(taskState.get)
+        val labels = if (taskLabels) new ScopedContext(new LabelsSet(taskLabelValues(taskContext).asJava)) else null
+        taskState.set(TaskState(System.currentTimeMillis(), taskContext.stageId(),
+          taskContext.stageAttemptNumber(), taskContext.taskAttemptId(), labels))
+      }
+    }
+
+    private def closeLabels(state: TaskState): Unit = {
+      if (state != null && state.labels != null) {
+        state.labels.close()
+      }
+    }
+
+    // labels of the task running on the calling thread
+    private[cern] def currentScopedContext: Option[ScopedContext] =
+      Option(taskState.get).flatMap(state => Option(state.labels))
+
+    private[cern] def currentLabels: Map[String, String] = {
+      val values = scala.collection.mutable.LinkedHashMap.empty[String, String]
+      currentScopedContext.foreach(_.forEachLabel((name, value) => values.put(name, value)))
+      values.toMap
+    }
+
+    // called on the task thread, when the task ends, the flush of a slow task runs asynchronously
+    def taskEnded(): Unit = {
+      val state = taskState.get
+      if (state != null) {
+        taskState.remove()
+        closeLabels(state)
+        val now = System.currentTimeMillis()
+        if (taskLatencyThresholdMs > 0 && now - state.startMs >= taskLatencyThresholdMs &&
+          now - lastTriggeredFlushMs >= minFlushIntervalMs) {
+          lastTriggeredFlushMs = now
+          val threadId = Thread.currentThread.getId
+          scheduler.execute(new Runnable {
+            override def run(): Unit = {
+              flush(Instant.ofEpochMilli(state.startMs), Instant.ofEpochMilli(now), threadId,
+                s"profile-$appId-$executorId-stage${state.stageId}.${state.stageAttemptId}" +
+                  s"-task${state.taskAttemptId}")
+            }
+          })
         }
+      }
+    }
 
-        PyroscopeAgent.start(
-          new Config.Builder()
-            .setApplicationName(pyroscopeApplicationName)
-            .setProfilingEvent(eventType)
-            .setFormat(Format.JFR)
-            .setServerAddress(pyroscopeServerUrl)
-            .setLabels(Map("executorId" -> executorId.toString, "hostname" -> localHostname).asJava)
-            .build()
-        )
+    private def flush(from: Instant, to: Instant, threadId: Long, name: String): Unit = {
+      localProfiler.foreach { profiler =>
+        try {
+          profiler.flush(from, to, threadId, name).foreach { case (stacks, _) =>
+            if (sendToDriver) {
+              myContext.send(Flushed(executorId, name, LocalProfiler.format(stacks).getBytes(StandardCharsets.UTF_8)))
+            }
+          }
+        } catch {
+          case NonFatal(e) => logger.warn(s"Failed to flush the profile $name", e)
+        }
       }
     }
   }
@@ -1,12 +1,37 @@
 package ch.cern
 
+import java.io.{BufferedReader, InputStream, InputStreamReader}
+import java.nio.charset.StandardCharsets
 import java.util.{Map => JMap}
+import java.util.concurrent.{ConcurrentLinkedQueue, CountDownLatch, ExecutorService, Executors,
+  ScheduledExecutorService, ScheduledFuture, ThreadFactory, TimeUnit}
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.TaskContext
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
-import sys.process._
+import org.slf4j.LoggerFactory
 
-// Basic example of Spark Executor Plugin in Scala
-// you can use this to execute a script
-// Parameter: spark.cernSparkPlugin.command
+// Run OS commands or scripts at executor startup, for example to warm local caches
+// Parameters:
+//   spark.cernSparkPlugin.command, the command to run, default: /usr/bin/touch /tmp/plugin.txt
+//     the command is split on whitespace, single or double quotes group words into one argument
+//   spark.cernSparkPlugin.commands.<name>, additional named commands, when set the default command is not run
+//   spark.cernSparkPlugin.commandMode (default sync), sync runs the commands one after the other in the plugin init,
+//     which delays the executor registration, async runs them in a thread pool and returns immediately
+//   spark.cernSparkPlugin.commandThreads (default 2), size of the thread pool of the async mode
+//   spark.cernSparkPlugin.commandTimeoutMs (default 600000), a command still running after the timeout is killed,
+//     with the processes it started, 0 for no timeout,
+//     spark.cernSparkPlugin.commands.<name>.timeoutMs overrides it for a named command
+//   spark.cernSparkPlugin.commandMaxOutputBytes (default 65536), stdout and stderr of each command are captured
+//     up to this size, in bytes of UTF-8, and logged when the command completes
+//   spark.cernSparkPlugin.commandOutputWaitMs (default 5000), time to wait for the end of the output after the command
+//     exits, a background process started by the command can keep its stdout or stderr open
+//   spark.cernSparkPlugin.commandRequired, spark.cernSparkPlugin.commands.<name>.required (default false),
+//     in async mode the tasks wait for the completion of the required commands before they start
 class RunOSCommandPlugin extends SparkPlugin {
 
   val defaultCommand = "/usr/bin/touch /tmp/plugin.txt"
@@ -19,19 +44,33 @@ class RunOSCommandPlugin extends SparkPlugin {
   override def driverPlugin(): DriverPlugin = null
 
   // Return the plugin's executor-side component.
-  // This is an example plugin: run a configurable OS command at executor startup
+  // Run the configured OS commands at executor startup
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin() {
+      var runner: RunOSCommandPlugin.Runner = _
 
       override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
-        // Run the OS command, this is an example, customize and add error and stdout management as needed
-        val command = myContext.conf.get("spark.cernSparkPlugin.command", defaultCommand)
-        val process = Process(command).lineStream
-        RunOSCommandPlugin.numSuccessfulPlugins += 1
+        val commands = RunOSCommandPlugin.commands(myContext, defaultCommand)
+        runner = new RunOSCommandPlugin.Runner(myContext, commands)
+        runner.registerMetrics(myContext.metricRegistry)
+        if (myContext.conf.get("spark.cernSparkPlugin.commandMode", "sync") == "async") {
+          runner.startAsync(myContext.conf.getInt("spark.cernSparkPlugin.commandThreads", 2))
+        } else {
+          runner.runSync()
+        }
+        RunOSCommandPlugin.successfulPlugins.incrementAndGet()
+      }
+
+      // runs on the task thread before the task, waits for the required commands the first time only
+      override def onTaskStart(): Unit = {
+        runner.awaitRequired()
       }
 
       override def shutdown(): Unit = {
-        RunOSCommandPlugin.numSuccessfulTerminations += 1
+        if (runner != null) {
+          runner.stop()
+        }
+        RunOSCommandPlugin.successfulTerminations.incrementAndGet()
       }
     }
   }
@@ -41,6 +80,281 @@ class RunOSCommandPlugin extends SparkPlugin {
 // Additional code to demonstrate the use of an associated object
 // for example to implement helper value stores and registries.
 object RunOSCommandPlugin {
-  var numSuccessfulPlugins : Int = 0
-  var numSuccessfulTerminations: Int = 0
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  private[cern] val successfulPlugins = new AtomicInteger(0)
+  private[cern] val successfulTerminations = new AtomicInteger(0)
+  private val completed = new ConcurrentLinkedQueue[CommandResult]()
+
+  def numSuccessfulPlugins: Int = successfulPlugins.get
+  def numSuccessfulTerminations: Int = successfulTerminations.get
+
+  // Results of the commands completed in this JVM, including the captured output
+  def results: Seq[CommandResult] = completed.asScala.toList
+
+  case class Command(name: String, command: String, timeoutMs: Long, required: Boolean)
+
+  // exitCode is -1 when the command could not be started
+  case class CommandResult(name: String, exitCode: Int, durationMs: Long, timedOut: Boolean,
+                           stdout: String, stderr: String) {
+    def succeeded: Boolean = exitCode == 0 && !timedOut
+  }
+
+  // The commands to run, the named commands sorted by name, else the single command
+  def commands(myContext: PluginContext, defaultCommand: String): Seq[Command] = {
+    val conf = myContext.conf
+    val timeoutMs = conf.getLong("spark.cernSparkPlugin.commandTimeoutMs", 600000L)
+    val named = conf.getAllWithPrefix("spark.cernSparkPlugin.commands.").toMap
+    val namedCommands = named.keys.filterNot(_.contains(".")).toSeq.sorted.map { name =>
+      Command(name, named(name),
+        named.get(name + ".timeoutMs").map(_.toLong).getOrElse(timeoutMs),
+        named.get(name + ".required").exists(_.toBoolean))
+    }
+    if (namedCommands.nonEmpty && !conf.contains("spark.cernSparkPlugin.command")) {
+      namedCommands
+    } else {
+      Command("command", conf.get("spark.cernSparkPlugin.command", defaultCommand), timeoutMs,
+        conf.getBoolean("spark.cernSparkPlugin.commandRequired", false)) +: namedCommands
+    }
+  }
+
+  private def daemonFactory(name: String): ThreadFactory = new ThreadFactory {
+    private val count = new AtomicInteger(0)
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, name + "-" + count.incrementAndGet())
+      thread.setDaemon(true)
+      thread
+    }
+  }
+
+  // Split a command line on whitespace, the quoted parts are kept in one argument, without the quotes
+  private[cern] def tokenize(command: String): Seq[String] = {
+    val tokens = Seq.newBuilder[String]
+    val token = new java.lang.StringBuilder
+    var inToken = false
+    var quote = 0.toChar
+    command.foreach { c =>
+      if (quote != 0) {
+        if (c == quote) quote = 0.toChar else token.append(c)
+      } else if (c == '"' || c == '\'') {
+        quote = c
+        inToken = true
+      } else if (Character.isWhitespace(c)) {
+        if (inToken) {
+          tokens += token.toString
+          token.setLength(0)
+          inToken = false
+        }
+      } else {
+        token.append(c)
+        inToken = true
+      }
+    }
+    if (inToken) {
+      tokens += token.toString
+    }
+    tokens.result()
+  }
+
+  // Kill a process and the processes it started, the descendants first so that they are found through their parent
+  private[cern] def destroyTree(process: ProcessHandle): Unit = {
+    process.descendants().forEach(p => p.destroyForcibly())
+    process.destroyForcibly()
+  }
+
+  // Keeps the first maxBytes of an output stream, in bytes of UTF-8, counts the rest
+  private[cern] class BoundedOutput(maxBytes: Int) {
+    private val builder = new java.lang.StringBuilder
+    private var bytes = 0L
+    private var dropped = 0L
+
+    def append(line: String): Unit = synchronized {
+      val size = line.getBytes(StandardCharsets.UTF_8).length + 1
+      if (bytes + size <= maxBytes) {
+        builder.append(line).append('\n')
+        bytes += size
+      } else {
+        dropped += size
+      }
+    }
+
+    // Read the lines of a stream till its end, on a daemon thread
+    def pump(stream: InputStream, name: String): Thread = {
+      val thread = new Thread(new Runnable {
+        override def run(): Unit = {
+          val reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))
+          try {
+            var line = reader.readLine()
+            while (line != null) {
+              append(line)
+              line = reader.readLine()
+            }
+          } catch {
+            // the stream is closed when the process is killed
+            case NonFatal(_) =>
+          } finally {
+            reader.close()
+          }
+        }
+      }, name)
+      thread.setDaemon(true)
+      thread.start()
+      thread
+    }
+
+    override def toString: String = synchronized {
+      if (dropped > 0) builder.toString + s"... ($dropped more bytes not captured)" else builder.toString
+    }
+  }
+
+  // Runs the commands of one executor and exposes their state as metrics
+  class Runner(myContext: PluginContext, commands: Seq[Command]) {
+
+    private val maxOutputBytes = myContext.conf.getInt("spark.cernSparkPlugin.commandMaxOutputBytes", 65536)
+    private val outputWaitMs = myContext.conf.getLong("spark.cernSparkPlugin.commandOutputWaitMs", 5000L)
+    private val exitCodes = Array.fill(commands.length)(new AtomicInteger(-1))
+    private val startTimes = Array.fill(commands.length)(new AtomicLong(0L))
+    private val durations = Array.fill(commands.length)(new AtomicLong(-1L))
+    private val timedOut = Array.fill(commands.length)(new AtomicInteger(0))
+    private val succeeded = new AtomicInteger(0)
+    private val failed = new AtomicInteger(0)
+    private val taskWaitMs = new AtomicLong(0L)
+    private val required = new CountDownLatch(commands.count(_.required))
+    @volatile private var requiredDone = false
+    private val running = new ConcurrentLinkedQueue[java.lang.Process]()
+    private var pool: Option[ExecutorService] = None
+
+    private lazy val timeouts: ScheduledExecutorService =
+      Executors.newSingleThreadScheduledExecutor(daemonFactory("cern-spark-plugin-os-command-timeout"))
+
+    def registerMetrics(metricRegistry: MetricRegistry): Unit = {
+      commands.zipWithIndex.foreach { case (command, i) =>
+        // -1 while running or when the command could not be started
+        metricRegistry.register(MetricRegistry.name("command", command.name, "ExitCode"), new Gauge[Int] {
+          override def getValue: Int = exitCodes(i).get
+        })
+        // elapsed time so far while running
+        metricRegistry.register(MetricRegistry.name("command", command.name, "DurationMs"), new Gauge[Long] {
+          override def getValue: Long = {
+            val duration = durations(i).get
+            val start = startTimes(i).get
+            if (duration >= 0) duration else if (start > 0) System.currentTimeMillis() - start else 0L
+          }
+        })
+        metricRegistry.register(MetricRegistry.name("command", command.name, "TimedOut"), new Gauge[Int] {
+          override def getValue: Int = timedOut(i).get
+        })
+      }
+      metricRegistry.register(MetricRegistry.name("CommandsSucceeded"), new Gauge[Int] {
+        override def getValue: Int = succeeded.get
+      })
+      metricRegistry.register(MetricRegistry.name("CommandsFailed"), new Gauge[Int] {
+        override def getValue: Int = failed.get
+      })
+      // time the tasks waited for the required commands
+      metricRegistry.register(MetricRegistry.name("TaskStartWaitMs"), new Gauge[Long] {
+        override def getValue: Long = taskWaitMs.get
+      })
+    }
+
+    def runSync(): Unit = {
+      commands.indices.foreach(run)
+      requiredDone = true
+    }
+
+    def startAsync(threads: Int): Unit = {
+      val executor = Executors.newFixedThreadPool(math.max(threads, 1), daemonFactory("cern-spark-plugin-os-command"))
+      pool = Some(executor)
+      requiredDone = required.getCount == 0
+      commands.indices.foreach { i =>
+        executor.execute(new Runnable {
+          override def run(): Unit = Runner.this.run(i)
+        })
+      }
+    }
+
+    def awaitRequired(): Unit = {
+      if (!requiredDone) {
+        val startMs = System.currentTimeMillis()
+        required.await()
+        requiredDone = true
+        val waitMs = System.currentTimeMillis() - startMs
+        taskWaitMs.addAndGet(waitMs)
+        if (waitMs > 0) {
+          val task = Option(TaskContext.get()).map(_.taskAttemptId().toString).getOrElse("")
+          logger.info(s"Task $task waited $waitMs ms for the required startup commands")
+        }
+      }
+    }
+
+    private def run(i: Int): Unit = {
+      val command = commands(i)
+      val stdout = new BoundedOutput(maxOutputBytes)
+      val stderr = new BoundedOutput(maxOutputBytes)
+      val startMs = System.currentTimeMillis()
+      startTimes(i).set(startMs)
+      var exitCode = -1
+      try {
+        val process = new java.lang.ProcessBuilder(tokenize(command.command): _*).start()
+        running.add(process)
+        process.getOutputStream.close()
+        val pumps = Seq(stdout.pump(process.getInputStream, s"cern-spark-plugin-os-command-${command.name}-stdout"),
+          stderr.pump(process.getErrorStream, s"cern-spark-plugin-os-command-${command.name}-stderr"))
+        val timeout: Option[ScheduledFuture[_]] = if (command.timeoutMs > 0) {
+          Some(timeouts.schedule(new Runnable {
+            override def run(): Unit = {
+              timedOut(i).set(1)
+              destroyTree(process.toHandle)
+            }
+          }, command.timeoutMs, TimeUnit.MILLISECONDS))
+        } else {
+          None
+        }
+        try {
+          exitCode = process.waitFor()
+        } finally {
+          timeout.foreach(_.cancel(false))
+          running.remove(process)
+        }
+        // a background process started by the command can keep the output open after the command exits,
+        // the JDK closes the pipes when the process exits but not while a read is blocked on them
+        val outputDeadline = System.currentTimeMillis() + outputWaitMs
+        pumps.foreach(pump => pump.join(math.max(outputDeadline - System.currentTimeMillis(), 1L)))
+        if (pumps.exists(_.isAlive)) {
+          stderr.append(s"... (output still open $outputWaitMs ms after the command exited, not captured further)")
+        }
+      } catch {
+        case NonFatal(e) =>
+          stderr.append(e.toString)
+      } finally {
+        val result = CommandResult(command.name, exitCode, System.currentTimeMillis() - startMs, timedOut(i).get == 1,
+          stdout.toString, stderr.toString)
+        exitCodes(i).set(exitCode)
+        durations(i).set(result.durationMs)
+        completed.add(result)
+        if (result.succeeded) {
+          succeeded.incrementAndGet()
+          logger.info(s"Command ${command.name} completed in ${result.durationMs} ms: ${command.command}\n" +
+            s"stdout:\n${result.stdout}")
+        } else {
+          failed.incrementAndGet()
+          val reason = if (result.timedOut) s"timed out after ${command.timeoutMs} ms" else s"exit code $exitCode"
+          logger.warn(s"Command ${command.name} failed ($reason) in ${result.durationMs} ms: ${command.command}\n" +
+            s"stdout:\n${result.stdout}\nstderr:\n${result.stderr}")
+        }
+        if (command.required) {
+          required.countDown()
+        }
+      }
+    }
+
+    // Kill the commands still running
+    def stop(): Unit = {
+      pool.foreach(_.shutdownNow())
+      running.asScala.foreach(process => destroyTree(process.toHandle))
+      timeouts.shutdownNow()
+    }
+  }
+
 }
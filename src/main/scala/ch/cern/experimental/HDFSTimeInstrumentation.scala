@@ -3,47 +3,141 @@ package ch.cern.experimental
 import java.util.{Map => JMap}
 
 import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.slf4j.LoggerFactory
 
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 import org.apache.spark.SparkContext
 
+import ch.cern.instrumentation.SpaceSavingTopK
+import ch.cern.util.{HistogramGauges, MetricSnapshot, RateSampler}
+
 // Custom instrumentation of HDFS I/0 with time measurements, needs custom hdfs client
+// The read calls recorded with the DataNode and network distance are also split by distance class
+// and ranked by DataNode, see org.apache.hadoop.hdfs.HDFSTimeInstrumentation.recordReadTime
+// --conf spark.cernSparkPlugin.hdfsTopDataNodes (default 5), number of DataNodes exported as gauges, per ranking
+// --conf spark.cernSparkPlugin.hdfsSlowDataNodeMinCalls (default 100), minimum read calls of a DataNode
+//        to be ranked by mean read time
 class HDFSTimeInstrumentation extends SparkPlugin {
 
-  // S3A metrics registration using Hadoop 2.7 API
-  def hdfsMetrics(metricRegistry: MetricRegistry): Unit= {
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
 
-    metricRegistry.register(MetricRegistry.name("HDFSReadTimeMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getTimeElapsedReadMusec
-      }
+  // suffixes of the distance classes, as in the HDFSMetrics read statistics
+  val distanceClasses = Seq(
+    org.apache.hadoop.hdfs.HDFSTimeInstrumentation.DISTANCE_LOCAL_HOST -> "LocalHost",
+    org.apache.hadoop.hdfs.HDFSTimeInstrumentation.DISTANCE_ONE_OR_TWO -> "DistanceOfOneOrTwo",
+    org.apache.hadoop.hdfs.HDFSTimeInstrumentation.DISTANCE_THREE_OR_FOUR -> "DistanceOfThreeOrFour",
+    org.apache.hadoop.hdfs.HDFSTimeInstrumentation.DISTANCE_FIVE_OR_LARGER -> "DistanceOfFiveOrLarger")
+
+  // the rankings are computed at most once per second, not once for each gauge of each rank,
+  // and published together: all the gauges of a rank, the Id included, read the same entry
+  @volatile private var rankings = HDFSTimeInstrumentation.DataNodeRankings(0L, Array.empty, Array.empty)
+  private var topDataNodes = 5
+  private var slowDataNodeMinCalls = 100L
+
+  private def currentRankings(): HDFSTimeInstrumentation.DataNodeRankings = synchronized {
+    val now = System.currentTimeMillis()
+    if (now - rankings.timeMs >= 1000L) {
+      val sketch = org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getDataNodeReadTime
+      rankings = HDFSTimeInstrumentation.DataNodeRankings(now,
+        sketch.top(topDataNodes), sketch.topByMeanWeight(topDataNodes, slowDataNodeMinCalls))
+    }
+    rankings
+  }
+
+  // The gauges of one rank of a ranking. They are computed on poll from the published rankings,
+  // not sampled by MetricSnapshot, which would read the values at a different time than the Id.
+  private def registerRank(metricRegistry: MetricRegistry, prefix: String,
+      entry: () => Option[SpaceSavingTopK.Entry]): Unit = {
+    // the id is a string, exported to the sinks that support it, such as JMX
+    metricRegistry.register(MetricRegistry.name(prefix + "Id"), new Gauge[String] {
+      override def getValue: String = entry().map(_.getKey).getOrElse("")
     })
+    def register(name: String, value: SpaceSavingTopK.Entry => Long): Unit = {
+      metricRegistry.register(MetricRegistry.name(prefix + name), new Gauge[Long] {
+        override def getValue: Long = entry().map(value).getOrElse(0L)
+      })
+    }
+    register("ReadTimeMuSec", _.getWeight)
+    register("ReadTimeErrorMuSec", _.getError)
+    register("ReadCalls", _.getCalls)
+    register("BytesRead", _.getBytes)
+    register("MeanReadTimeMuSec", _.getMeanWeight)
+  }
 
-    metricRegistry.register(MetricRegistry.name("HDFSCPUTimeDuringReadMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getCPUTimeDuringReadMusec
+  def dataNodeMetrics(metricRegistry: MetricRegistry): Unit = {
+    distanceClasses.foreach { case (distanceClass, suffix) =>
+      MetricSnapshot.registerGauge(metricRegistry, "HDFSReadTime" + suffix + "MuSec", () =>
+        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadTimeMusec(distanceClass))
+      MetricSnapshot.registerGauge(metricRegistry, "HDFSBytesRead" + suffix, () =>
+        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getBytesRead(distanceClass))
+      MetricSnapshot.registerGauge(metricRegistry, "HDFSReadCalls" + suffix, () =>
+        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadCalls(distanceClass))
+      HistogramGauges.register(metricRegistry, "HDFSReadTime" + suffix,
+        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadTimeHistogram(distanceClass))
+    }
+
+    // HDFSTopDataNode<N>: DataNodes by cumulative read time, HDFSTopDataNode1 is the DataNode where most time was spent
+    // HDFSSlowDataNode<N>: DataNodes by mean read time, among the DataNodes with at least slowDataNodeMinCalls calls
+    (0 until topDataNodes).foreach { rank =>
+      registerRank(metricRegistry, "HDFSTopDataNode" + (rank + 1), () => currentRankings().byReadTime.lift(rank))
+      registerRank(metricRegistry, "HDFSSlowDataNode" + (rank + 1), () => currentRankings().byMeanReadTime.lift(rank))
+    }
+  }
+
+  def logTopDataNodes(): Unit = {
+    val sketch = org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getDataNodeReadTime
+    def log(title: String, ranking: Array[SpaceSavingTopK.Entry]): Unit = {
+      if (ranking.nonEmpty) {
+        val lines = ranking.map(e => s"${e.getKey}: readTimeMuSec=${e.getWeight} (error ${e.getError}), " +
+          s"readCalls=${e.getCalls}, bytesRead=${e.getBytes}, meanReadTimeMuSec=${e.getMeanWeight}")
+        logger.info(title + ":\n  " + lines.mkString("\n  "))
       }
-    })
+    }
+    log("HDFS DataNodes by read time", sketch.top(topDataNodes))
+    log(s"HDFS DataNodes by mean read time, with at least $slowDataNodeMinCalls read calls",
+      sketch.topByMeanWeight(topDataNodes, slowDataNodeMinCalls))
+  }
+
+  // S3A metrics registration using Hadoop 2.7 API
+  def hdfsMetrics(metricRegistry: MetricRegistry, rates: Option[RateSampler]): Unit= {
+
+    MetricSnapshot.registerGauge(metricRegistry, "HDFSReadTimeMuSec", () =>
+      org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getTimeElapsedReadMusec)
 
-    metricRegistry.register(MetricRegistry.name("HDFSReadTimeMinusCPUMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
+    MetricSnapshot.registerGauge(metricRegistry, "HDFSCPUTimeDuringReadMuSec", () =>
+      org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getCPUTimeDuringReadMusec)
+
+    if (OpTimerSettings.cpuTimeMeasured) {
+      MetricSnapshot.registerGauge(metricRegistry, "HDFSReadTimeMinusCPUMuSec", () =>
         org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getTimeElapsedReadMusec -
-          org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getCPUTimeDuringReadMusec
-      }
-    })
+          org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getCPUTimeDuringReadMusec)
+    }
 
-    metricRegistry.register(MetricRegistry.name("HDFSBytesRead"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getBytesRead
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "HDFSBytesRead", () =>
+      org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getBytesRead)
 
-    metricRegistry.register(MetricRegistry.name("HDFSReadCalls"), new Gauge[Int] {
-      override def getValue: Int = {
-        org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadCalls
-      }
-    })
+    MetricSnapshot.registerIntGauge(metricRegistry, "HDFSReadCalls", () =>
+      org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadCalls)
+
+    // latency percentiles, filled by the record*Time calls of the instrumented client
+    HistogramGauges.register(metricRegistry, "HDFSReadTime",
+      org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "HDFSWriteTime",
+      org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getWriteTimeHistogram)
+
+    // read time by network distance and by DataNode
+    dataNodeMetrics(metricRegistry)
+
+    // CPU time measurement settings of the instrumented client timers
+    OpTimerSettings.register(metricRegistry, "HDFS")
 
+    // per-second throughput, when --conf spark.cernSparkPlugin.rateMetrics=true
+    rates.foreach { sampler =>
+      sampler.register(metricRegistry, "HDFSBytesReadPerSec",
+        () => org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getBytesRead)
+      sampler.register(metricRegistry, "HDFSReadCallsPerSec",
+        () => org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadCalls.toLong)
+    }
   }
 
   /**
@@ -53,10 +147,22 @@ class HDFSTimeInstrumentation extends SparkPlugin {
    */
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var metricRegistry: MetricRegistry = _
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
-        hdfsMetrics(myContext.metricRegistry)
+        metricRegistry = myContext.metricRegistry
+        OpTimerSettings.configure(myContext.conf)
+        topDataNodes = myContext.conf.getInt("spark.cernSparkPlugin.hdfsTopDataNodes", 5)
+        slowDataNodeMinCalls = myContext.conf.getLong("spark.cernSparkPlugin.hdfsSlowDataNodeMinCalls", 100L)
+        MetricSnapshot.get(myContext, myContext.metricRegistry)
+        hdfsMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         null
       }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
@@ -67,14 +173,34 @@ class HDFSTimeInstrumentation extends SparkPlugin {
    */
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin {
+      var metricRegistry: MetricRegistry = _
+
       override def init(myContext:PluginContext, extraConf:JMap[String, String])  = {
+        metricRegistry = myContext.metricRegistry
+        OpTimerSettings.configure(myContext.conf)
+        topDataNodes = myContext.conf.getInt("spark.cernSparkPlugin.hdfsTopDataNodes", 5)
+        slowDataNodeMinCalls = myContext.conf.getLong("spark.cernSparkPlugin.hdfsSlowDataNodeMinCalls", 100L)
         // Don't register executor plugin if in local mode
         if (! myContext.conf.get("spark.master").startsWith("local")) {
-          hdfsMetrics(myContext.metricRegistry)
+          MetricSnapshot.get(myContext, myContext.metricRegistry)
+          hdfsMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         }
       }
+
+      override def shutdown(): Unit = {
+        logTopDataNodes()
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
 }
 
+object HDFSTimeInstrumentation {
+
+  // The DataNode rankings computed at timeMs, see SpaceSavingTopK.top and SpaceSavingTopK.topByMeanWeight
+  case class DataNodeRankings(timeMs: Long, byReadTime: Array[SpaceSavingTopK.Entry],
+      byMeanReadTime: Array[SpaceSavingTopK.Entry])
+
+}
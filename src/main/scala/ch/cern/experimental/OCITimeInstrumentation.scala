@@ -2,61 +2,88 @@ package ch.cern.experimental
 
 import java.util.{Map => JMap}
 
-import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry
 
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 import org.apache.spark.SparkContext
 
+import ch.cern.util.{HistogramGauges, MetricSnapshot, RateSampler}
+
 // Custom instrumentation of OCI-HDFS connector I/0 with time measurements, needs a custom oci-dfs connector
 class OCITimeInstrumentation extends SparkPlugin {
 
   // S3A metrics registration using Hadoop 2.7 API
-  def ociMetrics(metricRegistry: MetricRegistry): Unit= {
+  def ociMetrics(metricRegistry: MetricRegistry, rates: Option[RateSampler]): Unit= {
 
-    metricRegistry.register(MetricRegistry.name("OCIReadTimeMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeElapsedReadMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "OCIReadTimeMuSec", () =>
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeElapsedReadMusec)
 
-    metricRegistry.register(MetricRegistry.name("OCISeekTimeMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeElapsedSeekMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "OCISeekTimeMuSec", () =>
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeElapsedSeekMusec)
 
-    metricRegistry.register(MetricRegistry.name("OCICPUTimeDuringReadMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringReadMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "OCICPUTimeDuringReadMuSec", () =>
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringReadMusec)
 
-    metricRegistry.register(MetricRegistry.name("OCICPUTimeDuringSeekMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringSeekMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "OCICPUTimeDuringSeekMuSec", () =>
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringSeekMusec)
 
-    metricRegistry.register(MetricRegistry.name("OCIReadTimeMinusCPUMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
+    if (OpTimerSettings.cpuTimeMeasured) {
+      MetricSnapshot.registerGauge(metricRegistry, "OCIReadTimeMinusCPUMuSec", () =>
         com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeElapsedReadMusec -
-          com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringReadMusec
-      }
-    })
+          com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringReadMusec)
 
-    metricRegistry.register(MetricRegistry.name("OCISeekTimeMinusCPUMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
+      MetricSnapshot.registerGauge(metricRegistry, "OCISeekTimeMinusCPUMuSec", () =>
         com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeElapsedSeekMusec -
-          com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringSeekMusec
-      }
-    })
+          com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCPUTimeDuringSeekMusec)
+    }
 
-    metricRegistry.register(MetricRegistry.name("OCIBytesRead"), new Gauge[Long] {
-      override def getValue: Long = {
-        com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getBytesRead
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "OCIBytesRead", () =>
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getBytesRead)
+
+    // latency percentiles, filled by the record*Time calls of the instrumented client
+    HistogramGauges.register(metricRegistry, "OCIReadTime",
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getReadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "OCISeekTime",
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getSeekTimeHistogram)
+
+    // write path, filled by the incrementBytesWritten, recordBlockUploadTime, recordPartUpload, recordUploadQueueWait
+    // and recordCloseTime calls of the instrumented client:
+    // small files are uploaded with a single PUT (block upload), larger files as the parts of a multipart upload,
+    // committed by the close call of the output stream
+    val writeCounters = Seq[(String, () => Long)](
+      "OCIBytesWritten" -> (() => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getBytesWritten),
+      "OCIBlockUploadTimeMuSec" -> (() => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeBlockUploadMusec),
+      "OCIBlocksUploaded" -> (() => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getBlocksUploaded),
+      "OCIPartUploadTimeMuSec" -> (() => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimePartUploadMusec),
+      "OCIPartsUploaded" -> (() => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getPartsUploaded),
+      "OCIUploadQueueWaitMuSec" -> (() => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeUploadQueueWaitMusec),
+      "OCICloseTimeMuSec" -> (() => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getTimeCloseMusec)
+    )
+    writeCounters.foreach { case (name, value) =>
+      MetricSnapshot.registerGauge(metricRegistry, name, value)
+    }
 
+    HistogramGauges.register(metricRegistry, "OCIBlockUploadTime",
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getBlockUploadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "OCIPartUploadTime",
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getPartUploadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "OCIPartSize",
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getPartSizeHistogram, "Bytes")
+    HistogramGauges.register(metricRegistry, "OCIUploadQueueWait",
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getUploadQueueWaitHistogram)
+    HistogramGauges.register(metricRegistry, "OCICloseTime",
+      com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getCloseTimeHistogram)
+
+    // CPU time measurement settings of the instrumented client timers
+    OpTimerSettings.register(metricRegistry, "OCI")
+
+    // per-second throughput, when --conf spark.cernSparkPlugin.rateMetrics=true
+    rates.foreach { sampler =>
+      sampler.register(metricRegistry, "OCIBytesReadPerSec",
+        () => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getBytesRead)
+      sampler.register(metricRegistry, "OCIBytesWrittenPerSec",
+        () => com.oracle.bmc.hdfs.store.BmcTimeInstrumentation.getBytesWritten)
+    }
   }
 
   /**
@@ -66,10 +93,20 @@ class OCITimeInstrumentation extends SparkPlugin {
    */
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var metricRegistry: MetricRegistry = _
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
-        ociMetrics(myContext.metricRegistry)
+        metricRegistry = myContext.metricRegistry
+        OpTimerSettings.configure(myContext.conf)
+        MetricSnapshot.get(myContext, myContext.metricRegistry)
+        ociMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         null
       }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
@@ -80,12 +117,22 @@ class OCITimeInstrumentation extends SparkPlugin {
    */
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin {
+      var metricRegistry: MetricRegistry = _
+
       override def init(myContext:PluginContext, extraConf:JMap[String, String])  = {
+        metricRegistry = myContext.metricRegistry
+        OpTimerSettings.configure(myContext.conf)
         // Don't register executor plugin if in local mode
         if (! myContext.conf.get("spark.master").startsWith("local")) {
-          ociMetrics(myContext.metricRegistry)
+          MetricSnapshot.get(myContext, myContext.metricRegistry)
+          ociMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         }
       }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
@@ -0,0 +1,45 @@
+package ch.cern.experimental
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.SparkConf
+
+import ch.cern.instrumentation.OpTimer
+
+// Configures the timers used by the instrumented filesystem clients (see ch.cern.instrumentation.OpTimer)
+// and exports the settings in use, so that the CPU time metrics can be interpreted:
+//   --conf spark.cernSparkPlugin.cpuTimeMode -> default THREAD_CPU_TIME, possible values THREAD_CPU_TIME, ELAPSED_ONLY
+//   --conf spark.cernSparkPlugin.cpuTimeSamplingRate -> default 1, measure the thread CPU time
+//     on 1 out of N calls and extrapolate the rest
+object OpTimerSettings {
+
+  def configure(conf: SparkConf): Unit = {
+    val modeName = conf.get("spark.cernSparkPlugin.cpuTimeMode", "THREAD_CPU_TIME")
+    val mode = modeName.toUpperCase match {
+      case "THREAD_CPU_TIME" => OpTimer.CpuClockMode.THREAD_CPU_TIME
+      case "ELAPSED_ONLY" => OpTimer.CpuClockMode.ELAPSED_ONLY
+      case _ => throw new IllegalArgumentException(s"Invalid CPU time mode: $modeName")
+    }
+    OpTimer.configure(mode, conf.getInt("spark.cernSparkPlugin.cpuTimeSamplingRate", 1))
+  }
+
+  // False in ELAPSED_ONLY mode: the CPU time counters stay at 0, the plugins then do not register
+  // the *MinusCPU gauges, which would only repeat the elapsed time
+  def cpuTimeMeasured: Boolean = OpTimer.getCpuClockMode == OpTimer.CpuClockMode.THREAD_CPU_TIME
+
+  // Registers <prefix>CPUTimeMode (1 for THREAD_CPU_TIME, 0 for ELAPSED_ONLY) and <prefix>CPUTimeSamplingRate
+  def register(metricRegistry: MetricRegistry, prefix: String): Unit = {
+
+    metricRegistry.register(MetricRegistry.name(prefix + "CPUTimeMode"), new Gauge[Int] {
+      override def getValue: Int = {
+        if (OpTimer.getCpuClockMode == OpTimer.CpuClockMode.THREAD_CPU_TIME) 1 else 0
+      }
+    })
+
+    metricRegistry.register(MetricRegistry.name(prefix + "CPUTimeSamplingRate"), new Gauge[Int] {
+      override def getValue: Int = {
+        OpTimer.getCpuSamplingRate
+      }
+    })
+  }
+
+}
@@ -2,55 +2,55 @@ package ch.cern.experimental
 
 import java.util.{Map => JMap}
 
-import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry
 
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 import org.apache.spark.SparkContext
 
+import ch.cern.util.{HistogramGauges, MetricSnapshot, RateSampler}
+
 // Custom instrumentation of Hadoop-XRootD connectore I/0 with time measurements
 class ROOTTimeInstrumentation extends SparkPlugin {
 
   // S3A metrics registration using Hadoop 2.7 API
-  def rootMetrics(metricRegistry: MetricRegistry): Unit= {
+  def rootMetrics(metricRegistry: MetricRegistry, rates: Option[RateSampler]): Unit= {
 
-    metricRegistry.register(MetricRegistry.name("ROOTBytesRead"), new Gauge[Long] {
-      override def getValue: Long = {
-        ch.cern.eos.XRootDInstrumentation.getBytesRead
-        }
-      })
+    MetricSnapshot.registerGauge(metricRegistry, "ROOTBytesRead", () =>
+      ch.cern.eos.XRootDInstrumentation.getBytesRead)
 
 
-    metricRegistry.register(MetricRegistry.name("ROOTReadOps"), new Gauge[Int] {
-      override def getValue: Int = {
-        ch.cern.eos.XRootDInstrumentation.getReadOps
-      }
-    })
+    MetricSnapshot.registerIntGauge(metricRegistry, "ROOTReadOps", () =>
+      ch.cern.eos.XRootDInstrumentation.getReadOps)
 
-    metricRegistry.register(MetricRegistry.name("ROOTReadTimeMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        ch.cern.eos.XRootDInstrumentation.getTimeElapsedReadMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "ROOTReadTimeMuSec", () =>
+      ch.cern.eos.XRootDInstrumentation.getTimeElapsedReadMusec)
 
-    /** temporarily disable write metrics
-    metricRegistry.register(MetricRegistry.name("ROOTWriteOps"), new Gauge[Int] {
-      override def getValue: Int = {
-        ch.cern.eos.XRootDInstrumentation.getWriteOps
-      }
-    })
+    // latency percentiles, filled by the record*Time calls of the instrumented client
+    HistogramGauges.register(metricRegistry, "ROOTReadTime",
+      ch.cern.eos.XRootDInstrumentation.getReadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "ROOTWriteTime",
+      ch.cern.eos.XRootDInstrumentation.getWriteTimeHistogram)
 
-    metricRegistry.register(MetricRegistry.name("ROOTBytesWritten"), new Gauge[Long] {
-      override def getValue: Long = {
-        ch.cern.eos.XRootDInstrumentation.getBytesWritten
-      }
-    })
+    MetricSnapshot.registerIntGauge(metricRegistry, "ROOTWriteOps", () =>
+      ch.cern.eos.XRootDInstrumentation.getWriteOps)
 
-    metricRegistry.register(MetricRegistry.name("ROOTTimeElapsedWriteMusec"), new Gauge[Long] {
-      override def getValue: Long = {
-        ch.cern.eos.XRootDInstrumentation.getTimeElapsedWriteMusec
-      }
-    })
-    */
+    MetricSnapshot.registerGauge(metricRegistry, "ROOTBytesWritten", () =>
+      ch.cern.eos.XRootDInstrumentation.getBytesWritten)
+
+    MetricSnapshot.registerGauge(metricRegistry, "ROOTWriteTimeMuSec", () =>
+      ch.cern.eos.XRootDInstrumentation.getTimeElapsedWriteMusec)
+
+    // per-second throughput, when --conf spark.cernSparkPlugin.rateMetrics=true
+    rates.foreach { sampler =>
+      sampler.register(metricRegistry, "ROOTBytesReadPerSec",
+        () => ch.cern.eos.XRootDInstrumentation.getBytesRead)
+      sampler.register(metricRegistry, "ROOTReadOpsPerSec",
+        () => ch.cern.eos.XRootDInstrumentation.getReadOps.toLong)
+      sampler.register(metricRegistry, "ROOTBytesWrittenPerSec",
+        () => ch.cern.eos.XRootDInstrumentation.getBytesWritten)
+      sampler.register(metricRegistry, "ROOTWriteOpsPerSec",
+        () => ch.cern.eos.XRootDInstrumentation.getWriteOps.toLong)
+    }
   }
 
   /**
@@ -60,10 +60,19 @@ class ROOTTimeInstrumentation extends SparkPlugin {
    */
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var metricRegistry: MetricRegistry = _
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
-        rootMetrics(myContext.metricRegistry)
+        metricRegistry = myContext.metricRegistry
+        MetricSnapshot.get(myContext, myContext.metricRegistry)
+        rootMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         null
       }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
@@ -74,12 +83,21 @@ class ROOTTimeInstrumentation extends SparkPlugin {
    */
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin {
+      var metricRegistry: MetricRegistry = _
+
       override def init(myContext:PluginContext, extraConf:JMap[String, String])  = {
+        metricRegistry = myContext.metricRegistry
         // Don't register executor plugin if in local mode
         if (! myContext.conf.get("spark.master").startsWith("local")) {
-          rootMetrics(myContext.metricRegistry)
+          MetricSnapshot.get(myContext, myContext.metricRegistry)
+          rootMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         }
       }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
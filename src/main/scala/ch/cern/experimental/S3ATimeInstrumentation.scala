@@ -2,74 +2,128 @@ package ch.cern.experimental
 
 import java.util.{Map => JMap}
 
-import com.codahale.metrics.{Gauge, MetricRegistry}
+import com.codahale.metrics.MetricRegistry
 
 import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
 import org.apache.spark.SparkContext
 
+import ch.cern.util.{HistogramGauges, MetricSnapshot, RateSampler}
+
 // Custom instrumentation of S3A I/0 with time measurements, needs custom s3a client
 class S3ATimeInstrumentation extends SparkPlugin {
 
   // S3A metrics registration using Hadoop 2.7 API
-  def s3aMetrics(metricRegistry: MetricRegistry): Unit= {
+  def s3aMetrics(metricRegistry: MetricRegistry, rates: Option[RateSampler]): Unit= {
 
-    metricRegistry.register(MetricRegistry.name("S3AReadTimeMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeElapsedReadMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "S3AReadTimeMuSec", () =>
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeElapsedReadMusec)
 
-    metricRegistry.register(MetricRegistry.name("S3ASeekTimeMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeElapsedSeekMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "S3ASeekTimeMuSec", () =>
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeElapsedSeekMusec)
 
-    metricRegistry.register(MetricRegistry.name("S3ACPUTimeDuringReadMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringReadMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "S3ACPUTimeDuringReadMuSec", () =>
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringReadMusec)
 
-    metricRegistry.register(MetricRegistry.name("S3ACPUTimeDuringSeekMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringSeekMusec
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "S3ACPUTimeDuringSeekMuSec", () =>
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringSeekMusec)
 
-    metricRegistry.register(MetricRegistry.name("S3AReadTimeMinusCPUMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
+    if (OpTimerSettings.cpuTimeMeasured) {
+      MetricSnapshot.registerGauge(metricRegistry, "S3AReadTimeMinusCPUMuSec", () =>
         org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeElapsedReadMusec -
-          org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringReadMusec
-      }
-    })
+          org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringReadMusec)
 
-    metricRegistry.register(MetricRegistry.name("S3ASeekTimeMinusCPUMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
+      MetricSnapshot.registerGauge(metricRegistry, "S3ASeekTimeMinusCPUMuSec", () =>
         org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeElapsedSeekMusec -
-          org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringSeekMusec
-      }
-    })
+          org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCPUTimeDuringSeekMusec)
+    }
 
-    metricRegistry.register(MetricRegistry.name("S3ABytesRead"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesRead
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "S3ABytesRead", () =>
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesRead)
 
-    metricRegistry.register(MetricRegistry.name("S3AGetObjectMetadataMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
-        org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeGetObjectMetadata
-      }
-    })
+    MetricSnapshot.registerGauge(metricRegistry, "S3AGetObjectMetadataMuSec", () =>
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeGetObjectMetadata)
 
-    metricRegistry.register(MetricRegistry.name("S3AGetObjectMetadataMinusCPUMuSec"), new Gauge[Long] {
-      override def getValue: Long = {
+    if (OpTimerSettings.cpuTimeMeasured) {
+      MetricSnapshot.registerGauge(metricRegistry, "S3AGetObjectMetadataMinusCPUMuSec", () =>
         org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeGetObjectMetadata -
-        org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeCPUGetObjectMetadata
-      }
-    })
+          org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeCPUGetObjectMetadata)
+    }
 
+    // latency percentiles, filled by the record*Time calls of the instrumented client
+    HistogramGauges.register(metricRegistry, "S3AReadTime",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getReadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "S3ASeekTime",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getSeekTimeHistogram)
+    HistogramGauges.register(metricRegistry, "S3AGetObjectMetadataTime",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getGetObjectMetadataTimeHistogram)
+
+    // read pattern, filled by the recordReadSize, recordSeek and recordStream* calls of the instrumented client
+    val readPatternCounters = Seq[(String, () => Long)](
+      "S3AReadCalls" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getReadCalls),
+      "S3AStreamsOpened" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getStreamsOpened),
+      "S3AStreamsAborted" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getStreamsAborted),
+      "S3AForwardSeeks" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getForwardSeeks),
+      "S3ABackwardSeeks" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBackwardSeeks),
+      "S3AForwardSeekBytes" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getForwardSeekBytes),
+      "S3ABackwardSeekBytes" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBackwardSeekBytes),
+      "S3ABytesDiscardedOnSeek" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesDiscardedOnSeek),
+      "S3ABytesDiscardedInAbort" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesDiscardedInAbort),
+      "S3ABytesDrainedOnClose" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesDrainedOnClose)
+    )
+    readPatternCounters.foreach { case (name, value) =>
+      MetricSnapshot.registerGauge(metricRegistry, name, value)
+    }
+
+    HistogramGauges.register(metricRegistry, "S3AReadSize",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getReadSizeHistogram, "Bytes")
+    HistogramGauges.register(metricRegistry, "S3AForwardSeekDistance",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getForwardSeekDistanceHistogram, "Bytes")
+    HistogramGauges.register(metricRegistry, "S3ABackwardSeekDistance",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBackwardSeekDistanceHistogram, "Bytes")
+    HistogramGauges.register(metricRegistry, "S3AReadsPerStream",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getReadsPerStreamHistogram, "")
+
+    // write path, filled by the recordWriteSize, recordBlockUploadTime, recordPartUpload, recordUploadQueueWait
+    // and recordCloseTime calls of the instrumented client:
+    // small files are uploaded with a single PUT (block upload), larger files as the parts of a multipart upload,
+    // committed by the close call of the output stream
+    val writeCounters = Seq[(String, () => Long)](
+      "S3ABytesWritten" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesWritten),
+      "S3AWriteCalls" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getWriteCalls),
+      "S3ABlockUploadTimeMuSec" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeBlockUploadMusec),
+      "S3ABlocksUploaded" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBlocksUploaded),
+      "S3APartUploadTimeMuSec" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimePartUploadMusec),
+      "S3APartsUploaded" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getPartsUploaded),
+      "S3AUploadQueueWaitMuSec" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeUploadQueueWaitMusec),
+      "S3ACloseTimeMuSec" -> (() => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getTimeCloseMusec)
+    )
+    writeCounters.foreach { case (name, value) =>
+      MetricSnapshot.registerGauge(metricRegistry, name, value)
+    }
+
+    HistogramGauges.register(metricRegistry, "S3ABlockUploadTime",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBlockUploadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "S3APartUploadTime",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getPartUploadTimeHistogram)
+    HistogramGauges.register(metricRegistry, "S3APartSize",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getPartSizeHistogram, "Bytes")
+    HistogramGauges.register(metricRegistry, "S3AUploadQueueWait",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getUploadQueueWaitHistogram)
+    HistogramGauges.register(metricRegistry, "S3ACloseTime",
+      org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getCloseTimeHistogram)
+
+    // CPU time measurement settings of the instrumented client timers
+    OpTimerSettings.register(metricRegistry, "S3A")
+
+    // per-second throughput, when --conf spark.cernSparkPlugin.rateMetrics=true
+    rates.foreach { sampler =>
+      sampler.register(metricRegistry, "S3ABytesReadPerSec",
+        () => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesRead)
+      sampler.register(metricRegistry, "S3AStreamsOpenedPerSec",
+        () => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getStreamsOpened)
+      sampler.register(metricRegistry, "S3ABytesWrittenPerSec",
+        () => org.apache.hadoop.fs.s3a.S3ATimeInstrumentation.getBytesWritten)
+    }
   }
 
   /**
@@ -79,10 +133,20 @@ class S3ATimeInstrumentation extends SparkPlugin {
    */
   override def driverPlugin(): DriverPlugin = {
     new DriverPlugin() {
+      var metricRegistry: MetricRegistry = _
+
       override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
-        s3aMetrics(myContext.metricRegistry)
+        metricRegistry = myContext.metricRegistry
+        OpTimerSettings.configure(myContext.conf)
+        MetricSnapshot.get(myContext, myContext.metricRegistry)
+        s3aMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         null
       }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
@@ -93,12 +157,22 @@ class S3ATimeInstrumentation extends SparkPlugin {
    */
   override def executorPlugin(): ExecutorPlugin = {
     new ExecutorPlugin {
+      var metricRegistry: MetricRegistry = _
+
       override def init(myContext:PluginContext, extraConf:JMap[String, String])  = {
+        metricRegistry = myContext.metricRegistry
+        OpTimerSettings.configure(myContext.conf)
         // Don't register executor plugin if in local mode
         if (! myContext.conf.get("spark.master").startsWith("local")) {
-          s3aMetrics(myContext.metricRegistry)
+          MetricSnapshot.get(myContext, myContext.metricRegistry)
+          s3aMetrics(myContext.metricRegistry, RateSampler.get(myContext))
         }
       }
+
+      override def shutdown(): Unit = {
+        RateSampler.unregister(metricRegistry)
+        MetricSnapshot.unregister(metricRegistry)
+      }
     }
   }
 
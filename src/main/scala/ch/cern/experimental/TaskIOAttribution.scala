@@ -0,0 +1,147 @@
+package ch.cern.experimental
+
+import scala.jdk.CollectionConverters._
+import java.util.{Map => JMap}
+import java.util.concurrent.ConcurrentLinkedDeque
+
+import org.apache.spark.{SparkContext, TaskContext}
+import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
+import org.apache.spark.scheduler.{SparkListener, SparkListenerStageCompleted}
+
+import org.slf4j.LoggerFactory
+
+import ch.cern.instrumentation.TaskAttribution
+import ch.cern.util.StageSummaries
+
+/**
+ * Per-task and per-stage attribution of the I/O time instrumentation
+ * (S3A, HDFS, OCI and XRootD custom clients, see the other plugins in this package).
+ *
+ * On the executors, the I/O time and bytes counted by the instrumented clients on the task thread
+ * are accumulated in a thread-local bucket, reset when the task starts and sent to the driver
+ * with the plugin RPC channel when the task ends (only for tasks that did instrumented I/O).
+ * On the driver, the values are aggregated per stage, with the task that has the largest value
+ * for each metric. When a stage completes its summary is logged and kept in
+ * TaskIOAttribution.completedStages, to find the partitions causing stragglers.
+ * Task messages can reach the driver shortly after the stage completion event: the summaries
+ * in completedStages keep being updated, while the logged summary may miss the last tasks.
+ * The messages arriving after the stage summary was evicted from completedStages are dropped.
+ *
+ * Parameters:
+ *   --conf spark.plugins=ch.cern.experimental.TaskIOAttribution
+ *   --conf spark.cernSparkPlugin.taskIOMaxStages -> default 1000, number of completed stage summaries kept
+ */
+class TaskIOAttribution extends SparkPlugin {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  // Return the plugin's driver-side component.
+  override def driverPlugin(): DriverPlugin = {
+    new DriverPlugin() {
+      // task messages are sent asynchronously and can arrive after the stage completion event,
+      // the summaries keep being updated till evicted from completedStages, see ch.cern.util.StageSummaries
+      private var stages: StageSummaries[TaskIOAttribution.StageIOSummary] = _
+
+      override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        val maxStages = myContext.conf.getInt("spark.cernSparkPlugin.taskIOMaxStages", 1000)
+        stages = new StageSummaries(maxStages, new TaskIOAttribution.StageIOSummary(_, _),
+          TaskIOAttribution.completedStages)
+        sc.addSparkListener(new SparkListener {
+          override def onStageCompleted(stageCompleted: SparkListenerStageCompleted): Unit = {
+            val info = stageCompleted.stageInfo
+            stages.complete(info.stageId, info.attemptNumber()).foreach(summary => logger.info(summary.toString))
+          }
+        })
+        Map.empty[String, String].asJava
+      }
+
+      override def receive(message: AnyRef): AnyRef = {
+        message match {
+          case taskIO: TaskIOAttribution.TaskIOMetrics =>
+            // dropped for the stages already evicted
+            stages.get(taskIO.stageId, taskIO.stageAttemptId).foreach(_.add(taskIO))
+          case _ =>
+            logger.warn(s"Unexpected message: $message")
+        }
+        null
+      }
+    }
+  }
+
+  // Return the plugin's executor-side component.
+  override def executorPlugin(): ExecutorPlugin = {
+    new ExecutorPlugin() {
+      private var myContext: PluginContext = _
+
+      override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
+        this.myContext = myContext
+        TaskAttribution.acquire()
+      }
+
+      // onTaskStart is called on the task thread, with the TaskContext set, the completion listener
+      // also runs on the task thread, before the TaskContext is unset
+      // the bucket is reset when the next task starts, not here, as TaskTimeBreakdown also reads it
+      override def onTaskStart(): Unit = {
+        TaskAttribution.reset()
+        val taskContext = TaskContext.get()
+        if (taskContext != null) {
+          taskContext.addTaskCompletionListener[Unit] { context: TaskContext => flush(context) }
+        }
+      }
+
+      private def flush(taskContext: TaskContext): Unit = {
+        val values = TaskAttribution.snapshot()
+        if (values != null) {
+          myContext.send(TaskIOAttribution.TaskIOMetrics(taskContext.stageId(), taskContext.stageAttemptNumber(),
+            taskContext.partitionId(), taskContext.taskAttemptId(), values))
+        }
+      }
+
+      override def shutdown(): Unit = {
+        TaskAttribution.release()
+      }
+    }
+  }
+
+}
+
+object TaskIOAttribution {
+
+  // Message sent from the executors to the driver at the end of each task, values indexed by TaskAttribution slot
+  case class TaskIOMetrics(stageId: Int, stageAttemptId: Int, partitionId: Int, taskAttemptId: Long,
+                           values: Array[Long])
+
+  // Per-stage totals, and for each metric the partition of the task with the largest value
+  class StageIOSummary(val stageId: Int, val stageAttemptId: Int) {
+    val totals = new Array[Long](TaskAttribution.NUM_SLOTS)
+    val maxValues = new Array[Long](TaskAttribution.NUM_SLOTS)
+    val maxPartitions: Array[Int] = Array.fill(TaskAttribution.NUM_SLOTS)(-1)
+    var numTasks = 0L
+
+    def add(taskIO: TaskIOMetrics): Unit = synchronized {
+      numTasks += 1
+      var i = 0
+      while (i < TaskAttribution.NUM_SLOTS) {
+        val value = taskIO.values(i)
+        totals(i) += value
+        if (value > maxValues(i)) {
+          maxValues(i) = value
+          maxPartitions(i) = taskIO.partitionId
+        }
+        i += 1
+      }
+    }
+
+    override def toString: String = synchronized {
+      val metrics = (0 until TaskAttribution.NUM_SLOTS).filter(totals(_) != 0L).map { i =>
+        s"${TaskAttribution.getName(i)} total=${totals(i)} max=${maxValues(i)} (partition ${maxPartitions(i)})"
+      }
+      s"Stage $stageId.$stageAttemptId I/O attribution, tasks with instrumented I/O=$numTasks: " +
+        metrics.mkString(", ")
+    }
+  }
+
+  // Summaries of the completed stages, on the driver, most recent last
+  val completedStages = new ConcurrentLinkedDeque[StageIOSummary]()
+
+}
@@ -0,0 +1,294 @@
+package ch.cern.experimental
+
+import scala.jdk.CollectionConverters._
+import java.lang.management.ManagementFactory
+import java.util.{Map => JMap}
+import java.util.concurrent.ConcurrentLinkedDeque
+
+import com.codahale.metrics.MetricRegistry
+import org.apache.spark.{SparkContext, TaskContext, TaskFailedReason}
+import org.apache.spark.api.plugin.{DriverPlugin, ExecutorPlugin, PluginContext, SparkPlugin}
+import org.apache.spark.scheduler.{SparkListener, SparkListenerStageCompleted}
+
+import org.slf4j.LoggerFactory
+
+import ch.cern.instrumentation.{LatencyHistogram, StripedCounter, TaskAttribution}
+import ch.cern.util.{ClusterMetrics, HistogramGauges, MetricSnapshot, StageSummaries}
+
+/**
+ * Per-task breakdown of the task time in CPU, I/O and other time, to find out
+ * if a job would run faster with more cores or with faster storage, without profiling.
+ *
+ * On the executors, the thread CPU time, user time and allocated bytes of the task thread are read when the task
+ * starts and when it ends (ExecutorPlugin.onTaskStart/onTaskSucceeded/onTaskFailed run on the task thread).
+ * The I/O time is the sum of the time counters of the instrumented S3A, HDFS, OCI and XRootD clients accumulated
+ * on the task thread, see ch.cern.instrumentation.TaskAttribution, 0 when no instrumented client is used.
+ * The other time is the elapsed time minus CPU and I/O time: shuffle fetch waits, GC, lock waits, I/O of clients
+ * that are not instrumented. The I/O time includes the CPU time spent in the clients, which is then counted twice,
+ * the other time is set to 0 when it would be negative.
+ * Each executor exposes the cumulative times and per-task histograms, and sends the times of each task
+ * to the driver, which aggregates them per stage. When a stage completes its summary is logged
+ * and kept in TaskTimeBreakdown.completedStages, the task messages arriving after the summary was evicted are dropped.
+ *
+ * Parameters:
+ *   --conf spark.plugins=ch.cern.experimental.TaskTimeBreakdown
+ *   --conf spark.cernSparkPlugin.taskTimeMaxStages -> default 1000, number of completed stage summaries kept
+ */
+class TaskTimeBreakdown extends SparkPlugin {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  // Return the plugin's driver-side component.
+  override def driverPlugin(): DriverPlugin = {
+    new DriverPlugin() {
+      // task messages are sent asynchronously and can arrive after the stage completion event,
+      // the summaries keep being updated till evicted from completedStages, see ch.cern.util.StageSummaries
+      private var stages: StageSummaries[TaskTimeBreakdown.StageTimeSummary] = _
+      private var aggregator: Option[ClusterMetrics.Aggregator] = None
+
+      override def init(sc: SparkContext, myContext: PluginContext): JMap[String, String] = {
+        aggregator = ClusterMetrics.aggregator(myContext)
+        val maxStages = myContext.conf.getInt("spark.cernSparkPlugin.taskTimeMaxStages", 1000)
+        stages = new StageSummaries(maxStages, new TaskTimeBreakdown.StageTimeSummary(_, _),
+          TaskTimeBreakdown.completedStages)
+        sc.addSparkListener(new SparkListener {
+          override def onStageCompleted(stageCompleted: SparkListenerStageCompleted): Unit = {
+            val info = stageCompleted.stageInfo
+            stages.complete(info.stageId, info.attemptNumber()).foreach(summary => logger.info(summary.toString))
+          }
+        })
+        Map.empty[String, String].asJava
+      }
+
+      override def receive(message: AnyRef): AnyRef = {
+        message match {
+          case taskTimes: TaskTimeBreakdown.TaskTimes =>
+            // dropped for the stages already evicted
+            stages.get(taskTimes.stageId, taskTimes.stageAttemptId).foreach(_.add(taskTimes))
+          case _ if aggregator.exists(_.receive(message)) =>
+          case _ =>
+            logger.warn(s"Unexpected message: $message")
+        }
+        null
+      }
+    }
+  }
+
+  // Return the plugin's executor-side component.
+  override def executorPlugin(): ExecutorPlugin = {
+    new ExecutorPlugin() {
+      private var myContext: PluginContext = _
+      private var taskTimes: TaskTimeBreakdown.ExecutorTaskTimes = _
+      private var metricRegistry: MetricRegistry = _
+      private var publisher: Option[ClusterMetrics.Publisher] = None
+
+      override def init(myContext: PluginContext, extraConf: JMap[String, String]): Unit = {
+        this.myContext = myContext
+        metricRegistry = ClusterMetrics.executorRegistry(myContext)
+        MetricSnapshot.get(myContext, metricRegistry)
+        taskTimes = new TaskTimeBreakdown.ExecutorTaskTimes(metricRegistry)
+        TaskAttribution.acquire()
+        publisher = ClusterMetrics.startPublisher(myContext, metricRegistry)
+      }
+
+      override def onTaskStart(): Unit = {
+        taskTimes.taskStarted()
+      }
+
+      override def onTaskSucceeded(): Unit = {
+        taskTimes.taskEnded().foreach(myContext.send)
+      }
+
+      override def onTaskFailed(failureReason: TaskFailedReason): Unit = {
+        taskTimes.taskEnded().foreach(myContext.send)
+      }
+
+      override def shutdown(): Unit = {
+        publisher.foreach(_.stop())
+        MetricSnapshot.unregister(metricRegistry)
+        TaskAttribution.release()
+      }
+    }
+  }
+
+}
+
+object TaskTimeBreakdown {
+
+  // Indexes of the values of TaskTimes and of the stage summaries
+  val ELAPSED_MUSEC = 0
+  val CPU_MUSEC = 1
+  val USER_MUSEC = 2
+  val IO_MUSEC = 3
+  val OTHER_MUSEC = 4
+  val ALLOCATED_BYTES = 5
+  val NUM_VALUES = 6
+
+  val names: Array[String] = Array("TaskElapsedTimeMuSec", "TaskCPUTimeMuSec", "TaskUserTimeMuSec",
+    "TaskIOTimeMuSec", "TaskOtherTimeMuSec", "TaskAllocatedBytes")
+
+  // Message sent from the executors to the driver at the end of each task, values indexed as above
+  case class TaskTimes(stageId: Int, stageAttemptId: Int, partitionId: Int, taskAttemptId: Long,
+                       values: Array[Long])
+
+  private val threadMXBean = ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+
+  private val ioTimeSlots = (0 until TaskAttribution.NUM_SLOTS).filter(TaskAttribution.isTime).toArray
+
+  // State of the task running on a thread, set by onTaskStart, as onTaskSucceeded runs after the TaskContext is unset
+  private class TaskStart {
+    var startNanos = 0L
+    var cpuNanos = 0L
+    var userNanos = 0L
+    var allocatedBytes = 0L
+    var stageId = -1
+    var stageAttemptId = -1
+    var partitionId = -1
+    var taskAttemptId = -1L
+  }
+
+  /**
+   * Executor side: reads the thread clocks at the start and end of each task,
+   * and updates the cumulative counters and the per-task histograms.
+   */
+  class ExecutorTaskTimes(metricRegistry: MetricRegistry) {
+
+    private val cpuTimeSupported = threadMXBean.isCurrentThreadCpuTimeSupported
+    private val allocationSupported = threadMXBean.isThreadAllocatedMemorySupported
+
+    private val taskStarts = ThreadLocal.withInitial[TaskStart](() => new TaskStart)
+
+    private val tasks = new StripedCounter()
+    private val counters = Array.fill(NUM_VALUES)(new StripedCounter())
+
+    private val elapsedHistogram = new LatencyHistogram
+    private val cpuHistogram = new LatencyHistogram
+    private val ioHistogram = new LatencyHistogram
+    private val otherHistogram = new LatencyHistogram
+    private val allocatedHistogram = new LatencyHistogram
+    private val cpuShareHistogram = new LatencyHistogram
+    private val ioShareHistogram = new LatencyHistogram
+
+    MetricSnapshot.registerGauge(metricRegistry, "TaskCount", () => tasks.get)
+    for (i <- 0 until NUM_VALUES) {
+      MetricSnapshot.registerGauge(metricRegistry, names(i), () => counters(i).get)
+    }
+    HistogramGauges.register(metricRegistry, "TaskElapsedTime", elapsedHistogram)
+    HistogramGauges.register(metricRegistry, "TaskCPUTime", cpuHistogram)
+    HistogramGauges.register(metricRegistry, "TaskIOTime", ioHistogram)
+    HistogramGauges.register(metricRegistry, "TaskOtherTime", otherHistogram)
+    HistogramGauges.register(metricRegistry, "TaskAllocated", allocatedHistogram, "Bytes")
+    HistogramGauges.register(metricRegistry, "TaskCPUShare", cpuShareHistogram, "Percent")
+    HistogramGauges.register(metricRegistry, "TaskIOShare", ioShareHistogram, "Percent")
+
+    private def cpuNanos(): Long = if (cpuTimeSupported) threadMXBean.getCurrentThreadCpuTime else 0L
+
+    private def userNanos(): Long = if (cpuTimeSupported) threadMXBean.getCurrentThreadUserTime else 0L
+
+    private def allocatedBytes(): Long =
+      if (allocationSupported) threadMXBean.getThreadAllocatedBytes(Thread.currentThread.getId) else 0L
+
+    // called on the task thread, with the TaskContext set
+    def taskStarted(): Unit = {
+      TaskAttribution.reset()
+      val start = taskStarts.get
+      val taskContext = TaskContext.get()
+      if (taskContext != null) {
+        start.stageId = taskContext.stageId()
+        start.stageAttemptId = taskContext.stageAttemptNumber()
+        start.partitionId = taskContext.partitionId()
+        start.taskAttemptId = taskContext.taskAttemptId()
+      }
+      start.cpuNanos = cpuNanos()
+      start.userNanos = userNanos()
+      start.allocatedBytes = allocatedBytes()
+      start.startNanos = System.nanoTime()
+    }
+
+    // called on the task thread when the task ends, returns the message for the driver
+    def taskEnded(): Option[TaskTimes] = {
+      val endNanos = System.nanoTime()
+      val start = taskStarts.get
+      if (start.stageId < 0) {
+        None
+      } else {
+        val values = new Array[Long](NUM_VALUES)
+        values(ELAPSED_MUSEC) = (endNanos - start.startNanos) / 1000L
+        values(CPU_MUSEC) = (cpuNanos() - start.cpuNanos) / 1000L
+        values(USER_MUSEC) = (userNanos() - start.userNanos) / 1000L
+        values(ALLOCATED_BYTES) = allocatedBytes() - start.allocatedBytes
+        var i = 0
+        while (i < ioTimeSlots.length) {
+          values(IO_MUSEC) += TaskAttribution.get(ioTimeSlots(i))
+          i += 1
+        }
+        values(OTHER_MUSEC) = math.max(0L, values(ELAPSED_MUSEC) - values(CPU_MUSEC) - values(IO_MUSEC))
+
+        tasks.increment()
+        i = 0
+        while (i < NUM_VALUES) {
+          counters(i).add(values(i))
+          i += 1
+        }
+        elapsedHistogram.recordValue(values(ELAPSED_MUSEC))
+        cpuHistogram.recordValue(values(CPU_MUSEC))
+        ioHistogram.recordValue(values(IO_MUSEC))
+        otherHistogram.recordValue(values(OTHER_MUSEC))
+        allocatedHistogram.recordValue(values(ALLOCATED_BYTES))
+        if (values(ELAPSED_MUSEC) > 0) {
+          cpuShareHistogram.recordValue(math.min(100L, values(CPU_MUSEC) * 100L / values(ELAPSED_MUSEC)))
+          ioShareHistogram.recordValue(math.min(100L, values(IO_MUSEC) * 100L / values(ELAPSED_MUSEC)))
+        }
+
+        val taskTimes = TaskTimes(start.stageId, start.stageAttemptId, start.partitionId, start.taskAttemptId, values)
+        start.stageId = -1
+        Some(taskTimes)
+      }
+    }
+  }
+
+  // Per-stage totals, and for each value the partition of the task with the largest value
+  class StageTimeSummary(val stageId: Int, val stageAttemptId: Int) {
+    val totals = new Array[Long](NUM_VALUES)
+    val maxValues = new Array[Long](NUM_VALUES)
+    val maxPartitions: Array[Int] = Array.fill(NUM_VALUES)(-1)
+    var numTasks = 0L
+
+    def add(taskTimes: TaskTimes): Unit = synchronized {
+      numTasks += 1
+      var i = 0
+      while (i < NUM_VALUES) {
+        val value = taskTimes.values(i)
+        totals(i) += value
+        if (value > maxValues(i)) {
+          maxValues(i) = value
+          maxPartitions(i) = taskTimes.partitionId
+        }
+        i += 1
+      }
+    }
+
+    // share of the total task time, in percent
+    def share(index: Int): Double = synchronized {
+      if (totals(ELAPSED_MUSEC) > 0) 100.0 * totals(index) / totals(ELAPSED_MUSEC) else 0.0
+    }
+
+    // the largest of CPU, I/O and other time: CPU-bound stages benefit from more cores,
+    // I/O-bound stages from faster storage
+    def dominant: String = synchronized {
+      Seq("CPU" -> totals(CPU_MUSEC), "I/O" -> totals(IO_MUSEC), "other" -> totals(OTHER_MUSEC)).maxBy(_._2)._1
+    }
+
+    override def toString: String = synchronized {
+      f"Stage $stageId.$stageAttemptId time breakdown, tasks=$numTasks: " +
+        f"elapsed=${totals(ELAPSED_MUSEC) / 1000L}ms, CPU=${share(CPU_MUSEC)}%.1f%% " +
+        f"(user ${share(USER_MUSEC)}%.1f%%), I/O=${share(IO_MUSEC)}%.1f%%, other=${share(OTHER_MUSEC)}%.1f%%, " +
+        s"dominant=$dominant, allocated=${totals(ALLOCATED_BYTES)} bytes, " +
+        s"longest task: partition ${maxPartitions(ELAPSED_MUSEC)} (${maxValues(ELAPSED_MUSEC) / 1000L}ms)"
+    }
+  }
+
+  // Summaries of the completed stages, on the driver, most recent last
+  val completedStages = new ConcurrentLinkedDeque[StageTimeSummary]()
+
+}
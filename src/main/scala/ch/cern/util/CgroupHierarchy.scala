@@ -0,0 +1,82 @@
+package ch.cern.util
+
+import java.io.File
+
+import scala.io.Source
+import scala.util.Try
+
+import org.apache.spark.SparkConf
+
+/**
+ * Location of the cgroup of the current process.
+ *
+ * version 2: unified hierarchy, all controllers share the same directory.
+ * version 1: one hierarchy per controller, for example /sys/fs/cgroup/memory/<path>.
+ *
+ * The cgroup path is taken from /proc/self/cgroup and resolved under the cgroup mount point.
+ * When the path does not exist under the mount point, as in containers with a private
+ * cgroup namespace or where only the container's own cgroup is mounted, the mount point is used.
+ * Both locations can be configured, for example to read the cgroup of the host from a container or in tests:
+ *   --conf spark.cernSparkPlugin.cgroupRoot (default /sys/fs/cgroup), cgroup mount point
+ *   --conf spark.cernSparkPlugin.procRoot (default /proc), proc filesystem, the cgroup path is read from self/cgroup
+ */
+case class CgroupHierarchy(version: Int, cpuDir: String, cpuacctDir: String, memoryDir: String) {
+
+  def cpuFile(name: String): String = new File(cpuDir, name).getPath
+
+  def cpuacctFile(name: String): String = new File(cpuacctDir, name).getPath
+
+  def memoryFile(name: String): String = new File(memoryDir, name).getPath
+
+  // File in the unified hierarchy, version 2 only, for example io.pressure
+  def unifiedFile(name: String): String = new File(cpuDir, name).getPath
+
+}
+
+object CgroupHierarchy {
+
+  val defaultRoot = "/sys/fs/cgroup"
+  val defaultProcRoot = "/proc"
+  val defaultProcSelfCgroup = "/proc/self/cgroup"
+
+  def cgroupRoot(conf: SparkConf): String = conf.get("spark.cernSparkPlugin.cgroupRoot", defaultRoot)
+
+  def procRoot(conf: SparkConf): String = conf.get("spark.cernSparkPlugin.procRoot", defaultProcRoot)
+
+  // The cgroup of this process, with the locations configured in conf
+  def fromConf(conf: SparkConf): CgroupHierarchy =
+    detect(cgroupRoot(conf), new File(procRoot(conf), "self/cgroup").getPath)
+
+  def detect(root: String = defaultRoot, procSelfCgroup: String = defaultProcSelfCgroup): CgroupHierarchy = {
+    // lines in the format hierarchy-ID:controller-list:cgroup-path
+    val entries = Try {
+      val file = Source.fromFile(procSelfCgroup)
+      try file.getLines().map(_.split(":", 3)).filter(_.length == 3).toList finally file.close()
+    }.getOrElse(Nil)
+
+    if (new File(root, "cgroup.controllers").exists()) {
+      val path = entries.collectFirst { case Array("0", "", p) => p }.getOrElse("/")
+      val dir = resolve(root, path)
+      CgroupHierarchy(2, dir, dir, dir)
+    } else {
+      def controllerDir(controller: String, mountNames: Seq[String]): String = {
+        val path = entries.collectFirst {
+          case Array(_, controllers, p) if controllers.split(",").contains(controller) => p
+        }.getOrElse("/")
+        val mount = mountNames.map(new File(root, _)).find(_.isDirectory)
+          .getOrElse(new File(root, mountNames.head)).getPath
+        resolve(mount, path)
+      }
+      CgroupHierarchy(1,
+        controllerDir("cpu", Seq("cpu", "cpu,cpuacct")),
+        controllerDir("cpuacct", Seq("cpuacct", "cpu,cpuacct")),
+        controllerDir("memory", Seq("memory")))
+    }
+  }
+
+  private def resolve(mount: String, path: String): String = {
+    val dir = new File(mount, path)
+    if (path != "/" && dir.isDirectory) dir.getPath else mount
+  }
+
+}
@@ -0,0 +1,343 @@
+package ch.cern.util
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, DataOutputStream}
+import java.util.concurrent.{ConcurrentHashMap, Executors, ScheduledFuture, ThreadFactory, TimeUnit}
+
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.api.plugin.PluginContext
+
+import org.slf4j.LoggerFactory
+
+/**
+ * Cluster-wide aggregation of the executor metrics on the driver, using the plugin RPC channel.
+ *
+ * The executor component of a plugin periodically sends a compact binary snapshot of all the numeric
+ * gauges of its registry (one message per interval, the metric names are only sent when they change
+ * and every few messages). The driver component keeps the latest snapshot of each executor and
+ * exposes, for each metric, the cluster-wide sum, min, max and the top N executors, as driver gauges:
+ *   cluster.<name>.sum, cluster.<name>.min, cluster.<name>.max,
+ *   cluster.<name>.top<k>.value, cluster.<name>.top<k>.executor (k from 1 to N, executor -1 when unknown)
+ *   cluster.numExecutors
+ * The sum is only exposed for the additive metrics: not for the metrics matching clusterMetricsNoSumPattern,
+ * by default the percentiles and maxima of the histograms, the settings, ports and timestamps,
+ * and the moving averages of the rates.
+ * Executors that have not sent a snapshot for 3 intervals are dropped from the aggregates.
+ *
+ * Parameters:
+ *   --conf spark.cernSparkPlugin.clusterMetrics=true (default false), enable the aggregation
+ *   --conf spark.cernSparkPlugin.clusterMetricsIntervalMs (default 10000), interval between snapshots
+ *   --conf spark.cernSparkPlugin.clusterMetricsTopN (default 3), number of top executors exposed per metric
+ *   --conf spark.cernSparkPlugin.clusterMetricsNoSumPattern (default defaultNoSumPattern), regular expression
+ *     of the metric names without the sum aggregate, matched against the whole name
+ *   --conf spark.cernSparkPlugin.executorMetrics (default true), when false and the aggregation is enabled,
+ *     the executor gauges are only sent to the driver and not published to the executor metrics sinks
+ */
+object ClusterMetrics {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  val prefix = "cluster"
+  private val formatVersion: Byte = 1
+  // the metric names are sent again every schemaResendInterval snapshots, for a driver that missed them
+  private val schemaResendInterval = 6
+
+  // Metrics whose cluster-wide sum has no meaning: histogram percentiles and maxima, settings, ports,
+  // timestamps and moving averages
+  val defaultNoSumPattern: String =
+    ".*(P50|P90|P99|P999|Max)(MuSec|Bytes)|.*CPUTimeMode|.*CPUTimeSamplingRate|CgroupVersion|PrometheusPort|" +
+      "SnapshotTimestampMs|.*EWMA"
+
+  // Message sent from the executors to the driver
+  case class Snapshot(executorId: String, payload: Array[Byte])
+
+  def enabled(myContext: PluginContext): Boolean =
+    myContext.conf.getBoolean("spark.cernSparkPlugin.clusterMetrics", false)
+
+  def intervalMs(myContext: PluginContext): Long =
+    myContext.conf.getLong("spark.cernSparkPlugin.clusterMetricsIntervalMs", 10000L)
+
+  // Registry where the executor component registers its gauges:
+  // the plugin registry, or a private one when the gauges are only sent to the driver
+  def executorRegistry(myContext: PluginContext): MetricRegistry = {
+    if (enabled(myContext) && !myContext.conf.getBoolean("spark.cernSparkPlugin.executorMetrics", true)) {
+      new MetricRegistry
+    } else {
+      myContext.metricRegistry
+    }
+  }
+
+  // Start sending snapshots of the executor registry, if the aggregation is enabled
+  def startPublisher(myContext: PluginContext, metricRegistry: MetricRegistry): Option[Publisher] = {
+    if (enabled(myContext)) {
+      val publisher = new Publisher(myContext, metricRegistry)
+      publisher.start(intervalMs(myContext))
+      Some(publisher)
+    } else {
+      None
+    }
+  }
+
+  // Create the driver-side aggregator, if the aggregation is enabled
+  def aggregator(myContext: PluginContext): Option[Aggregator] = {
+    if (enabled(myContext)) {
+      Some(new Aggregator(myContext.metricRegistry,
+        myContext.conf.getInt("spark.cernSparkPlugin.clusterMetricsTopN", 3),
+        3 * intervalMs(myContext),
+        noSumPattern = myContext.conf.get("spark.cernSparkPlugin.clusterMetricsNoSumPattern", defaultNoSumPattern)))
+    } else {
+      None
+    }
+  }
+
+  // One thread per JVM sends the snapshots of all the plugins
+  private lazy val scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+    override def newThread(r: Runnable): Thread = {
+      val thread = new Thread(r, "cern-spark-plugin-cluster-metrics")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+
+  // Executor side, encodes the numeric gauges of a registry and sends them to the driver
+  class Publisher(myContext: PluginContext, metricRegistry: MetricRegistry) {
+
+    private val buffer = new ByteArrayOutputStream(4096)
+    private val out = new DataOutputStream(buffer)
+    private var lastSchemaId = 0
+    private var numSent = 0L
+    @volatile private var task: ScheduledFuture[_] = _
+
+    def start(intervalMs: Long): Unit = {
+      task = scheduler.scheduleWithFixedDelay(new Runnable {
+        override def run(): Unit = {
+          try {
+            publish()
+          } catch {
+            case NonFatal(e) => logger.warn("Failed to send the metrics snapshot to the driver", e)
+          }
+        }
+      }, intervalMs, intervalMs, TimeUnit.MILLISECONDS)
+    }
+
+    def stop(): Unit = {
+      if (task != null) {
+        task.cancel(false)
+      }
+    }
+
+    def publish(): Unit = synchronized {
+      val gauges = metricRegistry.getGauges
+      val names = new Array[String](gauges.size)
+      val values = new Array[Double](gauges.size)
+      var numMetrics = 0
+      gauges.asScala.foreach { case (name, gauge) =>
+        // a gauge that fails, for example on a missing file, is left out of this snapshot
+        val value = try gauge.getValue catch { case NonFatal(_) => null }
+        value match {
+          case number: Number =>
+            names(numMetrics) = name
+            values(numMetrics) = number.doubleValue
+            numMetrics += 1
+          case _ =>
+        }
+      }
+      val schemaId =
+        java.util.Arrays.hashCode(java.util.Arrays.copyOf(names, numMetrics).asInstanceOf[Array[AnyRef]])
+      val sendSchema = schemaId != lastSchemaId || numSent % schemaResendInterval == 0
+
+      buffer.reset()
+      out.writeByte(formatVersion)
+      out.writeInt(schemaId)
+      out.writeInt(numMetrics)
+      out.writeBoolean(sendSchema)
+      if (sendSchema) {
+        var i = 0
+        while (i < numMetrics) {
+          out.writeUTF(names(i))
+          i += 1
+        }
+      }
+      var i = 0
+      while (i < numMetrics) {
+        out.writeDouble(values(i))
+        i += 1
+      }
+      out.flush()
+
+      myContext.send(Snapshot(myContext.executorID, buffer.toByteArray))
+      lastSchemaId = schemaId
+      numSent += 1
+    }
+  }
+
+  // Latest snapshot received from an executor
+  private class ExecutorState(val executorId: String) {
+    val executorNumber: Long = try executorId.toLong catch { case _: NumberFormatException => -1L }
+    var schemaId = 0
+    var names: Array[String] = Array.empty
+    var values: Array[Double] = Array.empty
+    var lastUpdateMs = 0L
+  }
+
+  // Cluster-wide aggregates of one metric
+  class MetricAggregate(topN: Int) {
+    var sum = 0.0
+    var min = Double.MaxValue
+    var max = Double.MinValue
+    // unfilled entries, with fewer executors than topN, have value 0 and executor -1
+    val topValues: Array[Double] = new Array[Double](topN)
+    val topExecutors: Array[Long] = Array.fill(topN)(-1L)
+    var numTop = 0
+
+    def add(value: Double, executor: Long): Unit = {
+      sum += value
+      if (value < min) min = value
+      if (value > max) max = value
+      // insertion into the sorted top N
+      var pos = numTop
+      while (pos > 0 && topValues(pos - 1) < value) {
+        pos -= 1
+      }
+      if (pos < topN) {
+        var i = math.min(numTop, topN - 1)
+        while (i > pos) {
+          topValues(i) = topValues(i - 1)
+          topExecutors(i) = topExecutors(i - 1)
+          i -= 1
+        }
+        topValues(pos) = value
+        topExecutors(pos) = executor
+        numTop = math.min(numTop + 1, topN)
+      }
+    }
+  }
+
+  // Driver side, keeps the latest snapshot of each executor and exposes the cluster-wide aggregates
+  class Aggregator(metricRegistry: MetricRegistry, topN: Int, staleMs: Long, cacheTTLMs: Long = 1000L,
+                   noSumPattern: String = defaultNoSumPattern) {
+
+    private val noSum = noSumPattern.r.pattern
+
+    private val executors = new ConcurrentHashMap[String, ExecutorState]()
+    private val registeredNames = ConcurrentHashMap.newKeySet[String]()
+    private var aggregates = Map.empty[String, MetricAggregate]
+    private var numExecutors = 0
+    private var lastAggregationMs = 0L
+
+    metricRegistry.register(MetricRegistry.name(prefix, "numExecutors"), new Gauge[Int] {
+      override def getValue: Int = aggregated()._2
+    })
+
+    // Returns true if the message was a cluster metrics snapshot
+    def receive(message: AnyRef): Boolean = {
+      message match {
+        case snapshot: Snapshot =>
+          try {
+            update(snapshot)
+          } catch {
+            case NonFatal(e) => logger.warn(s"Invalid metrics snapshot from executor ${snapshot.executorId}", e)
+          }
+          true
+        case _ =>
+          false
+      }
+    }
+
+    private def update(snapshot: Snapshot): Unit = {
+      val in = new DataInputStream(new ByteArrayInputStream(snapshot.payload))
+      val version = in.readByte()
+      if (version != formatVersion) {
+        throw new IllegalArgumentException(s"Unsupported snapshot format version $version")
+      }
+      val schemaId = in.readInt()
+      val numMetrics = in.readInt()
+      val hasSchema = in.readBoolean()
+      val state = executors.computeIfAbsent(snapshot.executorId, id => new ExecutorState(id))
+      state.synchronized {
+        if (hasSchema) {
+          val names = new Array[String](numMetrics)
+          var i = 0
+          while (i < numMetrics) {
+            names(i) = in.readUTF()
+            i += 1
+          }
+          names.foreach(register)
+          state.names = names
+          state.schemaId = schemaId
+        }
+        // the values can only be decoded with the names of the same schema, wait for the next schema resend
+        if (state.schemaId == schemaId) {
+          val values = new Array[Double](numMetrics)
+          var i = 0
+          while (i < numMetrics) {
+            values(i) = in.readDouble()
+            i += 1
+          }
+          state.values = values
+          state.lastUpdateMs = System.currentTimeMillis()
+        }
+      }
+    }
+
+    private def register(name: String): Unit = {
+      if (registeredNames.add(name)) {
+        def metric(f: MetricAggregate => Double): Gauge[Double] = new Gauge[Double] {
+          override def getValue: Double = aggregated()._1.get(name).map(f).getOrElse(0.0)
+        }
+        if (!noSum.matcher(name).matches()) {
+          metricRegistry.register(MetricRegistry.name(prefix, name, "sum"), metric(_.sum))
+        }
+        metricRegistry.register(MetricRegistry.name(prefix, name, "min"), metric(_.min))
+        metricRegistry.register(MetricRegistry.name(prefix, name, "max"), metric(_.max))
+        (0 until topN).foreach { k =>
+          metricRegistry.register(MetricRegistry.name(prefix, name, s"top${k + 1}", "value"),
+            metric(_.topValues(k)))
+          metricRegistry.register(MetricRegistry.name(prefix, name, s"top${k + 1}", "executor"),
+            metric(_.topExecutors(k).toDouble))
+        }
+      }
+    }
+
+    // The aggregates are recomputed at most once per cacheTTLMs, all the gauges of a sink poll share them
+    def aggregated(): (Map[String, MetricAggregate], Int) = synchronized {
+      val now = System.currentTimeMillis()
+      if (now - lastAggregationMs >= cacheTTLMs) {
+        val result = scala.collection.mutable.HashMap.empty[String, MetricAggregate]
+        var count = 0
+        executors.values.asScala.foreach { state =>
+          state.synchronized {
+            if (now - state.lastUpdateMs > staleMs) {
+              // lost or decommissioned executor
+              executors.remove(state.executorId, state)
+            } else if (state.values.length == state.names.length) {
+              count += 1
+              var i = 0
+              while (i < state.names.length) {
+                result.getOrElseUpdate(state.names(i), new MetricAggregate(topN))
+                  .add(state.values(i), state.executorNumber)
+                i += 1
+              }
+            }
+          }
+        }
+        aggregates = result.toMap
+        numExecutors = count
+        lastAggregationMs = now
+      }
+      (aggregates, numExecutors)
+    }
+
+    // Executors by descending value of a metric, for logging and interactive use
+    def topExecutors(name: String): Seq[(Long, Double)] = {
+      aggregated()._1.get(name) match {
+        case Some(aggregate) =>
+          aggregate.topExecutors.zip(aggregate.topValues).take(aggregate.numTop).toSeq
+        case None => Seq.empty
+      }
+    }
+  }
+
+}
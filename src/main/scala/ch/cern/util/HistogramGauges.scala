@@ -0,0 +1,49 @@
+package ch.cern.util
+
+import scala.collection.mutable.ArrayBuffer
+
+import com.codahale.metrics.MetricRegistry
+
+import ch.cern.instrumentation.LatencyHistogram
+
+// Exports the percentiles of the latency histograms as gauges, for the *TimeInstrumentation plugins,
+// TaskTimeBreakdown and JVMMetrics
+// For a given prefix it registers: <prefix>P50<unit>, <prefix>P90<unit>, <prefix>P99<unit>,
+// <prefix>P999<unit> and <prefix>Max<unit>, the unit is MuSec for latencies, Bytes for sizes
+// With spark.cernSparkPlugin.snapshotMetrics=true the percentiles are computed once per snapshot, see MetricSnapshot
+// The histograms are also kept per registry, for the exporters that publish the buckets, see ch.cern.PrometheusExporter
+object HistogramGauges {
+
+  case class Registered(prefix: String, histogram: LatencyHistogram, unit: String)
+
+  val percentiles = Seq("P50" -> 50.0, "P90" -> 90.0, "P99" -> 99.0, "P999" -> 99.9)
+
+  // weak keys, the registries of the plugins that are shut down are dropped
+  private val histograms = new java.util.WeakHashMap[MetricRegistry, ArrayBuffer[Registered]]()
+
+  // The histograms registered on metricRegistry, in registration order
+  def registered(metricRegistry: MetricRegistry): Seq[Registered] = histograms.synchronized {
+    Option(histograms.get(metricRegistry)).map(_.toList).getOrElse(Nil)
+  }
+
+  def register(metricRegistry: MetricRegistry, prefix: String, histogram: LatencyHistogram,
+               unit: String = "MuSec"): Unit = {
+
+    percentiles.foreach { case (suffix, percentile) =>
+      MetricSnapshot.registerGauge(metricRegistry, prefix + suffix + unit,
+        () => histogram.getValueAtPercentile(percentile))
+    }
+
+    MetricSnapshot.registerGauge(metricRegistry, prefix + "Max" + unit, () => histogram.getMax)
+
+    histograms.synchronized {
+      var list = histograms.get(metricRegistry)
+      if (list == null) {
+        list = new ArrayBuffer[Registered]
+        histograms.put(metricRegistry, list)
+      }
+      list += Registered(prefix, histogram, unit)
+    }
+  }
+
+}
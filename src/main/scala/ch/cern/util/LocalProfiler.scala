@@ -0,0 +1,259 @@
+package ch.cern.util
+
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import java.time.{Duration, Instant}
+
+import scala.jdk.CollectionConverters._
+
+import jdk.jfr.{Recording, RecordingState}
+import jdk.jfr.consumer.{RecordedEvent, RecordedStackTrace, RecordingFile}
+
+import org.slf4j.LoggerFactory
+
+/**
+ * In-process profiler based on Java Flight Recorder, an alternative to pushing profiles to a Pyroscope server.
+ *
+ * The JFR recording keeps the events in a bounded on-disk ring buffer (maxSizeBytes and maxAge of the recording).
+ * Nothing leaves the JVM until a flush: the buffer is dumped, the stack traces of the events in the requested
+ * time window (optionally of a single thread) are aggregated in collapsed flame-graph form,
+ * one line per stack "frame1;frame2;...;frameN weight", and written to a local file.
+ * The collapsed files can be rendered with flamegraph.pl, speedscope or imported in Pyroscope.
+ *
+ * Event types, with the weight of each stack:
+ *   ITIMER, CPU: execution samples (jdk.ExecutionSample), number of samples
+ *   WALL: execution samples and samples of threads in native code (jdk.NativeMethodSample), number of samples
+ *   ALLOC: allocations in and outside TLABs, allocated bytes
+ *   LOCK: contended monitor enter (jdk.JavaMonitorEnter), blocked time in nanoseconds
+ *
+ * The collapsed files of the output directory are bounded: after each write the oldest files are deleted,
+ * to keep at most maxFiles files and maxBytes bytes, see LocalProfiler.retain.
+ * At stop the leftover dumps are deleted, and with deleteOnStop the collapsed files written by this profiler too.
+ */
+class LocalProfiler(dir: File, eventType: String, samplingIntervalMs: Long, maxSizeBytes: Long, maxAge: Duration,
+                    maxStacks: Int, maxFiles: Int = LocalProfiler.defaultMaxFiles,
+                    maxBytes: Long = LocalProfiler.defaultMaxBytes, deleteOnStop: Boolean = false) {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  private val recording = new Recording()
+  @volatile private var eventNames = LocalProfiler.eventNames(eventType)
+  // collapsed files written by this profiler, deleted at stop with deleteOnStop
+  private val written = new java.util.LinkedHashSet[File]()
+
+  def start(): Unit = {
+    dir.mkdirs()
+    enable(eventNames, samplingIntervalMs)
+    recording.setName("cern-spark-plugin-local-profiler")
+    recording.setToDisk(true)
+    recording.setMaxSize(maxSizeBytes)
+    recording.setMaxAge(maxAge)
+    recording.start()
+    logger.info(s"Local profiler started, event type $eventType, output directory $dir")
+  }
+
+  /**
+   * Switch the event type and the sampling interval of the running recording.
+   * The events of the previous type stay in the ring buffer, the flushes only report the events of the new type.
+   */
+  def reconfigure(newEventType: String, newSamplingIntervalMs: Long): Unit = synchronized {
+    val newEventNames = LocalProfiler.eventNames(newEventType)
+    eventNames.diff(newEventNames).foreach(recording.disable)
+    enable(newEventNames, newSamplingIntervalMs)
+    eventNames = newEventNames
+    logger.info(s"Local profiler reconfigured, event type $newEventType, sampling interval $newSamplingIntervalMs ms")
+  }
+
+  private def enable(names: Set[String], intervalMs: Long): Unit = {
+    names.foreach { name =>
+      val settings = recording.enable(name).withStackTrace()
+      name match {
+        case "jdk.ExecutionSample" | "jdk.NativeMethodSample" =>
+          settings.withPeriod(Duration.ofMillis(intervalMs))
+        case "jdk.JavaMonitorEnter" =>
+          settings.withThreshold(Duration.ofMillis(intervalMs))
+        case _ =>
+      }
+    }
+  }
+
+  def stop(): Unit = synchronized {
+    if (recording.getState == RecordingState.RUNNING) {
+      recording.stop()
+    }
+    recording.close()
+    // dumps left by a flush interrupted before its cleanup
+    Option(dir.listFiles()).getOrElse(Array.empty[File])
+      .filter(file => file.getName.startsWith("dump-") && file.getName.endsWith(".jfr"))
+      .foreach(file => Files.deleteIfExists(file.toPath))
+    if (deleteOnStop) {
+      written.asScala.foreach(file => Files.deleteIfExists(file.toPath))
+      written.clear()
+    }
+  }
+
+  /**
+   * Aggregate the stacks recorded in a time window and write them in collapsed form.
+   *
+   * @param from start of the window
+   * @param to end of the window
+   * @param threadId only the events of this Java thread id, or -1 for all the threads
+   * @param name name of the output file, without extension
+   * @return the collapsed stacks, most frequent first, and the output file, or None if no event was recorded
+   */
+  def flush(from: Instant, to: Instant, threadId: Long, name: String): Option[(Seq[(String, Long)], File)] =
+    synchronized {
+      if (recording.getState != RecordingState.RUNNING) {
+        None
+      } else {
+        val dump = Files.createTempFile(dir.toPath, "dump-", ".jfr")
+        try {
+          recording.dump(dump)
+          val stacks = collapse(dump, from, to, threadId, eventNames)
+          if (stacks.isEmpty) {
+            None
+          } else {
+            val output = new File(dir, name + ".collapsed")
+            LocalProfiler.write(stacks, output)
+            written.add(output)
+            LocalProfiler.retain(dir, maxFiles, maxBytes, output)
+            logger.info(s"Local profiler wrote ${stacks.size} stacks to $output")
+            Some((stacks, output))
+          }
+        } finally {
+          Files.deleteIfExists(dump)
+        }
+      }
+    }
+
+  private def collapse(dump: Path, from: Instant, to: Instant, threadId: Long,
+                       eventNames: Set[String]): Seq[(String, Long)] = {
+    val weights = new java.util.HashMap[String, java.lang.Long]()
+    val file = new RecordingFile(dump)
+    try {
+      while (file.hasMoreEvents) {
+        val event = file.readEvent()
+        val eventName = event.getEventType.getName
+        if (eventNames.contains(eventName) && !event.getEndTime.isBefore(from) && !event.getStartTime.isAfter(to)
+          && (threadId == -1L || LocalProfiler.javaThreadId(event) == threadId) && event.getStackTrace != null) {
+          val key = LocalProfiler.collapsedStack(event.getStackTrace)
+          weights.merge(key, LocalProfiler.weight(event), (a, b) => a + b)
+        }
+      }
+    } finally {
+      file.close()
+    }
+    weights.asScala.toSeq.map { case (stack, weight) => (stack, weight.longValue) }
+      .sortBy(-_._2).take(maxStacks)
+  }
+
+}
+
+object LocalProfiler {
+
+  lazy val logger = LoggerFactory.getLogger(this.getClass.getName)
+
+  val defaultMaxFiles = 100
+  val defaultMaxBytes: Long = 256L * 1024 * 1024
+
+  def eventNames(eventType: String): Set[String] = eventType.toUpperCase match {
+    case "ITIMER" | "CPU" => Set("jdk.ExecutionSample")
+    case "WALL" => Set("jdk.ExecutionSample", "jdk.NativeMethodSample")
+    case "ALLOC" => Set("jdk.ObjectAllocationInNewTLAB", "jdk.ObjectAllocationOutsideTLAB")
+    case "LOCK" => Set("jdk.JavaMonitorEnter")
+    case _ => throw new IllegalArgumentException(s"Invalid event type: $eventType")
+  }
+
+  def javaThreadId(event: RecordedEvent): Long = {
+    val thread = if (event.hasField("sampledThread")) event.getThread("sampledThread") else event.getThread
+    if (thread == null) -1L else thread.getJavaThreadId
+  }
+
+  def weight(event: RecordedEvent): Long = event.getEventType.getName match {
+    case "jdk.ObjectAllocationInNewTLAB" => event.getLong("tlabSize")
+    case "jdk.ObjectAllocationOutsideTLAB" => event.getLong("allocationSize")
+    case "jdk.JavaMonitorEnter" => event.getDuration.toNanos
+    case _ => 1L
+  }
+
+  // Frames from the root to the leaf, separated by ;
+  def collapsedStack(stackTrace: RecordedStackTrace): String = {
+    val frames = stackTrace.getFrames
+    collapsedStack(frames.size, i => {
+      val method = frames.get(i).getMethod
+      method.getType.getName + "." + method.getName
+    })
+  }
+
+  /**
+   * Collapse a stack trace, given leaf first as in JFR and in Java stack traces, from the root to the leaf.
+   *
+   * @param numFrames number of frames
+   * @param frame name of the frame at an index, 0 is the leaf
+   * @return the frames from the root to the leaf, separated by ;
+   */
+  def collapsedStack(numFrames: Int, frame: Int => String): String = {
+    val builder = new StringBuilder
+    var i = numFrames - 1
+    while (i >= 0) {
+      builder.append(frame(i))
+      if (i > 0) {
+        builder.append(';')
+      }
+      i -= 1
+    }
+    builder.toString
+  }
+
+  def format(stacks: Seq[(String, Long)]): String = {
+    stacks.map { case (stack, weight) => s"$stack $weight" }.mkString("", "\n", "\n")
+  }
+
+  def write(stacks: Seq[(String, Long)], output: File): Unit = {
+    write(format(stacks).getBytes(StandardCharsets.UTF_8), output)
+  }
+
+  def write(collapsed: Array[Byte], output: File): Unit = {
+    output.getParentFile.mkdirs()
+    Files.write(output.toPath, collapsed)
+  }
+
+  /**
+   * Delete the oldest collapsed files of a directory, to keep at most maxFiles files and maxBytes bytes.
+   * The newest file, or the file just written when given, is always kept.
+   *
+   * @param written the file just written, kept before the files with the same modification time
+   * @return the deleted files
+   */
+  def retain(dir: File, maxFiles: Int, maxBytes: Long, written: File = null): Seq[File] = {
+    val files = Option(dir.listFiles()).getOrElse(Array.empty[File])
+      .filter(file => file.isFile && file.getName.endsWith(".collapsed"))
+      .map(file => (file, file.lastModified, file.length))
+      .sortBy { case (file, modified, _) => (file != written, -modified, file.getName) }
+    var numKept = 0
+    var keptBytes = 0L
+    var full = false
+    val deleted = files.filter { case (file, _, size) =>
+      full = full || (numKept > 0 && (numKept >= maxFiles || keptBytes + size > maxBytes))
+      if (!full) {
+        numKept += 1
+        keptBytes += size
+        false
+      } else {
+        try {
+          Files.deleteIfExists(file.toPath)
+        } catch {
+          case e: java.io.IOException =>
+            logger.warn(s"Failed to delete the profile $file", e)
+            false
+        }
+      }
+    }.map(_._1).toSeq
+    if (deleted.nonEmpty) {
+      logger.info(s"Deleted ${deleted.size} profiles from $dir, keeping $numKept files and $keptBytes bytes")
+    }
+    deleted
+  }
+
+}
@@ -0,0 +1,172 @@
+package ch.cern.util
+
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.api.plugin.PluginContext
+
+/**
+ * Samples the values of the plugin gauges on a single scheduled thread per JVM, decoupled from the metrics sinks,
+ * see SamplerScheduler.
+ *
+ * Without it each gauge computes its value in getValue, on the thread of the metrics sink that polls it,
+ * and each sink (for example Graphite, the Prometheus servlet and JMX) recomputes all the values independently.
+ * With it, all the sources registered by the plugins are read in one pass at a fixed interval into a preallocated
+ * primitive array, which is then published with a single volatile write: the gauges only read their slot of the
+ * latest snapshot, all the values of a snapshot are taken within the same pass, and the cost of reading /proc files
+ * or the Hadoop storage statistics does not depend on the number of sinks or on their polling interval.
+ * Two arrays are used alternately, the sampling pass writes into the one that is not published.
+ * A source that fails keeps its last value.
+ * The slots of the sources of an unregistered registry are reused by the next sources added (see SlotSampler),
+ * the gauges of a registry must not be read after it is unregistered.
+ *
+ * The plugins register their gauges with MetricSnapshot.registerGauge, which falls back to a gauge computed
+ * on poll when sampling is not enabled for the registry, see MetricSnapshot.get.
+ */
+class MetricSnapshot(intervalMs: Long) extends SlotSampler(MetricSnapshot.initialCapacity, intervalMs) {
+
+  private var spare = new Array[Long](MetricSnapshot.initialCapacity)
+  @volatile private var current = new Array[Long](MetricSnapshot.initialCapacity)
+  @volatile private var lastSampleMs = System.currentTimeMillis()
+
+  start()
+
+  /**
+   * Add a source to the snapshot, its first value is read at registration.
+   *
+   * @param metricRegistry registry of the plugin owning the source, used to unregister it
+   * @param value function returning the current value
+   * @return the slot of the source in the snapshot
+   */
+  def add(metricRegistry: MetricRegistry, value: () => Long): Int = synchronized {
+    val slot = allocate(metricRegistry, value)
+    val initial = try value() catch { case NonFatal(_) => 0L }
+    spare(slot) = initial
+    current(slot) = initial
+    slot
+  }
+
+  def value(slot: Int): Long = current(slot)
+
+  // Time of the latest snapshot, in milliseconds since the epoch
+  def timestampMs: Long = lastSampleMs
+
+  override protected def resize(capacity: Int): Unit = {
+    spare = java.util.Arrays.copyOf(spare, capacity)
+    current = java.util.Arrays.copyOf(current, capacity)
+  }
+
+  // the value of a freed slot is overwritten by add when the slot is reused
+  override protected def clear(slot: Int): Unit = {}
+
+  private[util] def sample(): Unit = synchronized {
+    val previous = current
+    val next = spare
+    var slot = 0
+    while (slot < numSlots) {
+      val source = sources(slot)
+      next(slot) = previous(slot)
+      if (source != null) {
+        try {
+          next(slot) = source()
+        } catch {
+          // the source is not available at this time, for example a missing file, keep the last value
+          case NonFatal(_) =>
+        }
+      }
+      slot += 1
+    }
+    spare = previous
+    lastSampleMs = System.currentTimeMillis()
+    current = next
+  }
+
+}
+
+object MetricSnapshot {
+
+  val initialCapacity = 256
+
+  private var shared: Option[MetricSnapshot] = None
+  private val registries = new java.util.IdentityHashMap[MetricRegistry, MetricSnapshot]()
+
+  /**
+   * Get the snapshot sampler shared by all the plugins of this JVM, if enabled with
+   *   --conf spark.cernSparkPlugin.snapshotMetrics=true (default false)
+   *   --conf spark.cernSparkPlugin.snapshotIntervalMs (default 10000), sampling interval
+   * The sampler is created with the configuration of the first plugin that requests it,
+   * and stopped when the last registry using it is unregistered.
+   * The gauges registered with registerGauge on metricRegistry are then read from the snapshot.
+   */
+  def get(myContext: PluginContext, metricRegistry: MetricRegistry): Option[MetricSnapshot] = synchronized {
+    if (!myContext.conf.getBoolean("spark.cernSparkPlugin.snapshotMetrics", false)) {
+      None
+    } else {
+      if (shared.isEmpty) {
+        shared = Some(new MetricSnapshot(myContext.conf.getLong("spark.cernSparkPlugin.snapshotIntervalMs", 10000L)))
+      }
+      shared.foreach { snapshot =>
+        if (!registries.containsKey(metricRegistry)) {
+          registries.put(metricRegistry, snapshot)
+          metricRegistry.register(MetricRegistry.name("SnapshotTimestampMs"), new Gauge[Long] {
+            override def getValue: Long = snapshot.timestampMs
+          })
+        }
+      }
+      shared
+    }
+  }
+
+  /**
+   * Register a gauge, read from the snapshot if sampling is enabled for metricRegistry, else computed on poll.
+   *
+   * @param metricRegistry registry where the gauge is registered
+   * @param name name of the gauge
+   * @param value function returning the current value
+   */
+  def registerGauge(metricRegistry: MetricRegistry, name: String, value: () => Long): Unit = {
+    val snapshot = synchronized(Option(registries.get(metricRegistry)))
+    snapshot match {
+      case Some(sampler) =>
+        val slot = sampler.add(metricRegistry, value)
+        metricRegistry.register(MetricRegistry.name(name), new Gauge[Long] {
+          override def getValue: Long = sampler.value(slot)
+        })
+      case None =>
+        metricRegistry.register(MetricRegistry.name(name), new Gauge[Long] {
+          override def getValue: Long = value()
+        })
+    }
+  }
+
+  // Same as registerGauge, for the int-valued gauges of the legacy instrumentation getters
+  def registerIntGauge(metricRegistry: MetricRegistry, name: String, value: () => Int): Unit = {
+    val snapshot = synchronized(Option(registries.get(metricRegistry)))
+    snapshot match {
+      case Some(sampler) =>
+        val slot = sampler.add(metricRegistry, () => value().toLong)
+        metricRegistry.register(MetricRegistry.name(name), new Gauge[Int] {
+          override def getValue: Int = sampler.value(slot).toInt
+        })
+      case None =>
+        metricRegistry.register(MetricRegistry.name(name), new Gauge[Int] {
+          override def getValue: Int = value()
+        })
+    }
+  }
+
+  // Stops sampling the gauges of a plugin, called from the plugin shutdown
+  def unregister(metricRegistry: MetricRegistry): Unit = synchronized {
+    val snapshot = registries.remove(metricRegistry)
+    if (snapshot != null) {
+      snapshot.unregister(metricRegistry)
+      if (registries.isEmpty) {
+        snapshot.stop()
+        shared = None
+      }
+    }
+  }
+
+  private[util] def sharedSnapshot: Option[MetricSnapshot] = synchronized(shared)
+
+}
@@ -0,0 +1,47 @@
+package ch.cern.util
+
+import scala.collection.mutable
+
+import com.codahale.metrics.MetricRegistry
+
+// Gauges on the values read by a ProcFileReader, for CgroupMetrics and DiskMetrics
+// The gauges are registered with MetricSnapshot, the rates with RateSampler when rate metrics are enabled
+// The readers are kept per registry and closed with close(metricRegistry) at plugin shutdown,
+// so that restarting a plugin in the same JVM (local mode, tests) does not leak file descriptors
+object ProcFileGauges {
+
+  private val readers = new java.util.IdentityHashMap[MetricRegistry, mutable.LinkedHashSet[ProcFileReader]]()
+
+  private def track(metricRegistry: MetricRegistry, reader: ProcFileReader): Unit = readers.synchronized {
+    var registryReaders = readers.get(metricRegistry)
+    if (registryReaders == null) {
+      registryReaders = mutable.LinkedHashSet[ProcFileReader]()
+      readers.put(metricRegistry, registryReaders)
+    }
+    registryReaders += reader
+  }
+
+  // Close the readers of the gauges and rates registered on metricRegistry, called at plugin shutdown
+  def close(metricRegistry: MetricRegistry): Unit = {
+    val registryReaders = readers.synchronized(Option(readers.remove(metricRegistry)))
+    registryReaders.foreach(_.foreach(_.close()))
+  }
+
+  def registerGauge(metricRegistry: MetricRegistry, name: String, reader: ProcFileReader, key: String,
+                    scale: Long = 1L): Unit = {
+    val index = reader.indexOf(key)
+    track(metricRegistry, reader)
+    MetricSnapshot.registerGauge(metricRegistry, name, () => reader.value(index) * scale)
+  }
+
+  // Per-second rate of a counter, scaled, for example CPU nanoseconds per second to cores
+  def registerRate(rates: Option[RateSampler], metricRegistry: MetricRegistry, name: String,
+                   reader: ProcFileReader, key: String, scale: Double = 1.0): Unit = {
+    rates.foreach { sampler =>
+      val index = reader.indexOf(key)
+      track(metricRegistry, reader)
+      sampler.register(metricRegistry, name, () => reader.value(index), scale)
+    }
+  }
+
+}
@@ -0,0 +1,477 @@
+package ch.cern.util
+
+import java.io.{Closeable, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Paths, StandardOpenOption}
+
+/**
+ * Snapshot reader for files in /proc and /sys (cgroup stats, network counters).
+ *
+ * The file is opened once and re-read from offset 0 (pread) into a reused buffer,
+ * then parsed in a single pass into a preallocated array of longs by the subclass.
+ * The result is memoised for ttlMillis, so all the gauges registered on the same file
+ * share one read per metrics sink poll, and no objects are allocated in steady state.
+ *
+ * Values for keys that are not found in the file are reported as 0.
+ * I/O errors are propagated to the caller (the gauge) and the file is reopened on the next read.
+ * The file stays open till close(), called at plugin shutdown, see ProcFileGauges.close; a closed reader
+ * throws on read.
+ */
+abstract class ProcFileReader(val path: String, val keys: Seq[String], ttlMillis: Long) extends Closeable {
+
+  protected val keyBytes: Array[Array[Byte]] = keys.map(_.getBytes(StandardCharsets.US_ASCII)).toArray
+  protected val values: Array[Long] = new Array[Long](keys.length)
+
+  private val ttlNanos = ttlMillis * 1000000L
+  private var channel: FileChannel = _
+  private var buffer: ByteBuffer = ByteBuffer.allocate(ProcFileReader.initialBufferSize)
+  private var lastReadNanos = 0L
+  private var loaded = false
+  private var closed = false
+
+  // Parse data(0 until length) and fill values
+  protected def parse(data: Array[Byte], length: Int): Unit
+
+  // Position of key in the values array, used at gauge registration time
+  def indexOf(key: String): Int = {
+    val index = keys.indexOf(key)
+    if (index < 0) {
+      throw new IllegalArgumentException(s"Key $key is not read from $path")
+    }
+    index
+  }
+
+  def value(index: Int): Long = synchronized {
+    refresh()
+    values(index)
+  }
+
+  def refresh(): Unit = synchronized {
+    val now = System.nanoTime()
+    if (!loaded || now - lastReadNanos >= ttlNanos) {
+      val length = readFile()
+      java.util.Arrays.fill(values, 0L)
+      parse(buffer.array(), length)
+      lastReadNanos = now
+      loaded = true
+    }
+  }
+
+  // Reads the full file content with positional reads, growing the buffer if needed
+  private def readFile(): Int = {
+    if (closed) {
+      throw new IOException(s"Reader of $path is closed")
+    }
+    try {
+      if (channel == null) {
+        channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)
+      }
+      buffer.clear()
+      var numBytes = channel.read(buffer, 0L)
+      while (numBytes >= 0) {
+        if (!buffer.hasRemaining) {
+          val largerBuffer = ByteBuffer.allocate(buffer.capacity() * 2)
+          buffer.flip()
+          largerBuffer.put(buffer)
+          buffer = largerBuffer
+        }
+        numBytes = channel.read(buffer, buffer.position().toLong)
+      }
+      buffer.position()
+    } catch {
+      case e: IOException =>
+        closeChannel()
+        throw e
+    }
+  }
+
+  override def close(): Unit = synchronized {
+    closed = true
+    closeChannel()
+  }
+
+  private def closeChannel(): Unit = {
+    if (channel != null) {
+      try channel.close() catch { case _: IOException => }
+      channel = null
+    }
+  }
+
+}
+
+object ProcFileReader {
+
+  val initialBufferSize = 4096
+
+  // Parses a decimal number in data(start until end), stops at the first non digit character
+  def parseLong(data: Array[Byte], start: Int, end: Int): Long = {
+    var i = start
+    var negative = false
+    if (i < end && data(i) == '-') {
+      negative = true
+      i += 1
+    }
+    var result = 0L
+    while (i < end && data(i) >= '0' && data(i) <= '9') {
+      result = result * 10 + (data(i) - '0')
+      i += 1
+    }
+    if (negative) -result else result
+  }
+
+  // Compares the token data(start until end) with key
+  def tokenEquals(data: Array[Byte], start: Int, end: Int, key: Array[Byte]): Boolean = {
+    if (end - start != key.length) {
+      false
+    } else {
+      var i = 0
+      while (i < key.length && data(start + i) == key(i)) {
+        i += 1
+      }
+      i == key.length
+    }
+  }
+
+  def isSpace(b: Byte): Boolean = b == ' ' || b == '\t'
+
+  // Index of the end of the line starting at start (position of '\n' or length)
+  def lineEnd(data: Array[Byte], start: Int, length: Int): Int = {
+    var i = start
+    while (i < length && data(i) != '\n') {
+      i += 1
+    }
+    i
+  }
+
+  def skipSpaces(data: Array[Byte], start: Int, end: Int): Int = {
+    var i = start
+    while (i < end && isSpace(data(i))) {
+      i += 1
+    }
+    i
+  }
+
+  def tokenEnd(data: Array[Byte], start: Int, end: Int): Int = {
+    var i = start
+    while (i < end && !isSpace(data(i))) {
+      i += 1
+    }
+    i
+  }
+
+}
+
+/**
+ * Reads a file with a single numeric value, for example cpuacct.usage, exposed with the key "value".
+ */
+class SingleValueFileReader(path: String, ttlMillis: Long)
+  extends ProcFileReader(path, Seq("value"), ttlMillis) {
+
+  override protected def parse(data: Array[Byte], length: Int): Unit = {
+    val start = ProcFileReader.skipSpaces(data, 0, length)
+    values(0) = ProcFileReader.parseLong(data, start, length)
+  }
+
+}
+
+/**
+ * Reads files with one "key value" pair per line, for example memory.stat and cpu.stat.
+ */
+class KeyValueFileReader(path: String, keys: Seq[String], ttlMillis: Long)
+  extends ProcFileReader(path, keys, ttlMillis) {
+
+  override protected def parse(data: Array[Byte], length: Int): Unit = {
+    import ProcFileReader._
+    var lineStart = 0
+    while (lineStart < length) {
+      val end = lineEnd(data, lineStart, length)
+      val keyEnd = tokenEnd(data, lineStart, end)
+      var k = 0
+      while (k < keyBytes.length) {
+        if (tokenEquals(data, lineStart, keyEnd, keyBytes(k))) {
+          values(k) = parseLong(data, skipSpaces(data, keyEnd, end), end)
+        }
+        k += 1
+      }
+      lineStart = end + 1
+    }
+  }
+
+}
+
+/**
+ * Reads files in the /proc/net/netstat and /proc/net/snmp format, where each section
+ * is a pair of lines: a header line with the counter names and a line with the values,
+ * both starting with the section name, for example "IpExt: InOctets ..." followed by "IpExt: 123 ...".
+ * Keys are in the format "Section:Counter", for example "IpExt:InOctets".
+ */
+class NetstatFileReader(path: String, keys: Seq[String], ttlMillis: Long)
+  extends ProcFileReader(path, keys, ttlMillis) {
+
+  private val sectionBytes: Array[Array[Byte]] =
+    keys.map(k => k.substring(0, k.indexOf(':') + 1).getBytes(StandardCharsets.US_ASCII)).toArray
+  private val counterBytes: Array[Array[Byte]] =
+    keys.map(k => k.substring(k.indexOf(':') + 1).getBytes(StandardCharsets.US_ASCII)).toArray
+  // column of each key in the header line of its section, -1 when not found
+  private val columns = new Array[Int](keys.length)
+  // keys belonging to the section of the line being parsed
+  private val inSection = new Array[Boolean](keys.length)
+
+  override protected def parse(data: Array[Byte], length: Int): Unit = {
+    import ProcFileReader._
+    var lineStart = 0
+    var isHeader = true
+    while (lineStart < length) {
+      val end = lineEnd(data, lineStart, length)
+      val sectionEnd = tokenEnd(data, lineStart, end)
+      var k = 0
+      while (k < keyBytes.length) {
+        inSection(k) = tokenEquals(data, lineStart, sectionEnd, sectionBytes(k))
+        if (isHeader && inSection(k)) {
+          columns(k) = -1
+        }
+        k += 1
+      }
+      var column = 0
+      var tokenStart = skipSpaces(data, sectionEnd, end)
+      while (tokenStart < end) {
+        val tokenStop = tokenEnd(data, tokenStart, end)
+        k = 0
+        while (k < keyBytes.length) {
+          if (inSection(k)) {
+            if (isHeader) {
+              if (tokenEquals(data, tokenStart, tokenStop, counterBytes(k))) {
+                columns(k) = column
+              }
+            } else if (columns(k) == column) {
+              values(k) = parseLong(data, tokenStart, tokenStop)
+            }
+          }
+          k += 1
+        }
+        column += 1
+        tokenStart = skipSpaces(data, tokenStop, end)
+      }
+      isHeader = !isHeader
+      lineStart = end + 1
+    }
+  }
+
+}
+
+/**
+ * Reads the cgroup v2 pressure stall information files (cpu.pressure, memory.pressure, io.pressure),
+ * with lines in the format "some avg10=0.00 avg60=0.00 avg300=0.00 total=12345".
+ * Keys are "some" and "full", the value is the cumulative stall time (total), in microseconds.
+ */
+class PressureFileReader(path: String, ttlMillis: Long)
+  extends ProcFileReader(path, Seq("some", "full"), ttlMillis) {
+
+  private val totalBytes = "total=".getBytes(StandardCharsets.US_ASCII)
+
+  override protected def parse(data: Array[Byte], length: Int): Unit = {
+    import ProcFileReader._
+    var lineStart = 0
+    while (lineStart < length) {
+      val end = lineEnd(data, lineStart, length)
+      val keyEnd = tokenEnd(data, lineStart, end)
+      var k = 0
+      while (k < keyBytes.length) {
+        if (tokenEquals(data, lineStart, keyEnd, keyBytes(k))) {
+          var tokenStart = skipSpaces(data, keyEnd, end)
+          while (tokenStart < end) {
+            val tokenStop = tokenEnd(data, tokenStart, end)
+            if (tokenStop - tokenStart > totalBytes.length &&
+              tokenEquals(data, tokenStart, tokenStart + totalBytes.length, totalBytes)) {
+              values(k) = parseLong(data, tokenStart + totalBytes.length, tokenStop)
+            }
+            tokenStart = skipSpaces(data, tokenStop, end)
+          }
+        }
+        k += 1
+      }
+      lineStart = end + 1
+    }
+  }
+
+}
+
+/**
+ * Reads /proc/net/dev, with one line per network interface:
+ * "  eth0: rx_bytes rx_packets rx_errs rx_drop ... tx_bytes tx_packets tx_errs tx_drop ...".
+ * Keys are in the format "interface:counter", for example "eth0:rx_bytes", see NetDevFileReader.counters.
+ */
+class NetDevFileReader(path: String, keys: Seq[String], ttlMillis: Long)
+  extends ProcFileReader(path, keys, ttlMillis) {
+
+  private val interfaceBytes: Array[Array[Byte]] =
+    keys.map(k => k.substring(0, k.lastIndexOf(':')).getBytes(StandardCharsets.US_ASCII)).toArray
+  private val columns: Array[Int] = keys.map { k =>
+    val column = NetDevFileReader.counters.indexOf(k.substring(k.lastIndexOf(':') + 1))
+    if (column < 0) {
+      throw new IllegalArgumentException(s"Unknown counter in $k, possible values ${NetDevFileReader.counters}")
+    }
+    column
+  }.toArray
+  // counters of the line being parsed
+  private val lineValues = new Array[Long](NetDevFileReader.counters.length)
+
+  override protected def parse(data: Array[Byte], length: Int): Unit = {
+    import ProcFileReader._
+    var lineStart = 0
+    while (lineStart < length) {
+      val end = lineEnd(data, lineStart, length)
+      val nameStart = skipSpaces(data, lineStart, end)
+      var nameEnd = nameStart
+      while (nameEnd < end && data(nameEnd) != ':' && data(nameEnd) != '|') {
+        nameEnd += 1
+      }
+      // the two header lines have '|' separators instead of "interface:"
+      if (nameEnd < end && data(nameEnd) == ':') {
+        var column = 0
+        var tokenStart = skipSpaces(data, nameEnd + 1, end)
+        while (tokenStart < end && column < lineValues.length) {
+          val tokenStop = tokenEnd(data, tokenStart, end)
+          lineValues(column) = parseLong(data, tokenStart, tokenStop)
+          column += 1
+          tokenStart = skipSpaces(data, tokenStop, end)
+        }
+        var k = 0
+        while (k < keyBytes.length) {
+          if (tokenEquals(data, nameStart, nameEnd, interfaceBytes(k))) {
+            values(k) = lineValues(columns(k))
+          }
+          k += 1
+        }
+      }
+      lineStart = end + 1
+    }
+  }
+
+}
+
+object NetDevFileReader {
+
+  val counters: Seq[String] = Seq("rx_bytes", "rx_packets", "rx_errs", "rx_drop", "rx_fifo", "rx_frame",
+    "rx_compressed", "rx_multicast", "tx_bytes", "tx_packets", "tx_errs", "tx_drop", "tx_fifo", "tx_colls",
+    "tx_carrier", "tx_compressed")
+
+  // Names of the interfaces listed in the file, read once at registration time
+  def interfaces(path: String): Seq[String] = {
+    val source = scala.io.Source.fromFile(path, "US-ASCII")
+    try {
+      source.getLines().filter(_.contains(":")).map(line => line.substring(0, line.lastIndexOf(':')).trim).toList
+    } finally {
+      source.close()
+    }
+  }
+
+}
+
+/**
+ * Reads /proc/diskstats, with one line per block device: "major minor name reads reads_merged sectors_read ...".
+ * Keys are in the format "device:counter", for example "nvme0n1:sectors_read", see DiskStatsFileReader.counters.
+ * Sectors are 512 bytes, times are in milliseconds.
+ */
+class DiskStatsFileReader(path: String, keys: Seq[String], ttlMillis: Long)
+  extends ProcFileReader(path, keys, ttlMillis) {
+
+  private val deviceBytes: Array[Array[Byte]] =
+    keys.map(k => k.substring(0, k.lastIndexOf(':')).getBytes(StandardCharsets.US_ASCII)).toArray
+  private val columns: Array[Int] = keys.map { k =>
+    val column = DiskStatsFileReader.counters.indexOf(k.substring(k.lastIndexOf(':') + 1))
+    if (column < 0) {
+      throw new IllegalArgumentException(s"Unknown counter in $k, possible values ${DiskStatsFileReader.counters}")
+    }
+    column
+  }.toArray
+
+  override protected def parse(data: Array[Byte], length: Int): Unit = {
+    import ProcFileReader._
+    var lineStart = 0
+    while (lineStart < length) {
+      val end = lineEnd(data, lineStart, length)
+      // skip major and minor numbers
+      val majorEnd = tokenEnd(data, skipSpaces(data, lineStart, end), end)
+      val minorEnd = tokenEnd(data, skipSpaces(data, majorEnd, end), end)
+      val nameStart = skipSpaces(data, minorEnd, end)
+      val nameEnd = tokenEnd(data, nameStart, end)
+      var k = 0
+      while (k < keyBytes.length) {
+        if (tokenEquals(data, nameStart, nameEnd, deviceBytes(k))) {
+          var column = 0
+          var tokenStart = skipSpaces(data, nameEnd, end)
+          while (tokenStart < end && column < columns(k)) {
+            tokenStart = skipSpaces(data, tokenEnd(data, tokenStart, end), end)
+            column += 1
+          }
+          if (tokenStart < end) {
+            values(k) = parseLong(data, tokenStart, tokenEnd(data, tokenStart, end))
+          }
+        }
+        k += 1
+      }
+      lineStart = end + 1
+    }
+  }
+
+}
+
+object DiskStatsFileReader {
+
+  val counters: Seq[String] = Seq("reads", "reads_merged", "sectors_read", "read_ms", "writes", "writes_merged",
+    "sectors_written", "write_ms", "in_progress", "io_ms", "weighted_io_ms", "discards", "discards_merged",
+    "sectors_discarded", "discard_ms", "flushes", "flush_ms")
+
+  // Name of the block devices listed in the file, by "major:minor", read once at registration time
+  def devices(path: String): Map[String, String] = {
+    val source = scala.io.Source.fromFile(path, "US-ASCII")
+    try {
+      source.getLines().map(_.trim.split("\\s+")).filter(_.length > 3)
+        .map(fields => s"${fields(0)}:${fields(1)}" -> fields(2)).toMap
+    } finally {
+      source.close()
+    }
+  }
+
+}
+
+/**
+ * Reads the cgroup v2 io.stat file, with one line per device: "259:0 rbytes=123 wbytes=456 rios=7 wios=8 ...".
+ * Keys are in the format "major:minor:counter", for example "259:0:rbytes".
+ */
+class IoStatFileReader(path: String, keys: Seq[String], ttlMillis: Long)
+  extends ProcFileReader(path, keys, ttlMillis) {
+
+  private val deviceBytes: Array[Array[Byte]] =
+    keys.map(k => k.substring(0, k.lastIndexOf(':')).getBytes(StandardCharsets.US_ASCII)).toArray
+  private val counterBytes: Array[Array[Byte]] =
+    keys.map(k => (k.substring(k.lastIndexOf(':') + 1) + "=").getBytes(StandardCharsets.US_ASCII)).toArray
+
+  override protected def parse(data: Array[Byte], length: Int): Unit = {
+    import ProcFileReader._
+    var lineStart = 0
+    while (lineStart < length) {
+      val end = lineEnd(data, lineStart, length)
+      val deviceEnd = tokenEnd(data, lineStart, end)
+      var tokenStart = skipSpaces(data, deviceEnd, end)
+      while (tokenStart < end) {
+        val tokenStop = tokenEnd(data, tokenStart, end)
+        var k = 0
+        while (k < keyBytes.length) {
+          val counterEnd = tokenStart + counterBytes(k).length
+          if (counterEnd < tokenStop && tokenEquals(data, tokenStart, counterEnd, counterBytes(k)) &&
+            tokenEquals(data, lineStart, deviceEnd, deviceBytes(k))) {
+            values(k) = parseLong(data, counterEnd, tokenStop)
+          }
+          k += 1
+        }
+        tokenStart = skipSpaces(data, tokenStop, end)
+      }
+      lineStart = end + 1
+    }
+  }
+
+}
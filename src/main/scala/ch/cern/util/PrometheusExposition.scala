@@ -0,0 +1,292 @@
+package ch.cern.util
+
+import java.nio.charset.StandardCharsets
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+import scala.jdk.CollectionConverters._
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.{Gauge, MetricRegistry, MetricRegistryListener}
+
+import ch.cern.instrumentation.LatencyHistogram
+
+/**
+ * Renders the numeric gauges and the latency histograms of the plugin registries in the Prometheus text format
+ * (version 0.0.4) or in the OpenMetrics text format, for ch.cern.PrometheusExporter.
+ *
+ * Naming: spark_<source>_<gauge>, with the non alphanumeric characters replaced by '_',
+ * for example spark_plugin_ch_cern_HDFSMetrics_bytesRead, with the labels app_id and executor_id.
+ * A plugin with both a driver and an executor source in the same JVM (local mode) gets the label source_index.
+ * The histograms registered with HistogramGauges are exported as histograms with exponential buckets
+ * named spark_<source>_<prefix>Histogram<unit>, le = 2^k - 1 (k from 0 to 36, 7 for percentages), and _count.
+ * The _sum is not exported, the cumulative time gauges of the instrumentation classes provide it.
+ * The percentile gauges of the histograms are also exported, as for the other sinks.
+ *
+ * The series names and labels are encoded once, when the set of gauges changes, into a layout of byte arrays.
+ * Rendering then only writes those and the values, formatted without intermediate strings, into a byte buffer
+ * that is reused between scrapes. The rendered text is served again until it is older than ttlMs,
+ * so that the gauges are computed at most once per TTL whatever the number of scrapers.
+ * Not thread-safe, the exporter renders on a single thread.
+ */
+class PrometheusExposition(registries: () => Seq[(String, MetricRegistry)], labels: () => Seq[(String, String)],
+                           ttlMs: Long) {
+
+  private var buffer = new Array[Byte](64 * 1024)
+  private var length = 0
+  private var renderedMs = 0L
+  private var rendered = false
+
+  private var families = new Array[PrometheusExposition.Family](0)
+  private var layoutSources: Seq[(String, MetricRegistry)] = Nil
+  private val listeners = new ArrayBuffer[(MetricRegistry, MetricRegistryListener)]
+  @volatile private var layoutChanged = true
+
+  def bytes: Array[Byte] = buffer
+
+  def size: Int = length
+
+  /**
+   * Render the metrics, unless the previous rendering is younger than the TTL.
+   * The result is in bytes, from 0 to size.
+   */
+  def render(nowMs: Long): Unit = {
+    if (!rendered || nowMs - renderedMs >= ttlMs) {
+      val sources = registries()
+      if (layoutChanged || !sameSources(sources)) {
+        buildLayout(sources)
+      }
+      length = 0
+      var i = 0
+      while (i < families.length) {
+        writeFamily(families(i))
+        i += 1
+      }
+      renderedMs = nowMs
+      rendered = true
+    }
+  }
+
+  // Stop listening to the registries
+  def close(): Unit = {
+    listeners.foreach { case (registry, listener) => registry.removeListener(listener) }
+    listeners.clear()
+  }
+
+  private def sameSources(sources: Seq[(String, MetricRegistry)]): Boolean = {
+    sources.length == layoutSources.length && sources.zip(layoutSources).forall { case ((n1, r1), (n2, r2)) =>
+      n1 == n2 && (r1 eq r2)
+    }
+  }
+
+  private def buildLayout(sources: Seq[(String, MetricRegistry)]): Unit = {
+    layoutChanged = false
+    close()
+    val byName = mutable.LinkedHashMap[String, PrometheusExposition.Family]()
+    val sourceCount = sources.groupBy(_._1).map { case (name, list) => name -> list.size }
+    val sourceIndex = mutable.HashMap[String, Int]()
+    // the labels are read when the layout is built, the application id is not known yet at plugin init
+    val baseLabels = labels()
+
+    sources.foreach { case (sourceName, registry) =>
+      val listener = new MetricRegistryListener.Base {
+        override def onGaugeAdded(name: String, gauge: Gauge[_]): Unit = layoutChanged = true
+        override def onGaugeRemoved(name: String): Unit = layoutChanged = true
+      }
+      registry.addListener(listener)
+      listeners += ((registry, listener))
+      // addListener notifies the existing gauges
+      layoutChanged = false
+
+      val index = sourceIndex.getOrElse(sourceName, 0)
+      sourceIndex(sourceName) = index + 1
+      val sourceLabels =
+        if (sourceCount(sourceName) > 1) baseLabels :+ ("source_index" -> index.toString) else baseLabels
+      val prefix = "spark_" + PrometheusExposition.sanitize(sourceName) + "_"
+
+      registry.getGauges.asScala.foreach { case (gaugeName, gauge) =>
+        val name = prefix + PrometheusExposition.sanitize(gaugeName)
+        val family = byName.getOrElseUpdate(name, new PrometheusExposition.Family(name, "gauge"))
+        family.samples += new PrometheusExposition.GaugeSample(
+          PrometheusExposition.ascii(name + PrometheusExposition.labelSet(sourceLabels, None) + " "), gauge)
+      }
+
+      HistogramGauges.registered(registry).foreach { h =>
+        val name = prefix + PrometheusExposition.sanitize(h.prefix + "Histogram" + h.unit)
+        val family = byName.getOrElseUpdate(name, new PrometheusExposition.Family(name, "histogram"))
+        family.samples += PrometheusExposition.HistogramSample(name, sourceLabels, h.histogram,
+          if (h.unit == "Percent") 8 else 37)
+      }
+    }
+    families = byName.values.toArray
+    layoutSources = sources
+  }
+
+  private def writeFamily(family: PrometheusExposition.Family): Unit = {
+    val start = length
+    write(family.header)
+    val samplesStart = length
+    var i = 0
+    while (i < family.samples.length) {
+      family.samples(i) match {
+        case gauge: PrometheusExposition.GaugeSample => writeGauge(gauge)
+        case histogram: PrometheusExposition.HistogramSample => writeHistogram(histogram)
+      }
+      i += 1
+    }
+    // no sample written, for example a string gauge, drop the header too
+    if (length == samplesStart) {
+      length = start
+    }
+  }
+
+  private def writeGauge(sample: PrometheusExposition.GaugeSample): Unit = {
+    // a gauge that fails, for example on a missing file, or is not numeric, is left out
+    val value = try sample.gauge.getValue catch { case NonFatal(_) => null }
+    value match {
+      case v: java.lang.Long => writeSample(sample.prefix, v.longValue)
+      case v: java.lang.Integer => writeSample(sample.prefix, v.longValue)
+      case v: java.lang.Short => writeSample(sample.prefix, v.longValue)
+      case v: java.lang.Byte => writeSample(sample.prefix, v.longValue)
+      case v: Number =>
+        write(sample.prefix)
+        writeDouble(v.doubleValue)
+        writeByte('\n')
+      case _ =>
+    }
+  }
+
+  private def writeHistogram(sample: PrometheusExposition.HistogramSample): Unit = {
+    val total = sample.histogram.getCumulativeCountsAtPowersOfTwo(sample.counts)
+    var k = 0
+    while (k < sample.counts.length) {
+      writeSample(sample.bucketPrefixes(k), sample.counts(k))
+      k += 1
+    }
+    writeSample(sample.infPrefix, total)
+    writeSample(sample.countPrefix, total)
+  }
+
+  private def writeSample(prefix: Array[Byte], value: Long): Unit = {
+    write(prefix)
+    writeLong(value)
+    writeByte('\n')
+  }
+
+  private def ensureCapacity(extra: Int): Unit = {
+    if (length + extra > buffer.length) {
+      buffer = java.util.Arrays.copyOf(buffer, math.max(buffer.length * 2, length + extra))
+    }
+  }
+
+  private def write(bytes: Array[Byte]): Unit = {
+    ensureCapacity(bytes.length)
+    System.arraycopy(bytes, 0, buffer, length, bytes.length)
+    length += bytes.length
+  }
+
+  private def writeByte(b: Char): Unit = {
+    ensureCapacity(1)
+    buffer(length) = b.toByte
+    length += 1
+  }
+
+  private def writeLong(value: Long): Unit = {
+    if (value == Long.MinValue) {
+      write(PrometheusExposition.ascii(value.toString))
+    } else {
+      ensureCapacity(20)
+      var v = value
+      if (v < 0) {
+        buffer(length) = '-'.toByte
+        length += 1
+        v = -v
+      }
+      val start = length
+      do {
+        buffer(length) = ('0' + (v % 10)).toByte
+        length += 1
+        v /= 10
+      } while (v > 0)
+      // the digits were written from the least significant, reverse them
+      var i = start
+      var j = length - 1
+      while (i < j) {
+        val tmp = buffer(i)
+        buffer(i) = buffer(j)
+        buffer(j) = tmp
+        i += 1
+        j -= 1
+      }
+    }
+  }
+
+  private def writeDouble(value: Double): Unit = {
+    if (value.isNaN) {
+      write(PrometheusExposition.nan)
+    } else if (value.isPosInfinity) {
+      write(PrometheusExposition.posInf)
+    } else if (value.isNegInfinity) {
+      write(PrometheusExposition.negInf)
+    } else if (value == math.rint(value) && math.abs(value) < 1e15) {
+      writeLong(value.toLong)
+    } else {
+      write(PrometheusExposition.ascii(java.lang.Double.toString(value)))
+    }
+  }
+
+}
+
+object PrometheusExposition {
+
+  val textContentType = "text/plain; version=0.0.4; charset=utf-8"
+  val openMetricsContentType = "application/openmetrics-text; version=1.0.0; charset=utf-8"
+  val openMetricsEof: Array[Byte] = ascii("# EOF\n")
+
+  private val nan = ascii("NaN")
+  private val posInf = ascii("+Inf")
+  private val negInf = ascii("-Inf")
+
+  private class Family(name: String, metricType: String) {
+    val header: Array[Byte] = ascii(s"# TYPE $name $metricType\n")
+    val samples = new ArrayBuffer[Sample]
+  }
+
+  private sealed trait Sample
+
+  private class GaugeSample(val prefix: Array[Byte], val gauge: Gauge[_]) extends Sample
+
+  private class HistogramSample(val histogram: LatencyHistogram, val counts: Array[Long],
+                                val bucketPrefixes: Array[Array[Byte]], val infPrefix: Array[Byte],
+                                val countPrefix: Array[Byte]) extends Sample
+
+  private object HistogramSample {
+    def apply(name: String, labels: Seq[(String, String)], histogram: LatencyHistogram,
+              numBuckets: Int): HistogramSample = {
+      val bucketPrefixes = Array.tabulate(numBuckets) { k =>
+        ascii(name + "_bucket" + labelSet(labels, Some(((1L << k) - 1).toString)) + " ")
+      }
+      new HistogramSample(histogram, new Array[Long](numBuckets), bucketPrefixes,
+        ascii(name + "_bucket" + labelSet(labels, Some("+Inf")) + " "),
+        ascii(name + "_count" + labelSet(labels, None) + " "))
+    }
+  }
+
+  def ascii(s: String): Array[Byte] = s.getBytes(StandardCharsets.UTF_8)
+
+  // Metric names: [a-zA-Z_:][a-zA-Z0-9_:]*
+  def sanitize(name: String): String = {
+    val sanitized = name.map(c => if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+      c == '_' || c == ':') c else '_')
+    if (sanitized.nonEmpty && sanitized.charAt(0).isDigit) "_" + sanitized else sanitized
+  }
+
+  def escape(value: String): String =
+    Option(value).getOrElse("").replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+
+  private def labelSet(labels: Seq[(String, String)], le: Option[String]): String = {
+    val all = labels ++ le.map("le" -> _)
+    if (all.isEmpty) "" else all.map { case (k, v) => k + "=\"" + escape(v) + "\"" }.mkString("{", ",", "}")
+  }
+
+}
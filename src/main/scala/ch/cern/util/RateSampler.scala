@@ -0,0 +1,158 @@
+package ch.cern.util
+
+import scala.util.control.NonFatal
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.api.plugin.PluginContext
+
+/**
+ * Computes per-second rates of monotonic counters on the executor, so that metrics backends
+ * do not need to compute derivatives over many series.
+ *
+ * All the counters registered by the plugins are sampled by a single scheduled thread per JVM,
+ * not on metrics sink poll, see SamplerScheduler. The slots of the counters of an unregistered
+ * registry are reused by the next counters registered, see SlotSampler. For each counter the previous sample is kept in a primitive array,
+ * the rate is (current - previous) / elapsed time, and an exponentially weighted moving average
+ * of the rate is also computed. A counter that decreases (for example after a reset) reports
+ * a rate of 0 for that interval.
+ *
+ * For each counter two gauges are registered: <rateName> and <rateName>EWMA.
+ */
+class RateSampler(intervalMs: Long, ewmaWindowMs: Long) extends SlotSampler(RateSampler.initialCapacity, intervalMs) {
+
+  private var scales = new Array[Double](RateSampler.initialCapacity)
+  private var previous = new Array[Long](RateSampler.initialCapacity)
+  private var hasPrevious = new Array[Boolean](RateSampler.initialCapacity)
+  private var hasRate = new Array[Boolean](RateSampler.initialCapacity)
+  @volatile private var rates = new Array[Double](RateSampler.initialCapacity)
+  @volatile private var ewmaRates = new Array[Double](RateSampler.initialCapacity)
+  private var lastSampleNanos = System.nanoTime()
+
+  start()
+
+  /**
+   * Register the rate gauges of a counter.
+   *
+   * @param metricRegistry registry where the rate gauges are registered
+   * @param rateName name of the rate gauge, the EWMA gauge is named rateName + "EWMA"
+   * @param value function returning the current value of the monotonic counter
+   * @param scale factor applied to the rate, for example 1e-9 to convert CPU nanoseconds per second to cores
+   */
+  def register(metricRegistry: MetricRegistry, rateName: String, value: () => Long, scale: Double = 1.0): Unit = {
+    val slot = synchronized {
+      val slot = allocate(metricRegistry, value)
+      scales(slot) = scale
+      slot
+    }
+
+    metricRegistry.register(MetricRegistry.name(rateName), new Gauge[Double] {
+      override def getValue: Double = rate(slot)
+    })
+
+    metricRegistry.register(MetricRegistry.name(rateName + "EWMA"), new Gauge[Double] {
+      override def getValue: Double = ewmaRate(slot)
+    })
+  }
+
+  def rate(slot: Int): Double = rates(slot)
+
+  def ewmaRate(slot: Int): Double = ewmaRates(slot)
+
+  override protected def resize(capacity: Int): Unit = {
+    scales = java.util.Arrays.copyOf(scales, capacity)
+    previous = java.util.Arrays.copyOf(previous, capacity)
+    hasPrevious = java.util.Arrays.copyOf(hasPrevious, capacity)
+    hasRate = java.util.Arrays.copyOf(hasRate, capacity)
+    rates = java.util.Arrays.copyOf(rates, capacity)
+    ewmaRates = java.util.Arrays.copyOf(ewmaRates, capacity)
+  }
+
+  // a reused slot starts without a previous sample, and the gauges of the freed slot read 0 instead of the last rate
+  override protected def clear(slot: Int): Unit = {
+    hasPrevious(slot) = false
+    hasRate(slot) = false
+    rates(slot) = 0.0
+    ewmaRates(slot) = 0.0
+  }
+
+  private[util] def sample(): Unit = synchronized {
+    sample(System.nanoTime())
+  }
+
+  // one pass, with the time of the pass passed explicitly by the tests
+  private[util] def sample(now: Long): Unit = synchronized {
+    val elapsedSec = (now - lastSampleNanos) / 1e9
+    lastSampleNanos = now
+    val alpha = 1.0 - math.exp(-elapsedSec * 1000.0 / ewmaWindowMs)
+    val currentRates = rates
+    val currentEwmaRates = ewmaRates
+    var slot = 0
+    while (slot < numSlots) {
+      val source = sources(slot)
+      if (source != null) {
+        try {
+          val value = source()
+          if (hasPrevious(slot) && elapsedSec > 0) {
+            val delta = value - previous(slot)
+            val rate = if (delta < 0) 0.0 else delta * scales(slot) / elapsedSec
+            currentRates(slot) = rate
+            currentEwmaRates(slot) =
+              if (hasRate(slot)) currentEwmaRates(slot) + alpha * (rate - currentEwmaRates(slot)) else rate
+            hasRate(slot) = true
+          }
+          previous(slot) = value
+          hasPrevious(slot) = true
+        } catch {
+          // the counter is not available at this time, for example a missing file, keep the last rate
+          case NonFatal(_) =>
+        }
+      }
+      slot += 1
+    }
+  }
+
+}
+
+object RateSampler {
+
+  val initialCapacity = 64
+
+  private var shared: Option[RateSampler] = None
+
+  /**
+   * Get the rate sampler shared by all the plugins of this JVM, if rates are enabled with
+   *   --conf spark.cernSparkPlugin.rateMetrics=true (default false)
+   *   --conf spark.cernSparkPlugin.rateIntervalMs (default 10000), sampling interval
+   *   --conf spark.cernSparkPlugin.rateEWMAWindowMs (default 60000), time constant of the moving average
+   * The sampler is created with the configuration of the first plugin that requests it,
+   * and stopped when the counters of the last plugin are unregistered.
+   */
+  def get(myContext: PluginContext): Option[RateSampler] = synchronized {
+    if (!myContext.conf.getBoolean("spark.cernSparkPlugin.rateMetrics", false)) {
+      None
+    } else {
+      if (shared.isEmpty) {
+        shared = Some(new RateSampler(
+          myContext.conf.getLong("spark.cernSparkPlugin.rateIntervalMs", 10000L),
+          myContext.conf.getLong("spark.cernSparkPlugin.rateEWMAWindowMs", 60000L)))
+      }
+      shared
+    }
+  }
+
+  // Stops sampling the counters of a plugin, called from the plugin shutdown.
+  // The sampler is stopped when no counters are left: the plugins register their counters in init
+  // and Spark shuts down the plugins of an executor together, after their init.
+  def unregister(metricRegistry: MetricRegistry): Unit = synchronized {
+    shared.foreach { sampler =>
+      sampler.unregister(metricRegistry)
+      if (sampler.size == 0) {
+        sampler.stop()
+        shared = None
+      }
+    }
+  }
+
+  private[util] def sharedSampler: Option[RateSampler] = synchronized(shared)
+
+}
@@ -0,0 +1,50 @@
+package ch.cern.util
+
+import java.util.concurrent.{Executors, ScheduledExecutorService, ScheduledFuture, ThreadFactory, TimeUnit}
+
+/**
+ * The scheduler thread of the periodic samplers of the plugins (MetricSnapshot, RateSampler and the
+ * JVMMetrics sampler): one daemon thread per JVM, started with the first task and stopped when
+ * the last task is cancelled, so that a plugin shutdown does not leave a thread behind.
+ * The tasks run one after the other on the same thread, they must not block.
+ */
+object SamplerScheduler {
+
+  private var scheduler: ScheduledExecutorService = _
+  private var numTasks = 0
+
+  /**
+   * Run a task at a fixed rate, the first run is after one interval.
+   *
+   * @param intervalMs interval between the runs
+   * @param task the task, it must handle its own errors, as an exception cancels the next runs
+   * @return the handle to pass to cancel
+   */
+  def schedule(intervalMs: Long, task: Runnable): ScheduledFuture[_] = synchronized {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory {
+        override def newThread(r: Runnable): Thread = {
+          val thread = new Thread(r, "cern-spark-plugin-sampler")
+          thread.setDaemon(true)
+          thread
+        }
+      })
+    }
+    numTasks += 1
+    scheduler.scheduleAtFixedRate(task, intervalMs, intervalMs, TimeUnit.MILLISECONDS)
+  }
+
+  // Cancels a task, the thread is stopped with the last task, cancelling twice has no effect
+  def cancel(task: ScheduledFuture[_]): Unit = synchronized {
+    if (task.cancel(false)) {
+      numTasks -= 1
+      if (numTasks == 0) {
+        scheduler.shutdownNow()
+        scheduler = null
+      }
+    }
+  }
+
+  private[util] def isRunning: Boolean = synchronized(scheduler != null)
+
+}
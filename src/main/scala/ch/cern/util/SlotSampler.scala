@@ -0,0 +1,88 @@
+package ch.cern.util
+
+import java.util.concurrent.ScheduledFuture
+
+import com.codahale.metrics.MetricRegistry
+
+/**
+ * Base of the samplers that read the sources registered by the plugins in one pass at a fixed interval,
+ * on the thread of SamplerScheduler, see MetricSnapshot and RateSampler.
+ *
+ * Each source gets a slot, an index in the primitive arrays of the sampler. The slots of the sources
+ * of an unregistered registry are reused by the next sources added, so that plugins restarted with
+ * a new registry do not grow the arrays.
+ * The subclasses keep their per-slot state in arrays of the same capacity, resized in resize,
+ * and clear the state of a freed slot in clear. They call start at the end of their constructor.
+ */
+abstract class SlotSampler(initialCapacity: Int, intervalMs: Long) {
+
+  protected var owners = new Array[MetricRegistry](initialCapacity)
+  protected var sources = new Array[() => Long](initialCapacity)
+  protected var numSlots = 0
+  // slots freed by unregister, reused by allocate
+  private val freeSlots = new java.util.ArrayDeque[Integer]()
+
+  private var task: ScheduledFuture[_] = _
+
+  // Copies the per-slot arrays of the subclass to the new capacity, called with the lock held
+  protected def resize(capacity: Int): Unit
+
+  // Clears the per-slot state of a freed slot, called with the lock held
+  protected def clear(slot: Int): Unit
+
+  // One sampling pass over the slots in use, the sources that fail must not stop the pass
+  private[util] def sample(): Unit
+
+  // Schedules the sampling passes, once the state of the subclass is initialized
+  protected def start(): Unit = synchronized {
+    task = SamplerScheduler.schedule(intervalMs, new Runnable {
+      override def run(): Unit = sample()
+    })
+  }
+
+  // Allocates the slot of a source, called with the lock held
+  protected def allocate(metricRegistry: MetricRegistry, value: () => Long): Int = {
+    val slot = if (!freeSlots.isEmpty) {
+      freeSlots.pollFirst().intValue()
+    } else {
+      if (numSlots == sources.length) {
+        val capacity = sources.length * 2
+        owners = java.util.Arrays.copyOf(owners, capacity)
+        sources = java.util.Arrays.copyOf(sources, capacity)
+        resize(capacity)
+      }
+      numSlots += 1
+      numSlots - 1
+    }
+    owners(slot) = metricRegistry
+    sources(slot) = value
+    slot
+  }
+
+  // Stops sampling the sources registered with metricRegistry, called at plugin shutdown
+  def unregister(metricRegistry: MetricRegistry): Unit = synchronized {
+    var slot = 0
+    while (slot < numSlots) {
+      if (owners(slot) eq metricRegistry) {
+        owners(slot) = null
+        sources(slot) = null
+        clear(slot)
+        freeSlots.addLast(slot)
+      }
+      slot += 1
+    }
+  }
+
+  // Stops the sampling task, called when the last user of the sampler is unregistered
+  def stop(): Unit = synchronized {
+    if (task != null) {
+      SamplerScheduler.cancel(task)
+    }
+  }
+
+  private[util] def isStopped: Boolean = synchronized(task == null || task.isCancelled)
+
+  // Number of slots in use
+  private[util] def size: Int = synchronized(numSlots - freeSlots.size)
+
+}
@@ -0,0 +1,73 @@
+package ch.cern.util
+
+import java.util.concurrent.ConcurrentLinkedDeque
+
+/**
+ * Per-stage summaries of the task messages sent by the executors, on the driver,
+ * for ch.cern.experimental.TaskIOAttribution and ch.cern.experimental.TaskTimeBreakdown.
+ *
+ * Task messages are sent asynchronously and can arrive after the stage completion event: the summary of a stage
+ * keeps being updated after the stage completes, till it is evicted from completed, which holds the summaries
+ * of the last maxStages completed stages, most recent last.
+ * The keys of the last maxStages evicted stages are remembered and the late messages for these stages are dropped,
+ * so that they do not create summaries that would never be evicted.
+ *
+ * @param maxStages number of completed stage summaries kept
+ * @param create creates the summary of a stage, from the stage id and attempt number
+ * @param completed the summaries of the completed stages
+ */
+class StageSummaries[T](maxStages: Int, create: (Int, Int) => T, completed: ConcurrentLinkedDeque[T]) {
+
+  private val stages = new java.util.HashMap[(Int, Int), T]()
+  // keys of the summaries in completed, in the same order
+  private val completedKeys = new java.util.ArrayDeque[(Int, Int)]()
+  private val evicted = new java.util.LinkedHashSet[(Int, Int)]()
+
+  /**
+   * Get the summary of a stage, created by the first message of the stage.
+   *
+   * @return the summary, None if the stage was evicted
+   */
+  def get(stageId: Int, stageAttemptId: Int): Option[T] = synchronized {
+    val key = (stageId, stageAttemptId)
+    if (evicted.contains(key)) {
+      None
+    } else {
+      Option(stages.get(key)).orElse {
+        val summary = create(stageId, stageAttemptId)
+        stages.put(key, summary)
+        Some(summary)
+      }
+    }
+  }
+
+  /**
+   * Add the summary of a stage to the completed summaries, called on the stage completion event.
+   * The oldest completed summaries are evicted when there are more than maxStages.
+   *
+   * @return the summary, None if the stage was evicted
+   */
+  def complete(stageId: Int, stageAttemptId: Int): Option[T] = synchronized {
+    get(stageId, stageAttemptId).map { summary =>
+      val key = (stageId, stageAttemptId)
+      if (!completedKeys.contains(key)) {
+        completed.addLast(summary)
+        completedKeys.addLast(key)
+        while (completedKeys.size > maxStages) {
+          completed.pollFirst()
+          val evictedKey = completedKeys.pollFirst()
+          stages.remove(evictedKey)
+          evicted.add(evictedKey)
+          if (evicted.size > maxStages) {
+            evicted.remove(evicted.iterator().next())
+          }
+        }
+      }
+      summary
+    }
+  }
+
+  // Number of stages with a summary, completed or not
+  def size: Int = synchronized(stages.size)
+
+}
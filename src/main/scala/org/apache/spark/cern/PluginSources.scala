@@ -0,0 +1,33 @@
+package org.apache.spark.cern
+
+import com.codahale.metrics.MetricRegistry
+
+import org.apache.spark.SparkEnv
+
+/**
+ * Access to the metrics sources registered by the Spark plugins in the metrics system of this JVM.
+ * The plugin sources are named plugin.<plugin class name>, the metrics system is private to Spark,
+ * hence this object is in the org.apache.spark namespace.
+ * Used by ch.cern.PrometheusExporter.
+ */
+object PluginSources {
+
+  /**
+   * Get the registries of the plugin sources.
+   *
+   * @param pluginClasses the class names of the plugins, for example from spark.plugins
+   * @return (source name, registry), in the order of pluginClasses. A plugin can have two sources,
+   *         the driver and the executor components, when they run in the same JVM (local mode).
+   */
+  def registries(pluginClasses: Seq[String]): Seq[(String, MetricRegistry)] = {
+    val env = SparkEnv.get
+    if (env == null) {
+      Nil
+    } else {
+      pluginClasses.flatMap { className =>
+        env.metricsSystem.getSourcesByName("plugin." + className).map(source => (source.sourceName, source.metricRegistry))
+      }
+    }
+  }
+
+}
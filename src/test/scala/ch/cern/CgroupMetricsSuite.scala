@@ -0,0 +1,107 @@
+package ch.cern
+
+import java.io.File
+
+import com.codahale.metrics.MetricRegistry
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.util.{CgroupHierarchy, Fixtures}
+
+class CgroupMetricsSuite extends AnyFunSuite with Fixtures {
+
+  val plugin = new CgroupMetrics
+  val ttl = 0L
+
+  def path(relativePath: String): String = new File(root.toFile, relativePath).getPath
+
+  def gauge(registry: MetricRegistry, name: String): Any = {
+    val g = registry.getGauges.get(name)
+    assert(g != null, s"gauge $name is not registered")
+    g.getValue
+  }
+
+  def v2Tree(): CgroupHierarchy = {
+    write("sys/fs/cgroup/cgroup.controllers", "cpuset cpu io memory pids\n")
+    write("sys/fs/cgroup/pod/cpu.stat",
+      """usage_usec 2500000
+        |user_usec 2000000
+        |system_usec 500000
+        |nr_periods 100
+        |nr_throttled 7
+        |throttled_usec 30000
+        |""".stripMargin)
+    write("sys/fs/cgroup/pod/memory.stat",
+      """anon 104857600
+        |file 52428800
+        |kernel 1000
+        |file_mapped 4096
+        |""".stripMargin)
+    write("sys/fs/cgroup/pod/memory.current", "160000000\n")
+    write("sys/fs/cgroup/pod/cpu.pressure",
+      """some avg10=1.50 avg60=0.80 avg300=0.20 total=123456
+        |full avg10=0.00 avg60=0.00 avg300=0.00 total=789
+        |""".stripMargin)
+    // kernels before 5.13 have no full line for cpu
+    write("sys/fs/cgroup/pod/io.pressure", "some avg10=0.00 avg60=0.00 avg300=0.00 total=42\n")
+    write("proc/self/cgroup", "0::/pod\n")
+    CgroupHierarchy.detect(path("sys/fs/cgroup"), path("proc/self/cgroup"))
+  }
+
+  test("v2 cpu.stat, in nanoseconds") {
+    val registry = new MetricRegistry
+    plugin.cgroupCPUMetrics(registry, v2Tree(), ttl, None)
+    assert(gauge(registry, "CgroupVersion") === 2)
+    assert(gauge(registry, "CPUTimeNanosec") === 2500000000L)
+    assert(gauge(registry, "CPUPeriods") === 100L)
+    assert(gauge(registry, "CPUThrottledPeriods") === 7L)
+    assert(gauge(registry, "CPUThrottledTimeNanosec") === 30000000L)
+  }
+
+  test("v2 memory.stat and memory.current, no swap accounting") {
+    val registry = new MetricRegistry
+    plugin.cgroupMemoryMetrics(registry, v2Tree(), ttl)
+    assert(gauge(registry, "MemoryRss") === 104857600L)
+    assert(gauge(registry, "MemoryCache") === 52428800L)
+    assert(gauge(registry, "MemoryCurrent") === 160000000L)
+    assert(!registry.getGauges.containsKey("MemorySwap"))
+  }
+
+  test("v2 pressure stall information, only for the existing files") {
+    val registry = new MetricRegistry
+    plugin.cgroupPressureMetrics(registry, v2Tree(), ttl)
+    assert(gauge(registry, "CPUPressureSomeMuSec") === 123456L)
+    assert(gauge(registry, "CPUPressureFullMuSec") === 789L)
+    assert(gauge(registry, "IOPressureSomeMuSec") === 42L)
+    assert(gauge(registry, "IOPressureFullMuSec") === 0L)
+    assert(!registry.getGauges.containsKey("MemoryPressureSomeMuSec"))
+  }
+
+  test("v1 cpuacct.usage, cpu.stat and memory.stat") {
+    write("sys/fs/cgroup/cpu,cpuacct/docker/abc/cpuacct.usage", "987654321\n")
+    write("sys/fs/cgroup/cpu,cpuacct/docker/abc/cpu.stat", "nr_periods 10\nnr_throttled 2\nthrottled_time 5000\n")
+    write("sys/fs/cgroup/memory/docker/abc/memory.stat",
+      """cache 1
+        |rss 2
+        |total_cache 3000
+        |total_rss 4000
+        |total_swap 500
+        |""".stripMargin)
+    write("sys/fs/cgroup/memory/docker/abc/memory.usage_in_bytes", "8000\n")
+    write("proc/self/cgroup", "5:memory:/docker/abc\n3:cpu,cpuacct:/docker/abc\n")
+    val cgroup = CgroupHierarchy.detect(path("sys/fs/cgroup"), path("proc/self/cgroup"))
+    val registry = new MetricRegistry
+    plugin.cgroupCPUMetrics(registry, cgroup, ttl, None)
+    plugin.cgroupMemoryMetrics(registry, cgroup, ttl)
+    plugin.cgroupPressureMetrics(registry, cgroup, ttl)
+    assert(gauge(registry, "CgroupVersion") === 1)
+    assert(gauge(registry, "CPUTimeNanosec") === 987654321L)
+    assert(gauge(registry, "CPUThrottledPeriods") === 2L)
+    assert(gauge(registry, "CPUThrottledTimeNanosec") === 5000L)
+    assert(gauge(registry, "MemoryRss") === 4000L)
+    assert(gauge(registry, "MemoryCache") === 3000L)
+    assert(gauge(registry, "MemorySwap") === 500L)
+    assert(gauge(registry, "MemoryCurrent") === 8000L)
+    assert(!registry.getGauges.keySet.toArray.exists(_.toString.contains("Pressure")))
+  }
+
+}
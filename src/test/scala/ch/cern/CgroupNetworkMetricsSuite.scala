@@ -0,0 +1,109 @@
+package ch.cern
+
+import com.codahale.metrics.MetricRegistry
+import org.apache.spark.SparkConf
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.util.{Fixtures, NetDevFileReader, TestPluginContext}
+
+class CgroupNetworkMetricsSuite extends AnyFunSuite with Fixtures {
+
+  val plugin = new CgroupMetrics
+  val ttl = 0L
+
+  // large counters are written right after the colon
+  val netDev: String =
+    """Inter-|   Receive                                                |  Transmit
+      | face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed
+      |    lo:  130005     1307    0    0    0     0          0         0   130005     1307    0    0    0     0       0          0
+      |  eth0:12345678901 17074    1    2    0     0          0         0  1336311   13917    3    4    0     0       0          0
+      |eth0.100:  1000       10    0    5    0     0          0         0     2000      20    0    6    0     0       0          0
+      | veth1a2b:  77        1    0    0    0     0          0         0       88       1    0    0    0     0       0          0
+      |""".stripMargin
+
+  def gauges(registry: MetricRegistry): Map[String, Any] = {
+    val all = registry.getGauges
+    all.keySet.toArray.map(_.toString).map(name => name -> all.get(name).getValue).toMap
+  }
+
+  test("NetDevFileReader lists the interfaces and reads the receive and transmit columns") {
+    val path = write("proc/net/dev", netDev)
+    assert(NetDevFileReader.interfaces(path) === Seq("lo", "eth0", "eth0.100", "veth1a2b"))
+    val reader = new NetDevFileReader(path,
+      Seq("eth0:rx_bytes", "eth0:rx_drop", "eth0:tx_bytes", "eth0:tx_errs", "eth0.100:tx_drop", "eth1:rx_bytes"), ttl)
+    assert(reader.value(0) === 12345678901L)
+    assert(reader.value(1) === 2L)
+    assert(reader.value(2) === 1336311L)
+    assert(reader.value(3) === 3L)
+    assert(reader.value(4) === 6L)
+    // an interface that is gone reads as 0
+    assert(reader.value(5) === 0L)
+    intercept[IllegalArgumentException](new NetDevFileReader(path, Seq("eth0:no_such_counter"), ttl))
+  }
+
+  test("interfaces are selected with the include and exclude regular expressions, lo is excluded by default") {
+    write("proc/net/dev", netDev)
+    val context = new TestPluginContext(new SparkConf(false).set("spark.cernSparkPlugin.procRoot", root.resolve("proc").toString))
+    plugin.networkInterfaceMetrics(context, context.metricRegistry, ttl, None)
+    val values = gauges(context.metricRegistry)
+    assert(values.keySet.map(_.split('.')(1)) === Set("eth0", "eth0_100", "veth1a2b"))
+    assert(values("NetworkInterface.eth0.BytesIn") === 12345678901L)
+    assert(values("NetworkInterface.eth0.PacketsOut") === 13917L)
+    assert(values("NetworkInterface.eth0.ErrorsIn") === 1L)
+    assert(values("NetworkInterface.eth0_100.DropsIn") === 5L)
+    assert(values("NetworkInterface.eth0_100.DropsOut") === 6L)
+
+    val filtered = new TestPluginContext(new SparkConf(false)
+      .set("spark.cernSparkPlugin.procRoot", root.resolve("proc").toString)
+      .set("spark.cernSparkPlugin.networkInterfacesInclude", "eth.*|lo")
+      .set("spark.cernSparkPlugin.networkInterfacesExclude", ".*\\..*"))
+    plugin.networkInterfaceMetrics(filtered, filtered.metricRegistry, ttl, None)
+    assert(gauges(filtered.metricRegistry).keySet.map(_.split('.')(1)) === Set("lo", "eth0"))
+  }
+
+  test("TCP counters from /proc/net/snmp and the TcpExt section of /proc/net/netstat") {
+    resource("proc/net/snmp")
+    resource("proc/net/netstat")
+    val registry = new MetricRegistry
+    plugin.cgroupNetworkMetrics(registry, root.resolve("proc").toString, ttl, None)
+    val values = gauges(registry)
+    assert(values("NetworkBytesIn") === 513820264L)
+    assert(values("NetworkBytesOut") === 131778421L)
+    assert(values("TCPInSegs") === 30099L)
+    assert(values("TCPOutSegs") === 26939L)
+    assert(values("TCPRetransSegs") === 2L)
+    assert(values("TCPEstabResets") === 38L)
+    assert(values("TCPCurrEstab") === 8L)
+    assert(values("TCPListenDrops") === 0L)
+    (plugin.tcpMetrics ++ plugin.tcpExtMetrics).foreach { case (name, _) => assert(values.contains(name)) }
+  }
+
+  test("TcpExt counters are paired by name with the header row, not by position") {
+    write("proc/net/snmp",
+      """Tcp: RtoAlgorithm RtoMin RtoMax MaxConn ActiveOpens PassiveOpens AttemptFails EstabResets CurrEstab InSegs OutSegs RetransSegs InErrs OutRsts
+        |Tcp: 1 200 120000 -1 10 20 0 3 4 1000 900 5 6 7
+        |""".stripMargin)
+    // a kernel with fewer TcpExt counters, in a different order, and another section in between
+    write("proc/net/netstat",
+      """TcpExt: ListenDrops TCPTimeouts PruneCalled ListenOverflows
+        |TcpExt: 11 12 13 14
+        |IpExt: InNoRoutes InOctets OutOctets
+        |IpExt: 0 5000 6000
+        |MPTcpExt: TCPTimeouts
+        |MPTcpExt: 99
+        |""".stripMargin)
+    val registry = new MetricRegistry
+    plugin.cgroupNetworkMetrics(registry, root.resolve("proc").toString, ttl, None)
+    val values = gauges(registry)
+    assert(values("TCPListenDrops") === 11L)
+    assert(values("TCPTimeouts") === 12L)
+    assert(values("TCPPruneCalled") === 13L)
+    assert(values("TCPListenOverflows") === 14L)
+    assert(values("TCPSynRetrans") === 0L)
+    assert(values("NetworkBytesIn") === 5000L)
+    assert(values("NetworkBytesOut") === 6000L)
+    assert(values("TCPInErrors") === 6L)
+    assert(values("TCPRetransSegs") === 5L)
+  }
+
+}
@@ -0,0 +1,135 @@
+package ch.cern
+
+import java.util.{Iterator => JIterator}
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.jdk.CollectionConverters._
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.hadoop.fs.{GlobalStorageStatistics, StorageStatistics}
+import org.apache.hadoop.fs.StorageStatistics.LongStatistic
+import org.apache.spark.SparkConf
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.util.{MetricSnapshot, RateSampler, TestPluginContext}
+
+class CloudFSMetricsSuite extends AnyFunSuite {
+
+  val plugin = new CloudFSMetrics
+
+  // Storage statistics of a filesystem, added to the Hadoop global storage statistics as when it is first used
+  class TestStatistics(name: String, statNames: Seq[String]) extends StorageStatistics(name) {
+    val values: Map[String, AtomicLong] = statNames.map(_ -> new AtomicLong).toMap
+
+    override def getLongStatistics: JIterator[LongStatistic] =
+      values.iterator.map { case (stat, value) => new LongStatistic(stat, value.get) }.asJava
+
+    override def getLong(key: String): java.lang.Long = values.get(key).map(v => java.lang.Long.valueOf(v.get)).orNull
+
+    override def isTracked(key: String): Boolean = values.contains(key)
+
+    override def reset(): Unit = values.values.foreach(_.set(0L))
+  }
+
+  // The global storage statistics are per JVM and cannot be removed, each test uses its own filesystem names
+  def addStatistics(name: String, statNames: String*): TestStatistics = {
+    val stats = new TestStatistics(name, statNames)
+    GlobalStorageStatistics.INSTANCE.put(name, new GlobalStorageStatistics.StorageStatisticsProvider {
+      override def provide(): StorageStatistics = stats
+    })
+    stats
+  }
+
+  def gauge(metricRegistry: MetricRegistry, name: String): Long = {
+    val metric = metricRegistry.getGauges.get(name)
+    assert(metric != null, s"gauge $name not registered, found ${metricRegistry.getNames}")
+    metric.asInstanceOf[Gauge[Long]].getValue
+  }
+
+  def withPlugin(conf: SparkConf)(body: (TestPluginContext, Option[CloudFSMetrics.Discovery]) => Unit): Unit = {
+    val context = new TestPluginContext(conf)
+    val discovery = plugin.cloudFilesystemMetrics(context, context.metricRegistry)
+    try body(context, discovery)
+    finally {
+      discovery.foreach(_.stop())
+      RateSampler.unregister(context.metricRegistry)
+      MetricSnapshot.unregister(context.metricRegistry)
+    }
+  }
+
+  test("a filesystem name or discovery is required") {
+    intercept[IllegalArgumentException] {
+      plugin.cloudFilesystemMetrics(new TestPluginContext(new SparkConf(false)), new MetricRegistry)
+    }
+  }
+
+  test("one filesystem keeps the unprefixed names, its statistics are resolved when it is first used") {
+    withPlugin(new SparkConf(false).set("spark.cernSparkPlugin.cloudFsName", "testfs1")) { (context, discovery) =>
+      assert(discovery.isEmpty)
+      assert(context.metricRegistry.getNames.asScala === plugin.fsMetrics.toSet)
+      assert(gauge(context.metricRegistry, "bytesRead") === 0L)
+      val stats = addStatistics("testfs1", plugin.fsMetrics: _*)
+      stats.values("bytesRead").set(4096L)
+      stats.values("writeOps").set(3L)
+      assert(gauge(context.metricRegistry, "bytesRead") === 4096L)
+      assert(gauge(context.metricRegistry, "writeOps") === 3L)
+      assert(gauge(context.metricRegistry, "bytesWritten") === 0L)
+    }
+  }
+
+  test("more filesystems prefix the metrics with the filesystem name") {
+    val conf = new SparkConf(false).set("spark.cernSparkPlugin.cloudFsName", "testfs2a, testfs2b")
+    withPlugin(conf) { (context, _) =>
+      val expected = for (fs <- Seq("testfs2a", "testfs2b"); name <- plugin.fsMetrics) yield s"$fs.$name"
+      assert(context.metricRegistry.getNames.asScala === expected.toSet)
+      addStatistics("testfs2a", "bytesRead").values("bytesRead").set(10L)
+      addStatistics("testfs2b", "bytesRead").values("bytesRead").set(20L)
+      assert(gauge(context.metricRegistry, "testfs2a.bytesRead") === 10L)
+      assert(gauge(context.metricRegistry, "testfs2b.bytesRead") === 20L)
+      // statistics the filesystem does not track read as 0
+      assert(gauge(context.metricRegistry, "testfs2a.readOps") === 0L)
+    }
+  }
+
+  test("discovery registers the statistics that appeared since the previous scan, once") {
+    val conf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.cloudFsAutoDiscover", "true")
+      .set("spark.cernSparkPlugin.cloudFsDiscoveryIntervalMs", "3600000")
+    withPlugin(conf) { (context, discovery) =>
+      assert(discovery.isDefined)
+      val first = addStatistics("testfs3a", "object_list_request", "stream_read_bytes")
+      discovery.get.scan()
+      assert(context.metricRegistry.getNames.contains("testfs3a.object_list_request"))
+      assert(context.metricRegistry.getNames.contains("testfs3a.stream_read_bytes"))
+      first.values("stream_read_bytes").set(123L)
+      assert(gauge(context.metricRegistry, "testfs3a.stream_read_bytes") === 123L)
+
+      addStatistics("testfs3b", "op_open")
+      val registered = context.metricRegistry.getNames.size
+      // a second scan only adds the new statistics, MetricRegistry.register would throw on a duplicate
+      discovery.get.scan()
+      assert(context.metricRegistry.getNames.size === registered + 1)
+      assert(context.metricRegistry.getNames.contains("testfs3b.op_open"))
+    }
+  }
+
+  test("the configured filesystems and discovery can be combined, with rate gauges for the configured metrics") {
+    val conf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.cloudFsName", "testfs4")
+      .set("spark.cernSparkPlugin.cloudFsAutoDiscover", "true")
+      .set("spark.cernSparkPlugin.cloudFsDiscoveryIntervalMs", "3600000")
+      .set("spark.cernSparkPlugin.rateMetrics", "true")
+    withPlugin(conf) { (context, discovery) =>
+      val names = context.metricRegistry.getNames.asScala
+      plugin.fsMetrics.foreach { name =>
+        assert(names.contains(s"testfs4.$name"))
+        assert(names.contains(s"testfs4.${name}PerSec"))
+      }
+      // the configured metrics are not registered again by discovery
+      addStatistics("testfs4", plugin.fsMetrics :+ "op_delete": _*)
+      discovery.get.scan()
+      assert(context.metricRegistry.getNames.contains("testfs4.op_delete"))
+    }
+  }
+
+}
@@ -0,0 +1,138 @@
+package ch.cern
+
+import java.io.File
+
+import org.apache.spark.SparkConf
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.util.{DiskStatsFileReader, Fixtures, IoStatFileReader, TestPluginContext}
+
+class DiskMetricsSuite extends AnyFunSuite with Fixtures {
+
+  val plugin = new DiskMetrics
+  val ttl = 0L
+
+  def diskStats: String =
+    """ 259       0 nvme0n1 1000 10 80000 500 2000 20 160000 900 3 1200 1400 0 0 0 0 50 60
+      | 259       1 nvme0n1p1 900 9 72000 450 1900 19 152000 850 2 1100 1300 0 0 0 0 0 0
+      | 253       0 dm-0 5 0 40 1 6 0 48 2 0 3 3
+      |   7       0 loop0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0 0
+      |""".stripMargin
+
+  test("localDirs follows the precedence of Spark, LOCAL_DIRS first in a YARN container") {
+    val context = new TestPluginContext(new SparkConf(false).set("spark.local.dir", "/conf1,/conf2"))
+    val env = Map(
+      "CONTAINER_ID" -> "container_1",
+      "LOCAL_DIRS" -> "/yarn1, /yarn2",
+      "SPARK_EXECUTOR_DIRS" -> s"/exec1${File.pathSeparator}/exec2",
+      "SPARK_LOCAL_DIRS" -> "/local1",
+      "MESOS_SANDBOX" -> "/sandbox")
+    assert(plugin.localDirs(context, env.get) === Seq("/yarn1", "/yarn2"))
+    assert(plugin.localDirs(context, (env - "CONTAINER_ID").get) === Seq("/exec1", "/exec2"))
+    // LOCAL_DIRS is only used in a YARN container
+    assert(plugin.localDirs(context, (env - "CONTAINER_ID" - "SPARK_EXECUTOR_DIRS").get) === Seq("/local1"))
+    assert(plugin.localDirs(context, Map("MESOS_SANDBOX" -> "/sandbox").get) === Seq("/sandbox"))
+    assert(plugin.localDirs(context, Map("LOCAL_DIRS" -> "/yarn1").get) === Seq("/conf1", "/conf2"))
+    val shuffleService = new TestPluginContext(new SparkConf(false)
+      .set("spark.local.dir", "/conf1").set("spark.shuffle.service.enabled", "true"))
+    assert(plugin.localDirs(shuffleService, Map("MESOS_SANDBOX" -> "/sandbox").get) === Seq("/conf1"))
+  }
+
+  test("mountDevice maps a directory to the longest mount point, the last mount of a mount point wins") {
+    val mountInfo = write("proc/self/mountinfo",
+      """22 1 253:0 / / rw,relatime shared:1 - xfs /dev/mapper/root rw
+        |40 22 259:1 / /data rw,relatime shared:20 - ext4 /dev/nvme0n1p1 rw
+        |41 22 259:2 / /data2 rw,relatime shared:21 - ext4 /dev/nvme0n1p2 rw
+        |42 40 0:50 / /data/tmp rw,nosuid - tmpfs tmpfs rw
+        |43 22 259:3 / /scratch\040dir rw,relatime - xfs /dev/nvme1n1 rw
+        |44 22 8:1 / /data2 rw,relatime - ext4 /dev/sda1 rw
+        |""".stripMargin)
+    assert(plugin.mountDevice(mountInfo, new File("/data/spark/blockmgr-1")) === Some(("/data", "259:1")))
+    assert(plugin.mountDevice(mountInfo, new File("/data")) === Some(("/data", "259:1")))
+    assert(plugin.mountDevice(mountInfo, new File("/data/tmp/x")) === Some(("/data/tmp", "0:50")))
+    assert(plugin.mountDevice(mountInfo, new File("/data20/x")) === Some(("/", "253:0")))
+    assert(plugin.mountDevice(mountInfo, new File("/data2/x")) === Some(("/data2", "8:1")))
+    assert(plugin.mountDevice(mountInfo, new File("/scratch dir/spark")) === Some(("/scratch dir", "259:3")))
+  }
+
+  test("wholeDisk maps a partition to its disk through /sys/dev/block") {
+    write("sys/devices/pci0000:00/nvme/nvme0n1/dev", "259:0\n")
+    write("sys/devices/pci0000:00/nvme/nvme0n1/nvme0n1p1/dev", "259:1\n")
+    write("sys/devices/pci0000:00/nvme/nvme0n1/nvme0n1p1/partition", "1\n")
+    write("sys/devices/virtual/block/dm-0/dev", "253:0\n")
+    symlink("sys/dev/block/259:0", "../../devices/pci0000:00/nvme/nvme0n1")
+    symlink("sys/dev/block/259:1", "../../devices/pci0000:00/nvme/nvme0n1/nvme0n1p1")
+    symlink("sys/dev/block/253:0", "../../devices/virtual/block/dm-0")
+    val sysBlock = root.resolve("sys/dev/block").toString
+    assert(plugin.wholeDisk(sysBlock, "259:1") === "259:0")
+    assert(plugin.wholeDisk(sysBlock, "259:0") === "259:0")
+    assert(plugin.wholeDisk(sysBlock, "253:0") === "253:0")
+    // unknown device
+    assert(plugin.wholeDisk(sysBlock, "8:1") === "8:1")
+  }
+
+  test("diskstats devices and counters, including the short format of older kernels") {
+    val path = write("proc/diskstats", diskStats)
+    assert(DiskStatsFileReader.devices(path) ===
+      Map("259:0" -> "nvme0n1", "259:1" -> "nvme0n1p1", "253:0" -> "dm-0", "7:0" -> "loop0"))
+    val reader = new DiskStatsFileReader(path, Seq("nvme0n1:reads", "nvme0n1:sectors_written", "nvme0n1:flush_ms",
+      "nvme0n1p1:io_ms", "dm-0:weighted_io_ms", "dm-0:flushes", "sdz:reads"), ttl)
+    assert(reader.value(0) === 1000L)
+    assert(reader.value(1) === 160000L)
+    assert(reader.value(2) === 60L)
+    assert(reader.value(3) === 1100L)
+    assert(reader.value(4) === 3L)
+    // not in the 11 counters format
+    assert(reader.value(5) === 0L)
+    assert(reader.value(6) === 0L)
+  }
+
+  test("io.stat counters by major:minor") {
+    val path = write("io.stat",
+      """259:0 rbytes=4096 wbytes=8192 rios=1 wios=2 dbytes=0 dios=0
+        |253:0 rbytes=100 wbytes=200 rios=3 wios=4 dbytes=0 dios=0
+        |""".stripMargin)
+    val reader = new IoStatFileReader(path, Seq("259:0:rbytes", "259:0:wios", "253:0:wbytes", "259:1:rbytes"), ttl)
+    assert(reader.value(0) === 4096L)
+    assert(reader.value(1) === 2L)
+    assert(reader.value(2) === 200L)
+    assert(reader.value(3) === 0L)
+  }
+
+  test("local directory on a partition, diskstats of the partition and cgroup io.stat of its disk") {
+    assume(Seq("CONTAINER_ID", "SPARK_EXECUTOR_DIRS", "SPARK_LOCAL_DIRS", "MESOS_SANDBOX").forall(sys.env.get(_).isEmpty))
+    val localDir = root.toRealPath().resolve("local")
+    write("local/blockmgr-1/00/shuffle_0_0_0.data", "x")
+    write("proc/self/mountinfo",
+      s"""22 1 253:0 / / rw,relatime shared:1 - xfs /dev/mapper/root rw
+         |40 22 259:1 / $localDir rw,relatime shared:20 - ext4 /dev/nvme0n1p1 rw
+         |""".stripMargin)
+    write("proc/diskstats", diskStats)
+    write("proc/self/cgroup", "0::/executor\n")
+    write("cgroup/cgroup.controllers", "io memory cpu\n")
+    write("cgroup/executor/io.stat", "259:0 rbytes=4096 wbytes=8192 rios=1 wios=2 dbytes=0 dios=0\n")
+    write("sys/devices/nvme0n1/dev", "259:0\n")
+    write("sys/devices/nvme0n1/nvme0n1p1/dev", "259:1\n")
+    write("sys/devices/nvme0n1/nvme0n1p1/partition", "1\n")
+    symlink("sys/dev/block/259:1", "../../devices/nvme0n1/nvme0n1p1")
+    val context = new TestPluginContext(new SparkConf(false)
+      .set("spark.local.dir", localDir.resolve("spark-1").toString)
+      .set("spark.cernSparkPlugin.procRoot", root.resolve("proc").toString)
+      .set("spark.cernSparkPlugin.sysRoot", root.resolve("sys").toString)
+      .set("spark.cernSparkPlugin.cgroupRoot", root.resolve("cgroup").toString))
+    plugin.diskMetrics(context, context.metricRegistry, ttl, None)
+    val gauges = context.metricRegistry.getGauges
+    def value(name: String): Any = {
+      assert(gauges.containsKey(name), s"gauge $name is not registered")
+      gauges.get(name).getValue
+    }
+    assert(value("LocalDir.0.TotalBytes").asInstanceOf[Long] > 0L)
+    assert(value("Disk.nvme0n1p1.ReadOps") === 900L)
+    assert(value("Disk.nvme0n1p1.ReadBytes") === 72000L * 512)
+    assert(value("Disk.nvme0n1p1.WriteTimeMs") === 850L)
+    assert(value("Disk.nvme0n1p1.CgroupReadBytes") === 4096L)
+    assert(value("Disk.nvme0n1p1.CgroupWriteOps") === 2L)
+    assert(!gauges.keySet.toArray.exists(_.toString.startsWith("Disk.nvme0n1.")))
+  }
+
+}
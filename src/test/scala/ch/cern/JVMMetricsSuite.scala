@@ -0,0 +1,76 @@
+package ch.cern
+
+import scala.jdk.CollectionConverters._
+
+import com.codahale.metrics.MetricRegistry
+import org.scalatest.funsuite.AnyFunSuite
+
+// Stand-in of the HotspotRuntimeMBean getters
+class TestHotspotRuntime {
+  var safepoints = 0L
+  def getSafepointCount: Long = safepoints
+  def getTotalSafepointTime: Long = 10L * safepoints
+  def getSafepointSyncTime: Long = 2L * safepoints
+}
+
+class JVMMetricsSuite extends AnyFunSuite {
+
+  test("concurrent collectors and actions are not pauses") {
+    Seq("G1 Concurrent GC", "ConcurrentMarkSweep", "ZGC Cycles", "ZGC Minor Cycles", "Shenandoah Cycles").foreach { name =>
+      assert(JVMMetrics.isConcurrentCollector(name), name)
+    }
+    Seq("G1 Young Generation", "G1 Old Generation", "ZGC Pauses", "Shenandoah Pauses", "PS Scavenge", "Copy").foreach {
+      name => assert(!JVMMetrics.isConcurrentCollector(name), name)
+    }
+    assert(JVMMetrics.isConcurrentAction("end of GC cycle"))
+    assert(JVMMetrics.isConcurrentAction("end of concurrent GC pause"))
+    assert(!JVMMetrics.isConcurrentAction("end of minor GC"))
+    assert(!JVMMetrics.isConcurrentAction("end of major GC"))
+    assert(!JVMMetrics.isConcurrentAction("end of GC pause"))
+  }
+
+  test("GC histograms are named Pause or Cycle after the collector") {
+    val registry = new MetricRegistry
+    val sampler = new JVMMetrics.Sampler(registry, 60000L)
+    try {
+      val names = registry.getGauges.keySet.toArray.map(_.toString)
+      java.lang.management.ManagementFactory.getGarbageCollectorMXBeans.forEach { bean =>
+        val prefix = "GC." + JVMMetrics.metricName(bean.getName)
+        val kind = if (JVMMetrics.isConcurrentCollector(bean.getName)) "Cycle" else "Pause"
+        assert(names.contains(s"$prefix.${kind}P99MuSec"), names.mkString(", "))
+      }
+      System.gc()
+    } finally {
+      sampler.stop()
+    }
+  }
+
+  test("the sampler runs on the shared sampler thread, cancelled at stop") {
+    val registry = new MetricRegistry
+    val sampler = new JVMMetrics.Sampler(registry, 10L)
+    try {
+      val threads = Thread.getAllStackTraces.keySet.asScala.map(_.getName)
+      assert(threads.contains("cern-spark-plugin-sampler"))
+      assert(!threads.exists(_.contains("jvm-metrics")))
+      assert(!sampler.isStopped)
+    } finally {
+      sampler.stop()
+    }
+    assert(sampler.isStopped)
+  }
+
+  test("the safepoint statistics are read through the getters of the runtime bean") {
+    val runtime = new TestHotspotRuntime
+    val stats = JVMMetrics.SafepointStats.fromBean(runtime, classOf[TestHotspotRuntime])
+    assert(stats.count === 0L)
+    runtime.safepoints = 7L
+    assert(stats.count === 7L)
+    assert(stats.timeMs === 70L)
+    assert(stats.syncTimeMs === 14L)
+    // reported only when the JVM exports sun.management
+    JVMMetrics.SafepointStats.create().foreach { hotspot =>
+      assert(hotspot.count >= 0L && hotspot.timeMs >= 0L && hotspot.syncTimeMs >= 0L)
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+package ch.cern
+
+import java.net.{HttpURLConnection, URL}
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.io.Source
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.instrumentation.LatencyHistogram
+import ch.cern.util.{HistogramGauges, PrometheusExposition}
+
+class PrometheusExporterSuite extends AnyFunSuite {
+
+  private case class Response(code: Int, contentType: String, body: String)
+
+  private def get(port: Int, method: String = "GET", accept: Option[String] = None): Response = {
+    val connection = new URL(s"http://127.0.0.1:$port/metrics").openConnection().asInstanceOf[HttpURLConnection]
+    try {
+      connection.setRequestMethod(method)
+      accept.foreach(connection.setRequestProperty("Accept", _))
+      val code = connection.getResponseCode
+      val body = if (code == 200 && method == "GET") {
+        val source = Source.fromInputStream(connection.getInputStream, StandardCharsets.UTF_8.name)
+        try source.mkString finally source.close()
+      } else {
+        ""
+      }
+      Response(code, connection.getContentType, body)
+    } finally {
+      connection.disconnect()
+    }
+  }
+
+  // An endpoint on an ephemeral port serving one registry, with a gauge counting its reads
+  private def withEndpoint(ttlMs: Long)(test: (Int, AtomicInteger) => Unit): Unit = {
+    val registry = new MetricRegistry
+    val reads = new AtomicInteger
+    registry.register("Value", new Gauge[Long] {
+      override def getValue: Long = 42L
+    })
+    registry.register("Reads", new Gauge[Int] {
+      override def getValue: Int = reads.incrementAndGet()
+    })
+    registry.register("Name", new Gauge[String] {
+      override def getValue: String = "not exported"
+    })
+    val histogram = new LatencyHistogram
+    Seq(0L, 1L, 2L, 3L, 100L).foreach(histogram.recordValue)
+    HistogramGauges.register(registry, "ReadTime", histogram)
+    val exposition = new PrometheusExposition(() => Seq("test" -> registry),
+      () => Seq("app_id" -> "app-1", "executor_id" -> "1"), ttlMs)
+    val endpoint = new PrometheusExporter.Endpoint(exposition, "127.0.0.1", 0, 0)
+    try {
+      assert(endpoint.port > 0)
+      test(endpoint.port, reads)
+    } finally {
+      endpoint.stop()
+    }
+  }
+
+  test("serves the gauges and the histograms in the Prometheus text format") {
+    withEndpoint(0L) { (port, _) =>
+      val response = get(port)
+      assert(response.code === 200)
+      assert(response.contentType === PrometheusExposition.textContentType)
+      val lines = response.body.split("\n").toSeq
+      val labels = """app_id="app-1",executor_id="1""""
+      assert(lines.contains("# TYPE spark_test_Value gauge"))
+      assert(lines.contains(s"spark_test_Value{$labels} 42"))
+      // not numeric, neither the sample nor the type line are written
+      assert(!response.body.contains("spark_test_Name"))
+      assert(lines.contains("# TYPE spark_test_ReadTimeP50MuSec gauge"))
+
+      assert(lines.contains("# TYPE spark_test_ReadTimeHistogramMuSec histogram"))
+      // le = 2^k - 1, cumulative
+      Seq("0" -> 1, "1" -> 2, "3" -> 4, "7" -> 4, "63" -> 4, "127" -> 5, "68719476735" -> 5, "+Inf" -> 5).foreach {
+        case (le, count) =>
+          assert(lines.contains(s"""spark_test_ReadTimeHistogramMuSec_bucket{$labels,le="$le"} $count"""), le)
+      }
+      assert(lines.count(_.startsWith("spark_test_ReadTimeHistogramMuSec_bucket")) === 38)
+      assert(lines.contains(s"spark_test_ReadTimeHistogramMuSec_count{$labels} 5"))
+      assert(!response.body.contains("# EOF"))
+    }
+  }
+
+  test("serves the OpenMetrics format when asked, terminated by # EOF") {
+    withEndpoint(0L) { (port, _) =>
+      val response = get(port, accept = Some("application/openmetrics-text; version=1.0.0"))
+      assert(response.code === 200)
+      assert(response.contentType === PrometheusExposition.openMetricsContentType)
+      assert(response.body.contains("# TYPE spark_test_Value gauge\n"))
+      assert(response.body.endsWith("\n# EOF\n"))
+    }
+  }
+
+  test("scrapes within the TTL are served the same rendering") {
+    withEndpoint(60000L) { (port, reads) =>
+      val first = get(port).body
+      val second = get(port).body
+      assert(reads.get === 1)
+      assert(first === second)
+      assert(first.contains("""spark_test_Reads{app_id="app-1",executor_id="1"} 1"""))
+    }
+    withEndpoint(0L) { (port, reads) =>
+      get(port)
+      get(port)
+      assert(reads.get === 2)
+    }
+  }
+
+  test("HEAD is answered without a body, other methods are rejected") {
+    withEndpoint(0L) { (port, _) =>
+      assert(get(port, method = "HEAD").code === 200)
+      assert(get(port, method = "POST").code === 405)
+    }
+  }
+
+}
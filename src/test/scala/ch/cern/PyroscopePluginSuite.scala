@@ -0,0 +1,109 @@
+package ch.cern
+
+import java.nio.file.Files
+
+import org.apache.spark.SparkConf
+import org.apache.spark.cern.TestTaskContext
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.util.TestPluginContext
+
+class PyroscopePluginSuite extends AnyFunSuite {
+
+  // the agent is not started, the labels are only kept on the thread
+  val pushConf = new SparkConf(false).set("spark.app.id", "app-1")
+
+  // executor context whose polls are answered by the driver component
+  class PollingContext(conf: SparkConf, driver: org.apache.spark.api.plugin.DriverPlugin)
+    extends TestPluginContext(conf) {
+    override def ask(message: AnyRef): AnyRef = driver.receive(message)
+  }
+
+  test("the samples of a task are labeled with its stage, job group and SQL execution") {
+    val profiler = new PyroscopePlugin.ExecutorProfiler(new TestPluginContext(pushConf))
+    profiler.taskStarted(TestTaskContext.create(Map("spark.jobGroup.id" -> "group1", "spark.sql.execution.id" -> "7")))
+    assert(profiler.currentLabels === Map("stageId" -> "0", "jobGroup" -> "group1", "sqlExecutionId" -> "7"))
+    profiler.taskEnded()
+    assert(profiler.currentLabels.isEmpty)
+
+    profiler.taskStarted(TestTaskContext.create(Map.empty))
+    assert(profiler.currentLabels === Map("stageId" -> "0"))
+    profiler.taskEnded()
+  }
+
+  test("a task started without the end of the previous one closes the previous labels") {
+    val profiler = new PyroscopePlugin.ExecutorProfiler(new TestPluginContext(pushConf))
+    profiler.taskStarted(TestTaskContext.create(Map("spark.jobGroup.id" -> "first")))
+    val first = profiler.currentScopedContext.get
+    profiler.taskStarted(TestTaskContext.create(Map("spark.jobGroup.id" -> "second")))
+    assert(PyroscopePluginSuite.isClosed(first))
+    assert(profiler.currentLabels("jobGroup") === "second")
+    val second = profiler.currentScopedContext.get
+    profiler.taskEnded()
+    assert(PyroscopePluginSuite.isClosed(second))
+  }
+
+  test("no labels with spark.pyroscope.taskLabels=false, or without a task context") {
+    val profiler = new PyroscopePlugin.ExecutorProfiler(
+      new TestPluginContext(pushConf.clone.set("spark.pyroscope.taskLabels", "false")))
+    profiler.taskStarted(TestTaskContext.create(Map("spark.jobGroup.id" -> "group1")))
+    assert(profiler.currentLabels.isEmpty)
+    profiler.taskEnded()
+    val labeled = new PyroscopePlugin.ExecutorProfiler(new TestPluginContext(pushConf))
+    labeled.taskStarted(null)
+    assert(labeled.currentLabels.isEmpty)
+  }
+
+  test("the executors pick up setProfiling and resetProfiling at their next poll") {
+    val dir = Files.createTempDirectory("cern-spark-plugin-test")
+    val conf = new SparkConf(false)
+      .set("spark.app.id", "app-1")
+      .set("spark.pyroscope.mode", "local")
+      .set("spark.pyroscope.local.dir", dir.toString)
+      .set("spark.pyroscope.eventType", "CPU")
+      .set("spark.pyroscope.local.samplingIntervalMs", "20")
+    val driver = new PyroscopePlugin().driverPlugin()
+    driver.init(null, new TestPluginContext(conf, "driver"))
+    val profiler = new PyroscopePlugin.ExecutorProfiler(new PollingContext(conf, driver))
+    try {
+      // settings made before the first poll are applied by it
+      PyroscopePlugin.setProfiling("wall")
+      profiler.poll()
+      assert(profiler.activeSettings === ("WALL", 20L))
+
+      PyroscopePlugin.setProfiling("ALLOC", 50L)
+      assert(profiler.activeSettings === ("WALL", 20L))
+      profiler.poll()
+      assert(profiler.activeSettings === ("ALLOC", 50L))
+      // no new settings, nothing changes
+      profiler.poll()
+      assert(profiler.activeSettings === ("ALLOC", 50L))
+
+      PyroscopePlugin.resetProfiling()
+      profiler.poll()
+      assert(profiler.activeSettings === ("CPU", 20L))
+    } finally {
+      PyroscopePlugin.resetProfiling()
+      profiler.stop()
+      Files.walk(dir).sorted(java.util.Comparator.reverseOrder()).forEach(p => Files.delete(p))
+    }
+  }
+
+  test("setProfiling rejects an invalid event type") {
+    intercept[IllegalArgumentException] {
+      PyroscopePlugin.setProfiling("CYCLES")
+    }
+  }
+
+}
+
+object PyroscopePluginSuite {
+
+  // ScopedContext keeps its closed flag in a package-private field
+  def isClosed(scopedContext: AnyRef): Boolean = {
+    val field = scopedContext.getClass.getDeclaredField("closed")
+    field.setAccessible(true)
+    field.get(scopedContext).asInstanceOf[java.util.concurrent.atomic.AtomicBoolean].get
+  }
+
+}
@@ -0,0 +1,78 @@
+package ch.cern
+
+import org.apache.spark.SparkConf
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.util.TestPluginContext
+
+class RunOSCommandPluginSuite extends AnyFunSuite {
+
+  private def run(conf: SparkConf): RunOSCommandPlugin.CommandResult = {
+    val context = new TestPluginContext(conf)
+    val commands = RunOSCommandPlugin.commands(context, "true")
+    val runner = new RunOSCommandPlugin.Runner(context, commands)
+    runner.runSync()
+    runner.stop()
+    RunOSCommandPlugin.results.filter(_.name == commands.head.name).last
+  }
+
+  private def waitForExit(pid: Long): Boolean = {
+    val deadline = System.currentTimeMillis() + 5000L
+    while (ProcessHandle.of(pid).isPresent && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50L)
+    }
+    !ProcessHandle.of(pid).isPresent
+  }
+
+  test("tokenize keeps the quoted words in one argument") {
+    assert(RunOSCommandPlugin.tokenize("  /bin/sh -c 'echo a  b'  \"c d\"e ") === Seq("/bin/sh", "-c", "echo a  b", "c de"))
+    assert(RunOSCommandPlugin.tokenize("") === Nil)
+  }
+
+  test("the output is bounded in bytes of UTF-8") {
+    val output = new RunOSCommandPlugin.BoundedOutput(10)
+    // 4 characters, 8 bytes, 9 with the newline
+    output.append("éééé")
+    output.append("a")
+    assert(output.toString === "éééé\n... (2 more bytes not captured)")
+  }
+
+  test("a command that times out is killed with the processes it started") {
+    val conf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.commands.timeout", "/bin/sh -c 'sleep 60 & echo $!; wait'")
+      .set("spark.cernSparkPlugin.commands.timeout.timeoutMs", "1000")
+    val result = run(conf)
+    assert(result.timedOut)
+    assert(!result.succeeded)
+    assert(result.durationMs < 10000L)
+    val pid = result.stdout.trim.toLong
+    assert(waitForExit(pid), s"background process $pid still running")
+  }
+
+  test("the wait for the output of a background process is bounded") {
+    val conf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.commands.background", "/bin/sh -c 'echo started; sleep 30 & echo $!'")
+      .set("spark.cernSparkPlugin.commandOutputWaitMs", "200")
+    val result = run(conf)
+    assert(result.succeeded)
+    // the background process keeps the output open for 30 s, the JDK closes the pipes at exit unless a read
+    // is in progress, the output threads are then waited for 200 ms
+    assert(result.durationMs < 10000L)
+    assert(result.stdout.startsWith("started\n"))
+    assert(result.stderr.isEmpty || result.stderr.contains("output still open"))
+    val pid = result.stdout.split("\n")(1).toLong
+    RunOSCommandPlugin.destroyTree(ProcessHandle.of(pid).get)
+    assert(waitForExit(pid))
+  }
+
+  test("exit code and output of a command") {
+    val conf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.commands.exit", "/bin/sh -c 'echo out; echo err >&2; exit 3'")
+    val result = run(conf)
+    assert(result.exitCode === 3)
+    assert(!result.timedOut)
+    assert(result.stdout === "out\n")
+    assert(result.stderr === "err\n")
+  }
+
+}
@@ -0,0 +1,82 @@
+package ch.cern.instrumentation
+
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class LatencyHistogramSuite extends AnyFunSuite {
+
+  test("empty histogram") {
+    val histogram = new LatencyHistogram
+    assert(histogram.getCount === 0L)
+    assert(histogram.getMax === 0L)
+    assert(histogram.getValueAtPercentile(99.0) === 0L)
+  }
+
+  test("percentiles are within the bucket relative error") {
+    val histogram = new LatencyHistogram
+    (1L to 100000L).foreach(histogram.recordValue)
+    assert(histogram.getCount === 100000L)
+    assert(histogram.getMax === 100000L)
+    Seq(50.0 -> 50000L, 90.0 -> 90000L, 99.0 -> 99000L, 99.9 -> 99900L).foreach { case (percentile, exact) =>
+      val value = histogram.getValueAtPercentile(percentile)
+      assert(value >= exact && value <= exact * 1.04, s"P$percentile = $value, exact $exact")
+    }
+    assert(histogram.getValueAtPercentile(100.0) === 100000L)
+  }
+
+  test("small values have one bucket each, negative values are recorded as 0") {
+    val histogram = new LatencyHistogram
+    histogram.recordValue(-5L)
+    histogram.recordValue(7L)
+    assert(histogram.getValueAtPercentile(50.0) === 0L)
+    assert(histogram.getValueAtPercentile(100.0) === 7L)
+  }
+
+  test("concurrent recording from many threads, the striped counts sum exactly") {
+    val histogram = new LatencyHistogram
+    val threads = 16
+    val perThread = 20000
+    val pool = Executors.newFixedThreadPool(threads)
+    val start = new CountDownLatch(1)
+    try {
+      (0 until threads).foreach { t =>
+        pool.execute(new Runnable {
+          override def run(): Unit = {
+            start.await()
+            var i = 0
+            while (i < perThread) {
+              histogram.recordValue(100L + t)
+              i += 1
+            }
+          }
+        })
+      }
+      start.countDown()
+      pool.shutdown()
+      assert(pool.awaitTermination(60, TimeUnit.SECONDS))
+    } finally {
+      pool.shutdownNow()
+    }
+    assert(histogram.getCount === threads.toLong * perThread)
+    assert(histogram.getMax === 100L + threads - 1)
+    assert(histogram.getValueAtPercentile(100.0) === 100L + threads - 1)
+  }
+
+  test("cumulative counts at 2^k - 1 are exact") {
+    val histogram = new LatencyHistogram
+    val random = new scala.util.Random(42)
+    val boundaries = (0 to 40).flatMap(k => Seq((1L << k) - 2, (1L << k) - 1, 1L << k, (1L << k) + 1)).filter(_ >= 0)
+    val randoms = Seq.fill(10000)(random.nextLong() >>> (20 + random.nextInt(43)))
+    val values = boundaries ++ randoms ++ Seq(Long.MaxValue)
+    values.foreach(histogram.recordValue)
+    val counts = new Array[Long](64)
+    val total = histogram.getCumulativeCountsAtPowersOfTwo(counts)
+    assert(total === values.length.toLong)
+    (0 until 64).foreach { k =>
+      val bound = if (k == 63) Long.MaxValue else (1L << k) - 1
+      assert(counts(k) === values.count(_ <= bound).toLong, s"le=$bound")
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+package ch.cern.instrumentation
+
+import org.scalatest.BeforeAndAfterEach
+import org.scalatest.funsuite.AnyFunSuite
+
+import ch.cern.experimental.OpTimerSettings
+
+class OpTimerSuite extends AnyFunSuite with BeforeAndAfterEach {
+
+  override def afterEach(): Unit = {
+    OpTimer.configure(OpTimer.CpuClockMode.THREAD_CPU_TIME, 1)
+  }
+
+  @volatile private var sink = 0L
+
+  // a call that spends about the same CPU time each time
+  private def busyOp(timer: OpTimer): Unit = {
+    val start = timer.startOp()
+    var i = 0
+    var x = sink
+    while (i < 200000) {
+      x = x * 31 + i
+      i += 1
+    }
+    sink = x
+    timer.endOp(start)
+  }
+
+  test("configure rejects a sampling rate below 1") {
+    intercept[IllegalArgumentException] {
+      OpTimer.configure(OpTimer.CpuClockMode.THREAD_CPU_TIME, 0)
+    }
+    intercept[IllegalArgumentException] {
+      OpTimer.configure(OpTimer.CpuClockMode.ELAPSED_ONLY, -3)
+    }
+    assert(OpTimer.getCpuSamplingRate === 1)
+  }
+
+  test("every call is timed, the histogram counts the calls") {
+    val elapsed = new StripedCounter
+    val cpu = new StripedCounter
+    val histogram = new LatencyHistogram
+    val timer = new OpTimer(elapsed, cpu, histogram)
+    (1 to 20).foreach(_ => busyOp(timer))
+    assert(histogram.getCount === 20L)
+    assert(elapsed.get > 0L)
+    assert(cpu.get > 0L)
+    // the CPU time of the calls cannot exceed their elapsed time, up to the clock reads around them
+    assert(cpu.get <= elapsed.get * 1.1 + 1000L)
+  }
+
+  test("a sampled call adds its CPU time weighted by the sampling rate") {
+    assume(OpTimer.getCpuClockMode == OpTimer.CpuClockMode.THREAD_CPU_TIME, "thread CPU time not supported")
+    // compiled busy loop, so that all the calls below spend about the same CPU time
+    val warmup = new OpTimer(new StripedCounter, null, null)
+    (1 to 500).foreach(_ => busyOp(warmup))
+    val calibration = new StripedCounter
+    val calibrationTimer = new OpTimer(new StripedCounter, calibration, null)
+    (1 to 50).foreach(_ => busyOp(calibrationTimer))
+    val cpuPerCall = calibration.get / 50.0
+    assert(cpuPerCall > 0.0)
+
+    val rate = 8
+    OpTimer.configure(OpTimer.CpuClockMode.THREAD_CPU_TIME, rate)
+    val cpu = new StripedCounter
+    val timer = new OpTimer(new StripedCounter, cpu, null)
+    var calls = 0
+    while (cpu.get == 0L && calls < 10000) {
+      busyOp(timer)
+      calls += 1
+    }
+    val ratio = cpu.get / cpuPerCall
+    assert(ratio > rate / 2.0 && ratio < rate * 2.0, s"one sampled call gave $ratio x the CPU time of a call")
+  }
+
+  test("with sampling, the CPU time total is an estimate of the unsampled total") {
+    assume(OpTimer.getCpuClockMode == OpTimer.CpuClockMode.THREAD_CPU_TIME, "thread CPU time not supported")
+    val calls = 2000
+    val exact = new StripedCounter
+    val exactTimer = new OpTimer(new StripedCounter, exact, null)
+    (1 to calls).foreach(_ => busyOp(exactTimer))
+
+    OpTimer.configure(OpTimer.CpuClockMode.THREAD_CPU_TIME, 10)
+    val sampled = new StripedCounter
+    val sampledTimer = new OpTimer(new StripedCounter, sampled, null)
+    (1 to calls).foreach(_ => busyOp(sampledTimer))
+    val ratio = sampled.get.toDouble / exact.get
+    assert(ratio > 0.5 && ratio < 2.0, s"sampled / exact CPU time = $ratio")
+  }
+
+  test("ELAPSED_ONLY does not measure CPU time") {
+    OpTimer.configure(OpTimer.CpuClockMode.ELAPSED_ONLY, 1)
+    assert(!OpTimerSettings.cpuTimeMeasured)
+    val elapsed = new StripedCounter
+    val cpu = new StripedCounter
+    val timer = new OpTimer(elapsed, cpu, null)
+    (1 to 20).foreach(_ => busyOp(timer))
+    assert(elapsed.get > 0L)
+    assert(cpu.get === 0L)
+  }
+
+}
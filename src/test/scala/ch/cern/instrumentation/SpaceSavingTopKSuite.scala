@@ -0,0 +1,86 @@
+package ch.cern.instrumentation
+
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class SpaceSavingTopKSuite extends AnyFunSuite {
+
+  test("exact weights, calls and bytes while the keys fit in the table") {
+    val topK = new SpaceSavingTopK(8)
+    (1 to 5).foreach { k =>
+      (1 to k).foreach(_ => topK.add(s"dn$k", 100L * k, 10L))
+    }
+    topK.add(null, 1000L, 1L)
+    val top = topK.top(3)
+    assert(top.map(_.getKey).toSeq === Seq("dn5", "dn4", "dn3"))
+    assert(top(0).getWeight === 2500L)
+    assert(top(0).getError === 0L)
+    assert(top(0).getCalls === 5L)
+    assert(top(0).getBytes === 50L)
+    assert(top(0).getMeanWeight === 500L)
+    assert(topK.size === 5)
+  }
+
+  test("an evicted key's weight becomes the error of the new key") {
+    val topK = new SpaceSavingTopK(2)
+    topK.add("a", 100L, 0L)
+    topK.add("b", 10L, 0L)
+    topK.add("c", 5L, 0L)
+    val top = topK.top(2)
+    assert(top.map(_.getKey).toSeq === Seq("a", "c"))
+    assert(top(1).getWeight === 15L)
+    assert(top(1).getError === 10L)
+    assert(top(1).getCalls === 1L)
+    assert(top(1).getMeanWeight === 5L)
+  }
+
+  test("ranking by mean weight skips the keys with few calls") {
+    val topK = new SpaceSavingTopK(8)
+    // busy: most cumulative time, fast calls
+    (1 to 1000).foreach(_ => topK.add("busy", 100L, 0L))
+    // slow: fewer calls, high mean
+    (1 to 200).foreach(_ => topK.add("slow", 300L, 0L))
+    // one very slow call only
+    topK.add("once", 50000L, 0L)
+    assert(topK.top(3).map(_.getKey).toSeq === Seq("busy", "slow", "once"))
+    assert(topK.topByMeanWeight(3, 1L).map(_.getKey).toSeq === Seq("once", "slow", "busy"))
+    assert(topK.topByMeanWeight(3, 100L).map(_.getKey).toSeq === Seq("slow", "busy"))
+    assert(topK.topByMeanWeight(1, 100L).head.getMeanWeight === 300L)
+  }
+
+  test("concurrent adds from many threads, the buffered updates are all merged") {
+    val topK = new SpaceSavingTopK(16)
+    val threads = 16
+    val perThread = 10000
+    val pool = Executors.newFixedThreadPool(threads)
+    val start = new CountDownLatch(1)
+    try {
+      (0 until threads).foreach { t =>
+        pool.execute(new Runnable {
+          override def run(): Unit = {
+            start.await()
+            var i = 0
+            while (i < perThread) {
+              topK.add(s"dn${i % 4}", 1L + t, 1L)
+              i += 1
+            }
+          }
+        })
+      }
+      start.countDown()
+      pool.shutdown()
+      assert(pool.awaitTermination(60, TimeUnit.SECONDS))
+    } finally {
+      pool.shutdownNow()
+    }
+    val top = topK.top(10)
+    assert(top.length === 4)
+    assert(top.map(_.getCalls).sum === threads.toLong * perThread)
+    assert(top.map(_.getBytes).sum === threads.toLong * perThread)
+    val expectedWeight = (0 until threads).map(t => (1L + t) * perThread).sum
+    assert(top.map(_.getWeight).sum === expectedWeight)
+    assert(top.forall(_.getError === 0L))
+  }
+
+}
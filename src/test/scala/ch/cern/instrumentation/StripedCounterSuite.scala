@@ -0,0 +1,73 @@
+package ch.cern.instrumentation
+
+import java.util.concurrent.{CountDownLatch, Executors, TimeUnit}
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class StripedCounterSuite extends AnyFunSuite {
+
+  test("concurrent adds from many threads sum exactly") {
+    val counter = new StripedCounter
+    val threads = 16
+    val perThread = 50000
+    val pool = Executors.newFixedThreadPool(threads)
+    val start = new CountDownLatch(1)
+    try {
+      (0 until threads).foreach { t =>
+        pool.execute(new Runnable {
+          override def run(): Unit = {
+            start.await()
+            var i = 0
+            while (i < perThread) {
+              if (t % 2 == 0) counter.increment() else counter.add(3L)
+              i += 1
+            }
+          }
+        })
+      }
+      start.countDown()
+      pool.shutdown()
+      assert(pool.awaitTermination(60, TimeUnit.SECONDS))
+    } finally {
+      pool.shutdownNow()
+    }
+    assert(counter.get === (threads / 2).toLong * perThread * (1 + 3))
+  }
+
+  test("getInt narrows the sum to int, as the legacy getters") {
+    val counter = new StripedCounter
+    counter.add(Int.MaxValue.toLong + 2)
+    assert(counter.get === Int.MaxValue.toLong + 2)
+    assert(counter.getInt === Int.MinValue + 1)
+  }
+
+  test("a counter with an attribution slot also feeds the bucket of the calling thread") {
+    val attributed = new StripedCounter(TaskAttribution.HDFS_BYTES_READ)
+    val plain = new StripedCounter
+    TaskAttribution.acquire()
+    try {
+      TaskAttribution.reset()
+      attributed.add(100L)
+      plain.add(7L)
+      assert(TaskAttribution.get(TaskAttribution.HDFS_BYTES_READ) === 100L)
+      assert(TaskAttribution.snapshot().sum === 100L)
+    } finally {
+      TaskAttribution.release()
+    }
+    // not attributed while disabled, still counted
+    attributed.add(5L)
+    assert(TaskAttribution.get(TaskAttribution.HDFS_BYTES_READ) === 100L)
+    assert(attributed.get === 105L)
+  }
+
+  test("the instrumentation classes count the primitive and the boxed increments") {
+    val before = org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getBytesRead
+    val callsBefore = org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadCalls
+    org.apache.hadoop.hdfs.HDFSTimeInstrumentation.incrementBytesRead(10L)
+    org.apache.hadoop.hdfs.HDFSTimeInstrumentation.incrementBytesRead(java.lang.Long.valueOf(5L))
+    org.apache.hadoop.hdfs.HDFSTimeInstrumentation.incrementReadCalls(2)
+    assert(org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getBytesRead - before === 15L)
+    assert(org.apache.hadoop.hdfs.HDFSTimeInstrumentation.getReadCalls - callsBefore === 2)
+  }
+
+}
@@ -0,0 +1,23 @@
+package ch.cern.instrumentation
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class TaskAttributionSuite extends AnyFunSuite {
+
+  test("attribution stays enabled till every plugin that acquired it releases it") {
+    assert(!TaskAttribution.isEnabled)
+    TaskAttribution.acquire()
+    TaskAttribution.acquire()
+    TaskAttribution.release()
+    assert(TaskAttribution.isEnabled)
+    TaskAttribution.release()
+    assert(!TaskAttribution.isEnabled)
+    // an extra release does not make the next acquire a no-op
+    TaskAttribution.release()
+    TaskAttribution.acquire()
+    assert(TaskAttribution.isEnabled)
+    TaskAttribution.release()
+    assert(!TaskAttribution.isEnabled)
+  }
+
+}
@@ -0,0 +1,80 @@
+package ch.cern.util
+
+import java.io.File
+
+import org.apache.spark.SparkConf
+import org.scalatest.funsuite.AnyFunSuite
+
+class CgroupHierarchySuite extends AnyFunSuite with Fixtures {
+
+  def path(relativePath: String): String = new File(root.toFile, relativePath).getPath
+
+  test("v2 is detected from cgroup.controllers, the path of /proc/self/cgroup is resolved under the mount point") {
+    write("sys/fs/cgroup/cgroup.controllers", "cpuset cpu io memory pids\n")
+    write("sys/fs/cgroup/kubepods.slice/pod1/cpu.stat", "usage_usec 1\n")
+    write("proc/self/cgroup", "0::/kubepods.slice/pod1\n")
+    val cgroup = CgroupHierarchy.detect(path("sys/fs/cgroup"), path("proc/self/cgroup"))
+    assert(cgroup.version === 2)
+    assert(cgroup.cpuDir === path("sys/fs/cgroup/kubepods.slice/pod1"))
+    assert(cgroup.memoryDir === cgroup.cpuDir)
+    assert(cgroup.unifiedFile("io.pressure") === path("sys/fs/cgroup/kubepods.slice/pod1/io.pressure"))
+  }
+
+  test("v2 with a private cgroup namespace, the path is not under the mount point, the mount point is used") {
+    write("sys/fs/cgroup/cgroup.controllers", "cpu memory\n")
+    write("proc/self/cgroup", "0::/kubepods.slice/not-mounted-here\n")
+    val cgroup = CgroupHierarchy.detect(path("sys/fs/cgroup"), path("proc/self/cgroup"))
+    assert(cgroup.version === 2)
+    assert(cgroup.cpuDir === path("sys/fs/cgroup"))
+  }
+
+  test("v2 with a missing /proc/self/cgroup uses the mount point") {
+    write("sys/fs/cgroup/cgroup.controllers", "cpu memory\n")
+    val cgroup = CgroupHierarchy.detect(path("sys/fs/cgroup"), path("proc/self/cgroup"))
+    assert(cgroup.version === 2)
+    assert(cgroup.cpuDir === path("sys/fs/cgroup"))
+  }
+
+  test("v1 resolves each controller in its own hierarchy, with the combined cpu,cpuacct mount") {
+    write("sys/fs/cgroup/cpu,cpuacct/yarn/container_1/cpuacct.usage", "1\n")
+    write("sys/fs/cgroup/memory/yarn/container_1/memory.stat", "total_rss 1\n")
+    write("proc/self/cgroup",
+      """12:pids:/yarn/container_1
+        |5:memory:/yarn/container_1
+        |3:cpu,cpuacct:/yarn/container_1
+        |1:name=systemd:/user.slice
+        |0::/user.slice
+        |""".stripMargin)
+    val cgroup = CgroupHierarchy.detect(path("sys/fs/cgroup"), path("proc/self/cgroup"))
+    assert(cgroup.version === 1)
+    assert(cgroup.cpuDir === path("sys/fs/cgroup/cpu,cpuacct/yarn/container_1"))
+    assert(cgroup.cpuacctDir === path("sys/fs/cgroup/cpu,cpuacct/yarn/container_1"))
+    assert(cgroup.memoryDir === path("sys/fs/cgroup/memory/yarn/container_1"))
+  }
+
+  test("v1 prefers the separate cpu and cpuacct mounts") {
+    write("sys/fs/cgroup/cpu/docker/abc/cpu.stat", "nr_periods 1\n")
+    write("sys/fs/cgroup/cpuacct/docker/abc/cpuacct.usage", "1\n")
+    write("sys/fs/cgroup/memory/memory.stat", "total_rss 1\n")
+    write("proc/self/cgroup", "4:cpuacct:/docker/abc\n3:cpu:/docker/abc\n2:memory:/docker/abc\n")
+    val cgroup = CgroupHierarchy.detect(path("sys/fs/cgroup"), path("proc/self/cgroup"))
+    assert(cgroup.version === 1)
+    assert(cgroup.cpuDir === path("sys/fs/cgroup/cpu/docker/abc"))
+    assert(cgroup.cpuacctDir === path("sys/fs/cgroup/cpuacct/docker/abc"))
+    // only the container's own memory cgroup is mounted
+    assert(cgroup.memoryDir === path("sys/fs/cgroup/memory"))
+  }
+
+  test("the cgroup root and the proc root are read from the configuration") {
+    write("cgroup/cgroup.controllers", "cpu memory\n")
+    write("cgroup/executor/cpu.stat", "usage_usec 1\n")
+    write("proc/self/cgroup", "0::/executor\n")
+    val conf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.cgroupRoot", path("cgroup"))
+      .set("spark.cernSparkPlugin.procRoot", path("proc"))
+    val cgroup = CgroupHierarchy.fromConf(conf)
+    assert(cgroup.version === 2)
+    assert(cgroup.cpuDir === path("cgroup/executor"))
+  }
+
+}
@@ -0,0 +1,174 @@
+package ch.cern.util
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.SparkConf
+import org.scalatest.funsuite.AnyFunSuite
+
+class ClusterMetricsSuite extends AnyFunSuite {
+
+  val conf = new SparkConf(false)
+
+  // An executor, its gauges are sent by publish() as ClusterMetrics.Publisher does at each interval
+  class Executor(id: String) {
+    val context = new TestPluginContext(conf, id)
+    val publisher = new ClusterMetrics.Publisher(context, context.metricRegistry)
+
+    def gauge(name: String, value: => Any): Unit = {
+      context.metricRegistry.register(name, new Gauge[Any] {
+        override def getValue: Any = value
+      })
+    }
+
+    // publishes one snapshot and delivers it to the aggregators
+    def send(aggregators: ClusterMetrics.Aggregator*): Unit = {
+      publisher.publish()
+      val message = context.sent.poll()
+      assert(message.isInstanceOf[ClusterMetrics.Snapshot])
+      aggregators.foreach(aggregator => assert(aggregator.receive(message)))
+    }
+  }
+
+  // no aggregation cache, the gauges read the latest snapshots
+  def newAggregator(registry: MetricRegistry, topN: Int = 3, staleMs: Long = 60000L): ClusterMetrics.Aggregator =
+    new ClusterMetrics.Aggregator(registry, topN, staleMs, cacheTTLMs = 0L)
+
+  def value(registry: MetricRegistry, name: String): Double = {
+    val gauge = registry.getGauges.get(name)
+    assert(gauge != null, s"gauge $name not registered")
+    gauge.getValue.asInstanceOf[Number].doubleValue
+  }
+
+  test("the numeric gauges of the executors are decoded and aggregated on the driver") {
+    val driver = new MetricRegistry
+    val aggregator = newAggregator(driver)
+    val first = new Executor("1")
+    val second = new Executor("2")
+    first.gauge("BytesRead", 100L)
+    first.gauge("Load", 0.5)
+    first.gauge("Name", "not a number")
+    first.gauge("Failing", sys.error("failed"))
+    second.gauge("BytesRead", 300)
+    second.gauge("Load", 1.5)
+    first.send(aggregator)
+    second.send(aggregator)
+
+    assert(value(driver, "cluster.numExecutors") === 2.0)
+    assert(value(driver, "cluster.BytesRead.sum") === 400.0)
+    assert(value(driver, "cluster.BytesRead.min") === 100.0)
+    assert(value(driver, "cluster.BytesRead.max") === 300.0)
+    assert(value(driver, "cluster.Load.sum") === 2.0)
+    assert(!driver.getNames.contains("cluster.Name.sum"))
+    assert(!driver.getNames.contains("cluster.Failing.sum"))
+  }
+
+  test("a schema change sends the new names, which the driver registers") {
+    val driver = new MetricRegistry
+    val aggregator = newAggregator(driver)
+    val executor = new Executor("1")
+    executor.gauge("BytesRead", 10L)
+    executor.send(aggregator)
+    assert(!driver.getNames.contains("cluster.BytesWritten.sum"))
+
+    executor.gauge("BytesWritten", 20L)
+    executor.send(aggregator)
+    assert(value(driver, "cluster.BytesRead.sum") === 10.0)
+    assert(value(driver, "cluster.BytesWritten.sum") === 20.0)
+  }
+
+  test("a driver that missed the names decodes the values after the periodic resend") {
+    val executor = new Executor("1")
+    var bytes = 1L
+    executor.gauge("BytesRead", bytes)
+    // the first snapshot, with the names, only reaches the first driver
+    val first = newAggregator(new MetricRegistry)
+    executor.send(first)
+
+    val driver = new MetricRegistry
+    val aggregator = newAggregator(driver)
+    var sent = 1
+    while (!driver.getNames.contains("cluster.BytesRead.sum")) {
+      assert(sent < 7, "the names were not sent again")
+      bytes += 1
+      executor.send(aggregator)
+      sent += 1
+      if (!driver.getNames.contains("cluster.BytesRead.sum")) {
+        // the values without the names are not decoded
+        assert(value(driver, "cluster.numExecutors") === 0.0)
+      }
+    }
+    assert(value(driver, "cluster.numExecutors") === 1.0)
+    assert(value(driver, "cluster.BytesRead.sum") === bytes.toDouble)
+  }
+
+  test("the top executors are ordered by value, unfilled entries with fewer executors than topN") {
+    val driver = new MetricRegistry
+    val aggregator = newAggregator(driver, topN = 3)
+    Seq("1" -> 5L, "2" -> 9L).foreach { case (id, bytes) =>
+      val executor = new Executor(id)
+      executor.gauge("BytesRead", bytes)
+      executor.send(aggregator)
+    }
+    assert(value(driver, "cluster.BytesRead.top1.value") === 9.0)
+    assert(value(driver, "cluster.BytesRead.top1.executor") === 2.0)
+    assert(value(driver, "cluster.BytesRead.top2.value") === 5.0)
+    assert(value(driver, "cluster.BytesRead.top2.executor") === 1.0)
+    assert(value(driver, "cluster.BytesRead.top3.value") === 0.0)
+    assert(value(driver, "cluster.BytesRead.top3.executor") === -1.0)
+    assert(aggregator.topExecutors("BytesRead") === Seq(2L -> 9.0, 1L -> 5.0))
+
+    Seq("3" -> 7L, "4" -> 1L, "5" -> 8L).foreach { case (id, bytes) =>
+      val executor = new Executor(id)
+      executor.gauge("BytesRead", bytes)
+      executor.send(aggregator)
+    }
+    assert(aggregator.topExecutors("BytesRead") === Seq(2L -> 9.0, 5L -> 8.0, 3L -> 7.0))
+    assert(value(driver, "cluster.BytesRead.min") === 1.0)
+  }
+
+  test("executors that stop sending are dropped from the aggregates") {
+    val driver = new MetricRegistry
+    val aggregator = newAggregator(driver, staleMs = 200L)
+    val lost = new Executor("1")
+    val alive = new Executor("2")
+    lost.gauge("BytesRead", 100L)
+    alive.gauge("BytesRead", 50L)
+    lost.send(aggregator)
+    alive.send(aggregator)
+    assert(value(driver, "cluster.numExecutors") === 2.0)
+    Thread.sleep(300L)
+    alive.send(aggregator)
+    assert(value(driver, "cluster.numExecutors") === 1.0)
+    assert(value(driver, "cluster.BytesRead.sum") === 50.0)
+    assert(value(driver, "cluster.BytesRead.top1.executor") === 2.0)
+  }
+
+  test("the sum is only exposed for the additive metrics") {
+    val driver = new MetricRegistry
+    val aggregator = newAggregator(driver)
+    val executor = new Executor("1")
+    val noSum = Seq("S3AReadTimeP99MuSec", "S3AReadTimeMaxMuSec", "S3AReadSizeP50Bytes", "CgroupVersion",
+      "S3ACPUTimeMode", "S3ACPUTimeSamplingRate", "BytesReadPerSecEWMA", "SnapshotTimestampMs")
+    (noSum :+ "BytesReadPerSec" :+ "S3AReadTimeMuSec").foreach(name => executor.gauge(name, 1L))
+    executor.send(aggregator)
+    noSum.foreach { name =>
+      assert(!driver.getNames.contains(s"cluster.$name.sum"), name)
+      assert(driver.getNames.contains(s"cluster.$name.max"), name)
+    }
+    assert(value(driver, "cluster.BytesReadPerSec.sum") === 1.0)
+    assert(value(driver, "cluster.S3AReadTimeMuSec.sum") === 1.0)
+
+    // the pattern is configurable
+    val custom = new MetricRegistry
+    val customAggregator = new ClusterMetrics.Aggregator(custom, 3, 60000L, 0L, noSumPattern = "S3A.*")
+    val other = new Executor("2")
+    Seq("S3AReadTimeMuSec", "CgroupVersion").foreach(name => other.gauge(name, 1L))
+    other.send(customAggregator)
+    assert(!custom.getNames.contains("cluster.S3AReadTimeMuSec.sum"))
+    assert(custom.getNames.contains("cluster.CgroupVersion.sum"))
+  }
+
+  test("other messages are left to the plugin") {
+    assert(!newAggregator(new MetricRegistry).receive("not a snapshot"))
+  }
+
+}
@@ -0,0 +1,53 @@
+package ch.cern.util
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, Paths, StandardCopyOption}
+
+import org.scalatest.{BeforeAndAfterEach, Suite}
+
+// Fixture files for the readers of /proc, /sys and the cgroup filesystem:
+// a temporary root per test, filled from src/test/resources or from strings
+trait Fixtures extends BeforeAndAfterEach { this: Suite =>
+
+  var root: Path = _
+
+  override def beforeEach(): Unit = {
+    root = Files.createTempDirectory("cern-spark-plugin-test")
+    super.beforeEach()
+  }
+
+  override def afterEach(): Unit = {
+    try super.afterEach()
+    finally {
+      if (root != null) {
+        Files.walk(root).sorted(java.util.Comparator.reverseOrder()).forEach(p => Files.delete(p))
+      }
+    }
+  }
+
+  // Write a file under the fixture root, the content overwrites the file in place as the kernel does
+  def write(relativePath: String, content: String): String = {
+    val path = root.resolve(relativePath)
+    Files.createDirectories(path.getParent)
+    Files.write(path, content.getBytes(StandardCharsets.UTF_8))
+    path.toString
+  }
+
+  // Copy a file of src/test/resources under the fixture root, at the same relative path
+  def resource(relativePath: String): String = {
+    val path = root.resolve(relativePath)
+    Files.createDirectories(path.getParent)
+    val in = getClass.getResourceAsStream("/" + relativePath)
+    require(in != null, s"missing test resource $relativePath")
+    try Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING) finally in.close()
+    path.toString
+  }
+
+  def symlink(relativePath: String, target: String): String = {
+    val path = root.resolve(relativePath)
+    Files.createDirectories(path.getParent)
+    Files.createSymbolicLink(path, Paths.get(target))
+    path.toString
+  }
+
+}
@@ -0,0 +1,117 @@
+package ch.cern.util
+
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.time.{Duration, Instant}
+
+import scala.jdk.CollectionConverters._
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class LocalProfilerSuite extends AnyFunSuite with Fixtures {
+
+  @volatile private var sink = 0L
+
+  def collapsedFile(name: String, size: Int, modifiedMs: Long): File = {
+    val file = root.resolve(name + ".collapsed").toFile
+    Files.write(file.toPath, Array.fill[Byte](size)('x'))
+    file.setLastModified(modifiedMs)
+    file
+  }
+
+  test("a stack is collapsed from the root to the leaf") {
+    val leafFirst = Array("Leaf.compute", "Mid.call", "java.lang.Thread.run")
+    assert(LocalProfiler.collapsedStack(leafFirst.length, leafFirst) === "java.lang.Thread.run;Mid.call;Leaf.compute")
+    assert(LocalProfiler.collapsedStack(1, Array("Only.frame")) === "Only.frame")
+    assert(LocalProfiler.collapsedStack(0, Array.empty[String]) === "")
+  }
+
+  test("the collapsed format has one line per stack with its weight, in the given order") {
+    val stacks = Seq("a;b;c" -> 30L, "a;b" -> 12L, "a;d" -> 1L)
+    assert(LocalProfiler.format(stacks) === "a;b;c 30\na;b 12\na;d 1\n")
+    val output = new File(root.toFile, "sub/profile.collapsed")
+    LocalProfiler.write(stacks, output)
+    assert(Files.readAllLines(output.toPath, StandardCharsets.UTF_8).asScala === Seq("a;b;c 30", "a;b 12", "a;d 1"))
+  }
+
+  test("retain deletes the oldest collapsed files beyond the maximum number of files") {
+    val now = System.currentTimeMillis()
+    val files = (0 until 5).map(i => collapsedFile(s"profile$i", 10, now - (5 - i) * 60000L))
+    val other = root.resolve("notes.txt").toFile
+    Files.write(other.toPath, "kept".getBytes(StandardCharsets.UTF_8))
+    val deleted = LocalProfiler.retain(root.toFile, 3, Long.MaxValue)
+    assert(deleted.map(_.getName).toSet === Set("profile0.collapsed", "profile1.collapsed"))
+    assert(files.map(_.exists) === Seq(false, false, true, true, true))
+    assert(other.exists)
+  }
+
+  test("retain deletes the oldest collapsed files beyond the maximum size, the newest file is kept") {
+    val now = System.currentTimeMillis()
+    val oldest = collapsedFile("oldest", 10, now - 300000L)
+    val old = collapsedFile("old", 100, now - 200000L)
+    val recent = collapsedFile("recent", 50, now - 100000L)
+    val newest = collapsedFile("newest", 40, now)
+    LocalProfiler.retain(root.toFile, 100, 100L)
+    // the older files are deleted once the budget is exceeded, even the small ones
+    assert(!oldest.exists && !old.exists)
+    assert(recent.exists && newest.exists)
+    val huge = collapsedFile("huge", 1000, now + 1000L)
+    LocalProfiler.retain(root.toFile, 100, 100L)
+    assert(huge.exists && !recent.exists && !newest.exists)
+  }
+
+  test("a flush writes the stacks of the sampled thread, with the frames from the root to the leaf") {
+    val dir = root.resolve("profiles").toFile
+    val profiler = new LocalProfiler(dir, "CPU", 10L, 16L * 1024 * 1024, Duration.ofMinutes(5), 1000,
+      maxFiles = 2, deleteOnStop = true)
+    profiler.start()
+    try {
+      val from = Instant.now()
+      // the samples are taken every 10 ms, retried in case the sampler thread starts late
+      var flushed: Option[(Seq[(String, Long)], File)] = None
+      var attempts = 0
+      while (!flushed.exists(_._1.exists(_._1.contains("busyLoop"))) && attempts < 10) {
+        busyLoop(300L)
+        flushed = profiler.flush(from, Instant.now(), Thread.currentThread.getId, s"flush$attempts")
+        attempts += 1
+      }
+      val (stacks, output) = flushed.getOrElse(fail("no execution sample recorded"))
+      val busyStacks = stacks.filter(_._1.contains("LocalProfilerSuite.busyLoop"))
+      assert(busyStacks.nonEmpty)
+      busyStacks.foreach { case (stack, weight) =>
+        assert(weight > 0L)
+        val frames = stack.split(';')
+        // the test method calls busyLoop, closer to the root
+        assert(frames.indexWhere(_.contains("LocalProfilerSuite")) <= frames.indexWhere(_.endsWith(".busyLoop")))
+        assert(!frames.head.contains("busyLoop"))
+      }
+      // most frequent first
+      assert(stacks.map(_._2) === stacks.map(_._2).sortBy(-_))
+      assert(Files.readAllLines(output.toPath).asScala.head === s"${stacks.head._1} ${stacks.head._2}")
+      // more flushes, two files kept, the latest written
+      (1 to 3).foreach(i => assert(profiler.flush(from, Instant.now(), -1L, s"all$i").isDefined))
+      assert(dir.listFiles().filter(_.getName.endsWith(".collapsed")).map(_.getName).contains("all3.collapsed"))
+      assert(dir.listFiles().count(_.getName.endsWith(".collapsed")) === 2)
+      assert(!dir.listFiles().exists(_.getName.endsWith(".jfr")))
+    } finally {
+      profiler.stop()
+    }
+    assert(dir.listFiles().isEmpty)
+  }
+
+  // most of the time in Java code: the samples taken while the thread is in the clock call are dropped by JFR
+  private def busyLoop(durationMs: Long): Unit = {
+    val end = System.nanoTime() + durationMs * 1000000L
+    var x = sink
+    while (System.nanoTime() < end) {
+      var i = 0
+      while (i < 100000) {
+        x = x * 31 + i
+        i += 1
+      }
+    }
+    sink = x
+  }
+
+}
@@ -0,0 +1,104 @@
+package ch.cern.util
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.SparkConf
+import org.scalatest.funsuite.AnyFunSuite
+
+class MetricSnapshotSuite extends AnyFunSuite {
+
+  // sampled explicitly with sample(), the scheduled pass does not run during a test
+  val conf = new SparkConf(false)
+    .set("spark.cernSparkPlugin.snapshotMetrics", "true")
+    .set("spark.cernSparkPlugin.snapshotIntervalMs", "3600000")
+
+  private def gaugeValue(registry: MetricRegistry, name: String): Long =
+    registry.getGauges.get(name).asInstanceOf[Gauge[Long]].getValue
+
+  test("the gauges read the values of the latest pass, a failing source keeps its last value") {
+    val context = new TestPluginContext(conf)
+    val snapshot = MetricSnapshot.get(context, context.metricRegistry).get
+    var value = 1L
+    MetricSnapshot.registerGauge(context.metricRegistry, "Value", () => value)
+    MetricSnapshot.registerGauge(context.metricRegistry, "Failing", () => if (value == 1L) 7L else sys.error("failed"))
+    value = 2L
+    assert(gaugeValue(context.metricRegistry, "Value") === 1L)
+    snapshot.sample()
+    assert(gaugeValue(context.metricRegistry, "Value") === 2L)
+    assert(gaugeValue(context.metricRegistry, "Failing") === 7L)
+    MetricSnapshot.unregister(context.metricRegistry)
+  }
+
+  test("the slots of an unregistered registry are reused") {
+    val first = new TestPluginContext(conf)
+    val second = new TestPluginContext(conf)
+    val snapshot = MetricSnapshot.get(first, first.metricRegistry).get
+    assert(MetricSnapshot.get(second, second.metricRegistry).get eq snapshot)
+    (0 until 10).foreach(i => MetricSnapshot.registerGauge(first.metricRegistry, s"First$i", () => i.toLong))
+    MetricSnapshot.registerGauge(second.metricRegistry, "Second", () => 42L)
+    assert(snapshot.size === 11)
+    MetricSnapshot.unregister(first.metricRegistry)
+    assert(snapshot.size === 1)
+
+    // a plugin restarted with a new registry does not grow the snapshot
+    val third = new TestPluginContext(conf)
+    MetricSnapshot.get(third, third.metricRegistry)
+    (0 until 10).foreach(i => MetricSnapshot.registerGauge(third.metricRegistry, s"Third$i", () => 100L + i))
+    assert(snapshot.size === 11)
+    snapshot.sample()
+    (0 until 10).foreach(i => assert(gaugeValue(third.metricRegistry, s"Third$i") === 100L + i))
+    assert(gaugeValue(second.metricRegistry, "Second") === 42L)
+    MetricSnapshot.unregister(second.metricRegistry)
+    MetricSnapshot.unregister(third.metricRegistry)
+  }
+
+  test("the sampler is stopped with the last registry, and recreated by the next plugin") {
+    val first = new TestPluginContext(conf)
+    val second = new TestPluginContext(conf)
+    val snapshot = MetricSnapshot.get(first, first.metricRegistry).get
+    MetricSnapshot.get(second, second.metricRegistry)
+    MetricSnapshot.unregister(first.metricRegistry)
+    assert(!snapshot.isStopped)
+    MetricSnapshot.unregister(second.metricRegistry)
+    assert(snapshot.isStopped)
+    assert(MetricSnapshot.sharedSnapshot.isEmpty)
+
+    val third = new TestPluginContext(conf)
+    val next = MetricSnapshot.get(third, third.metricRegistry).get
+    assert(!(next eq snapshot))
+    assert(!next.isStopped)
+    MetricSnapshot.unregister(third.metricRegistry)
+    assert(next.isStopped)
+  }
+
+  test("the samplers run on one scheduler thread") {
+    val threads = new java.util.concurrent.ConcurrentHashMap[String, Thread]()
+    val snapshot = new MetricSnapshot(10L)
+    val rates = new RateSampler(10L, 60000L)
+    val registry = new MetricRegistry
+    try {
+      snapshot.add(registry, () => { threads.put("snapshot", Thread.currentThread); 1L })
+      rates.register(registry, "RatePerSec", () => { threads.put("rates", Thread.currentThread); 1L })
+      threads.remove("snapshot")
+      val deadline = System.currentTimeMillis() + 10000L
+      while (threads.size < 2 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10L)
+      }
+      assert(threads.get("snapshot") != null && (threads.get("snapshot") eq threads.get("rates")))
+      assert(threads.get("rates").getName === "cern-spark-plugin-sampler")
+    } finally {
+      snapshot.stop()
+      rates.stop()
+    }
+    assert(snapshot.isStopped && rates.isStopped)
+  }
+
+  test("the gauges are computed on poll when sampling is disabled") {
+    val context = new TestPluginContext(new SparkConf(false))
+    assert(MetricSnapshot.get(context, context.metricRegistry).isEmpty)
+    var value = 1L
+    MetricSnapshot.registerGauge(context.metricRegistry, "Value", () => value)
+    value = 2L
+    assert(gaugeValue(context.metricRegistry, "Value") === 2L)
+  }
+
+}
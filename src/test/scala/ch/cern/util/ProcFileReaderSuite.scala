@@ -0,0 +1,132 @@
+package ch.cern.util
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class ProcFileReaderSuite extends AnyFunSuite with Fixtures {
+
+  // long enough to never expire during a test
+  val ttl = 60000L
+
+  test("SingleValueFileReader reads the value, with surrounding spaces and newline") {
+    val reader = new SingleValueFileReader(write("cpuacct.usage", " 123456789\n"), ttl)
+    assert(reader.value(reader.indexOf("value")) === 123456789L)
+    reader.close()
+  }
+
+  test("SingleValueFileReader re-reads the file only after the TTL") {
+    val path = write("memory.usage_in_bytes", "1000\n")
+    val reader = new SingleValueFileReader(path, 200L)
+    assert(reader.value(0) === 1000L)
+    write("memory.usage_in_bytes", "2000\n")
+    assert(reader.value(0) === 1000L)
+    Thread.sleep(250L)
+    assert(reader.value(0) === 2000L)
+    reader.close()
+  }
+
+  test("KeyValueFileReader reads the requested keys, missing keys are 0") {
+    val path = write("memory.stat",
+      """anon 4096
+        |file 8192
+        |file_mapped 512
+        |pgfault 77
+        |""".stripMargin)
+    val reader = new KeyValueFileReader(path, Seq("file", "anon", "pgmajfault"), ttl)
+    assert(reader.value(reader.indexOf("anon")) === 4096L)
+    // "file" must not match the prefix of "file_mapped"
+    assert(reader.value(reader.indexOf("file")) === 8192L)
+    assert(reader.value(reader.indexOf("pgmajfault")) === 0L)
+    intercept[IllegalArgumentException](reader.indexOf("unknown"))
+    reader.close()
+  }
+
+  test("KeyValueFileReader reads a file larger than the initial buffer") {
+    val padding = (0 until 500).map(i => s"padding_counter_$i $i").mkString("\n")
+    val path = write("memory.stat", s"anon 1\n$padding\nlast_key 424242\n")
+    assert(new java.io.File(path).length > ProcFileReader.initialBufferSize * 2)
+    val reader = new KeyValueFileReader(path, Seq("anon", "padding_counter_499", "last_key"), ttl)
+    assert(reader.value(0) === 1L)
+    assert(reader.value(1) === 499L)
+    assert(reader.value(2) === 424242L)
+    reader.close()
+  }
+
+  test("KeyValueFileReader does not keep stale values when the file gets shorter") {
+    val path = write("cpu.stat", "usage_usec 100\nuser_usec 60\nsystem_usec 40\nnr_throttled 3\n")
+    val reader = new KeyValueFileReader(path, Seq("usage_usec", "nr_throttled"), 0L)
+    assert(reader.value(1) === 3L)
+    write("cpu.stat", "usage_usec 200\n")
+    assert(reader.value(0) === 200L)
+    assert(reader.value(1) === 0L)
+    reader.close()
+  }
+
+  test("NetstatFileReader pairs the header and value lines of each section") {
+    val path = resource("proc/net/netstat")
+    val reader = new NetstatFileReader(path,
+      Seq("TcpExt:DelayedACKs", "IpExt:InOctets", "IpExt:OutOctets", "TcpExt:NoSuchCounter", "NoSuchSection:X"), ttl)
+    assert(reader.value(reader.indexOf("TcpExt:DelayedACKs")) === 674L)
+    assert(reader.value(reader.indexOf("IpExt:InOctets")) === 513820264L)
+    assert(reader.value(reader.indexOf("IpExt:OutOctets")) === 131778421L)
+    assert(reader.value(reader.indexOf("TcpExt:NoSuchCounter")) === 0L)
+    assert(reader.value(reader.indexOf("NoSuchSection:X")) === 0L)
+    reader.close()
+  }
+
+  test("NetstatFileReader reads /proc/net/snmp, negative values included") {
+    val reader = new NetstatFileReader(resource("proc/net/snmp"),
+      Seq("Tcp:MaxConn", "Tcp:RetransSegs", "Tcp:OutSegs", "Udp:InDatagrams"), ttl)
+    assert(reader.value(0) === -1L)
+    assert(reader.value(1) === 2L)
+    assert(reader.value(2) === 26939L)
+    assert(reader.value(3) === 77L)
+    reader.close()
+  }
+
+  test("NetstatFileReader reads a file larger than the initial buffer, and a shorter one after") {
+    val sections = (0 until 40).map { s =>
+      val names = (0 until 20).map(c => s"C$c").mkString(" ")
+      val values = (0 until 20).map(c => (s * 100 + c).toString).mkString(" ")
+      s"Sec$s: $names\nSec$s: $values\n"
+    }.mkString
+    val path = write("netstat", sections)
+    assert(new java.io.File(path).length > ProcFileReader.initialBufferSize)
+    val reader = new NetstatFileReader(path, Seq("Sec0:C1", "Sec39:C19", "Sec39:C0"), 0L)
+    assert(reader.value(0) === 1L)
+    assert(reader.value(1) === 3919L)
+    assert(reader.value(2) === 3900L)
+    // the new content is shorter, the tail of the previous content must not be parsed
+    write("netstat", "Sec0: C0 C1\nSec0: 5 6\n")
+    assert(reader.value(0) === 6L)
+    assert(reader.value(1) === 0L)
+    assert(reader.value(2) === 0L)
+    reader.close()
+  }
+
+  test("a missing file throws at read time") {
+    val reader = new SingleValueFileReader(root.resolve("missing").toString, ttl)
+    intercept[java.io.IOException](reader.value(0))
+  }
+
+  test("a closed reader releases its file and throws on read") {
+    val reader = new SingleValueFileReader(write("value", "1\n"), 0L)
+    assert(reader.value(0) === 1L)
+    reader.close()
+    intercept[java.io.IOException](reader.value(0))
+  }
+
+  test("ProcFileGauges closes the readers of a registry") {
+    val registry = new com.codahale.metrics.MetricRegistry
+    val other = new com.codahale.metrics.MetricRegistry
+    val reader = new KeyValueFileReader(write("memory.stat", "anon 5\n"), Seq("anon"), 0L)
+    val otherReader = new SingleValueFileReader(write("value", "7\n"), 0L)
+    ProcFileGauges.registerGauge(registry, "Anon", reader, "anon", 2L)
+    ProcFileGauges.registerGauge(other, "Value", otherReader, "value")
+    assert(registry.getGauges.get("Anon").getValue === 10L)
+    ProcFileGauges.close(registry)
+    intercept[java.io.IOException](reader.value(0))
+    assert(otherReader.value(0) === 7L)
+    ProcFileGauges.close(other)
+  }
+
+}
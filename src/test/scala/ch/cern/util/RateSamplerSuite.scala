@@ -0,0 +1,142 @@
+package ch.cern.util
+
+import com.codahale.metrics.{Gauge, MetricRegistry}
+import org.apache.spark.SparkConf
+import org.scalactic.Tolerance._
+import org.scalatest.funsuite.AnyFunSuite
+
+class RateSamplerSuite extends AnyFunSuite {
+
+  // sampled explicitly with sample(now), the scheduled pass does not run during a test
+  val intervalMs = 3600000L
+  val ewmaWindowMs = 60000L
+  val second = 1000000000L
+
+  private def gaugeValue(registry: MetricRegistry, name: String): Double =
+    registry.getGauges.get(name).asInstanceOf[Gauge[Double]].getValue
+
+  private def withSampler(body: RateSampler => Unit): Unit = {
+    val sampler = new RateSampler(intervalMs, ewmaWindowMs)
+    try body(sampler)
+    finally sampler.stop()
+  }
+
+  test("the rate is the delta per second between two passes, scaled") {
+    withSampler { sampler =>
+      val registry = new MetricRegistry
+      var bytes = 1000L
+      var cpuNanos = 0L
+      sampler.register(registry, "BytesPerSec", () => bytes)
+      sampler.register(registry, "Cores", () => cpuNanos, 1e-9)
+      sampler.sample(0L)
+      // a single sample gives no rate yet
+      assert(gaugeValue(registry, "BytesPerSec") === 0.0)
+      bytes += 5000L
+      cpuNanos += 20L * second
+      sampler.sample(10L * second)
+      assert(gaugeValue(registry, "BytesPerSec") === 500.0)
+      assert(gaugeValue(registry, "Cores") === 2.0 +- 1e-9)
+      // the first rate initializes the moving average
+      assert(gaugeValue(registry, "BytesPerSecEWMA") === 500.0)
+    }
+  }
+
+  test("the EWMA moves towards the rate with the weight of the elapsed time over the window") {
+    withSampler { sampler =>
+      val registry = new MetricRegistry
+      var value = 0L
+      sampler.register(registry, "Rate", () => value)
+      sampler.sample(0L)
+      value += 100L
+      sampler.sample(1L * second)
+      assert(gaugeValue(registry, "RateEWMA") === 100.0)
+      // the counter stops: rate 0, the average decays by exp(-elapsed / window)
+      sampler.sample(11L * second)
+      assert(gaugeValue(registry, "Rate") === 0.0)
+      val expected = 100.0 * math.exp(-10000.0 / ewmaWindowMs)
+      assert(gaugeValue(registry, "RateEWMA") === expected +- 1e-9)
+    }
+  }
+
+  test("a counter going backwards gives a rate of 0, a failing counter keeps its last rate") {
+    withSampler { sampler =>
+      val registry = new MetricRegistry
+      var value = 1000L
+      var failing = false
+      sampler.register(registry, "Rate", () => if (failing) sys.error("failed") else value)
+      sampler.sample(0L)
+      value = 100L
+      sampler.sample(1L * second)
+      assert(gaugeValue(registry, "Rate") === 0.0)
+      value = 300L
+      sampler.sample(2L * second)
+      assert(gaugeValue(registry, "Rate") === 200.0)
+      failing = true
+      sampler.sample(3L * second)
+      assert(gaugeValue(registry, "Rate") === 200.0)
+    }
+  }
+
+  test("the slots of an unregistered registry are cleared and reused") {
+    withSampler { sampler =>
+      val first = new MetricRegistry
+      val other = new MetricRegistry
+      var value = 0L
+      (0 until 10).foreach(i => sampler.register(first, s"First$i", () => value))
+      sampler.register(other, "Other", () => 2L * value)
+      sampler.sample(0L)
+      value = 10L
+      sampler.sample(1L * second)
+      assert(gaugeValue(first, "First0") === 10.0)
+      assert(sampler.size === 11)
+
+      sampler.unregister(first)
+      assert(sampler.size === 1)
+      // the gauges of the freed slots do not report the last rate
+      assert(gaugeValue(first, "First0") === 0.0)
+      assert(gaugeValue(first, "First0EWMA") === 0.0)
+
+      // a plugin restarted with a new registry reuses the slots, without the previous sample of the old counters
+      val third = new MetricRegistry
+      var thirdValue = 1000000L
+      (0 until 10).foreach(i => sampler.register(third, s"Third$i", () => thirdValue))
+      assert(sampler.size === 11)
+      sampler.sample(2L * second)
+      assert(gaugeValue(third, "Third0") === 0.0)
+      thirdValue += 50L
+      value = 20L
+      sampler.sample(3L * second)
+      (0 until 10).foreach(i => assert(gaugeValue(third, s"Third$i") === 50.0))
+      assert(gaugeValue(other, "Other") === 20.0)
+    }
+  }
+
+  test("the shared sampler is stopped with the counters of the last plugin, and recreated by the next plugin") {
+    val conf = new SparkConf(false)
+      .set("spark.cernSparkPlugin.rateMetrics", "true")
+      .set("spark.cernSparkPlugin.rateIntervalMs", intervalMs.toString)
+    val first = new TestPluginContext(conf)
+    val second = new TestPluginContext(conf)
+    val sampler = RateSampler.get(first).get
+    assert(RateSampler.get(second).get eq sampler)
+    sampler.register(first.metricRegistry, "FirstPerSec", () => 1L)
+    sampler.register(second.metricRegistry, "SecondPerSec", () => 2L)
+    RateSampler.unregister(first.metricRegistry)
+    assert(!sampler.isStopped)
+    RateSampler.unregister(second.metricRegistry)
+    assert(sampler.isStopped)
+    assert(RateSampler.sharedSampler.isEmpty)
+
+    val third = new TestPluginContext(conf)
+    val next = RateSampler.get(third).get
+    assert(!(next eq sampler))
+    next.register(third.metricRegistry, "ThirdPerSec", () => 3L)
+    RateSampler.unregister(third.metricRegistry)
+    assert(next.isStopped)
+  }
+
+  test("rates are disabled by default") {
+    assert(RateSampler.get(new TestPluginContext(new SparkConf(false))).isEmpty)
+  }
+
+}
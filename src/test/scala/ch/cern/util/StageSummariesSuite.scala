@@ -0,0 +1,54 @@
+package ch.cern.util
+
+import java.util.concurrent.ConcurrentLinkedDeque
+
+import scala.jdk.CollectionConverters._
+
+import org.scalatest.funsuite.AnyFunSuite
+
+class StageSummariesSuite extends AnyFunSuite {
+
+  class Summary(val stageId: Int, val stageAttemptId: Int) {
+    var numTasks = 0
+  }
+
+  test("summaries are kept after completion, the oldest are evicted beyond maxStages") {
+    val completed = new ConcurrentLinkedDeque[Summary]()
+    val stages = new StageSummaries[Summary](2, new Summary(_, _), completed)
+    (0 until 3).foreach { stageId =>
+      stages.get(stageId, 0).foreach(_.numTasks += 1)
+      stages.complete(stageId, 0)
+    }
+    assert(completed.asScala.map(_.stageId).toList === List(1, 2))
+    // late message for a completed stage still in completed
+    stages.get(1, 0).foreach(_.numTasks += 1)
+    assert(completed.peekFirst().numTasks === 2)
+    assert(stages.size === 2)
+  }
+
+  test("late messages for evicted stages do not create new summaries") {
+    val completed = new ConcurrentLinkedDeque[Summary]()
+    val stages = new StageSummaries[Summary](10, new Summary(_, _), completed)
+    (0 until 1000).foreach { stageId =>
+      stages.get(stageId, 0)
+      stages.complete(stageId, 0)
+      // a task message of an evicted stage, arriving after the completion of the next stages
+      if (stageId >= 10) {
+        assert(stages.get(stageId - 10, 0).isEmpty)
+      }
+    }
+    assert(stages.size === 10)
+    assert(completed.size === 10)
+    // another attempt of an evicted stage is a new stage
+    assert(stages.get(0, 1).isDefined)
+  }
+
+  test("a stage completed twice is added once") {
+    val completed = new ConcurrentLinkedDeque[Summary]()
+    val stages = new StageSummaries[Summary](10, new Summary(_, _), completed)
+    stages.complete(5, 0)
+    stages.complete(5, 0)
+    assert(completed.size === 1)
+  }
+
+}
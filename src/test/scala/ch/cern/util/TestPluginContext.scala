@@ -0,0 +1,25 @@
+package ch.cern.util
+
+import java.util.{Map => JMap}
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import com.codahale.metrics.MetricRegistry
+import org.apache.spark.SparkConf
+import org.apache.spark.api.plugin.PluginContext
+import org.apache.spark.resource.ResourceInformation
+
+// PluginContext of a plugin running outside Spark, the messages sent to the driver are kept in sent
+class TestPluginContext(val conf: SparkConf, val executorID: String = "1") extends PluginContext {
+
+  val metricRegistry = new MetricRegistry
+  val sent = new ConcurrentLinkedQueue[AnyRef]()
+
+  override def hostname(): String = "localhost"
+
+  override def resources(): JMap[String, ResourceInformation] = java.util.Collections.emptyMap()
+
+  override def send(message: AnyRef): Unit = sent.add(message)
+
+  override def ask(message: AnyRef): AnyRef = null
+
+}
@@ -0,0 +1,57 @@
+package com.oracle.bmc.hdfs.store
+
+import ch.cern.instrumentation.TaskAttribution
+import org.scalatest.funsuite.AnyFunSuite
+
+// The counters are static, shared by the tests: the assertions are on the deltas
+class BmcTimeInstrumentationSuite extends AnyFunSuite {
+
+  test("the single PUT and the multipart uploads are recorded") {
+    val blockTime = BmcTimeInstrumentation.getTimeBlockUploadMusec
+    val blocks = BmcTimeInstrumentation.getBlocksUploaded
+    val partTime = BmcTimeInstrumentation.getTimePartUploadMusec
+    val parts = BmcTimeInstrumentation.getPartsUploaded
+    val partSizes = BmcTimeInstrumentation.getPartSizeHistogram.getCount
+    val queueWait = BmcTimeInstrumentation.getTimeUploadQueueWaitMusec
+    val queueWaits = BmcTimeInstrumentation.getUploadQueueWaitHistogram.getCount
+
+    BmcTimeInstrumentation.recordBlockUploadTime(2000L)
+    BmcTimeInstrumentation.recordUploadQueueWait(50L)
+    BmcTimeInstrumentation.recordPartUpload(3000L, 128L * 1024 * 1024)
+    BmcTimeInstrumentation.recordUploadQueueWait(150L)
+    BmcTimeInstrumentation.recordPartUpload(1000L, 16L * 1024 * 1024)
+
+    assert(BmcTimeInstrumentation.getTimeBlockUploadMusec - blockTime === 2000L)
+    assert(BmcTimeInstrumentation.getBlocksUploaded - blocks === 1L)
+    assert(BmcTimeInstrumentation.getBlockUploadTimeHistogram.getMax >= 2000L)
+    assert(BmcTimeInstrumentation.getTimePartUploadMusec - partTime === 4000L)
+    assert(BmcTimeInstrumentation.getPartsUploaded - parts === 2L)
+    assert(BmcTimeInstrumentation.getPartSizeHistogram.getCount - partSizes === 2L)
+    assert(BmcTimeInstrumentation.getPartSizeHistogram.getMax >= 128L * 1024 * 1024)
+    assert(BmcTimeInstrumentation.getTimeUploadQueueWaitMusec - queueWait === 200L)
+    assert(BmcTimeInstrumentation.getUploadQueueWaitHistogram.getCount - queueWaits === 2L)
+  }
+
+  test("the bytes written and the close time are attributed to the task of the calling thread") {
+    val bytes = BmcTimeInstrumentation.getBytesWritten
+    val closeTime = BmcTimeInstrumentation.getTimeCloseMusec
+    val closes = BmcTimeInstrumentation.getCloseTimeHistogram.getCount
+    TaskAttribution.acquire()
+    try {
+      TaskAttribution.reset()
+      BmcTimeInstrumentation.incrementBytesWritten(4096L)
+      BmcTimeInstrumentation.recordCloseTime(9000L)
+      // the parts are uploaded by the threads of the upload executor, they are not attributed
+      BmcTimeInstrumentation.recordPartUpload(3000L, 4096L)
+      assert(TaskAttribution.get(TaskAttribution.OCI_BYTES_WRITTEN) === 4096L)
+      assert(TaskAttribution.get(TaskAttribution.OCI_CLOSE_TIME_MUSEC) === 9000L)
+      assert(TaskAttribution.snapshot().sum === 13096L)
+    } finally {
+      TaskAttribution.release()
+    }
+    assert(BmcTimeInstrumentation.getBytesWritten - bytes === 4096L)
+    assert(BmcTimeInstrumentation.getTimeCloseMusec - closeTime === 9000L)
+    assert(BmcTimeInstrumentation.getCloseTimeHistogram.getCount - closes === 1L)
+  }
+
+}
@@ -0,0 +1,129 @@
+package org.apache.hadoop.fs.s3a
+
+import ch.cern.instrumentation.TaskAttribution
+import org.scalatest.funsuite.AnyFunSuite
+
+// The counters are static, shared by the tests: the assertions are on the deltas
+class S3ATimeInstrumentationSuite extends AnyFunSuite {
+
+  test("seeks are classified by direction, seeks to the current position are not recorded") {
+    val forwardSeeks = S3ATimeInstrumentation.getForwardSeeks
+    val backwardSeeks = S3ATimeInstrumentation.getBackwardSeeks
+    val forwardSeekBytes = S3ATimeInstrumentation.getForwardSeekBytes
+    val backwardSeekBytes = S3ATimeInstrumentation.getBackwardSeekBytes
+    val forwardCount = S3ATimeInstrumentation.getForwardSeekDistanceHistogram.getCount
+    val backwardCount = S3ATimeInstrumentation.getBackwardSeekDistanceHistogram.getCount
+
+    S3ATimeInstrumentation.recordSeek(0L, 100L)
+    S3ATimeInstrumentation.recordSeek(100L, 1100L)
+    S3ATimeInstrumentation.recordSeek(1100L, 600L)
+    S3ATimeInstrumentation.recordSeek(600L, 600L)
+
+    assert(S3ATimeInstrumentation.getForwardSeeks - forwardSeeks === 2L)
+    assert(S3ATimeInstrumentation.getForwardSeekBytes - forwardSeekBytes === 1100L)
+    assert(S3ATimeInstrumentation.getBackwardSeeks - backwardSeeks === 1L)
+    // the backward distance is recorded as a positive number of bytes
+    assert(S3ATimeInstrumentation.getBackwardSeekBytes - backwardSeekBytes === 500L)
+    assert(S3ATimeInstrumentation.getForwardSeekDistanceHistogram.getCount - forwardCount === 2L)
+    assert(S3ATimeInstrumentation.getBackwardSeekDistanceHistogram.getCount - backwardCount === 1L)
+    assert(S3ATimeInstrumentation.getBackwardSeekDistanceHistogram.getMax >= 500L)
+  }
+
+  test("the reads per stream are recorded when the stream is closed, not when it is aborted") {
+    val opened = S3ATimeInstrumentation.getStreamsOpened
+    val aborted = S3ATimeInstrumentation.getStreamsAborted
+    val discardedInAbort = S3ATimeInstrumentation.getBytesDiscardedInAbort
+    val streams = S3ATimeInstrumentation.getReadsPerStreamHistogram.getCount
+
+    S3ATimeInstrumentation.recordStreamOpened()
+    S3ATimeInstrumentation.recordStreamClosed(3L)
+    S3ATimeInstrumentation.recordStreamOpened()
+    S3ATimeInstrumentation.recordStreamClosed(12345L)
+    S3ATimeInstrumentation.recordStreamOpened()
+    S3ATimeInstrumentation.recordStreamAborted(4096L)
+
+    assert(S3ATimeInstrumentation.getStreamsOpened - opened === 3L)
+    assert(S3ATimeInstrumentation.getReadsPerStreamHistogram.getCount - streams === 2L)
+    assert(S3ATimeInstrumentation.getReadsPerStreamHistogram.getMax >= 12345L)
+    assert(S3ATimeInstrumentation.getStreamsAborted - aborted === 1L)
+    assert(S3ATimeInstrumentation.getBytesDiscardedInAbort - discardedInAbort === 4096L)
+  }
+
+  test("the bytes discarded on seek and drained on close are counted separately") {
+    val discardedOnSeek = S3ATimeInstrumentation.getBytesDiscardedOnSeek
+    val drainedOnClose = S3ATimeInstrumentation.getBytesDrainedOnClose
+
+    S3ATimeInstrumentation.incrementBytesDiscardedOnSeek(1000L)
+    S3ATimeInstrumentation.incrementBytesDrainedOnClose(200L)
+
+    assert(S3ATimeInstrumentation.getBytesDiscardedOnSeek - discardedOnSeek === 1000L)
+    assert(S3ATimeInstrumentation.getBytesDrainedOnClose - drainedOnClose === 200L)
+  }
+
+  test("the read calls and sizes are recorded, end of stream is not") {
+    val bytes = S3ATimeInstrumentation.getBytesRead
+    val calls = S3ATimeInstrumentation.getReadCalls
+    val sizes = S3ATimeInstrumentation.getReadSizeHistogram.getCount
+
+    S3ATimeInstrumentation.recordReadSize(4096L)
+    S3ATimeInstrumentation.recordReadSize(0L)
+    S3ATimeInstrumentation.recordReadSize(-1L)
+
+    assert(S3ATimeInstrumentation.getBytesRead - bytes === 4096L)
+    assert(S3ATimeInstrumentation.getReadCalls - calls === 2L)
+    assert(S3ATimeInstrumentation.getReadSizeHistogram.getCount - sizes === 2L)
+  }
+
+  test("the write calls, the single PUT and the multipart uploads are recorded") {
+    val bytes = S3ATimeInstrumentation.getBytesWritten
+    val calls = S3ATimeInstrumentation.getWriteCalls
+    val blockTime = S3ATimeInstrumentation.getTimeBlockUploadMusec
+    val blocks = S3ATimeInstrumentation.getBlocksUploaded
+    val partTime = S3ATimeInstrumentation.getTimePartUploadMusec
+    val parts = S3ATimeInstrumentation.getPartsUploaded
+    val partSizes = S3ATimeInstrumentation.getPartSizeHistogram.getCount
+    val queueWait = S3ATimeInstrumentation.getTimeUploadQueueWaitMusec
+    val queueWaits = S3ATimeInstrumentation.getUploadQueueWaitHistogram.getCount
+
+    S3ATimeInstrumentation.recordWriteSize(1000L)
+    S3ATimeInstrumentation.recordWriteSize(24L)
+    S3ATimeInstrumentation.recordWriteSize(-1L)
+    S3ATimeInstrumentation.recordBlockUploadTime(2000L)
+    S3ATimeInstrumentation.recordUploadQueueWait(50L)
+    S3ATimeInstrumentation.recordPartUpload(3000L, 64L * 1024 * 1024)
+    S3ATimeInstrumentation.recordUploadQueueWait(150L)
+    S3ATimeInstrumentation.recordPartUpload(1000L, 32L * 1024 * 1024)
+
+    assert(S3ATimeInstrumentation.getBytesWritten - bytes === 1024L)
+    assert(S3ATimeInstrumentation.getWriteCalls - calls === 2L)
+    assert(S3ATimeInstrumentation.getTimeBlockUploadMusec - blockTime === 2000L)
+    assert(S3ATimeInstrumentation.getBlocksUploaded - blocks === 1L)
+    assert(S3ATimeInstrumentation.getTimePartUploadMusec - partTime === 4000L)
+    assert(S3ATimeInstrumentation.getPartsUploaded - parts === 2L)
+    assert(S3ATimeInstrumentation.getPartSizeHistogram.getCount - partSizes === 2L)
+    assert(S3ATimeInstrumentation.getPartSizeHistogram.getMax >= 64L * 1024 * 1024)
+    assert(S3ATimeInstrumentation.getTimeUploadQueueWaitMusec - queueWait === 200L)
+    assert(S3ATimeInstrumentation.getUploadQueueWaitHistogram.getCount - queueWaits === 2L)
+  }
+
+  test("the bytes written and the close time are attributed to the task of the calling thread") {
+    val closeTime = S3ATimeInstrumentation.getTimeCloseMusec
+    val closes = S3ATimeInstrumentation.getCloseTimeHistogram.getCount
+    TaskAttribution.acquire()
+    try {
+      TaskAttribution.reset()
+      S3ATimeInstrumentation.recordWriteSize(512L)
+      S3ATimeInstrumentation.recordCloseTime(7000L)
+      // the uploads run on the threads of the upload pool, they are not attributed
+      S3ATimeInstrumentation.recordPartUpload(3000L, 512L)
+      assert(TaskAttribution.get(TaskAttribution.S3A_BYTES_WRITTEN) === 512L)
+      assert(TaskAttribution.get(TaskAttribution.S3A_CLOSE_TIME_MUSEC) === 7000L)
+      assert(TaskAttribution.snapshot().sum === 7512L)
+    } finally {
+      TaskAttribution.release()
+    }
+    assert(S3ATimeInstrumentation.getTimeCloseMusec - closeTime === 7000L)
+    assert(S3ATimeInstrumentation.getCloseTimeHistogram.getCount - closes === 1L)
+  }
+
+}
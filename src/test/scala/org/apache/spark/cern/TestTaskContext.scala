@@ -0,0 +1,15 @@
+package org.apache.spark.cern
+
+import org.apache.spark.TaskContext
+
+// Task contexts for the tests of the executor plugin callbacks, which read TaskContext.get() on the task thread
+object TestTaskContext {
+
+  // A context of stage 0 with the given local properties, for example spark.jobGroup.id
+  def create(localProperties: Map[String, String]): TaskContext = {
+    val taskContext = TaskContext.empty()
+    localProperties.foreach { case (name, value) => taskContext.getLocalProperties.setProperty(name, value) }
+    taskContext
+  }
+
+}